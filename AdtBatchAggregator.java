@@ -0,0 +1,482 @@
+/**
+ * Coalesces ADT messages into submitBatchADTMessage calls.
+ *
+ */
+package hub.sample;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.medplus.hub.demographics.webservice.DemographicRequest;
+import com.medplus.hub.demographics.webservice.DemographicResponse;
+import com.medplus.hub.demographics.webservice.DemographicServicePort;
+
+/**
+ * class AdtBatchAggregator collects the ADT messages handed to submit() into HL7
+ * batches and sends each batch with one submitBatchADTMessage call, so a burst of
+ * thousands of registrations costs tens of calls instead of thousands.
+ *
+ * A batch is closed and sent
+ *
+ *   - when it holds maxMessages messages, or another message would take it past
+ *     maxBytes,
+ *   - maxAgeMillis after its first message, at the latest, or
+ *   - at once, when one of the concurrency submitters is idle.
+ *
+ * The last rule makes the batches adapt to the load: a trickle of messages goes
+ * out one or a few at a time with no added delay, while during a burst all
+ * submitters are busy and the batches fill up to the size bound (or the age bound,
+ * if the burst is thin).  Closed batches wait for a submitter in the order they
+ * were closed.
+ *
+ * A batch is the messages between a BHS and a BTS segment (HL7 batch protocol),
+ * each message ending in a carriage return.  submit() returns a future per message
+ * that completes with its AdtSubmission once the batch is answered: the errors of
+ * DemographicResponse.getErrors() that name the message's control id (MSH-10) are
+ * its own, errors that name no message of the batch are given to every message of
+ * the batch as batch errors.  If the call fails, every future of the batch
+ * completes with the exception.
+ *
+ * Use a port from PortProxies.forHub(), so the batches are rate limited and
+ * measured like every other call.  close() sends what is left and waits for it.
+ *
+ * Configured with system properties:
+ *
+ *   hub.adt.batch.maxMessages    messages per batch (default 500)
+ *   hub.adt.batch.maxBytes       bytes per batch (default 1048576)
+ *   hub.adt.batch.maxAgeMillis   longest time a message waits for its batch to close (default 2000)
+ *   hub.adt.batch.concurrency    batches submitted at once (default 4)
+ *
+ */
+public class AdtBatchAggregator implements AutoCloseable {
+
+    private static final int DEFAULT_MAX_MESSAGES = Integer.getInteger("hub.adt.batch.maxMessages", 500).intValue();
+    private static final int DEFAULT_MAX_BYTES = Integer.getInteger("hub.adt.batch.maxBytes", 1048576).intValue();
+    private static final long DEFAULT_MAX_AGE_MILLIS = Long.getLong("hub.adt.batch.maxAgeMillis", 2000L).longValue();
+    private static final int DEFAULT_CONCURRENCY = Integer.getInteger("hub.adt.batch.concurrency", 4).intValue();
+
+    private static final byte SEGMENT_END = '\r';
+    // room for the BHS and BTS segments
+    private static final int ENVELOPE_BYTES = 128;
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final DemographicServicePort port;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long maxAgeMillis;
+    private final int concurrency;
+    private final ExecutorService submitters;
+    private final ScheduledExecutorService timer;
+
+    // guarded by this
+    private List<Pending> open = new ArrayList<Pending>();
+    private long openBytes;
+    private long openGeneration;
+    private ScheduledFuture<?> ageTimer;
+    private int busy;
+    private boolean closed;
+
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+
+    /**
+     * An aggregator with the limits of the hub.adt.batch.* properties.
+     */
+    public AdtBatchAggregator(DemographicServicePort port) {
+        this(port, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * @param port the port the batches are submitted with
+     * @param maxMessages most messages in a batch
+     * @param maxBytes most bytes in a batch; a single larger message is sent in a batch of its own
+     * @param maxAgeMillis longest time a message waits for its batch to close
+     * @param concurrency batches submitted at once
+     */
+    public AdtBatchAggregator(DemographicServicePort port, int maxMessages, int maxBytes, long maxAgeMillis,
+            int concurrency) {
+        this.port = port;
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.maxAgeMillis = Math.max(0L, maxAgeMillis);
+        this.concurrency = Math.max(1, concurrency);
+        int instance = INSTANCES.incrementAndGet();
+        AtomicInteger threads = new AtomicInteger();
+        this.submitters = Executors.newFixedThreadPool(this.concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "adt-batch-" + instance + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "adt-batch-" + instance + "-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues an ADT message for the next batch.
+     *
+     * @return the outcome of this message, once its batch is answered
+     * @throws IllegalStateException if the aggregator is closed
+     */
+    public CompletableFuture<AdtSubmission> submit(byte[] adtMessage) {
+        Pending pending = new Pending(adtMessage);
+        List<List<Pending>> ready = new ArrayList<List<Pending>>(2);
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("AdtBatchAggregator is closed");
+            }
+            if (!open.isEmpty() && openBytes + pending.size > maxBytes) {
+                ready.add(takeOpen());
+            }
+            open.add(pending);
+            openBytes += pending.size;
+            if (open.size() >= maxMessages || openBytes >= maxBytes || busy < concurrency) {
+                ready.add(takeOpen());
+            } else if (open.size() == 1) {
+                long generation = openGeneration;
+                ageTimer = timer.schedule(() -> ageExpired(generation), maxAgeMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        for (List<Pending> batch : ready) {
+            dispatch(batch);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Sends the open batch now, whatever its size.
+     */
+    public void flush() {
+        List<Pending> batch = null;
+        synchronized (this) {
+            if (!open.isEmpty()) {
+                batch = takeOpen();
+            }
+        }
+        if (batch != null) {
+            dispatch(batch);
+        }
+    }
+
+    /**
+     * Sends the open batch and waits up to the given time for every batch to be
+     * answered.  submit() fails from now on.
+     *
+     * @return true if every batch was answered
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            while (busy > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        timer.shutdownNow();
+        submitters.shutdown();
+        return submitters.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * close() waiting up to a minute.
+     */
+    public void close() {
+        try {
+            close(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getBatchesSent() {
+        return batchesSent.sum();
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    // guarded by this
+    private List<Pending> takeOpen() {
+        List<Pending> batch = open;
+        open = new ArrayList<Pending>();
+        openBytes = 0;
+        openGeneration++;
+        if (ageTimer != null) {
+            ageTimer.cancel(false);
+            ageTimer = null;
+        }
+        busy++;
+        return batch;
+    }
+
+    private void ageExpired(long generation) {
+        List<Pending> batch = null;
+        synchronized (this) {
+            if (generation == openGeneration && !open.isEmpty()) {
+                batch = takeOpen();
+            }
+        }
+        if (batch != null) {
+            dispatch(batch);
+        }
+    }
+
+    private void dispatch(List<Pending> batch) {
+        submitters.execute(() -> {
+            try {
+                send(batch);
+            } finally {
+                answered();
+            }
+        });
+    }
+
+    /**
+     * A submitter is free again: it takes the open batch, if there is one.
+     */
+    private void answered() {
+        List<Pending> next = null;
+        synchronized (this) {
+            busy--;
+            if (!open.isEmpty() && busy < concurrency) {
+                next = takeOpen();
+            }
+            notifyAll();
+        }
+        if (next != null) {
+            dispatch(next);
+        }
+    }
+
+    private void send(List<Pending> batch) {
+        DemographicResponse response;
+        try {
+            DemographicRequest request = new DemographicRequest();
+            request.setADTMessage(batchMessage(batch));
+            response = port.submitBatchADTMessage(request);
+        } catch (Throwable t) {
+            for (Pending pending : batch) {
+                pending.future.completeExceptionally(t);
+            }
+            return;
+        }
+        batchesSent.increment();
+        messagesSent.add(batch.size());
+
+        String[] errors = response == null || response.getErrors() == null ? new String[0] : response.getErrors();
+        List<List<String>> own = new ArrayList<List<String>>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            own.add(new ArrayList<String>(0));
+        }
+        List<String> batchErrors = new ArrayList<String>(0);
+        for (String error : errors) {
+            boolean named = false;
+            for (int i = 0; i < batch.size(); i++) {
+                if (names(error, batch.get(i).controlId)) {
+                    own.get(i).add(error);
+                    named = true;
+                }
+            }
+            if (!named) {
+                batchErrors.add(error);
+            }
+        }
+        String status = response == null ? null : response.getStatus();
+        String transactionUid = response == null ? null : response.getHubTransactionUid();
+        for (int i = 0; i < batch.size(); i++) {
+            Pending pending = batch.get(i);
+            pending.future.complete(new AdtSubmission(pending.controlId, status, transactionUid, batch.size(),
+                    own.get(i), batchErrors));
+        }
+    }
+
+    /**
+     * BHS, the messages and BTS.  The BHS takes sender and receiver from the first
+     * message's MSH.
+     */
+    static byte[] batchMessage(List<Pending> batch) {
+        int size = ENVELOPE_BYTES;
+        for (Pending pending : batch) {
+            size += pending.size;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        String[] msh = batch.get(0).msh;
+        String header = "BHS|^~\\&|" + field(msh, 3) + "|" + field(msh, 4) + "|" + field(msh, 5) + "|"
+                + field(msh, 6) + "|" + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date()) + "\r";
+        out.write(header.getBytes(StandardCharsets.ISO_8859_1), 0, header.length());
+        for (Pending pending : batch) {
+            out.write(pending.message, 0, pending.message.length);
+            if (pending.message.length == 0 || pending.message[pending.message.length - 1] != SEGMENT_END) {
+                out.write(SEGMENT_END);
+            }
+        }
+        String trailer = "BTS|" + batch.size() + "\r";
+        out.write(trailer.getBytes(StandardCharsets.ISO_8859_1), 0, trailer.length());
+        return out.toByteArray();
+    }
+
+    /**
+     * The fields of the MSH segment of an HL7 message, MSH-1 being the field
+     * separator; an empty array if the message has no MSH.
+     */
+    static String[] msh(byte[] message) {
+        String text = new String(message, StandardCharsets.ISO_8859_1);
+        int start = text.indexOf("MSH|");
+        if (start < 0) {
+            return new String[0];
+        }
+        int end = text.indexOf('\r', start);
+        String[] fields = text.substring(start, end < 0 ? text.length() : end).split("\\|", 13);
+        // fields[0] is "MSH" and MSH-1 the "|" split on, so MSH-n is fields[n - 1]
+        String[] msh = new String[fields.length + 1];
+        msh[1] = "|";
+        System.arraycopy(fields, 1, msh, 2, fields.length - 1);
+        return msh;
+    }
+
+    private static String field(String[] msh, int n) {
+        return n < msh.length && msh[n] != null ? msh[n] : "";
+    }
+
+    /**
+     * True if an error text names the control id as a word of its own, so that
+     * "123" is not found in "1234".
+     */
+    static boolean names(String error, String controlId) {
+        if (error == null || controlId == null || controlId.length() == 0) {
+            return false;
+        }
+        for (int at = error.indexOf(controlId); at >= 0; at = error.indexOf(controlId, at + 1)) {
+            int end = at + controlId.length();
+            if ((at == 0 || !Character.isLetterOrDigit(error.charAt(at - 1)))
+                    && (end == error.length() || !Character.isLetterOrDigit(error.charAt(end)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A message waiting for its batch to be answered.
+     */
+    static final class Pending {
+        final byte[] message;
+        final int size;
+        final String[] msh;
+        final String controlId;
+        final CompletableFuture<AdtSubmission> future = new CompletableFuture<AdtSubmission>();
+
+        Pending(byte[] message) {
+            this.message = message;
+            this.size = message.length + 1;
+            this.msh = msh(message);
+            this.controlId = msh.length > 10 ? msh[10] : null;
+        }
+    }
+
+    /**
+     * The outcome of one submitted ADT message.
+     */
+    public static final class AdtSubmission {
+        private final String messageControlId;
+        private final String status;
+        private final String hubTransactionUid;
+        private final int batchSize;
+        private final List<String> errors;
+        private final List<String> batchErrors;
+
+        AdtSubmission(String messageControlId, String status, String hubTransactionUid, int batchSize,
+                List<String> errors, List<String> batchErrors) {
+            this.messageControlId = messageControlId;
+            this.status = status;
+            this.hubTransactionUid = hubTransactionUid;
+            this.batchSize = batchSize;
+            this.errors = Collections.unmodifiableList(errors);
+            this.batchErrors = Collections.unmodifiableList(batchErrors);
+        }
+
+        /**
+         * MSH-10 of the message.
+         */
+        public String getMessageControlId() {
+            return messageControlId;
+        }
+
+        /**
+         * The status the Hub answered the batch with, e.g. "SUCCESS".
+         */
+        public String getStatus() {
+            return status;
+        }
+
+        public String getHubTransactionUid() {
+            return hubTransactionUid;
+        }
+
+        /**
+         * The number of messages in the batch this one was sent in.
+         */
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        /**
+         * The errors that name this message's control id.
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * The errors of the batch that name none of its messages.
+         */
+        public List<String> getBatchErrors() {
+            return batchErrors;
+        }
+
+        /**
+         * True if the Hub answered SUCCESS and returned no error for this message or
+         * its batch.
+         */
+        public boolean isAccepted() {
+            return status != null && "SUCCESS".equalsIgnoreCase(status.trim()) && errors.isEmpty()
+                    && batchErrors.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "AdtSubmission[" + messageControlId + ", status=" + status + ", batchSize=" + batchSize
+                    + ", errors=" + errors + ", batchErrors=" + batchErrors + "]";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AdtBatchAggregator[maxMessages=" + maxMessages + ", maxBytes=" + maxBytes + ", maxAgeMillis="
+                + maxAgeMillis + ", concurrency=" + concurrency + "]";
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ * A memory-mapped index of the demographics last sent to the Hub per patient.
+ *
+ */
+package hub.sample;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class AdtDigestIndex remembers, per Hub account and patient, a digest of the
+ * demographics the Hub last accepted, so that an ADT message that would resend
+ * them unchanged need not be sent at all.
+ *
+ * The digest is taken over the message type and event (MSH-9) and every segment
+ * but MSH and EVN (time stamps, control ids), PID, PV1, NK1, GT1, IN1, MRG and
+ * the rest, normalised so that trailing empty fields, components and repetitions
+ * and trailing blanks make no difference.  So a merge (A40), or a change to a
+ * next of kin, is sent even if it carries the PID of the last update.  The key
+ * is MSH-4 (the Hub account) and the patient id, PID-2 or else the first
+ * component of PID-3.  Key and digest are the first 128 bits of their SHA-256.
+ *
+ * The table lives in a memory-mapped file: open addressing with linear probing
+ * over fixed 40-byte slots (key, digest, time recorded), so a lookup is a hash and
+ * a few reads of mapped memory, nothing is loaded at start-up and the Java heap
+ * does not grow with the number of patients.  4M slots, the default, take 160 MB
+ * of disk and serve about 3.5 million patients; once the table is 90% full, new
+ * patients are no longer recorded (and so always sent).
+ *
+ * Only one index may have the file open at a time: it is locked while open, and
+ * opening a file that is locked, by another process or by another index of this
+ * one, fails, so the file is not written by two tables at once.
+ *
+ * The index never stops a message that has to be sent:
+ *
+ *   - a message is only skipped if its digest equals the one recorded for the
+ *     patient, and only digests of messages the Hub accepted are recorded
+ *   - if two messages of a patient were in flight at once, the Hub may have
+ *     applied them in either order: record() then finds the entry changed since
+ *     lookup() and clears it, so the next message is sent whatever it holds
+ *   - entries older than hub.adt.digest.maxAgeDays are treated as unknown, so the
+ *     Hub gets every patient again from time to time
+ *   - messages without a patient id, and a lost or unreadable index file, just
+ *     mean the messages are sent
+ *
+ * Configured with system properties:
+ *
+ *   hub.adt.digest.file         the index file; no index is kept without it
+ *   hub.adt.digest.capacity     slots of a new index file (default 4194304)
+ *   hub.adt.digest.maxAgeDays   days after which a patient is sent again anyway (default 30)
+ *
+ */
+public class AdtDigestIndex implements Closeable {
+
+    private static final long MAGIC = 0x4855424144544431L; // "HUBADTD1"
+    private static final int HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 40;
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_BYTES) / SLOT_BYTES;
+    private static final double MAX_LOAD = 0.9;
+
+    private static final int DEFAULT_CAPACITY = Integer.getInteger("hub.adt.digest.capacity", 4194304).intValue();
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(Long.getLong("hub.adt.digest.maxAgeDays", 30L)
+            .longValue());
+
+    // header: magic, capacity, entries
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int ENTRIES_OFFSET = 16;
+
+    // slot: key (16 bytes), digest (16 bytes), recorded (epoch millis, 0 for a free slot)
+    private static final int DIGEST_OFFSET = 16;
+    private static final int RECORDED_OFFSET = 32;
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileLock lock;
+    private final MappedByteBuffer table;
+    private final int capacity;
+    private final long maxAgeMillis;
+    // guarded by this
+    private int entries;
+
+    private AdtDigestIndex(File file, int newCapacity, long maxAgeMillis) throws IOException {
+        this.file = file;
+        this.maxAgeMillis = maxAgeMillis;
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            lock = lock(raf.getChannel());
+            if (lock == null) {
+                throw new IOException(file + " is in use by another ADT digest index");
+            }
+            boolean existing = raf.length() >= HEADER_BYTES;
+            int slots = newCapacity;
+            if (existing) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                raf.getChannel().read(header, 0);
+                if (header.getLong(0) != MAGIC) {
+                    throw new IOException(file + " is not an ADT digest index");
+                }
+                slots = header.getInt(CAPACITY_OFFSET);
+            }
+            if (slots < 1 || slots > MAX_CAPACITY) {
+                throw new IOException("ADT digest index capacity out of range: " + slots);
+            }
+            capacity = slots;
+            table = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_BYTES + (long) capacity * SLOT_BYTES);
+            if (existing) {
+                entries = table.getInt(ENTRIES_OFFSET);
+            } else {
+                table.putLong(0, MAGIC);
+                table.putInt(CAPACITY_OFFSET, capacity);
+                table.putInt(ENTRIES_OFFSET, 0);
+            }
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private static FileLock lock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // locked by another index in this JVM
+            return null;
+        }
+    }
+
+    /**
+     * Opens the index file, creating it with the given number of slots if it does
+     * not exist.  An existing file keeps the capacity it was created with.
+     */
+    public static AdtDigestIndex open(File file, int capacity) throws IOException {
+        return new AdtDigestIndex(file, capacity, MAX_AGE_MILLIS);
+    }
+
+    /**
+     * The index of hub.adt.digest.file, or null if the property is not set or the
+     * file cannot be opened (the messages are then all sent).
+     */
+    public static AdtDigestIndex openConfigured() {
+        String name = System.getProperty("hub.adt.digest.file");
+        if (name == null || name.trim().length() == 0) {
+            return null;
+        }
+        try {
+            return open(new File(name.trim()), DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            System.err.println("ADT digest index not used: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Looks up the patient of an ADT message.
+     *
+     * @return what the index knows of the patient, or null if the message has no
+     *         patient id and so cannot be indexed
+     */
+    public Lookup lookup(byte[] adtMessage) {
+        Lookup lookup = Lookup.of(adtMessage);
+        if (lookup == null) {
+            return null;
+        }
+        synchronized (this) {
+            int slot = find(lookup.keyHigh, lookup.keyLow);
+            if (slot >= 0 && recorded(slot) != 0) {
+                int at = offset(slot);
+                lookup.previousHigh = table.getLong(at + DIGEST_OFFSET);
+                lookup.previousLow = table.getLong(at + DIGEST_OFFSET + 8);
+                lookup.previousRecorded = table.getLong(at + RECORDED_OFFSET);
+            }
+        }
+        return lookup;
+    }
+
+    /**
+     * True if the message holds the demographics the Hub last accepted for the
+     * patient, recently enough, so it need not be sent.
+     */
+    public boolean isUnchanged(Lookup lookup) {
+        return lookup != null && lookup.previousRecorded != 0
+                && System.currentTimeMillis() - lookup.previousRecorded < maxAgeMillis
+                && (lookup.previousHigh != 0 || lookup.previousLow != 0)
+                && lookup.previousHigh == lookup.digestHigh && lookup.previousLow == lookup.digestLow;
+    }
+
+    /**
+     * Records that the Hub accepted the message looked up.  If the patient's entry
+     * changed since lookup(), another message of the patient was sent meanwhile and
+     * the entry is cleared instead, so the next message is sent.
+     */
+    public synchronized void record(Lookup lookup) {
+        int slot = find(lookup.keyHigh, lookup.keyLow);
+        if (slot < 0) {
+            // the table is full, the patient stays unknown
+            return;
+        }
+        int at = offset(slot);
+        long recorded = recorded(slot);
+        long now = Math.max(1L, System.currentTimeMillis());
+        if (recorded == 0) {
+            if (lookup.previousRecorded != 0 || entries >= capacity * MAX_LOAD) {
+                return;
+            }
+            table.putLong(at, lookup.keyHigh);
+            table.putLong(at + 8, lookup.keyLow);
+            table.putLong(at + DIGEST_OFFSET, lookup.digestHigh);
+            table.putLong(at + DIGEST_OFFSET + 8, lookup.digestLow);
+            // written last, it makes the slot valid
+            table.putLong(at + RECORDED_OFFSET, now);
+            table.putInt(ENTRIES_OFFSET, ++entries);
+        } else if (recorded == lookup.previousRecorded
+                && table.getLong(at + DIGEST_OFFSET) == lookup.previousHigh
+                && table.getLong(at + DIGEST_OFFSET + 8) == lookup.previousLow) {
+            table.putLong(at + DIGEST_OFFSET, lookup.digestHigh);
+            table.putLong(at + DIGEST_OFFSET + 8, lookup.digestLow);
+            table.putLong(at + RECORDED_OFFSET, now);
+        } else {
+            forget(at, now);
+        }
+    }
+
+    /**
+     * Forgets the patient of a message, e.g. when the Hub rejected it, so the next
+     * message of the patient is sent whatever it holds.
+     */
+    public synchronized void forget(Lookup lookup) {
+        int slot = find(lookup.keyHigh, lookup.keyLow);
+        if (slot >= 0 && recorded(slot) != 0) {
+            forget(offset(slot), Math.max(1L, System.currentTimeMillis()));
+        }
+    }
+
+    // the slot stays taken by the key (linear probing has no deletes), with a digest no message has
+    private void forget(int at, long now) {
+        table.putLong(at + DIGEST_OFFSET, 0L);
+        table.putLong(at + DIGEST_OFFSET + 8, 0L);
+        table.putLong(at + RECORDED_OFFSET, now);
+    }
+
+    public synchronized int getEntries() {
+        return entries;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the table to disk, unlocks and closes the file.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            table.force();
+            lock.release();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * The slot of the key, or the free slot it would take; -1 if the table has
+     * neither.
+     */
+    private int find(long keyHigh, long keyLow) {
+        int slot = (int) ((keyHigh >>> 1) % capacity);
+        for (int probes = 0; probes < capacity; probes++) {
+            int at = offset(slot);
+            if (table.getLong(at + RECORDED_OFFSET) == 0
+                    || (table.getLong(at) == keyHigh && table.getLong(at + 8) == keyLow)) {
+                return slot;
+            }
+            slot = slot + 1 == capacity ? 0 : slot + 1;
+        }
+        return -1;
+    }
+
+    private long recorded(int slot) {
+        return table.getLong(offset(slot) + RECORDED_OFFSET);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return "AdtDigestIndex[" + file + ", " + getEntries() + "/" + capacity + "]";
+    }
+
+    /**
+     * The key and digest of an ADT message, and what the index held for its
+     * patient when it was looked up.
+     */
+    public static final class Lookup {
+        private final String patientId;
+        private final long keyHigh;
+        private final long keyLow;
+        private final long digestHigh;
+        private final long digestLow;
+        private long previousHigh;
+        private long previousLow;
+        private long previousRecorded;
+
+        private Lookup(String patientId, byte[] key, byte[] digest) {
+            this.patientId = patientId;
+            ByteBuffer keyBytes = ByteBuffer.wrap(key);
+            ByteBuffer digestBytes = ByteBuffer.wrap(digest);
+            this.keyHigh = keyBytes.getLong(0);
+            this.keyLow = keyBytes.getLong(8);
+            this.digestHigh = digestBytes.getLong(0);
+            this.digestLow = digestBytes.getLong(8);
+        }
+
+        static Lookup of(byte[] adtMessage) {
+            String message = new String(adtMessage, StandardCharsets.ISO_8859_1);
+            String account = null;
+            String patientId = null;
+            StringBuilder demographics = new StringBuilder(message.length());
+            int start = 0;
+            while (start < message.length()) {
+                int end = start;
+                while (end < message.length() && message.charAt(end) != '\r' && message.charAt(end) != '\n') {
+                    end++;
+                }
+                if (message.startsWith("MSH|", start)) {
+                    // MSH-4 and MSH-9, fields[0] being "MSH" and MSH-1 the separator split on
+                    String[] fields = message.substring(start, end).split("\\|", 10);
+                    account = fields.length > 3 ? fields[3] : "";
+                    // type and event, e.g. ADT^A08, without the message structure
+                    String[] type = (fields.length > 8 ? fields[8] : "").split("\\^", -1);
+                    demographics.append("MSH|").append(strip(type[0])).append('^')
+                            .append(type.length > 1 ? strip(type[1]) : "").append('\r');
+                } else if (end > start && !message.startsWith("EVN|", start)) {
+                    String[] fields = message.substring(start, end).split("\\|", -1);
+                    if (patientId == null && "PID".equals(fields[0])) {
+                        patientId = patientId(fields);
+                    }
+                    normalise(fields, demographics);
+                }
+                start = end + 1;
+            }
+            if (account == null || patientId == null) {
+                return null;
+            }
+            MessageDigest sha = SHA_256.get();
+            byte[] key = sha.digest((account + '\u0000' + patientId).getBytes(StandardCharsets.UTF_8));
+            byte[] digest = sha.digest(demographics.toString().getBytes(StandardCharsets.ISO_8859_1));
+            return new Lookup(patientId, key, digest);
+        }
+
+        private static String patientId(String[] pid) {
+            String external = pid.length > 2 ? pid[2].trim() : "";
+            if (external.length() > 0) {
+                return external;
+            }
+            String internal = pid.length > 3 ? pid[3] : "";
+            int caret = internal.indexOf('^');
+            internal = (caret < 0 ? internal : internal.substring(0, caret)).trim();
+            return internal.length() > 0 ? internal : null;
+        }
+
+        /**
+         * The segment without trailing blanks and trailing empty fields,
+         * repetitions, components and subcomponents.
+         */
+        private static void normalise(String[] fields, StringBuilder out) {
+            int last = fields.length - 1;
+            while (last > 0 && strip(fields[last]).length() == 0) {
+                last--;
+            }
+            for (int i = 0; i <= last; i++) {
+                if (i > 0) {
+                    out.append('|');
+                }
+                out.append(strip(fields[i]));
+            }
+            out.append('\r');
+        }
+
+        private static String strip(String field) {
+            int end = field.length();
+            while (end > 0) {
+                char c = field.charAt(end - 1);
+                if (c != '^' && c != '~' && c != '&' && !Character.isWhitespace(c)) {
+                    break;
+                }
+                end--;
+            }
+            return field.substring(0, end);
+        }
+
+        public String getPatientId() {
+            return patientId;
+        }
+
+        @Override
+        public String toString() {
+            return "Lookup[" + patientId + ", " + (previousRecorded == 0 ? "unknown" : "known") + "]";
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/**
+ * Routes ADT messages to the real-time or the batch path of the DemographicService.
+ *
+ */
+package hub.sample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.medplus.hub.demographics.webservice.DemographicRequest;
+import com.medplus.hub.demographics.webservice.DemographicResponse;
+import com.medplus.hub.demographics.webservice.DemographicServicePort;
+
+/**
+ * class AdtRouter sends each ADT message either in real time
+ * (submitRealTimeADTMessage, one call per message) or through an
+ * AdtBatchAggregator (submitBatchADTMessage), whichever suits the load:
+ *
+ *   - urgent messages always go real time
+ *   - the others go real time while the messages waiting for an answer are
+ *     fewer than maxRealTimeBacklog and the real-time calls answer within
+ *     maxRealTimeLatencyMillis on average
+ *   - once either limit is passed they go to the batch path, and they return to
+ *     real time when the backlog is down to resumeBacklog and the latency is
+ *     back within its limit, so a backlog near the threshold does not make the
+ *     router flip on every message
+ *
+ * The real-time latency is a moving average of the last calls (each weighs 1/8),
+ * from the start of the call, so the messages waiting for a real-time thread,
+ * counted by the backlog already, do not count twice.  With the batch path in use
+ * no real-time calls measure it, so every 64th message that would go to the batch
+ * path goes real time instead, as a probe, and so does the next message whenever
+ * the backlog is down to resumeBacklog and no probe is under way: a router that
+ * left real time for its latency finds out soon once the load is gone.
+ *
+ * The messages of one patient reach the Hub in the order they were submitted,
+ * whatever their paths: they are partitioned into lanes by the key of
+ * RadiologySubmissionEngine (MSH-4 and the patient id), and a message is routed
+ * and sent only once the one before it in its lane is answered, so an update
+ * waiting for its batch is never overtaken by a later one sent in real time, and
+ * two real-time threads never send updates of one patient at once.  A message
+ * whose predecessor failed, e.g. on a timeout, fails with the same exception
+ * without being sent, so that sending the lane again keeps its order; a
+ * predecessor the Hub rejected does not hold up the lane.
+ *
+ * Both paths use the AdtDigestIndex, if one is given, and skip messages whose
+ * demographics the Hub already has; their future completes with null.  Real-time
+ * outcomes are AdtSubmissions too, with a batch size of 1 and all errors the
+ * message's own.
+ *
+ * The decisions (by path and reason) and the latency of each path, from submit()
+ * to the answer and so including the time a message waits for its lane and its
+ * batch, are process-wide and published by PrometheusEndpoint as
+ * hub_adt_routed_total and hub_adt_submit_duration_seconds.
+ *
+ * close() waits for every message submitted, those still waiting for their lane
+ * included, to be answered, sending the open batch at once rather than at its
+ * maxAgeMillis; submit() fails from then on.
+ *
+ * Configured with system properties:
+ *
+ *   hub.adt.route.maxRealTimeBacklog         messages waiting above which the batch path is used (default 16)
+ *   hub.adt.route.resumeBacklog              messages waiting at or below which real time resumes (default 4)
+ *   hub.adt.route.maxRealTimeLatencyMillis   average real-time latency above which the batch path is used (default 2000)
+ *   hub.adt.route.realTimeConcurrency        real-time calls at once (default 8)
+ *
+ */
+public class AdtRouter implements AutoCloseable {
+
+    public static final String REAL_TIME = "realtime";
+    public static final String BATCH = "batch";
+
+    private static final int MAX_REAL_TIME_BACKLOG = Integer.getInteger("hub.adt.route.maxRealTimeBacklog", 16)
+            .intValue();
+    private static final int RESUME_BACKLOG = Integer.getInteger("hub.adt.route.resumeBacklog", 4).intValue();
+    private static final long MAX_REAL_TIME_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "hub.adt.route.maxRealTimeLatencyMillis", 2000L).longValue());
+    private static final int REAL_TIME_CONCURRENCY = Integer.getInteger("hub.adt.route.realTimeConcurrency", 8)
+            .intValue();
+
+    private static final int PROBE_EVERY = 64;
+    // how often close() sends the open batch while the lanes drain
+    private static final long DRAIN_FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // the decisions, by path and reason
+    private static final Route URGENT = new Route(REAL_TIME, "urgent");
+    private static final Route LOW_BACKLOG = new Route(REAL_TIME, "low_backlog");
+    private static final Route PROBE = new Route(REAL_TIME, "probe");
+    private static final Route BACKLOG = new Route(BATCH, "backlog");
+    private static final Route LATENCY = new Route(BATCH, "latency");
+    private static final List<Route> ROUTES = Collections.unmodifiableList(Arrays.asList(URGENT, LOW_BACKLOG, PROBE,
+            BACKLOG, LATENCY));
+    private static final LatencyHistogram REAL_TIME_LATENCY = new LatencyHistogram();
+    private static final LatencyHistogram BATCH_LATENCY = new LatencyHistogram();
+
+    private final DemographicServicePort port;
+    private final AdtBatchAggregator batches;
+    private final AdtDigestIndex index;
+    private final int maxRealTimeBacklog;
+    private final int resumeBacklog;
+    private final long maxRealTimeLatencyNanos;
+    private final ExecutorService realTime;
+
+    // the last message of each lane; a message waits for the one before it
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> lanes =
+            new ConcurrentHashMap<String, CompletableFuture<Void>>();
+
+    private final AtomicInteger backlog = new AtomicInteger();
+    private final AtomicLong averageRealTimeNanos = new AtomicLong();
+    private final AtomicLong batchDecisions = new AtomicLong();
+    private final AtomicInteger probes = new AtomicInteger();
+    private volatile boolean batching;
+    private volatile boolean closed;
+
+    /**
+     * A router with the limits of the hub.adt.route.* properties.
+     *
+     * @param port the port of the real-time calls
+     * @param batches the batch path; the router closes it
+     * @param index the digest index, null to send every message
+     */
+    public AdtRouter(DemographicServicePort port, AdtBatchAggregator batches, AdtDigestIndex index) {
+        this(port, batches, index, MAX_REAL_TIME_BACKLOG, RESUME_BACKLOG, MAX_REAL_TIME_LATENCY_NANOS,
+                REAL_TIME_CONCURRENCY);
+    }
+
+    public AdtRouter(DemographicServicePort port, AdtBatchAggregator batches, AdtDigestIndex index,
+            int maxRealTimeBacklog, int resumeBacklog, long maxRealTimeLatencyNanos, int realTimeConcurrency) {
+        this.port = port;
+        this.batches = batches;
+        this.index = index;
+        this.maxRealTimeBacklog = Math.max(1, maxRealTimeBacklog);
+        this.resumeBacklog = Math.max(0, Math.min(resumeBacklog, this.maxRealTimeBacklog - 1));
+        this.maxRealTimeLatencyNanos = maxRealTimeLatencyNanos;
+        AtomicInteger threads = new AtomicInteger();
+        this.realTime = Executors.newFixedThreadPool(Math.max(1, realTimeConcurrency), runnable -> {
+            Thread thread = new Thread(runnable, "adt-realtime-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends an ADT message on the path the load calls for, once the message before
+     * it in its patient's lane is answered.
+     *
+     * @param urgent true to send it in real time whatever the load
+     * @return the outcome of the message, null if it was not sent because the Hub
+     *         has its demographics already; it fails with an IllegalStateException
+     *         if the router is closed
+     */
+    public CompletableFuture<AdtBatchAggregator.AdtSubmission> submit(byte[] adtMessage, boolean urgent) {
+        long start = System.nanoTime();
+        CompletableFuture<AdtBatchAggregator.AdtSubmission> outcome =
+                new CompletableFuture<AdtBatchAggregator.AdtSubmission>();
+        // counted before closed is read, so that close() either waits for it or it fails
+        backlog.incrementAndGet();
+        if (closed) {
+            answered();
+            outcome.completeExceptionally(new IllegalStateException("AdtRouter is closed"));
+            return outcome;
+        }
+        String key = RadiologySubmissionEngine.key(adtMessage);
+        CompletableFuture<Void> done = new CompletableFuture<Void>();
+        CompletableFuture<Void> previous = lanes.put(key, done);
+        outcome.whenComplete((submission, failure) -> {
+            answered();
+            // the lane ends with its last message, unless another has joined it
+            lanes.remove(key, done);
+            if (failure == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(failure);
+            }
+        });
+        if (previous == null) {
+            send(adtMessage, urgent, start, outcome);
+        } else {
+            previous.whenComplete((nothing, failure) -> {
+                if (failure == null) {
+                    send(adtMessage, urgent, start, outcome);
+                } else {
+                    outcome.completeExceptionally(failure);
+                }
+            });
+        }
+        return outcome;
+    }
+
+    private void answered() {
+        if (backlog.decrementAndGet() == 0 && closed) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void send(byte[] adtMessage, boolean urgent, long start,
+            CompletableFuture<AdtBatchAggregator.AdtSubmission> outcome) {
+        Route route = route(urgent);
+        route.count.increment();
+        boolean isRealTime = REAL_TIME.equals(route.path);
+        CompletableFuture<AdtBatchAggregator.AdtSubmission> sent;
+        try {
+            sent = isRealTime ? CompletableFuture.supplyAsync(() -> submitRealTime(adtMessage), realTime)
+                    : PatientDemographicServiceClient.submitBatchIfChanged(batches, index, adtMessage);
+        } catch (RuntimeException e) {
+            // closed
+            if (route == PROBE) {
+                probes.decrementAndGet();
+            }
+            outcome.completeExceptionally(e);
+            return;
+        }
+        sent.whenComplete((submission, failure) -> {
+            (isRealTime ? REAL_TIME_LATENCY : BATCH_LATENCY).record(System.nanoTime() - start);
+            if (route == PROBE) {
+                probes.decrementAndGet();
+            }
+            if (failure == null) {
+                outcome.complete(submission);
+            } else {
+                outcome.completeExceptionally(failure);
+            }
+        });
+    }
+
+    /**
+     * The path of the next message, and why.
+     */
+    private Route route(boolean urgent) {
+        if (urgent) {
+            return URGENT;
+        }
+        int waiting = backlog.get();
+        boolean slow = averageRealTimeNanos.get() > maxRealTimeLatencyNanos;
+        if (batching) {
+            if (waiting <= resumeBacklog && !slow) {
+                batching = false;
+            }
+        } else if (waiting >= maxRealTimeBacklog || slow) {
+            batching = true;
+        }
+        if (!batching) {
+            return LOW_BACKLOG;
+        }
+        if (batchDecisions.incrementAndGet() % PROBE_EVERY == 0) {
+            probes.incrementAndGet();
+            return PROBE;
+        }
+        if (waiting <= resumeBacklog && probes.get() == 0 && probes.compareAndSet(0, 1)) {
+            return PROBE;
+        }
+        return slow ? LATENCY : BACKLOG;
+    }
+
+    private AdtBatchAggregator.AdtSubmission submitRealTime(byte[] adtMessage) {
+        DemographicRequest request = new DemographicRequest();
+        request.setADTMessage(adtMessage);
+        DemographicResponse response;
+        long start = System.nanoTime();
+        try {
+            response = PatientDemographicServiceClient.submitRealTimeIfChanged(port, index, request);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+        if (response == null) {
+            return null;
+        }
+        average(System.nanoTime() - start);
+        String[] errors = response.getErrors() == null ? new String[0] : response.getErrors();
+        String[] msh = AdtBatchAggregator.msh(adtMessage);
+        return new AdtBatchAggregator.AdtSubmission(msh.length > 10 ? msh[10] : null, response.getStatus(),
+                response.getHubTransactionUid(), 1, new ArrayList<String>(Arrays.asList(errors)),
+                new ArrayList<String>(0));
+    }
+
+    private void average(long nanos) {
+        long average;
+        long next;
+        do {
+            average = averageRealTimeNanos.get();
+            next = average == 0 ? nanos : average + (nanos - average) / 8;
+        } while (!averageRealTimeNanos.compareAndSet(average, next));
+    }
+
+    /**
+     * Messages sent, queued or waiting for their lane, and not yet answered.
+     */
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    /**
+     * The moving average of the real-time latency, in nanoseconds.
+     */
+    public long getAverageRealTimeNanos() {
+        return averageRealTimeNanos.get();
+    }
+
+    public boolean isBatching() {
+        return batching;
+    }
+
+    /**
+     * Waits up to the given time for the messages submitted to be answered, then
+     * closes the real-time threads and the batch path.  submit() fails from now on.
+     *
+     * @return true if every message was answered
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        closed = true;
+        while (backlog.get() > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            // the next message of a lane joins the open batch only once the one before it is answered
+            batches.flush();
+            synchronized (this) {
+                if (backlog.get() > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.min(remaining, DRAIN_FLUSH_NANOS));
+                }
+            }
+        }
+        realTime.shutdown();
+        boolean finished = realTime.awaitTermination(Math.max(0L, deadline - System.nanoTime()),
+                TimeUnit.NANOSECONDS);
+        finished &= batches.close(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        return finished && backlog.get() == 0;
+    }
+
+    /**
+     * Waits up to a minute for the messages submitted.
+     */
+    public void close() {
+        try {
+            close(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The decisions so far by path and reason, process-wide.
+     */
+    static List<Route> routes() {
+        return ROUTES;
+    }
+
+    /**
+     * The latency of a path, REAL_TIME or BATCH, process-wide.
+     */
+    static LatencyHistogram latency(String path) {
+        return REAL_TIME.equals(path) ? REAL_TIME_LATENCY : BATCH_LATENCY;
+    }
+
+    @Override
+    public String toString() {
+        return "AdtRouter[" + (batching ? BATCH : REAL_TIME) + ", backlog=" + backlog.get() + "]";
+    }
+
+    /**
+     * The count of the decisions for one path and reason.
+     */
+    static final class Route {
+        private final String path;
+        private final String reason;
+        private final LongAdder count = new LongAdder();
+
+        Route(String path, String reason) {
+            this.path = path;
+            this.reason = reason;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        String getReason() {
+            return reason;
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * What a Hub call carried, for the metrics and Flight Recorder events.
+ *
+ */
+package hub.sample;
+
+import java.util.List;
+
+import observation.webservice.results.serviceHub.medplus.com.Acknowledgment;
+import observation.webservice.results.serviceHub.medplus.com.ObservationResultResponse;
+
+import com.medplus.hub.demographics.webservice.DemographicResponse;
+import com.medplus.hub.radiology.webservice.RadiologyResultResponse;
+import com.medplus.hub.results.webservice.HL7ResultsResponse;
+import com.medplus.hub.results.webservice.PrintableResultsResponse;
+import com.medplus.hub.results.webservice.ResultsResponse;
+import com.medplus.results.AckResultsRequest;
+import com.medplus.results.RetrieveResultsRequest;
+import com.medplus.results.RetrieveResultsResponse;
+
+/**
+ * class CallSummary picks out of the arguments and the response of a port
+ * operation what the metrics need without knowing the port:
+ *
+ *   - result calls (getResults, getMoreResults, getHL7Results, ...): the request id,
+ *     the number of results returned and isMore
+ *   - acknowledge calls: the request id and the number of results acknowledged
+ *   - submit and validate calls (orders, radiology results, ADT): the number of
+ *     validation errors the Hub returned
+ *
+ * and the result service type (HL7, Observation or Printable) of the results
+ * services.  Counts that do not apply are -1.
+ *
+ */
+final class CallSummary {
+
+    final String operation;
+    String serviceType;
+    String requestId;
+    int results = -1;
+    boolean more;
+    int validationErrors = -1;
+
+    private CallSummary(String operation) {
+        this.operation = operation;
+    }
+
+    boolean isAcknowledgement() {
+        return operation.startsWith("acknowledge");
+    }
+
+    boolean isSubmission() {
+        return operation.startsWith("submit") || operation.startsWith("validate");
+    }
+
+    /**
+     * @param port the simple name of the port interface, e.g. "ResultsServicePort"
+     * @param result the response, null if the call failed or returns nothing
+     */
+    static CallSummary of(String port, String operation, Object[] arguments, Object result) {
+        CallSummary summary = new CallSummary(operation);
+        summary.serviceType = serviceType(port, arguments);
+        if (summary.isAcknowledgement()) {
+            summary.describeAcknowledgement(arguments);
+        } else if (summary.isSubmission()) {
+            summary.describeSubmission(result);
+        } else {
+            summary.describeResults(arguments, result);
+        }
+        return summary;
+    }
+
+    private static String serviceType(String port, Object[] arguments) {
+        if ("ResultsServicePort".equals(port)) {
+            return "HL7";
+        } else if ("ObservationResultServicePort".equals(port)) {
+            return "Observation";
+        } else if ("PrintableResultsServicePort".equals(port)) {
+            return "Printable";
+        } else if (arguments.length > 0 && arguments[0] instanceof RetrieveResultsRequest) {
+            return ((RetrieveResultsRequest) arguments[0]).getResultServiceType();
+        } else if (arguments.length > 0 && arguments[0] instanceof AckResultsRequest) {
+            return ((AckResultsRequest) arguments[0]).getResultServiceType();
+        }
+        return null;
+    }
+
+    private void describeResults(Object[] arguments, Object result) {
+        if (result instanceof ObservationResultResponse) {
+            ObservationResultResponse response = (ObservationResultResponse) result;
+            requestId = response.getRequestId();
+            results = length(response.getObservationResults());
+            more = Boolean.TRUE.equals(response.getIsMore());
+        } else if (result instanceof HL7ResultsResponse) {
+            HL7ResultsResponse response = (HL7ResultsResponse) result;
+            requestId = response.getRequestId();
+            results = length(response.getHL7Messages());
+            more = Boolean.TRUE.equals(response.getIsMore());
+        } else if (result instanceof ResultsResponse) {
+            ResultsResponse response = (ResultsResponse) result;
+            requestId = response.getRequestId();
+            results = length(response.getHL7Messages());
+            more = Boolean.TRUE.equals(response.getIsMore());
+        } else if (result instanceof PrintableResultsResponse) {
+            PrintableResultsResponse response = (PrintableResultsResponse) result;
+            requestId = response.getRequestId();
+            results = response.getResultData() == null ? 0 : 1;
+            more = Boolean.TRUE.equals(response.getIsMore());
+        } else if (result instanceof RetrieveResultsResponse && "getResults".equals(operation)) {
+            RetrieveResultsResponse response = (RetrieveResultsResponse) result;
+            requestId = response.getRequestId();
+            results = size(response.getResults());
+            more = Boolean.TRUE.equals(response.isIsMore());
+        } else if (arguments.length == 1 && arguments[0] instanceof String) {
+            // getMoreResults(requestId) that failed
+            requestId = (String) arguments[0];
+        }
+    }
+
+    private void describeAcknowledgement(Object[] arguments) {
+        Object first = arguments.length == 0 ? null : arguments[0];
+        if (first instanceof Acknowledgment) {
+            Acknowledgment ack = (Acknowledgment) first;
+            requestId = ack.getRequestId();
+            results = length(ack.getAcknowledgedResults());
+        } else if (first instanceof AckResultsRequest) {
+            AckResultsRequest ack = (AckResultsRequest) first;
+            requestId = ack.getRequestId();
+            // printable results are acknowledged with a messageControlId and providerAcctId parameter each
+            results = ack.getAckMessages().isEmpty() ? ack.getRequestParameters().size() / 2
+                    : ack.getAckMessages().size();
+        } else if (first instanceof String) {
+            // acknowledgeResults(requestId, controlIds), acknowledgeHL7Results(requestId, acks),
+            // acknowledgeResults(requestId, resultInfo, rejection)
+            requestId = (String) first;
+            Object acks = arguments.length > 1 ? arguments[1] : null;
+            results = acks instanceof Object[] ? ((Object[]) acks).length : acks == null ? 0 : 1;
+        }
+    }
+
+    private void describeSubmission(Object result) {
+        if (result instanceof com.medplus.hub.orders.webservice.OrderResponse) {
+            validationErrors = length(((com.medplus.hub.orders.webservice.OrderResponse) result).getValidationErrors());
+        } else if (result instanceof RadiologyResultResponse) {
+            validationErrors = length(((RadiologyResultResponse) result).getValidationErrors());
+        } else if (result instanceof DemographicResponse) {
+            validationErrors = length(((DemographicResponse) result).getErrors());
+        } else if (result instanceof com.medplus.orders.OrderResponse) {
+            validationErrors = size(((com.medplus.orders.OrderResponse) result).getValidationErrors());
+        }
+    }
+
+    private static int length(Object[] array) {
+        return array == null ? 0 : array.length;
+    }
+
+    private static int size(List<?> list) {
+        return list == null ? 0 : list.size();
+    }
+}
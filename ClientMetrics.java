@@ -0,0 +1,280 @@
+/**
+ * Counters of the results and orders handled by the Hub clients.
+ *
+ */
+package hub.sample;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * class ClientMetrics counts what the clients did with the Hub, as opposed to the
+ * calls themselves (see MetricsInterceptor):
+ *
+ *   - results retrieved and acknowledged, and pages retrieved, per result service
+ *     type (HL7, Observation, Printable)
+ *   - the isMore streak per result service type: how many pages in a row came back
+ *     with isMore set, i.e. how long the backlog has kept the poller busy; it goes
+ *     back to 0 with the first page without isMore
+ *   - orders, radiology results and ADT messages submitted, those the Hub rejected
+ *     with validation errors, and the validation errors, per operation
+ *   - ADT messages not sent because the Hub had their demographics already (see
+ *     AdtDigestIndex), per operation
+ *   - result documents written to disk and their bytes
+ *
+ * As a PortInterceptor it records the results and submissions of every successful
+ * call from its CallSummary.  PortProxies.forHub() puts it outermost, so a hedged
+ * duplicate of a call is not counted twice.  The clients record the documents they
+ * write.  The counters are LongAdders and AtomicIntegers, so recording takes no
+ * lock; PrometheusEndpoint publishes them.
+ *
+ * Several accounts polling the same result service type share its streak.
+ *
+ */
+public final class ClientMetrics implements PortInterceptor {
+
+    private static final String UNKNOWN = "unknown";
+
+    private static final ConcurrentMap<String, ServiceType> SERVICE_TYPES = new ConcurrentHashMap<String, ServiceType>();
+    private static final ConcurrentMap<String, Submissions> SUBMISSIONS = new ConcurrentHashMap<String, Submissions>();
+    private static final LongAdder DOCUMENTS_WRITTEN = new LongAdder();
+    private static final LongAdder DOCUMENT_BYTES_WRITTEN = new LongAdder();
+
+    private static final ConcurrentMap<String, ClientMetrics> PORTS = new ConcurrentHashMap<String, ClientMetrics>();
+
+    private final String port;
+
+    private ClientMetrics(String port) {
+        this.port = port;
+    }
+
+    /**
+     * The shared instance for a port interface.
+     */
+    public static ClientMetrics forPort(Class<?> portInterface) {
+        String name = portInterface.getSimpleName();
+        ClientMetrics interceptor = PORTS.get(name);
+        if (interceptor == null) {
+            ClientMetrics created = new ClientMetrics(name);
+            interceptor = PORTS.putIfAbsent(name, created);
+            if (interceptor == null) {
+                interceptor = created;
+            }
+        }
+        return interceptor;
+    }
+
+    public Object intercept(PortInvocation invocation) throws Throwable {
+        Object result = invocation.proceed();
+        CallSummary summary = CallSummary.of(port, invocation.getOperation(), invocation.getArguments(), result);
+        if (summary.isAcknowledgement()) {
+            if (summary.results > 0) {
+                resultsAcknowledged(summary.serviceType, summary.results);
+            }
+        } else if (summary.isSubmission()) {
+            submitted(port + "." + summary.operation, Math.max(0, summary.validationErrors));
+        } else if (summary.results >= 0) {
+            resultsRetrieved(summary.serviceType, summary.results, summary.more);
+        }
+        return result;
+    }
+
+    /**
+     * A page of results was retrieved.
+     */
+    public static void resultsRetrieved(String serviceType, int results, boolean more) {
+        ServiceType counters = serviceType(serviceType);
+        counters.pages.increment();
+        counters.retrieved.add(results);
+        if (more) {
+            int streak = counters.streak.incrementAndGet();
+            int max;
+            while (streak > (max = counters.maxStreak.get()) && !counters.maxStreak.compareAndSet(max, streak)) {
+                // another page raised it meanwhile
+            }
+        } else {
+            counters.streak.set(0);
+        }
+    }
+
+    public static void resultsAcknowledged(String serviceType, int results) {
+        serviceType(serviceType).acknowledged.add(results);
+    }
+
+    /**
+     * An order or other message was submitted (or validated) and the Hub returned
+     * the given number of validation errors.
+     */
+    public static void submitted(String operation, int validationErrors) {
+        Submissions counters = submissions(operation);
+        counters.submitted.increment();
+        if (validationErrors > 0) {
+            counters.rejected.increment();
+            counters.validationErrors.add(validationErrors);
+        }
+    }
+
+    /**
+     * A message was not sent because it would not have changed anything.
+     */
+    public static void unchanged(String operation) {
+        submissions(operation).unchanged.increment();
+    }
+
+    public static void documentsWritten(int documents, long bytes) {
+        DOCUMENTS_WRITTEN.add(documents);
+        DOCUMENT_BYTES_WRITTEN.add(bytes);
+    }
+
+    private static Submissions submissions(String operation) {
+        Submissions counters = SUBMISSIONS.get(operation);
+        if (counters == null) {
+            Submissions created = new Submissions(operation);
+            counters = SUBMISSIONS.putIfAbsent(operation, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        return counters;
+    }
+
+    private static ServiceType serviceType(String name) {
+        String key = name == null ? UNKNOWN : name;
+        ServiceType counters = SERVICE_TYPES.get(key);
+        if (counters == null) {
+            ServiceType created = new ServiceType(key);
+            counters = SERVICE_TYPES.putIfAbsent(key, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * The live counters, in no particular order; for PrometheusEndpoint.
+     */
+    static Collection<ServiceType> serviceTypes() {
+        return SERVICE_TYPES.values();
+    }
+
+    static Collection<Submissions> submissions() {
+        return SUBMISSIONS.values();
+    }
+
+    /**
+     * The result service types seen so far, sorted by name.
+     */
+    public static List<ServiceType> getServiceTypes() {
+        List<ServiceType> all = new ArrayList<ServiceType>(SERVICE_TYPES.values());
+        Collections.sort(all, (a, b) -> a.name.compareTo(b.name));
+        return all;
+    }
+
+    /**
+     * The submitting operations seen so far, sorted by name.
+     */
+    public static List<Submissions> getSubmissions() {
+        List<Submissions> all = new ArrayList<Submissions>(SUBMISSIONS.values());
+        Collections.sort(all, (a, b) -> a.operation.compareTo(b.operation));
+        return all;
+    }
+
+    public static long getDocumentsWritten() {
+        return DOCUMENTS_WRITTEN.sum();
+    }
+
+    public static long getDocumentBytesWritten() {
+        return DOCUMENT_BYTES_WRITTEN.sum();
+    }
+
+    /**
+     * The counters of one result service type.
+     */
+    public static final class ServiceType {
+        private final String name;
+        private final LongAdder pages = new LongAdder();
+        private final LongAdder retrieved = new LongAdder();
+        private final LongAdder acknowledged = new LongAdder();
+        private final AtomicInteger streak = new AtomicInteger();
+        private final AtomicInteger maxStreak = new AtomicInteger();
+
+        ServiceType(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getPages() {
+            return pages.sum();
+        }
+
+        public long getRetrieved() {
+            return retrieved.sum();
+        }
+
+        public long getAcknowledged() {
+            return acknowledged.sum();
+        }
+
+        /**
+         * Pages in a row retrieved with isMore set, up to now.
+         */
+        public int getStreak() {
+            return streak.get();
+        }
+
+        public int getMaxStreak() {
+            return maxStreak.get();
+        }
+    }
+
+    /**
+     * The counters of one submitting operation, e.g. "OrderServicePort.submitOrder".
+     */
+    public static final class Submissions {
+        private final String operation;
+        private final LongAdder submitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder validationErrors = new LongAdder();
+        private final LongAdder unchanged = new LongAdder();
+
+        Submissions(String operation) {
+            this.operation = operation;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public long getSubmitted() {
+            return submitted.sum();
+        }
+
+        /**
+         * Submissions the Hub answered with at least one validation error.
+         */
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+        public long getValidationErrors() {
+            return validationErrors.sum();
+        }
+
+        /**
+         * Messages not sent because the Hub had their content already.
+         */
+        public long getUnchanged() {
+            return unchanged.sum();
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * Adaptive concurrency limits for the Hub operations.
+ *
+ */
+package hub.sample;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class ConcurrencyLimitInterceptor limits the number of calls of each operation
+ * (submitOrder, getResults, acknowledgeResults, ...) in flight to one endpoint,
+ * and adjusts the limit from the observed round-trip times, in the manner of
+ * Netflix's Gradient limit:
+ *
+ *   gradient = clamp(0.5, 1.0, 1.25 * noLoadRtt / rtt)
+ *   newLimit = limit * gradient + sqrt(limit)
+ *
+ * The limit is updated once per round of "limit" completed calls, with rtt the
+ * average round trip of that round, so it reacts to what its previous change
+ * did rather than to calls sent before.  noLoadRtt is, as in TCP Vegas, the
+ * lowest round trip seen, i.e. the Hub's latency without queueing; it is raised
+ * by 5% every 1000 calls so a lasting change of the Hub's latency is picked up.
+ * While the Hub keeps up the limit grows by about sqrt(limit) per round; when
+ * requests start to queue at the Hub rtt rises and the limit shrinks until the
+ * queueing is back to about a quarter of the round trip.
+ *
+ * The round trip of a call is that of the request that answered it, as
+ * MetricsInterceptor measured it inside the rate limit (see
+ * PortInvocation.getRoundTripNanos()), so neither a wait for a rate-limit permit
+ * nor a hedge delay of ResilienceInterceptor passes for the Hub slowing down.  A
+ * call that fails with a HubUnavailableException (e.g. its deadline passed) or a
+ * throttling fault reduces the limit by 10%.  Only successful calls are round
+ * trips: a call the circuit breaker or the rate limit refused never reached the
+ * Hub, and a fault such as a validation error may be answered faster than any
+ * real work, so neither changes the limit or noLoadRtt.  The limit only grows
+ * while at least half of it is in use, so a quiet night does not leave it at the
+ * maximum for the morning surge.
+ *
+ * Callers over the limit wait; the time they wait is the queueing delay.
+ *
+ * Configured with system properties:
+ *
+ *   hub.concurrency.initialLimit    (default 8)
+ *   hub.concurrency.minLimit        (default 1)
+ *   hub.concurrency.maxLimit        (default 64)
+ *   hub.concurrency.maxWaitMillis   a call waiting longer is refused (default 60000)
+ *
+ */
+public class ConcurrencyLimitInterceptor implements PortInterceptor {
+
+    private static final int INITIAL_LIMIT = Integer.getInteger("hub.concurrency.initialLimit", 8).intValue();
+    private static final int MIN_LIMIT = Integer.getInteger("hub.concurrency.minLimit", 1).intValue();
+    private static final int MAX_LIMIT = Integer.getInteger("hub.concurrency.maxLimit", 64).intValue();
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "hub.concurrency.maxWaitMillis", 60000L).longValue());
+
+    private static final ConcurrentMap<String, ConcurrencyLimitInterceptor> ENDPOINTS = new ConcurrentHashMap<String, ConcurrencyLimitInterceptor>();
+
+    private final String endpoint;
+    private final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+
+    public ConcurrencyLimitInterceptor(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * The shared instance for an endpoint.
+     */
+    public static ConcurrencyLimitInterceptor forEndpoint(String endpoint) {
+        ConcurrencyLimitInterceptor interceptor = ENDPOINTS.get(endpoint);
+        if (interceptor == null) {
+            ConcurrencyLimitInterceptor created = new ConcurrencyLimitInterceptor(endpoint);
+            interceptor = ENDPOINTS.putIfAbsent(endpoint, created);
+            if (interceptor == null) {
+                interceptor = created;
+            }
+        }
+        return interceptor;
+    }
+
+    public Object intercept(PortInvocation invocation) throws Throwable {
+        Limit limit = getLimit(invocation.getOperation());
+        try {
+            if (!limit.acquire(MAX_WAIT_NANOS)) {
+                throw invocation.unavailable("more than " + limit.getLimit() + " calls in flight to " + endpoint
+                        + " for " + TimeUnit.NANOSECONDS.toMillis(MAX_WAIT_NANOS) + " ms", null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw invocation.unavailable("interrupted waiting for a call slot", e);
+        }
+
+        long start = System.nanoTime();
+        long rttNanos = -1;
+        boolean dropped = false;
+        try {
+            Object result = invocation.proceed();
+            // the request's own round trip, without rate-limit waits and hedge delays
+            rttNanos = invocation.getRoundTripNanos();
+            if (rttNanos < 0) {
+                rttNanos = System.nanoTime() - start;
+            }
+            return result;
+        } catch (Throwable t) {
+            dropped = !ResilienceInterceptor.isBreakerOpen(t) && !RateLimitInterceptor.isRefused(t)
+                    && (t instanceof HubUnavailableException
+                    || t.getCause() instanceof HubUnavailableException || RateLimitInterceptor.isThrottled(t));
+            throw t;
+        } finally {
+            limit.release(rttNanos, dropped);
+        }
+    }
+
+    /**
+     * The limit of one operation, created on first use.
+     */
+    public Limit getLimit(String operation) {
+        Limit limit = limits.get(operation);
+        if (limit == null) {
+            Limit created = new Limit(operation, INITIAL_LIMIT, MIN_LIMIT, MAX_LIMIT);
+            limit = limits.putIfAbsent(operation, created);
+            if (limit == null) {
+                limit = created;
+            }
+        }
+        return limit;
+    }
+
+    public Collection<Limit> getLimits() {
+        return new ArrayList<Limit>(limits.values());
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public String toString() {
+        List<Limit> all = new ArrayList<Limit>(limits.values());
+        return "ConcurrencyLimitInterceptor[" + endpoint + ", " + all + "]";
+    }
+
+    /**
+     * The adaptive in-flight limit of one operation.
+     */
+    public static final class Limit {
+        private static final double TOLERANCE = 1.25;
+        private static final double SMOOTHING = 0.2;
+        private static final double SHORT_WINDOW = 10;
+        private static final int NO_LOAD_PROBE_CALLS = 1000;
+
+        private final String operation;
+        private final int minLimit;
+        private final int maxLimit;
+
+        private double limit;
+        private int inFlight;
+        private int queued;
+        private double noLoadRtt;
+        private double rtt;
+        private long samples;
+        private int roundCalls;
+        private long roundRttNanos;
+        private int roundMaxInFlight;
+        private double queueingDelay;
+        private long calls;
+        private long queueingNanos;
+
+        Limit(String operation, int initialLimit, int minLimit, int maxLimit) {
+            this.operation = operation;
+            this.limit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+        }
+
+        synchronized boolean acquire(long maxWaitNanos) throws InterruptedException {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                calls++;
+                queueingDelay *= 1 - 1 / SHORT_WINDOW;
+                return true;
+            }
+            long start = System.nanoTime();
+            long remaining = maxWaitNanos;
+            queued++;
+            try {
+                while (inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    remaining = maxWaitNanos - (System.nanoTime() - start);
+                }
+            } finally {
+                queued--;
+            }
+            long waited = System.nanoTime() - start;
+            inFlight++;
+            calls++;
+            queueingNanos += waited;
+            queueingDelay += (waited - queueingDelay) / SHORT_WINDOW;
+            return true;
+        }
+
+        /**
+         * @param rttNanos the round trip of a successful call, -1 for a failed one
+         * @param dropped true if the call failed for the load, which cuts the limit
+         */
+        synchronized void release(long rttNanos, boolean dropped) {
+            int inFlightBefore = inFlight;
+            inFlight--;
+            double previous = limit;
+
+            if (dropped) {
+                limit = Math.max(minLimit, limit * 0.9);
+                roundCalls = 0;
+                roundRttNanos = 0;
+                roundMaxInFlight = 0;
+            } else if (rttNanos >= 0) {
+                if (noLoadRtt == 0 || rttNanos < noLoadRtt) {
+                    noLoadRtt = rttNanos;
+                } else if (++samples % NO_LOAD_PROBE_CALLS == 0) {
+                    noLoadRtt *= 1.05;
+                }
+                roundCalls++;
+                roundRttNanos += rttNanos;
+                roundMaxInFlight = Math.max(roundMaxInFlight, inFlightBefore);
+                if (roundCalls >= (int) limit) {
+                    endRound();
+                }
+            }
+
+            if ((int) limit > (int) previous || inFlight < (int) limit) {
+                notifyAll();
+            }
+        }
+
+        private void endRound() {
+            rtt = (double) roundRttNanos / roundCalls;
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * noLoadRtt / rtt));
+            double newLimit = limit * gradient + Math.sqrt(limit);
+            if (newLimit > limit && roundMaxInFlight < limit / 2) {
+                // not using the limit, so nothing has been learned about a larger one
+                newLimit = limit;
+            }
+            limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+            roundCalls = 0;
+            roundRttNanos = 0;
+            roundMaxInFlight = 0;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        /**
+         * Current number of calls allowed in flight.
+         */
+        public synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        public synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * Calls waiting for a slot right now.
+         */
+        public synchronized int getQueued() {
+            return queued;
+        }
+
+        /**
+         * Recent average time a call waited for a slot, in milliseconds.
+         */
+        public synchronized double getQueueingDelayMillis() {
+            return queueingDelay / 1e6;
+        }
+
+        /**
+         * Total time calls have waited for a slot.
+         */
+        public synchronized long getQueueingNanos() {
+            return queueingNanos;
+        }
+
+        public synchronized long getCalls() {
+            return calls;
+        }
+
+        /**
+         * The round trip without queueing in milliseconds, the latency the limit aims to keep.
+         */
+        public synchronized double getNoLoadRttMillis() {
+            return noLoadRtt / 1e6;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s: limit=%d, inFlight=%d, queued=%d, queueingDelay=%.1f ms, rtt=%.1f ms, noLoadRtt=%.1f ms",
+                    operation, (int) limit, inFlight, queued, queueingDelay / 1e6, rtt / 1e6, noLoadRtt / 1e6);
+        }
+    }
+}
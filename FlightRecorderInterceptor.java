@@ -0,0 +1,68 @@
+/**
+ * Flight Recorder events for the Hub port calls.
+ *
+ */
+package hub.sample;
+
+/**
+ * class FlightRecorderInterceptor records a HubEvents.Call for every operation
+ * of a port, with the request id and the number of results returned (getResults,
+ * getMoreResults, getHL7Results, ...) or acknowledged (acknowledgeResults,
+ * acknowledgeHL7Results), see CallSummary.
+ *
+ * PortProxies.forHub() puts it innermost, on the thread that sends the request,
+ * so the HubEvents.HttpExchange of PooledHttpSender is nested in it.  When no
+ * recording is running it costs a shouldCommit() check.
+ *
+ */
+public class FlightRecorderInterceptor implements PortInterceptor {
+
+    private final String port;
+
+    public FlightRecorderInterceptor(String port) {
+        this.port = port;
+    }
+
+    /**
+     * An instance for a port interface; it keeps no state.
+     */
+    public static FlightRecorderInterceptor forPort(Class<?> portInterface) {
+        return new FlightRecorderInterceptor(portInterface.getSimpleName());
+    }
+
+    public Object intercept(PortInvocation invocation) throws Throwable {
+        HubEvents.Call event = new HubEvents.Call();
+        event.begin();
+        Object result = null;
+        Throwable failure = null;
+        try {
+            result = invocation.proceed();
+            return result;
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (event.shouldCommit()) {
+                event.port = port;
+                event.operation = invocation.getOperation();
+                CallSummary summary = CallSummary.of(port, event.operation, invocation.getArguments(), result);
+                event.requestId = summary.requestId;
+                event.results = summary.results;
+                event.more = summary.more;
+                if (failure != null) {
+                    event.fault = MetricsInterceptor.faultString(failure);
+                }
+                event.commit();
+            }
+        }
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    @Override
+    public String toString() {
+        return "FlightRecorderInterceptor[" + port + "]";
+    }
+}
@@ -11,6 +11,7 @@ package hub.sample;
 import java.io.IOException;
 import java.rmi.RemoteException;
 import java.text.MessageFormat;
+import java.util.function.BooleanSupplier;
 
 import javax.xml.rpc.ServiceException;
 import javax.xml.rpc.Stub;
@@ -47,6 +48,8 @@ public class HL7ResultsServiceClient {
     private static final String START_DATE = "01/01/2004";
     private static final String END_DATE = "01/01/2009";
     
+    private static final HubLog LOG = HubLog.forClass(HL7ResultsServiceClient.class);
+
     /**
      * The HL7 Ack message template - The following "template" is used in
      * constructing the Ack. After calling getHL7Results(), you will acknowledge
@@ -128,7 +131,7 @@ public class HL7ResultsServiceClient {
      * acknowledgeHL7Results() call.
      * 
      */
-    private static HL7Message buildAckMessage(String hl7) {
+    static HL7Message buildAckMessage(String hl7) {
         // Return value.
         String ack = null;
         HL7Message retValue;
@@ -167,14 +170,23 @@ public class HL7ResultsServiceClient {
      * 
      */
     private static ResultsServicePort getResultsServicePort() throws IOException, ServiceException {
-        ResultsService service = new ResultsServiceLocator();
+        return getResultsServicePort(ENDPOINT, USERNAME, PASSWORD);
+    }
+
+    /**
+     * The same for another endpoint or Hub account, e.g. in HubDaemon.
+     */
+    static ResultsServicePort getResultsServicePort(String endpoint, String username, String password)
+            throws IOException, ServiceException {
+        ResultsService service = new ResultsServiceLocator(PooledHttpSender.getEngineConfiguration());
         ResultsServicePortStub port = null;
 
         port = (ResultsServicePortStub) service.getResultsServicePort();
-        port._setProperty(Stub.USERNAME_PROPERTY, USERNAME);
-        port._setProperty(Stub.PASSWORD_PROPERTY, PASSWORD);
-        port._setProperty(Stub.ENDPOINT_ADDRESS_PROPERTY, ENDPOINT);
-        return port;
+        port._setProperty(Stub.USERNAME_PROPERTY, username);
+        port._setProperty(Stub.PASSWORD_PROPERTY, password);
+        port._setProperty(Stub.ENDPOINT_ADDRESS_PROPERTY, endpoint);
+        // rate limit, deadlines, hedged reads and a circuit breaker, see PortProxies.forHub()
+        return PortProxies.forHub(ResultsServicePort.class, port, endpoint, username);
     }
 
     /**
@@ -216,11 +228,15 @@ public class HL7ResultsServiceClient {
         // ackMessages sets one of the parameters in the response object. The
         // response object is used in the acknowledgeHL7Results() call.
 
+        HubEvents.AckBuild event = new HubEvents.AckBuild();
+        event.begin();
+
         // Get the HL7 messages from the response object.
         HL7Message[] myHL7Messages = resultsResponse.getHL7Messages();
 
         // Format the ackMessages using the ACK_MESSAGE template.
-        System.out.println("Acknowledging " + myHL7Messages.length + " results.");
+        LOG.info("acknowledging", "requestId", resultsResponse.getRequestId(), "results",
+                Integer.valueOf(myHL7Messages.length));
 
         HL7Message[] ackMessages = new HL7Message[myHL7Messages.length];
 
@@ -229,15 +245,25 @@ public class HL7ResultsServiceClient {
             // the result,
             // or to reject the result if there is a problem.
             String currentHL7 = new String(myHL7Messages[i].getMessage());
-            System.out.println("Message: " + i);
-            System.out.println("---------");
-            System.out.println("The real HL7 Message: " + currentHL7);
-            
+            // the message itself only if hub.log.payloadSample asks for it
+            LOG.payload("message", "index", Integer.valueOf(i), currentHL7);
+
             // Process HL7 message.
             // Send an Ack/Nack message back for each HL7 message received.
             ackMessages[i] = buildAckMessage(currentHL7);
         }
 
+        if (event.shouldCommit()) {
+            event.client = "HL7ResultsServiceClient";
+            event.resultServiceType = "HL7";
+            event.requestId = resultsResponse.getRequestId();
+            event.results = myHL7Messages.length;
+            event.acks = ackMessages.length;
+            for (HL7Message message : myHL7Messages) {
+                event.hl7Bytes += message.getMessage() == null ? 0 : message.getMessage().length;
+            }
+            event.commit();
+        }
         return ackMessages;
     }
     
@@ -255,6 +281,15 @@ public class HL7ResultsServiceClient {
      * 
      */
     private static void getResults(ResultsServicePort proxy, String[] providerAccountsArray, String maxMessages, String startDate, String endDate) throws RemoteException {
+        getResults(proxy, providerAccountsArray, maxMessages, startDate, endDate, () -> false);
+    }
+
+    /**
+     * The same, stopping after the acknowledgement of a pass once stopRequested is
+     * true, e.g. when HubDaemon shuts down; the results left are retrieved next time.
+     */
+    static void getResults(ResultsServicePort proxy, String[] providerAccountsArray, String maxMessages,
+            String startDate, String endDate, BooleanSupplier stopRequested) throws RemoteException {
         boolean initialRequest = true;
         boolean processing = true;
         String requestID = "";
@@ -298,7 +333,7 @@ public class HL7ResultsServiceClient {
                 HL7Message[] hl7ACKMessages = generateHL7AckMessages(hl7Response);
                 proxy.acknowledgeHL7Results(requestID, hl7ACKMessages);
 
-                processing = hl7Response.getIsMore().booleanValue();
+                processing = hl7Response.getIsMore().booleanValue() && !stopRequested.getAsBoolean();
             }
         }
         
@@ -0,0 +1,209 @@
+/**
+ * HL7 message templates with placeholders, compiled once and rendered in one pass.
+ *
+ */
+package hub.sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * class HL7Template is an HL7 message with placeholders, like
+ * PatientDemographicServiceClient.ADT_MESSAGE, whose placeholders are found once,
+ * when the template is compiled, rather than searched for on every message:
+ *
+ *   HL7Template adt = HL7Template.compile(ADT_MESSAGE, "SENDING_APP", "HUB_ACCT", "MSG_CTRL_ID");
+ *   byte[] message = adt.render("HUBWS", "2135800", controlId);
+ *
+ * Rendering writes the text between the placeholders and the values into a byte[]
+ * of the exact size in one pass; String.replace() once per placeholder copies the
+ * whole message each time, and replaces placeholders in the values put in before.
+ *
+ * A placeholder is any text, matched as it is wherever it occurs; where two of them
+ * start at the same place the longer one wins.  The set of placeholders is the
+ * caller's, so a site-specific variant of a message, with fields or segments of its
+ * own, is a file loaded with load() and needs no code.  Templates are ISO-8859-1
+ * like the other HL7 of the clients; characters outside it render as '?'.
+ *
+ * A compiled template is immutable and may be rendered by any number of threads.
+ *
+ */
+public final class HL7Template {
+
+    private final String[] placeholders;
+    // the text before each occurrence, and after the last one
+    private final byte[][] literals;
+    // the placeholder of each occurrence, an index into placeholders
+    private final int[] occurrences;
+    // how often each placeholder occurs
+    private final int[] counts;
+    private final int literalLength;
+
+    private HL7Template(String[] placeholders, byte[][] literals, int[] occurrences) {
+        this.placeholders = placeholders;
+        this.literals = literals;
+        this.occurrences = occurrences;
+        this.counts = new int[placeholders.length];
+        for (int occurrence : occurrences) {
+            counts[occurrence]++;
+        }
+        int length = 0;
+        for (byte[] literal : literals) {
+            length += literal.length;
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Finds the placeholders in a template.
+     *
+     * @param placeholders the placeholders, in the order render(String...) takes
+     *        their values; a placeholder need not occur in the template
+     * @throws IllegalArgumentException if a placeholder is empty or given twice
+     */
+    public static HL7Template compile(String template, String... placeholders) {
+        String[] names = placeholders.clone();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == null || names[i].isEmpty()) {
+                throw new IllegalArgumentException("Empty placeholder at " + i);
+            }
+            for (int j = 0; j < i; j++) {
+                if (names[i].equals(names[j])) {
+                    throw new IllegalArgumentException("Placeholder " + names[i] + " given twice");
+                }
+            }
+        }
+        // the longer placeholders first, for the longest match
+        Integer[] byLength = new Integer[names.length];
+        for (int i = 0; i < byLength.length; i++) {
+            byLength[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(byLength, Comparator.comparingInt((Integer i) -> names[i.intValue()].length()).reversed());
+
+        List<byte[]> literals = new ArrayList<byte[]>();
+        List<Integer> occurrences = new ArrayList<Integer>();
+        int literalStart = 0;
+        int at = 0;
+        while (at < template.length()) {
+            int found = -1;
+            for (Integer candidate : byLength) {
+                if (template.startsWith(names[candidate.intValue()], at)) {
+                    found = candidate.intValue();
+                    break;
+                }
+            }
+            if (found < 0) {
+                at++;
+                continue;
+            }
+            literals.add(template.substring(literalStart, at).getBytes(StandardCharsets.ISO_8859_1));
+            occurrences.add(Integer.valueOf(found));
+            at += names[found].length();
+            literalStart = at;
+        }
+        literals.add(template.substring(literalStart).getBytes(StandardCharsets.ISO_8859_1));
+
+        int[] slots = new int[occurrences.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = occurrences.get(i).intValue();
+        }
+        return new HL7Template(names, literals.toArray(new byte[literals.size()][]), slots);
+    }
+
+    /**
+     * Reads a template from a file, one segment per line: the line ends, "\r\n" or
+     * "\n", become the HL7 segment terminator "\r".
+     *
+     * @see #compile(String, String...)
+     */
+    public static HL7Template load(File file, String... placeholders) throws IOException {
+        String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+        return compile(text.replace("\r\n", "\r").replace('\n', '\r'), placeholders);
+    }
+
+    /**
+     * The message with the values of the placeholders, in the order they were
+     * compiled with.
+     *
+     * @throws IllegalArgumentException if there are not as many values as placeholders,
+     *         or a placeholder that occurs has no value
+     */
+    public byte[] render(String... values) {
+        if (values.length != placeholders.length) {
+            throw new IllegalArgumentException(placeholders.length + " values expected, not " + values.length);
+        }
+        int length = literalLength;
+        for (int i = 0; i < values.length; i++) {
+            if (counts[i] > 0) {
+                if (values[i] == null) {
+                    throw new IllegalArgumentException("No value for " + placeholders[i]);
+                }
+                length += counts[i] * values[i].length();
+            }
+        }
+        byte[] message = new byte[length];
+        int position = 0;
+        for (int i = 0; i < occurrences.length; i++) {
+            byte[] literal = literals[i];
+            System.arraycopy(literal, 0, message, position, literal.length);
+            position += literal.length;
+            position = encode(values[occurrences[i]], message, position);
+        }
+        byte[] last = literals[occurrences.length];
+        System.arraycopy(last, 0, message, position, last.length);
+        return message;
+    }
+
+    /**
+     * The message with the values of the placeholders by name; names that are not
+     * placeholders of the template are ignored.
+     *
+     * @throws IllegalArgumentException if a placeholder that occurs has no value
+     */
+    public byte[] render(Map<String, String> values) {
+        String[] ordered = new String[placeholders.length];
+        for (int i = 0; i < ordered.length; i++) {
+            ordered[i] = values.get(placeholders[i]);
+        }
+        return render(ordered);
+    }
+
+    private static int encode(String value, byte[] message, int position) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            message[position++] = c <= 0xFF ? (byte) c : (byte) '?';
+        }
+        return position;
+    }
+
+    public List<String> getPlaceholders() {
+        return Collections.unmodifiableList(Arrays.asList(placeholders));
+    }
+
+    /**
+     * How often a placeholder occurs in the template, 0 if it is not one of its
+     * placeholders.
+     */
+    public int getOccurrences(String placeholder) {
+        for (int i = 0; i < placeholders.length; i++) {
+            if (placeholders[i].equals(placeholder)) {
+                return counts[i];
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "HL7Template[" + placeholders.length + " placeholders, " + occurrences.length + " occurrences, "
+                + literalLength + " bytes of text]";
+    }
+}
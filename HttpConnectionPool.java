@@ -0,0 +1,345 @@
+/**
+ * A keep-alive connection pool for the Hub HTTP(S) endpoints.
+ *
+ */
+package hub.sample;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * class HttpConnectionPool keeps idle HTTP/1.1 connections open per endpoint
+ * (scheme, host and port) so that consecutive SOAP calls skip the TCP connect
+ * and the TLS handshake.
+ *
+ * The pool is configured with system properties:
+ *
+ *   hub.http.maxConnections      maximum open connections per endpoint (default 8)
+ *   hub.http.idleTimeoutMillis   idle connections older than this are closed (default 30000)
+ *   hub.http.connectTimeoutMillis  TCP connect timeout (default 30000)
+ *   hub.http.leaseTimeoutMillis  longest wait for a free connection (default 60000)
+ *   hub.http.staleCheckMillis    connections idle longer are checked for a close by
+ *                                the server before reuse, which costs up to 1 ms (default 1000)
+ *
+ * Metrics: connections opened, TLS handshakes, requests served and how many
+ * of them reused an already open connection.
+ *
+ */
+public final class HttpConnectionPool {
+
+    private static final HttpConnectionPool SHARED = new HttpConnectionPool(
+            Integer.getInteger("hub.http.maxConnections", 8).intValue(),
+            Long.getLong("hub.http.idleTimeoutMillis", 30000L).longValue(),
+            Integer.getInteger("hub.http.connectTimeoutMillis", 30000).intValue());
+
+    private final int maxConnections;
+    private final long idleTimeoutMillis;
+    private final int connectTimeoutMillis;
+    private final long leaseTimeoutMillis = Long.getLong("hub.http.leaseTimeoutMillis", 60000L).longValue();
+    private final long staleCheckNanos = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("hub.http.staleCheckMillis", 1000L).longValue());
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+    private final ScheduledExecutorService evictor;
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong connectionsEvicted = new AtomicLong();
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    public HttpConnectionPool(int maxConnections, long idleTimeoutMillis, int connectTimeoutMillis) {
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hub-http-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000L, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The pool used by PooledHttpSender.
+     */
+    public static HttpConnectionPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Leases a connection to the endpoint of the given URL, reusing an idle one if possible.
+     * Blocks while maxConnections connections to that endpoint are leased, up to
+     * hub.http.leaseTimeoutMillis.  Every lease must be given back with release().
+     */
+    public Connection lease(URL url, int readTimeoutMillis) throws IOException {
+        Route route = route(url);
+        try {
+            if (!route.permits.tryAcquire(leaseTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out after " + leaseTimeoutMillis + " ms waiting for a connection to "
+                        + route.key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a connection to " + route.key);
+        }
+
+        leases.incrementAndGet();
+        Connection connection;
+        while ((connection = route.pollIdle()) != null) {
+            if (connection.isExpired(idleTimeoutMillis)
+                    || (System.nanoTime() - connection.lastUsed > staleCheckNanos && connection.isClosedByServer())) {
+                connection.closeQuietly();
+                connectionsEvicted.incrementAndGet();
+                continue;
+            }
+            reuses.incrementAndGet();
+            connection.socket.setSoTimeout(readTimeoutMillis);
+            return connection;
+        }
+
+        try {
+            connection = open(route, url, readTimeoutMillis);
+        } catch (IOException e) {
+            route.permits.release();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Returns a leased connection.  Connections that cannot carry another request
+     * (closed by the server, or with an unread response) are closed instead.
+     */
+    public void release(Connection connection, boolean reusable) {
+        Route route = connection.route;
+        if (reusable && !connection.socket.isClosed()) {
+            connection.lastUsed = System.nanoTime();
+            connection.reused = true;
+            route.offerIdle(connection);
+        } else {
+            connection.closeQuietly();
+        }
+        route.permits.release();
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    public long getConnectionsEvicted() {
+        return connectionsEvicted.get();
+    }
+
+    public long getLeases() {
+        return leases.get();
+    }
+
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    /**
+     * Fraction of leases served by an already open connection.
+     */
+    public double getReuseRate() {
+        long total = leases.get();
+        return total == 0 ? 0.0 : (double) reuses.get() / total;
+    }
+
+    /**
+     * Number of idle connections currently held for all endpoints.
+     */
+    public int getIdleConnections() {
+        int idle = 0;
+        for (Route route : routes.values()) {
+            idle += route.idleCount();
+        }
+        return idle;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpConnectionPool[opened=" + getConnectionsOpened() + ", handshakes=" + getHandshakes()
+                + ", leases=" + getLeases() + ", reuses=" + getReuses() + ", evicted=" + getConnectionsEvicted()
+                + ", idle=" + getIdleConnections() + "]";
+    }
+
+    private Route route(URL url) {
+        String scheme = url.getProtocol().toLowerCase();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = scheme + "://" + url.getHost().toLowerCase() + ":" + port;
+        Route route = routes.get(key);
+        if (route == null) {
+            Route created = new Route(key, maxConnections);
+            route = routes.putIfAbsent(key, created);
+            if (route == null) {
+                route = created;
+            }
+        }
+        return route;
+    }
+
+    private Connection open(Route route, URL url, int readTimeoutMillis) throws IOException {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(url.getHost(), port), connectTimeoutMillis);
+            socket.setSoTimeout(readTimeoutMillis);
+
+            if ("https".equalsIgnoreCase(url.getProtocol())) {
+                SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+                SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, url.getHost(), port, true);
+                SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(parameters);
+                sslSocket.startHandshake();
+                handshakes.incrementAndGet();
+                socket = sslSocket;
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        connectionsOpened.incrementAndGet();
+        return new Connection(route, socket);
+    }
+
+    private void evictIdle() {
+        for (Route route : routes.values()) {
+            connectionsEvicted.addAndGet(route.evictOlderThan(idleTimeoutMillis));
+        }
+    }
+
+    /**
+     * The connections to one endpoint.
+     */
+    private static final class Route {
+        private final String key;
+        private final Semaphore permits;
+        private final Deque<Connection> idle = new ArrayDeque<Connection>();
+
+        Route(String key, int maxConnections) {
+            this.key = key;
+            this.permits = new Semaphore(maxConnections, true);
+        }
+
+        synchronized Connection pollIdle() {
+            // most recently used first, the oldest ones are left to expire
+            return idle.pollFirst();
+        }
+
+        synchronized void offerIdle(Connection connection) {
+            idle.offerFirst(connection);
+        }
+
+        synchronized int idleCount() {
+            return idle.size();
+        }
+
+        synchronized int evictOlderThan(long idleTimeoutMillis) {
+            int evicted = 0;
+            for (Iterator<Connection> it = idle.iterator(); it.hasNext();) {
+                Connection connection = it.next();
+                if (connection.isExpired(idleTimeoutMillis)) {
+                    it.remove();
+                    connection.closeQuietly();
+                    evicted++;
+                }
+            }
+            return evicted;
+        }
+    }
+
+    /**
+     * One open HTTP/1.1 connection.
+     */
+    public static final class Connection {
+        private final Route route;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long lastUsed = System.nanoTime();
+        private boolean reused;
+
+        Connection(Route route, Socket socket) throws IOException {
+            this.route = route;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 16384);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        /**
+         * True if this connection already carried a request; a failure on such a
+         * connection may just mean the server closed it while it was idle.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        boolean isExpired(long idleTimeoutMillis) {
+            return System.nanoTime() - lastUsed > TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        }
+
+        /**
+         * True if the server has closed the idle connection (or sent something no
+         * request asked for), found by waiting 1 ms for a byte.
+         */
+        boolean isClosedByServer() {
+            try {
+                socket.setSoTimeout(1);
+                // -1 at the end of the stream, or a byte that belongs to no response
+                in.read();
+                return true;
+            } catch (SocketTimeoutException e) {
+                // nothing to read, the connection is open
+                return false;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/**
+ * A non-blocking SOAP client for the Hub services built on java.net.http.
+ *
+ */
+package hub.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import observation.webservice.results.serviceHub.medplus.com.AcknowledgedResult;
+import observation.webservice.results.serviceHub.medplus.com.Acknowledgment;
+import observation.webservice.results.serviceHub.medplus.com.ObservationResultRequest;
+import observation.webservice.results.serviceHub.medplus.com.ProviderAccount;
+
+import com.medplus.hub.demographics.webservice.DemographicRequest;
+import com.medplus.hub.orders.webservice.Order;
+import com.medplus.hub.orders.webservice.OrderSupportServiceRequest;
+import com.medplus.hub.radiology.webservice.RadiologyResult;
+import com.medplus.hub.results.webservice.HL7Message;
+import com.medplus.hub.results.webservice.ResultInfo;
+import com.medplus.hub.results.webservice.ResultsRequest;
+
+/**
+ * class HubAsyncClient sends the operations of the Axis *ServicePort interfaces
+ * (getHL7Results, acknowledgeHL7Results, submitOrder, submitRealTimeADTMessage,
+ * submitRadiologyResult, ...) over a java.net.http.HttpClient and returns a
+ * CompletableFuture instead of blocking the calling thread for the round trip.
+ *
+ * One HubAsyncClient serves one endpoint and one Hub account.  Share a single
+ * HttpClient between all of them; it multiplexes requests over HTTP/2 where the
+ * server supports it and keeps HTTP/1.1 connections alive otherwise, so a few
+ * threads can keep hundreds of requests in flight.
+ *
+ * A future completes exceptionally with a HubSoapFaultException if the Hub
+ * answers with a SOAP fault or a non-2xx status.
+ *
+ */
+public class HubAsyncClient {
+
+    // Operation namespaces of the Hub services.
+    public static final String RESULTS_NAMESPACE = "http://medplus.com/resultsHub/observations";
+    public static final String OBSERVATION_NAMESPACE = "http://medplus.com/observation";
+    public static final String ORDERS_NAMESPACE = "http://medplus.com/orders";
+    public static final String DEMOGRAPHIC_NAMESPACE = "http://medplus.com/demographic";
+    public static final String RADIOLOGY_NAMESPACE = "http://medplus.com/radiology/result";
+
+    // Type namespaces used by the encoded structures.
+    private static final String RESULTS_TYPES = "java:com.medplus.serviceHub.results.webservice";
+    private static final String PRINTABLE_TYPES = "java:com.medplus.serviceHub.results.webservice.printable";
+    private static final String OBSERVATION_TYPES = "java:com.medplus.serviceHub.results.webservice.observation";
+    private static final String ORDERS_TYPES = "java:com.medplus.serviceHub.orders.webservice";
+    private static final String DEMOGRAPHIC_TYPES = "java:com.medplus.serviceHub.mpi.webservice";
+    private static final String RADIOLOGY_TYPES = "java:com.medplus.serviceHub.radiology.webservice";
+
+    private final HttpClient httpClient;
+    private final URI endpoint;
+    private final String authorization;
+    private final Duration timeout;
+
+    /**
+     * @param httpClient the shared client, see newHttpClient()
+     * @param endpoint the service endpoint, e.g. https://cert.hub.care360.com/orders/service
+     * @param username Hub username
+     * @param password Hub password
+     * @param timeout per-request timeout
+     */
+    public HubAsyncClient(HttpClient httpClient, String endpoint, String username, String password,
+            Duration timeout) {
+        this.httpClient = httpClient;
+        this.endpoint = URI.create(endpoint);
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString(
+                (username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        this.timeout = timeout;
+    }
+
+    /**
+     * An HttpClient that prefers HTTP/2 and runs its callbacks on the given executor
+     * (null for the client's default).
+     */
+    public static HttpClient newHttpClient(Executor executor) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(30))
+                .followRedirects(HttpClient.Redirect.NEVER);
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        return builder.build();
+    }
+
+    // ------------------------------------------------------------------
+    // ResultsServicePort (HL7 results)
+    // ------------------------------------------------------------------
+
+    public CompletableFuture<HubSoapResponse> getHL7Results(ResultsRequest request) {
+        return send(hl7Results(request));
+    }
+
+    public CompletableFuture<HubSoapResponse> getMoreHL7Results(String requestId) {
+        return send(new SoapEnvelope("getMoreHL7Results", RESULTS_NAMESPACE).string("requestId", requestId));
+    }
+
+    /**
+     * getHL7Results() with the response decoded by StreamingResultsDecoder as it
+     * arrives; the messages go to the sink.
+     */
+    public CompletableFuture<StreamingResultsDecoder.Page> getHL7Results(ResultsRequest request, ResultsSink sink) {
+        return send(hl7Results(request), sink);
+    }
+
+    public CompletableFuture<StreamingResultsDecoder.Page> getMoreHL7Results(String requestId, ResultsSink sink) {
+        return send(new SoapEnvelope("getMoreHL7Results", RESULTS_NAMESPACE).string("requestId", requestId), sink);
+    }
+
+    public CompletableFuture<HubSoapResponse> acknowledgeHL7Results(String requestId, HL7Message[] ackMessages) {
+        SoapEnvelope envelope = new SoapEnvelope("acknowledgeHL7Results", RESULTS_NAMESPACE);
+        envelope.string("requestId", requestId);
+        envelope.beginArray("acknowledgeMessages", "HL7Message", RESULTS_TYPES, ackMessages.length);
+        for (HL7Message message : ackMessages) {
+            envelope.beginStruct("acknowledgeMessages", "HL7Message", RESULTS_TYPES)
+                    .string("controlId", message.getControlId())
+                    .base64("message", message.getMessage())
+                    .endStruct("acknowledgeMessages");
+        }
+        envelope.endArray("acknowledgeMessages");
+        return send(envelope);
+    }
+
+    /**
+     * getProviderAccounts() of any results service; pass RESULTS_NAMESPACE or OBSERVATION_NAMESPACE.
+     */
+    public CompletableFuture<HubSoapResponse> getProviderAccounts(String namespace) {
+        return send(new SoapEnvelope("getProviderAccounts", namespace));
+    }
+
+    // ------------------------------------------------------------------
+    // PrintableResultsServicePort
+    // ------------------------------------------------------------------
+
+    public CompletableFuture<HubSoapResponse> getPrintableResults(ResultsRequest request) {
+        SoapEnvelope envelope = new SoapEnvelope("getResults", RESULTS_NAMESPACE);
+        resultsRequest(envelope, request);
+        return send(envelope);
+    }
+
+    public CompletableFuture<HubSoapResponse> getMorePrintableResults(String requestId) {
+        return send(new SoapEnvelope("getMoreResults", RESULTS_NAMESPACE).string("requestId", requestId));
+    }
+
+    public CompletableFuture<HubSoapResponse> acknowledgePrintableResults(String requestId, ResultInfo resultInfo,
+            String rejectionReason) {
+        SoapEnvelope envelope = new SoapEnvelope("acknowledgeResults", RESULTS_NAMESPACE);
+        envelope.string("requestId", requestId);
+        envelope.beginStruct("result", "ResultInfo", PRINTABLE_TYPES)
+                .dateTime("arrivalDate", resultInfo.getArrivalDate())
+                .string("messageControlId", resultInfo.getMessageControlId())
+                .string("providerAcctId", resultInfo.getProviderAcctId())
+                .endStruct("result");
+        envelope.string("rejectionReason", rejectionReason);
+        return send(envelope);
+    }
+
+    // ------------------------------------------------------------------
+    // ObservationResultServicePort
+    // ------------------------------------------------------------------
+
+    public CompletableFuture<HubSoapResponse> getObservationResults(ObservationResultRequest request) {
+        return send(observationResults(request));
+    }
+
+    public CompletableFuture<HubSoapResponse> getMoreObservationResults(String requestId) {
+        return send(new SoapEnvelope("getMoreResults", OBSERVATION_NAMESPACE).string("requestId", requestId));
+    }
+
+    /**
+     * getObservationResults() with the response decoded by StreamingResultsDecoder
+     * as it arrives; the HL7 messages and documents go to the sink.
+     */
+    public CompletableFuture<StreamingResultsDecoder.Page> getObservationResults(ObservationResultRequest request,
+            ResultsSink sink) {
+        return send(observationResults(request), sink);
+    }
+
+    public CompletableFuture<StreamingResultsDecoder.Page> getMoreObservationResults(String requestId,
+            ResultsSink sink) {
+        return send(new SoapEnvelope("getMoreResults", OBSERVATION_NAMESPACE).string("requestId", requestId), sink);
+    }
+
+    public CompletableFuture<HubSoapResponse> acknowledgeObservationResults(Acknowledgment ack) {
+        SoapEnvelope envelope = new SoapEnvelope("acknowledgeResults", OBSERVATION_NAMESPACE);
+        envelope.beginStruct("ack", "Acknowledgment", OBSERVATION_TYPES);
+        AcknowledgedResult[] results = ack.getAcknowledgedResults();
+        envelope.beginArray("acknowledgedResults", "AcknowledgedResult", OBSERVATION_TYPES,
+                results == null ? 0 : results.length);
+        if (results != null) {
+            for (AcknowledgedResult result : results) {
+                envelope.beginStruct("acknowledgedResults", "AcknowledgedResult", OBSERVATION_TYPES)
+                        .string("ackCode", result.getAckCode())
+                        .stringArray("documentIds", result.getDocumentIds())
+                        .string("rejectionReason", result.getRejectionReason())
+                        .string("resultId", result.getResultId())
+                        .endStruct("acknowledgedResults");
+            }
+        }
+        envelope.endArray("acknowledgedResults");
+        envelope.string("requestId", ack.getRequestId()).endStruct("ack");
+        return send(envelope);
+    }
+
+    // ------------------------------------------------------------------
+    // OrderServicePort
+    // ------------------------------------------------------------------
+
+    public CompletableFuture<HubSoapResponse> submitOrder(Order order) {
+        return send(order("submitOrder", order));
+    }
+
+    public CompletableFuture<HubSoapResponse> validateOrder(Order order) {
+        return send(order("validateOrder", order));
+    }
+
+    public CompletableFuture<HubSoapResponse> getOrderDocuments(OrderSupportServiceRequest request) {
+        SoapEnvelope envelope = new SoapEnvelope("getOrderDocuments", ORDERS_NAMESPACE);
+        envelope.beginStruct("request", "OrderSupportServiceRequest", ORDERS_TYPES)
+                .base64("hl7Order", request.getHl7Order())
+                .stringArray("orderSupportRequests", request.getOrderSupportRequests())
+                .endStruct("request");
+        return send(envelope);
+    }
+
+    // ------------------------------------------------------------------
+    // DemographicServicePort
+    // ------------------------------------------------------------------
+
+    public CompletableFuture<HubSoapResponse> submitRealTimeADTMessage(DemographicRequest request) {
+        return send(demographic("submitRealTimeADTMessage", request));
+    }
+
+    public CompletableFuture<HubSoapResponse> submitBatchADTMessage(DemographicRequest request) {
+        return send(demographic("submitBatchADTMessage", request));
+    }
+
+    // ------------------------------------------------------------------
+    // RadiologyResultServicePort
+    // ------------------------------------------------------------------
+
+    public CompletableFuture<HubSoapResponse> submitRadiologyResult(RadiologyResult radiologyResult) {
+        SoapEnvelope envelope = new SoapEnvelope("submitRadiologyResult", RADIOLOGY_NAMESPACE);
+        envelope.beginStruct("radiologyResult", "RadiologyResult", RADIOLOGY_TYPES)
+                .base64("hl7RadiologyResult", radiologyResult.getHl7RadiologyResult())
+                .endStruct("radiologyResult");
+        return send(envelope);
+    }
+
+    /**
+     * Sends an envelope built by the caller.
+     */
+    public CompletableFuture<HubSoapResponse> send(SoapEnvelope envelope) {
+        final String operation = envelope.getOperation();
+        HttpRequest request = newRequest(envelope);
+
+        final long start = System.nanoTime();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+            byte[] body;
+            try {
+                body = decode(operation, response, new ByteArrayInputStream(response.body())).readAllBytes();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            HubSoapResponse soapResponse = new HubSoapResponse(operation, response.statusCode(), body,
+                    System.nanoTime() - start);
+            if (response.statusCode() < 200 || response.statusCode() > 299) {
+                throw new CompletionException(toFault(soapResponse));
+            }
+            return soapResponse;
+        });
+    }
+
+    /**
+     * Sends an envelope whose response is a results page and decodes the response
+     * with StreamingResultsDecoder while it is being received, so the page is never
+     * held in memory as a whole.  Decoding blocks, so it runs on the HttpClient's
+     * executor (or the common pool if the client has none).
+     */
+    public CompletableFuture<StreamingResultsDecoder.Page> send(SoapEnvelope envelope, final ResultsSink sink) {
+        final String operation = envelope.getOperation();
+        HttpRequest request = newRequest(envelope);
+
+        final long start = System.nanoTime();
+        Executor executor = httpClient.executor().orElse(ForkJoinPool.commonPool());
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).thenApplyAsync(response -> {
+            try (InputStream in = decode(operation, response, response.body())) {
+                if (response.statusCode() < 200 || response.statusCode() > 299) {
+                    throw new CompletionException(toFault(new HubSoapResponse(operation, response.statusCode(),
+                            in.readAllBytes(), System.nanoTime() - start)));
+                }
+                return new StreamingResultsDecoder().decode(in, sink);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private HttpRequest newRequest(SoapEnvelope envelope) {
+        byte[] uncompressed = envelope.toBytes();
+        byte[] body = HubCompression.compressRequest(envelope.getOperation(), uncompressed);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(endpoint)
+                .timeout(timeout)
+                .header("Content-Type", "text/xml; charset=utf-8")
+                .header("SOAPAction", "\"\"")
+                .header("Authorization", authorization);
+        if (body != uncompressed) {
+            builder.header("Content-Encoding", "gzip");
+        }
+        if (HubCompression.isResponseCompressionAccepted()) {
+            builder.header("Accept-Encoding", "gzip");
+        }
+        return builder.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+    }
+
+    /**
+     * HttpClient does not decode Content-Encoding itself.
+     */
+    private static InputStream decode(String operation, HttpResponse<?> response, InputStream body)
+            throws IOException {
+        return HubCompression.decodeResponse(operation, body,
+                response.headers().firstValue("Content-Encoding").orElse(null));
+    }
+
+    private static SoapEnvelope hl7Results(ResultsRequest request) {
+        SoapEnvelope envelope = new SoapEnvelope("getHL7Results", RESULTS_NAMESPACE);
+        resultsRequest(envelope, request);
+        return envelope;
+    }
+
+    private static SoapEnvelope observationResults(ObservationResultRequest request) {
+        SoapEnvelope envelope = new SoapEnvelope("getResults", OBSERVATION_NAMESPACE);
+        envelope.beginStruct("resultRequest", "ObservationResultRequest", OBSERVATION_TYPES)
+                .string("endDate", request.getEndDate())
+                .integer("maxMessages", request.getMaxMessages());
+        ProviderAccount[] accounts = request.getProviderAccounts();
+        if (accounts != null) {
+            envelope.beginArray("providerAccounts", "ProviderAccount", OBSERVATION_TYPES, accounts.length);
+            for (ProviderAccount account : accounts) {
+                envelope.beginStruct("providerAccounts", "ProviderAccount", OBSERVATION_TYPES)
+                        .string("providerAccountName", account.getProviderAccountName())
+                        .string("providerName", account.getProviderName())
+                        .endStruct("providerAccounts");
+            }
+            envelope.endArray("providerAccounts");
+        }
+        envelope.bool("retrieveFinalsOnly", Boolean.valueOf(request.isRetrieveFinalsOnly()))
+                .string("startDate", request.getStartDate())
+                .endStruct("resultRequest");
+        return envelope;
+    }
+
+    private static void resultsRequest(SoapEnvelope envelope, ResultsRequest request) {
+        envelope.beginStruct("resultsRequest", "ResultsRequest", RESULTS_TYPES)
+                .string("endDate", request.getEndDate())
+                .integer("maxMessages", request.getMaxMessages())
+                .stringArray("providerAccountIds", request.getProviderAccountIds())
+                .bool("retrieveFinalsOnly", Boolean.valueOf(request.isRetrieveFinalsOnly()))
+                .bool("retrieveObsoleteResults", Boolean.valueOf(request.isRetrieveObsoleteResults()))
+                .string("startDate", request.getStartDate())
+                .endStruct("resultsRequest");
+    }
+
+    private static SoapEnvelope order(String operation, Order order) {
+        SoapEnvelope envelope = new SoapEnvelope(operation, ORDERS_NAMESPACE);
+        envelope.beginStruct("order", "Order", ORDERS_TYPES)
+                .base64("hl7Order", order.getHl7Order())
+                .endStruct("order");
+        return envelope;
+    }
+
+    private static SoapEnvelope demographic(String operation, DemographicRequest request) {
+        SoapEnvelope envelope = new SoapEnvelope(operation, DEMOGRAPHIC_NAMESPACE);
+        envelope.beginStruct("request", "DemographicRequest", DEMOGRAPHIC_TYPES)
+                .base64("ADTMessage", request.getADTMessage())
+                .endStruct("request");
+        return envelope;
+    }
+
+    /**
+     * Reads faultcode and faultstring from a fault envelope.  A body that is not a
+     * SOAP fault (e.g. an HTML error page) yields a fault without a fault string.
+     */
+    static HubSoapFaultException toFault(HubSoapResponse response) {
+        String faultCode = null;
+        String faultString = null;
+        try {
+            XMLStreamReader reader = StreamingResultsDecoder.XML_INPUT_FACTORY.createXMLStreamReader(
+                    new ByteArrayInputStream(response.getBody()));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if ("faultcode".equals(name)) {
+                            faultCode = reader.getElementText();
+                        } else if ("faultstring".equals(name)) {
+                            faultString = reader.getElementText();
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            // not XML; fall back to the HTTP status
+        }
+        return new HubSoapFaultException(response.getOperation(), response.getHttpStatus(), faultCode, faultString);
+    }
+}
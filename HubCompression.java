@@ -0,0 +1,352 @@
+/**
+ * gzip compression of SOAP request and response bodies.
+ *
+ */
+package hub.sample;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * class HubCompression decides whether a request body is sent with
+ * Content-Encoding: gzip, decodes gzip responses as they are read, and keeps
+ * per-operation figures of the bytes saved and the CPU time spent.
+ *
+ * It is configured with system properties:
+ *
+ *   hub.gzip.requests    compress request bodies (default false; the Hub must accept
+ *                        Content-Encoding: gzip, so enable it per environment)
+ *   hub.gzip.minBytes    bodies smaller than this are sent as they are (default 1024)
+ *   hub.gzip.responses   send Accept-Encoding: gzip (default true)
+ *
+ * PooledHttpSender (the Axis stubs), HubAsyncClient and HubPortFactory (the
+ * JAX-WS ports) use it.  Print report() to see the figures.
+ *
+ */
+public final class HubCompression {
+
+    private static final boolean COMPRESS_REQUESTS = Boolean.getBoolean("hub.gzip.requests");
+    private static final int MIN_BYTES = Integer.getInteger("hub.gzip.minBytes", 1024).intValue();
+    private static final boolean ACCEPT_GZIP = !"false".equalsIgnoreCase(System.getProperty("hub.gzip.responses"));
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final ConcurrentMap<String, OperationStats> STATS = new ConcurrentHashMap<String, OperationStats>();
+
+    private HubCompression() {
+    }
+
+    public static boolean isRequestCompressionEnabled() {
+        return COMPRESS_REQUESTS;
+    }
+
+    /**
+     * True if requests should carry Accept-Encoding: gzip.
+     */
+    public static boolean isResponseCompressionAccepted() {
+        return ACCEPT_GZIP;
+    }
+
+    /**
+     * Returns the gzip-compressed body, or the body itself if request compression
+     * is disabled or the body is smaller than hub.gzip.minBytes.  Callers send
+     * Content-Encoding: gzip when the returned array is not the one passed in.
+     */
+    public static byte[] compressRequest(String operation, byte[] body) {
+        OperationStats stats = stats(operation);
+        stats.requests.incrementAndGet();
+        stats.requestBytes.addAndGet(body.length);
+        if (!COMPRESS_REQUESTS || body.length < MIN_BYTES) {
+            stats.requestWireBytes.addAndGet(body.length);
+            return body;
+        }
+
+        long cpuStart = cpuTime();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(512, body.length / 4));
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192);
+            gzip.write(body);
+            gzip.close();
+        } catch (IOException e) {
+            // cannot happen with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        byte[] wire = compressed.toByteArray();
+        stats.compressNanos.addAndGet(cpuTime() - cpuStart);
+
+        if (wire.length >= body.length) {
+            // incompressible, e.g. an already compressed attachment
+            stats.requestWireBytes.addAndGet(body.length);
+            return body;
+        }
+        stats.compressedRequests.incrementAndGet();
+        stats.requestWireBytes.addAndGet(wire.length);
+        return wire;
+    }
+
+    /**
+     * Wraps a response body according to its Content-Encoding header.  A gzip body
+     * is decompressed while it is read.  The transferred and decoded sizes and the
+     * CPU time spent are added to the operation's figures once the stream has been
+     * read to the end or closed.
+     */
+    public static InputStream decodeResponse(String operation, InputStream body, String contentEncoding)
+            throws IOException {
+        boolean gzip = contentEncoding != null && contentEncoding.toLowerCase(Locale.ROOT).contains("gzip");
+        return new ResponseStream(stats(operation), body, gzip);
+    }
+
+    /**
+     * The figures of all operations seen so far.
+     */
+    public static Collection<OperationStats> getStats() {
+        List<OperationStats> all = new ArrayList<OperationStats>(STATS.values());
+        Collections.sort(all, (a, b) -> a.operation.compareTo(b.operation));
+        return all;
+    }
+
+    /**
+     * One line per operation, e.g.
+     *   submitBatchADTMessage: requests=12 (12 gzip) 1834022 -> 201455 bytes, saved 1632567, compress 41.2 ms; ...
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        for (OperationStats stats : getStats()) {
+            report.append(stats).append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+
+    private static OperationStats stats(String operation) {
+        String key = operation == null ? "(unknown)" : operation;
+        OperationStats stats = STATS.get(key);
+        if (stats == null) {
+            OperationStats created = new OperationStats(key);
+            stats = STATS.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Compression figures of one operation.  "Bytes" are the uncompressed sizes,
+     * "wire bytes" what was actually transferred.
+     */
+    public static final class OperationStats {
+        private final String operation;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong compressedRequests = new AtomicLong();
+        private final AtomicLong requestBytes = new AtomicLong();
+        private final AtomicLong requestWireBytes = new AtomicLong();
+        private final AtomicLong compressNanos = new AtomicLong();
+        private final AtomicLong responses = new AtomicLong();
+        private final AtomicLong compressedResponses = new AtomicLong();
+        private final AtomicLong responseBytes = new AtomicLong();
+        private final AtomicLong responseWireBytes = new AtomicLong();
+        private final AtomicLong decompressNanos = new AtomicLong();
+
+        OperationStats(String operation) {
+            this.operation = operation;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getCompressedRequests() {
+            return compressedRequests.get();
+        }
+
+        public long getRequestBytesSaved() {
+            return requestBytes.get() - requestWireBytes.get();
+        }
+
+        public long getResponses() {
+            return responses.get();
+        }
+
+        public long getCompressedResponses() {
+            return compressedResponses.get();
+        }
+
+        public long getResponseBytesSaved() {
+            return responseBytes.get() - responseWireBytes.get();
+        }
+
+        /**
+         * CPU time spent compressing request bodies.
+         */
+        public long getCompressNanos() {
+            return compressNanos.get();
+        }
+
+        /**
+         * CPU time spent decompressing response bodies.
+         */
+        public long getDecompressNanos() {
+            return decompressNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%s: requests=%d (%d gzip) %d -> %d bytes, saved %d, compress %.1f ms; "
+                            + "responses=%d (%d gzip) %d -> %d bytes, saved %d, decompress %.1f ms",
+                    operation, requests.get(), compressedRequests.get(), requestBytes.get(), requestWireBytes.get(),
+                    getRequestBytesSaved(), compressNanos.get() / 1e6, responses.get(), compressedResponses.get(),
+                    responseBytes.get(), responseWireBytes.get(), getResponseBytesSaved(), decompressNanos.get() / 1e6);
+        }
+    }
+
+    /**
+     * A response body, decompressed if it is gzip, that adds its sizes and the
+     * decompression CPU time to the figures of an operation.
+     */
+    private static final class ResponseStream extends FilterInputStream {
+        private final OperationStats stats;
+        private final WireStream wire;
+        private final boolean gzip;
+        private long length;
+        private long cpuNanos;
+        private boolean counted;
+
+        ResponseStream(OperationStats stats, InputStream body, boolean gzip) throws IOException {
+            super(null);
+            this.stats = stats;
+            this.wire = new WireStream(body);
+            this.gzip = gzip;
+            if (gzip) {
+                long cpuStart = cpuTime();
+                in = new GZIPInputStream(wire, 8192);
+                cpuNanos += cpuTime() - cpuStart;
+            } else {
+                in = wire;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            long cpuStart = gzip ? cpuTime() : 0L;
+            int b = in.read();
+            if (gzip) {
+                cpuNanos += cpuTime() - cpuStart;
+            }
+            if (b == -1) {
+                count();
+            } else {
+                length++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long cpuStart = gzip ? cpuTime() : 0L;
+            int read = in.read(buffer, offset, count);
+            if (gzip) {
+                cpuNanos += cpuTime() - cpuStart;
+            }
+            if (read == -1) {
+                count();
+            } else {
+                length += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            length += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            count();
+            super.close();
+        }
+
+        private void count() {
+            if (!counted) {
+                counted = true;
+                stats.responses.incrementAndGet();
+                if (gzip) {
+                    stats.compressedResponses.incrementAndGet();
+                    stats.decompressNanos.addAndGet(cpuNanos);
+                }
+                stats.responseBytes.addAndGet(length);
+                stats.responseWireBytes.addAndGet(wire.count);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read from the connection.
+     */
+    private static final class WireStream extends FilterInputStream {
+        private long count;
+
+        WireStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = in.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
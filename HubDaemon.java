@@ -0,0 +1,501 @@
+/**
+ * Runs the Hub clients as a long-running service.
+ *
+ */
+package hub.sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.medplus.hub.demographics.webservice.DemographicServicePort;
+import com.medplus.hub.observation.webservice.ObservationResultServicePort;
+import com.medplus.hub.radiology.webservice.RadiologyResultServicePort;
+import com.medplus.hub.results.webservice.ResultsServicePort;
+
+import observation.webservice.results.serviceHub.medplus.com.ObservationResult;
+import observation.webservice.results.serviceHub.medplus.com.ObservationResultDocument;
+
+/**
+ * class HubDaemon keeps the clients in one JVM that runs until it is stopped,
+ * instead of a JVM per cron run: the classes are loaded, the WSDL read and the
+ * code compiled once, and the ports and their pooled connections (see
+ * PooledHttpSender) are created at start and reused by every poll.  Its jobs are
+ *
+ *   hl7           HL7ResultsServiceClient.getResults(): getHL7Results, acknowledgeHL7Results
+ *                 and getMoreHL7Results until isMore is false
+ *   observation   ObservationResultsServiceClient.getResults(), the same with the
+ *                 ObservationResultService
+ *   adt           sends the ADT messages in an inbox directory through an AdtRouter
+ *                 (with the AdtDigestIndex of hub.adt.digest.file, if set)
+ *   radiology     sends the radiology results in an inbox directory through a
+ *                 RadiologySubmissionEngine
+ *
+ * Each job polls every intervalSeconds, counted from the end of its last poll,
+ * give or take jitter (0.2 is up to 20% either way, and the first poll is up to
+ * that late), so that several daemons, or jobs, do not all call the Hub at once.
+ * A failed poll is logged and the job polls again at its next time.
+ *
+ * An inbox holds one HL7 message per file, segments on lines of their own or
+ * separated by carriage returns.  Files whose names start with "." or end in
+ * ".tmp" are left alone, so write a file under such a name and rename it when it is
+ * complete.  The files are sent oldest first; once answered a file moves to the
+ * sent directory of the inbox, or to rejected with a [name].errors file next to it
+ * if the Hub rejected it.  A file whose call failed, e.g. on a timeout, an open
+ * circuit breaker or an I/O error, stays in the inbox and is sent again at the
+ * next poll.  ADT messages the Hub already has move to sent unsent.
+ *
+ * stop(), which a shutdown hook calls on SIGTERM, starts no new poll and waits for
+ * the polls under way: a retrieval loop stops after the acknowledgement of its
+ * current pass, so no result is retrieved without being acknowledged, and the
+ * messages already handed to the router or the engine are sent and answered.
+ *
+ * With hub.warmup set, each job is warmed up by a HubWarmUp after its port is
+ * created and before its first poll is scheduled; HubWarmUp.isReady(), served by
+ * PrometheusEndpoint at /ready, turns true once all jobs are set up, and false again
+ * at stop().
+ *
+ * Configured with system properties, each job's own (hub.daemon.[job].*) before
+ * the daemon's (hub.daemon.*):
+ *
+ *   hub.daemon.jobs                  the jobs to run, comma separated (default observation)
+ *   hub.daemon.[job].endpoint        the job's service endpoint (required)
+ *   hub.daemon.username              the Hub account
+ *   hub.daemon.password              its password
+ *   hub.daemon.intervalSeconds       time between polls (default 300)
+ *   hub.daemon.jitter                fraction the time between polls varies by (default 0.2)
+ *   hub.daemon.maxMessages           results per getResults call (default 5)
+ *   hub.daemon.[job].inbox           the inbox directory of adt and radiology (required for them)
+ *   hub.daemon.shutdownSeconds       longest wait for the work under way at stop (default 60)
+ *
+ * e.g. hub.daemon.hl7.intervalSeconds=60 polls for HL7 results every minute and
+ * for the others at the daemon's interval.
+ *
+ * Usage: HubDaemon
+ *
+ */
+public class HubDaemon {
+
+    private static final HubLog LOG = HubLog.forClass(HubDaemon.class);
+
+    private final ScheduledExecutorService scheduler;
+    private final double jitter;
+    // null unless hub.warmup is set
+    private final HubWarmUp warmUp = HubWarmUp.configured();
+    // closed at stop, last first
+    private final List<AutoCloseable> resources = Collections.synchronizedList(new ArrayList<AutoCloseable>());
+
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile boolean stopping;
+
+    public HubDaemon() {
+        this(Double.parseDouble(System.getProperty("hub.daemon.jitter", "0.2")));
+    }
+
+    /**
+     * @param jitter the fraction the time between polls varies by, 0 to 1
+     */
+    public HubDaemon(double jitter) {
+        this.jitter = Math.max(0, Math.min(1, jitter));
+        AtomicInteger threads = new AtomicInteger();
+        // the jobs share the threads; a job never overlaps itself
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(4, runnable -> {
+            Thread thread = new Thread(runnable, "hub-daemon-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // at stop, the polls not yet due are dropped rather than waited for
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.scheduler = executor;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HubDaemon daemon = new HubDaemon();
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop, "hub-daemon-shutdown"));
+            for (String job : System.getProperty("hub.daemon.jobs", "observation").split(",")) {
+                if (daemon.isStopping()) {
+                    break;
+                }
+                if (job.trim().length() > 0) {
+                    daemon.configure(job.trim());
+                }
+            }
+        } catch (Exception e) {
+            daemon.stop();
+            throw e;
+        }
+        if (!daemon.isStopping()) {
+            HubWarmUp.setReady(true);
+        }
+        daemon.awaitTermination();
+    }
+
+    /**
+     * Sets a job of hub.daemon.jobs up from the hub.daemon.* properties: creates its
+     * port, warms it up if hub.warmup is set, and schedules its polls.
+     *
+     * @throws IllegalArgumentException if the job is unknown or its endpoint or inbox missing
+     */
+    public void configure(String job) throws Exception {
+        String endpoint = property(job, "endpoint", null);
+        if (endpoint == null) {
+            throw new IllegalArgumentException("hub.daemon." + job + ".endpoint is not set");
+        }
+        String username = property(job, "username", "");
+        String password = property(job, "password", "");
+        long interval = TimeUnit.SECONDS.toMillis(Long.parseLong(property(job, "intervalSeconds", "300")));
+        String maxMessages = property(job, "maxMessages", "5");
+
+        if ("hl7".equals(job)) {
+            ResultsServicePort port = HL7ResultsServiceClient.getResultsServicePort(endpoint, username, password);
+            warmUp(job, endpoint, i -> HL7ResultsServiceClient.buildAckMessage(warmUp.hl7(i)));
+            schedule(job, interval, () -> HL7ResultsServiceClient.getResults(port, null, maxMessages, null, null,
+                    this::isStopping));
+        } else if ("observation".equals(job)) {
+            ObservationResultServicePort port = ObservationResultsServiceClient.getObservationResultsServicePort(
+                    endpoint, username, password);
+            warmUp(job, endpoint, i -> {
+                ObservationResultDocument document = new ObservationResultDocument();
+                document.setDocumentId("WARMUP" + i);
+                ObservationResult result = new ObservationResult();
+                result.setResultId("WARMUP" + i);
+                result.setHL7Message(warmUp.hl7Bytes(i));
+                result.setDocuments(new ObservationResultDocument[] { document });
+                ObservationResultsServiceClient.buildAcknowledgement(result);
+                new ParsedHL7Message(warmUp.hl7(i)).getMessageControlId();
+            });
+            schedule(job, interval, () -> ObservationResultsServiceClient.getResults(port, null, maxMessages, null,
+                    null, this::isStopping));
+        } else if ("adt".equals(job)) {
+            File inbox = inbox(job);
+            DemographicServicePort port = PatientDemographicServiceClient.getDemographicServicePort(endpoint,
+                    username, password);
+            AdtDigestIndex index = AdtDigestIndex.openConfigured();
+            if (index != null) {
+                resources.add(index);
+            }
+            AdtRouter router = new AdtRouter(port, new AdtBatchAggregator(port), index);
+            resources.add(router);
+            warmUp(job, endpoint, i -> {
+                byte[] message = PatientDemographicServiceClient.ADT_TEMPLATE.render("HUBWS", "WARMUP", "THO",
+                        "20091231093000", "WARMUP" + i);
+                AdtBatchAggregator.msh(message);
+                if (index != null) {
+                    index.lookup(message);
+                }
+            });
+            Inbox adt = new Inbox(inbox, message -> router.submit(message, false).thenApply(submission -> {
+                if (submission == null || submission.isAccepted()) {
+                    return null;
+                }
+                List<String> errors = new ArrayList<String>(submission.getErrors());
+                errors.addAll(submission.getBatchErrors());
+                return new Rejection("Status: " + submission.getStatus(), errors);
+            }));
+            schedule(job, interval, adt::poll);
+        } else if ("radiology".equals(job)) {
+            File inbox = inbox(job);
+            RadiologyResultServicePort port = RadiologyResultServiceClient_Submit.getRadiologyResultServicePort(
+                    endpoint, username, password);
+            RadiologySubmissionEngine engine = new RadiologySubmissionEngine(port);
+            resources.add(engine);
+            RadiologyReportEncoder encoder = new RadiologyReportEncoder();
+            String header = RadiologyResultServiceClient_Submit.buildRadiologyResultMessage("HUBWS", "WARMUP",
+                    "THO");
+            warmUp(job, endpoint, i -> RadiologySubmissionEngine.key(encoder.encode(header,
+                    new StringReader(RadiologyResultServiceClient_Submit.REPORT))));
+            Inbox radiology = new Inbox(inbox, message -> engine.submit(message).thenApply(
+                    submission -> submission.isAccepted() ? null : new Rejection("Status: " + submission.getStatus()
+                            + "\nResponse Message: " + submission.getResponseMsg(),
+                            submission.getValidationErrors())));
+            schedule(job, interval, radiology::poll);
+        } else {
+            throw new IllegalArgumentException("Unknown job " + job + " in hub.daemon.jobs");
+        }
+        LOG.info("job configured", "job", job, "endpoint", endpoint, "intervalMillis", Long.valueOf(interval));
+    }
+
+    private void warmUp(String job, String endpoint, HubWarmUp.Path path) {
+        if (warmUp != null) {
+            warmUp.warmUp(job, endpoint, this::isStopping, path);
+        }
+    }
+
+    private static String property(String job, String name, String defaultValue) {
+        return System.getProperty("hub.daemon." + job + "." + name, System.getProperty("hub.daemon." + name,
+                defaultValue));
+    }
+
+    private static File inbox(String job) {
+        String inbox = property(job, "inbox", null);
+        if (inbox == null) {
+            throw new IllegalArgumentException("hub.daemon." + job + ".inbox is not set");
+        }
+        return new File(inbox);
+    }
+
+
+    /**
+     * Polls every intervalMillis, give or take the jitter, from the end of the last
+     * poll, until stop().
+     */
+    public void schedule(String name, long intervalMillis, Poll poll) {
+        Runnable job = new Runnable() {
+            public void run() {
+                if (stopping) {
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
+                    poll.poll();
+                    LOG.debug("polled", "job", name, "millis",
+                            Long.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                } catch (Exception e) {
+                    LOG.warn("poll failed", "job", name, "error", e);
+                }
+                if (!stopping) {
+                    try {
+                        scheduler.schedule(this, delay(intervalMillis), TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // stopped meanwhile
+                    }
+                }
+            }
+        };
+        long first = (long) (intervalMillis * jitter * ThreadLocalRandom.current().nextDouble());
+        try {
+            scheduler.schedule(job, first, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped while the job was set up
+        }
+    }
+
+    private long delay(long intervalMillis) {
+        double spread = jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(0, (long) (intervalMillis * (1 + spread)));
+    }
+
+    /**
+     * True once stop() is called; the jobs' loops check it between passes.
+     */
+    public boolean isStopping() {
+        return stopping;
+    }
+
+    /**
+     * Stops with the hub.daemon.shutdownSeconds.
+     */
+    public void stop() {
+        stop(Long.getLong("hub.daemon.shutdownSeconds", 60L).longValue(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts no new poll, waits up to the given time for the polls under way, and
+     * then for the messages they handed on, and closes the ports' engines.
+     *
+     * @return true if all the work under way was finished in time
+     */
+    public boolean stop(long timeout, TimeUnit unit) {
+        if (!stopped.compareAndSet(false, true)) {
+            awaitTermination();
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        stopping = true;
+        HubWarmUp.setReady(false);
+        LOG.info("stopping", "timeoutMillis", Long.valueOf(unit.toMillis(timeout)));
+        boolean finished = false;
+        scheduler.shutdown();
+        try {
+            finished = scheduler.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            List<AutoCloseable> closing = new ArrayList<AutoCloseable>(resources);
+            Collections.reverse(closing);
+            for (AutoCloseable resource : closing) {
+                try {
+                    if (resource instanceof RadiologySubmissionEngine) {
+                        finished &= ((RadiologySubmissionEngine) resource).close(
+                                Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    } else if (resource instanceof AdtRouter) {
+                        finished &= ((AdtRouter) resource).close(Math.max(0, deadline - System.nanoTime()),
+                                TimeUnit.NANOSECONDS);
+                    } else {
+                        resource.close();
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    LOG.warn("close failed", "resource", resource, "error", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            scheduler.shutdownNow();
+            LOG.info("stopped", "finished", Boolean.valueOf(finished));
+            HubLog.flush();
+            terminated.countDown();
+        }
+        return finished;
+    }
+
+    /**
+     * Waits until stop() has finished.
+     */
+    public void awaitTermination() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                terminated.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One poll of a job.
+     */
+    public interface Poll {
+        void poll() throws Exception;
+    }
+
+    /**
+     * A directory of HL7 messages to send, one per file.
+     */
+    private final class Inbox {
+        private final File directory;
+        private final File sent;
+        private final File rejected;
+        // the submission of a message, completing with null if it was accepted,
+        // with the errors if the Hub rejected it, and exceptionally if the call failed
+        private final Function<byte[], CompletableFuture<Rejection>> submit;
+        private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+        Inbox(File directory, Function<byte[], CompletableFuture<Rejection>> submit) throws IOException {
+            this.directory = directory;
+            this.sent = new File(directory, "sent");
+            this.rejected = new File(directory, "rejected");
+            this.submit = submit;
+            Files.createDirectories(sent.toPath());
+            Files.createDirectories(rejected.toPath());
+        }
+
+        void poll() throws IOException {
+            File[] files = directory.listFiles(file -> file.isFile() && !file.getName().startsWith(".")
+                    && !file.getName().endsWith(".tmp"));
+            if (files == null) {
+                throw new IOException("Cannot list " + directory);
+            }
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+            for (File file : files) {
+                if (stopping) {
+                    return;
+                }
+                if (!inFlight.add(file.getName())) {
+                    continue;
+                }
+                CompletableFuture<Rejection> outcome;
+                try {
+                    outcome = submit.apply(hl7(Files.readAllBytes(file.toPath())));
+                } catch (IOException | RuntimeException e) {
+                    inFlight.remove(file.getName());
+                    throw e;
+                }
+                outcome.whenComplete((rejection, failure) -> {
+                    try {
+                        if (failure != null) {
+                            // left in the inbox for the next poll
+                            LOG.warn("send failed", "file", file, "error", failure);
+                        } else if (rejection == null) {
+                            move(file, sent);
+                        } else {
+                            Files.write(new File(rejected, file.getName() + ".errors").toPath(),
+                                    rejection.getReport().getBytes(StandardCharsets.UTF_8));
+                            move(file, rejected);
+                            // the Hub's text may quote the patient, it is only in the .errors file
+                            LOG.warn("message rejected", "file", file, "errors",
+                                    Integer.valueOf(rejection.getErrors()));
+                        }
+                    } catch (IOException e) {
+                        LOG.warn("cannot move", "file", file, "error", e);
+                    } finally {
+                        inFlight.remove(file.getName());
+                    }
+                });
+            }
+        }
+
+        private void move(File file, File to) throws IOException {
+            Files.move(file.toPath(), new File(to, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * The message with its segments ended by carriage returns, not line feeds.
+         */
+        private byte[] hl7(byte[] file) {
+            String text = new String(file, StandardCharsets.ISO_8859_1);
+            if (text.indexOf('\n') < 0) {
+                return file;
+            }
+            return text.replace("\r\n", "\r").replace('\n', '\r').getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * The Hub's answer to a message it rejected.
+     */
+    private static final class Rejection {
+        private final String report;
+        private final int errors;
+
+        /**
+         * @param header the status, and anything else the Hub answered, one per line
+         * @param errors the Hub's errors, one per line after the header
+         */
+        Rejection(String header, List<String> errors) {
+            StringBuilder text = new StringBuilder(header);
+            for (String error : errors) {
+                text.append('\n').append(error);
+            }
+            this.report = text.toString();
+            this.errors = errors.size();
+        }
+
+        /**
+         * The text of the [name].errors file.
+         */
+        String getReport() {
+            return report;
+        }
+
+        int getErrors() {
+            return errors;
+        }
+    }
+}
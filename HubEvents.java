@@ -0,0 +1,162 @@
+/**
+ * JDK Flight Recorder events of the Hub clients.
+ *
+ */
+package hub.sample;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * class HubEvents holds the Flight Recorder events that show where the time of a
+ * poll cycle goes: the network (a Hub call and, nested in it, its HTTP exchange),
+ * the XML binding (the rest of the call), the parsing of the HL7 messages, the
+ * building of the ACKs and the writing of the documents:
+ *
+ *   hub.sample.Call            an operation of a Hub port, with request id and result count
+ *   hub.sample.HttpExchange    one request/response of PooledHttpSender, with the body sizes
+ *   hub.sample.Hl7Parse        a ParsedHL7Message being built
+ *   hub.sample.AckBuild        the ACKs of one page of results being built
+ *   hub.sample.DocumentWrite   result documents being written to disk
+ *
+ * The events are recorded with the JVM's Flight Recorder, e.g.
+ *
+ *   java -XX:StartFlightRecording=filename=hub.jfr,settings=profile ...
+ *   jfr print --events hub.sample.Call,hub.sample.HttpExchange hub.jfr
+ *
+ * and are enabled, without a threshold, whenever a recording is running.  Every
+ * use follows the same pattern:
+ *
+ *   HubEvents.Hl7Parse event = new HubEvents.Hl7Parse();
+ *   event.begin();
+ *   ... the work ...
+ *   if (event.shouldCommit()) {
+ *       event.length = ...;
+ *       event.commit();
+ *   }
+ *
+ * With no recording running shouldCommit() is false, the JIT removes the event
+ * object and the sizes and counts are never worked out, so the events can stay in
+ * production code and a recording be started at any time with jcmd JFR.start.
+ *
+ */
+public final class HubEvents {
+
+    private HubEvents() {
+    }
+
+    @Name("hub.sample.Call")
+    @Label("Hub Call")
+    @Category({ "Hub", "Calls" })
+    @Description("One request of an operation of a Hub port, including the XML binding")
+    @StackTrace(false)
+    public static final class Call extends Event {
+        @Label("Port")
+        String port;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Request ID")
+        String requestId;
+
+        @Label("Results")
+        @Description("Results returned or acknowledged, -1 if the operation has none")
+        int results;
+
+        @Label("More Results")
+        boolean more;
+
+        @Label("Fault")
+        String fault;
+    }
+
+    @Name("hub.sample.HttpExchange")
+    @Label("Hub HTTP Exchange")
+    @Category({ "Hub", "Calls" })
+    @StackTrace(false)
+    public static final class HttpExchange extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("URL")
+        String url;
+
+        @Label("Status")
+        int status;
+
+        @Label("Request Bytes")
+        @DataAmount
+        long requestBytes;
+
+        @Label("Response Bytes")
+        @DataAmount
+        long responseBytes;
+
+        @Label("Reused Connection")
+        boolean reusedConnection;
+    }
+
+    @Name("hub.sample.Hl7Parse")
+    @Label("HL7 Parse")
+    @Category({ "Hub", "Processing" })
+    @StackTrace(false)
+    public static final class Hl7Parse extends Event {
+        @Label("Message Control ID")
+        String messageControlId;
+
+        @Label("Message Length")
+        @Description("Characters in the message")
+        int length;
+    }
+
+    @Name("hub.sample.AckBuild")
+    @Label("ACK Build")
+    @Category({ "Hub", "Processing" })
+    @StackTrace(false)
+    public static final class AckBuild extends Event {
+        @Label("Client")
+        String client;
+
+        @Label("Result Service Type")
+        String resultServiceType;
+
+        @Label("Request ID")
+        String requestId;
+
+        @Label("Results")
+        int results;
+
+        @Label("Acknowledgements")
+        int acks;
+
+        @Label("HL7 Bytes")
+        @Description("Size of the HL7 messages acknowledged")
+        @DataAmount
+        long hl7Bytes;
+    }
+
+    @Name("hub.sample.DocumentWrite")
+    @Label("Document Write")
+    @Category({ "Hub", "Processing" })
+    @StackTrace(false)
+    public static final class DocumentWrite extends Event {
+        @Label("Directory")
+        String directory;
+
+        @Label("Documents")
+        int documents;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Failed")
+        boolean failed;
+    }
+}
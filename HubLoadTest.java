@@ -0,0 +1,728 @@
+/**
+ * End-to-end load test of the Hub clients against the Hub simulator.
+ *
+ */
+package hub.sample;
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.medplus.hub.observation.webservice.ObservationResultServicePort;
+import com.medplus.hub.orders.webservice.OrderServicePort;
+import com.medplus.orders.OrderSubmissionPortType;
+import com.medplus.results.RetrieveResultsPortType;
+import com.medplus.results.RetrieveResultsResponse;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import observation.webservice.results.serviceHub.medplus.com.ObservationResultResponse;
+
+/**
+ * class HubLoadTest runs the clients' own result and order code in a loop on
+ * many threads against HubSimulator, and reports throughput, latency and GC
+ * behaviour as JSON.  The scenarios are:
+ *
+ *   observation       ObservationResultsServiceClient.getResults(), i.e. getResults,
+ *                     acknowledgeResults and getMoreResults until isMore is false (Axis)
+ *   retrieve          ResultsRetrievalServiceClient.getResults(), the same with the
+ *                     RetrieveResultsService, writing the PDFs to disk (JAX-WS)
+ *   orders            OrderServicePort.submitOrder with OrderServiceClient's order (Axis)
+ *   orderSubmission   OrderSubmissionPortType.submitOrder with OrderSubmissionServiceClient's
+ *                     order (JAX-WS)
+ *
+ * Every worker thread is its own Hub account, so it has its own results batches
+ * and rate-limit bucket on the simulator.  The ports are the clients' ports with the
+ * standard interceptors (PortProxies.forHub()); a recording interceptor outside them
+ * times each operation as the client sees it, rate limiting and retries included.
+ * The JAX-WS scenarios run on the JAX-WS runtime jars that ship with the clients
+ * (see README.md).  A scenario that cannot run, e.g. one of them with those jars
+ * left off the class path, is reported with its error and the others go on.
+ *
+ * The number of results, their size and the Hub's latency are those of the
+ * simulator, see the hub.simulator.* properties of HubSimulator, e.g.
+ * hub.simulator.resultsPerBatch, hub.simulator.observations, hub.simulator.documents
+ * and hub.simulator.pdfBytes.  The simulator runs in this JVM unless
+ * hub.loadtest.endpoint is given; while it does, the garbage and GC pauses it
+ * causes are part of the figures.  The clients' console output is discarded while the
+ * test runs; the "retrieve" scenario writes its PDFs to the working directory
+ * as ResultsRetrievalServiceClient does.
+ *
+ * Configured with system properties:
+ *
+ *   hub.loadtest.scenarios          (default observation,retrieve,orders)
+ *   hub.loadtest.threads            worker threads per scenario (default 4)
+ *   hub.loadtest.seconds            measured time (default 30)
+ *   hub.loadtest.warmupSeconds      time run before measuring (default 10)
+ *   hub.loadtest.maxMessages        results per getResults call (default 5)
+ *   hub.loadtest.resultServiceType  of the "retrieve" scenario: HL7, Observation or Printable
+ *                                   (default Observation)
+ *   hub.loadtest.endpoint           base URL of a simulator already running, e.g.
+ *                                   http://loadhost:8089 (default: start one on a free port)
+ *   hub.loadtest.output             file the JSON report is written to (default standard output)
+ *
+ * The client-side rate limits are those the clients run with, off unless
+ * hub.ratelimit.endpointRate or hub.ratelimit.accountRate is set (see
+ * RateLimitInterceptor); the report's config lists them when they are.
+ *
+ * The report gives, for the measured time only: per scenario the messages
+ * (results retrieved, orders submitted) and messages per second, and per
+ * operation the calls, errors and the 50th, 99th and 99.9th percentile and
+ * maximum latency in milliseconds; and the GC pauses and the allocation rate,
+ * which is worked out from the heap occupancy before and after each collection.
+ *
+ * Usage: HubLoadTest
+ *
+ */
+public class HubLoadTest {
+
+    private static final String SCENARIOS = System.getProperty("hub.loadtest.scenarios", "observation,retrieve,orders");
+    private static final int THREADS = Integer.getInteger("hub.loadtest.threads", 4).intValue();
+    private static final int SECONDS = Integer.getInteger("hub.loadtest.seconds", 30).intValue();
+    private static final int WARMUP_SECONDS = Integer.getInteger("hub.loadtest.warmupSeconds", 10).intValue();
+    private static final String MAX_MESSAGES = System.getProperty("hub.loadtest.maxMessages", "5");
+    private static final String RESULT_SERVICE_TYPE = System.getProperty("hub.loadtest.resultServiceType",
+            "Observation");
+    private static final String ENDPOINT = System.getProperty("hub.loadtest.endpoint");
+    private static final String OUTPUT = System.getProperty("hub.loadtest.output");
+
+    private static final String PASSWORD = "loadtest";
+    private static final long ERROR_BACKOFF_MILLIS = 100;
+
+    private final String baseUrl;
+    private final List<Scenario> scenarios = new ArrayList<Scenario>();
+    private final GcMonitor gc = new GcMonitor();
+    private volatile boolean running = true;
+
+    public HubLoadTest(String baseUrl) {
+        this.baseUrl = baseUrl;
+        for (String name : SCENARIOS.split(",")) {
+            if (name.trim().length() > 0) {
+                scenarios.add(scenario(name.trim()));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        HubSimulator simulator = null;
+        String baseUrl = ENDPOINT;
+        if (baseUrl == null) {
+            simulator = new HubSimulator(0);
+            simulator.start();
+            baseUrl = simulator.getBaseUrl();
+        }
+
+        PrintStream console = System.out;
+        String report;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        try {
+            report = new HubLoadTest(baseUrl).run();
+        } finally {
+            HubLog.flush();
+            System.setOut(console);
+            if (simulator != null) {
+                simulator.stop();
+            }
+        }
+
+        if (OUTPUT != null) {
+            OutputStream out = new FileOutputStream(OUTPUT);
+            try {
+                out.write(report.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                out.close();
+            }
+            System.err.println("Load test report written to " + OUTPUT);
+        } else {
+            console.print(report);
+            console.flush();
+        }
+    }
+
+    /**
+     * Runs the warm-up and the measured time and returns the report.
+     */
+    public String run() throws InterruptedException {
+        List<Thread> workers = new ArrayList<Thread>();
+        for (Scenario scenario : scenarios) {
+            for (int i = 0; i < THREADS; i++) {
+                Thread worker = new Thread(new Worker(scenario, scenario.name + "-" + (i + 1)), "loadtest-"
+                        + scenario.name + "-" + (i + 1));
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+        }
+
+        TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+        for (Scenario scenario : scenarios) {
+            scenario.reset();
+        }
+        gc.start();
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(SECONDS);
+        double duration = (System.nanoTime() - start) / 1e9;
+        gc.stop();
+        List<Snapshot> snapshots = new ArrayList<Snapshot>();
+        for (Scenario scenario : scenarios) {
+            snapshots.add(scenario.snapshot());
+        }
+
+        running = false;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        for (Thread worker : workers) {
+            // the workers are daemons, one stuck in a call does not hold up the report
+            worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        return report(duration, snapshots);
+    }
+
+    private Scenario scenario(String name) {
+        if ("observation".equals(name)) {
+            return new Scenario(name) {
+                Runnable worker(String account) throws Exception {
+                    final ObservationResultServicePort port = record(ObservationResultServicePort.class,
+                            ObservationResultsServiceClient.getObservationResultsServicePort(
+                                    endpoint(HubSimulator.Service.OBSERVATION_RESULT), account, PASSWORD));
+                    return new Task() {
+                        void call() throws Exception {
+                            ObservationResultsServiceClient.getResults(port, null, MAX_MESSAGES, null, null);
+                        }
+                    };
+                }
+            };
+        } else if ("retrieve".equals(name)) {
+            return new Scenario(name) {
+                Runnable worker(String account) throws Exception {
+                    final ResultsRetrievalServiceClient client = new ResultsRetrievalServiceClient();
+                    final RetrieveResultsPortType port = record(RetrieveResultsPortType.class,
+                            HubPortFactory.getRetrieveResultsPort(endpoint(HubSimulator.Service.RETRIEVE_RESULTS),
+                                    account, PASSWORD));
+                    return new Task() {
+                        void call() throws Exception {
+                            client.getResults(port, MAX_MESSAGES, null, null, RESULT_SERVICE_TYPE);
+                        }
+                    };
+                }
+            };
+        } else if ("orders".equals(name)) {
+            return new Scenario(name) {
+                Runnable worker(String account) throws Exception {
+                    final OrderServicePort port = record(OrderServicePort.class, OrderServiceClient.getOrderServicePort(
+                            endpoint(HubSimulator.Service.ORDER), account, PASSWORD));
+                    return new Task() {
+                        void call() throws Exception {
+                            port.submitOrder(OrderServiceClient.getWebServiceOrder());
+                        }
+                    };
+                }
+            };
+        } else if ("orderSubmission".equals(name)) {
+            return new Scenario(name) {
+                Runnable worker(String account) throws Exception {
+                    final OrderSubmissionServiceClient client = new OrderSubmissionServiceClient();
+                    final OrderSubmissionPortType port = record(OrderSubmissionPortType.class,
+                            HubPortFactory.getOrderSubmissionPort(endpoint(HubSimulator.Service.ORDER_SUBMISSION),
+                                    account, PASSWORD));
+                    return new Task() {
+                        void call() throws Exception {
+                            port.submitOrder(client.getWebServiceOrder());
+                        }
+                    };
+                }
+            };
+        }
+        throw new IllegalArgumentException("unknown scenario " + name
+                + ", expected observation, retrieve, orders or orderSubmission");
+    }
+
+    private String endpoint(HubSimulator.Service service) {
+        return baseUrl + service.getPath();
+    }
+
+    /**
+     * The number of results or orders a call returned or sent.
+     */
+    static int messages(String operation, Object result) {
+        if (result instanceof ObservationResultResponse) {
+            Object[] results = ((ObservationResultResponse) result).getObservationResults();
+            return results == null ? 0 : results.length;
+        } else if (result instanceof RetrieveResultsResponse) {
+            List<?> results = ((RetrieveResultsResponse) result).getResults();
+            return results == null ? 0 : results.size();
+        } else if ("submitOrder".equals(operation)) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private String report(double duration, List<Snapshot> snapshots) {
+        Json json = new Json();
+        json.open(null, '{');
+        json.open("config", '{');
+        json.value("scenarios", SCENARIOS).value("threadsPerScenario", THREADS).value("seconds", SECONDS)
+                .value("warmupSeconds", WARMUP_SECONDS).value("maxMessages", MAX_MESSAGES)
+                .value("resultServiceType", RESULT_SERVICE_TYPE).value("endpoint", baseUrl);
+        for (String property : new String[] { "hub.simulator.resultsPerBatch", "hub.simulator.observations",
+                "hub.simulator.documents", "hub.simulator.pdfBytes", "hub.simulator.latency",
+                "hub.simulator.faults", "hub.ratelimit.endpointRate", "hub.ratelimit.accountRate" }) {
+            if (System.getProperty(property) != null) {
+                json.value(property, System.getProperty(property));
+            }
+        }
+        json.value("javaVersion", System.getProperty("java.version"))
+                .value("availableProcessors", Runtime.getRuntime().availableProcessors())
+                .value("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        json.close('}');
+        json.value("durationSeconds", duration);
+
+        json.open("scenarios", '{');
+        for (Snapshot snapshot : snapshots) {
+            json.open(snapshot.name, '{');
+            json.value("messages", snapshot.messages).value("loops", snapshot.loops)
+                    .value("messagesPerSecond", snapshot.messages / duration).value("errors", snapshot.errors);
+            if (snapshot.failure != null) {
+                json.value("failure", snapshot.failure);
+            }
+            json.open("operations", '{');
+            for (OperationSnapshot operation : snapshot.operations) {
+                json.open(operation.name, '{');
+                json.value("calls", operation.calls).value("errors", operation.errors)
+                        .value("callsPerSecond", operation.calls / duration)
+                        .value("p50Millis", operation.percentile(0.5)).value("p99Millis", operation.percentile(0.99))
+                        .value("p999Millis", operation.percentile(0.999)).value("maxMillis", operation.max());
+                json.close('}');
+            }
+            json.close('}');
+            json.close('}');
+        }
+        json.close('}');
+
+        json.open("gc", '{');
+        json.value("collections", gc.collections).value("pauses", gc.pauses)
+                .value("pauseTotalMillis", gc.pauseMillis).value("pauseMaxMillis", gc.maxPauseMillis)
+                .value("pausePercent", gc.pauseMillis / (duration * 10))
+                .value("allocatedBytes", gc.allocatedBytes)
+                .value("allocationRateMBPerSecond", gc.allocatedBytes / duration / (1024 * 1024));
+        json.close('}');
+        json.close('}');
+        return json.toString();
+    }
+
+    /**
+     * A client loop the workers of a scenario repeat, and its figures.
+     */
+    private abstract class Scenario {
+        final String name;
+        final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong loops = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        volatile String failure;
+
+        Scenario(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Creates the ports of one worker and returns the loop it repeats.
+         */
+        abstract Runnable worker(String account) throws Exception;
+
+        <T> T record(Class<T> portInterface, T port) {
+            return PortProxies.wrap(portInterface, port, new PortInterceptor() {
+                public Object intercept(PortInvocation invocation) throws Throwable {
+                    Operation operation = operation(invocation.getOperation());
+                    long start = System.nanoTime();
+                    try {
+                        Object result = invocation.proceed();
+                        operation.record(System.nanoTime() - start, false);
+                        messages.addAndGet(messages(invocation.getOperation(), result));
+                        return result;
+                    } catch (Throwable t) {
+                        operation.record(System.nanoTime() - start, true);
+                        throw t;
+                    }
+                }
+            });
+        }
+
+        Operation operation(String name) {
+            Operation operation = operations.get(name);
+            if (operation == null) {
+                Operation created = new Operation();
+                operation = operations.putIfAbsent(name, created);
+                if (operation == null) {
+                    operation = created;
+                }
+            }
+            return operation;
+        }
+
+        void failed(Throwable t) {
+            errors.incrementAndGet();
+            if (failure == null) {
+                failure = t.toString();
+            }
+        }
+
+        void reset() {
+            messages.set(0);
+            loops.set(0);
+            errors.set(0);
+            for (Operation operation : operations.values()) {
+                operation.reset();
+            }
+        }
+
+        Snapshot snapshot() {
+            List<String> names = new ArrayList<String>(operations.keySet());
+            Collections.sort(names);
+            List<OperationSnapshot> snapshots = new ArrayList<OperationSnapshot>();
+            for (String operation : names) {
+                snapshots.add(operations.get(operation).snapshot(operation));
+            }
+            return new Snapshot(name, messages.get(), loops.get(), errors.get(), failure, snapshots);
+        }
+    }
+
+    /**
+     * One pass of a client loop; failures are counted by the Worker.
+     */
+    private abstract static class Task implements Runnable {
+        abstract void call() throws Exception;
+
+        public void run() {
+            try {
+                call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final Scenario scenario;
+        private final String account;
+
+        Worker(Scenario scenario, String account) {
+            this.scenario = scenario;
+            this.account = account;
+        }
+
+        public void run() {
+            Runnable loop;
+            try {
+                loop = scenario.worker(account);
+            } catch (Throwable t) {
+                scenario.failed(t);
+                return;
+            }
+            while (running) {
+                try {
+                    loop.run();
+                    scenario.loops.incrementAndGet();
+                } catch (Throwable t) {
+                    scenario.failed(t instanceof IllegalStateException && t.getCause() != null ? t.getCause() : t);
+                    if (t instanceof Error && !(t instanceof AssertionError)) {
+                        // e.g. NoClassDefFoundError, which will not go away
+                        return;
+                    }
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(ERROR_BACKOFF_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The latencies of one operation.  The samples are kept in full, which is a
+     * few megabytes for a run of several minutes.
+     */
+    private static final class Operation {
+        private long[] samples = new long[4096];
+        private int count;
+        private long errors;
+
+        synchronized void record(long nanos, boolean error) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = nanos;
+            if (error) {
+                errors++;
+            }
+        }
+
+        synchronized void reset() {
+            count = 0;
+            errors = 0;
+        }
+
+        synchronized OperationSnapshot snapshot(String name) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return new OperationSnapshot(name, sorted, errors);
+        }
+    }
+
+    private static final class OperationSnapshot {
+        final String name;
+        final long[] sorted;
+        final long calls;
+        final long errors;
+
+        OperationSnapshot(String name, long[] sorted, long errors) {
+            this.name = name;
+            this.sorted = sorted;
+            this.calls = sorted.length;
+            this.errors = errors;
+        }
+
+        double percentile(double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+        }
+
+        double max() {
+            return sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6;
+        }
+    }
+
+    private static final class Snapshot {
+        final String name;
+        final long messages;
+        final long loops;
+        final long errors;
+        final String failure;
+        final List<OperationSnapshot> operations;
+
+        Snapshot(String name, long messages, long loops, long errors, String failure,
+                List<OperationSnapshot> operations) {
+            this.name = name;
+            this.messages = messages;
+            this.loops = loops;
+            this.errors = errors;
+            this.failure = failure;
+            this.operations = operations;
+        }
+    }
+
+    /**
+     * GC pauses and allocation, from the collectors' notifications.  A collector
+     * of a concurrent GC (ZGC, Shenandoah "Cycles", G1 "Concurrent GC") reports the
+     * length of its concurrent work, which is not a pause.  The allocation between
+     * two collections is the heap used before the second less the heap used after
+     * the first.
+     */
+    private static final class GcMonitor implements NotificationListener {
+        long collections;
+        long pauses;
+        double pauseMillis;
+        double maxPauseMillis;
+        long allocatedBytes;
+        private long usedAfterLast;
+        private boolean started;
+
+        synchronized void start() {
+            started = true;
+            usedAfterLast = heapUsed();
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (collector instanceof NotificationEmitter) {
+                    ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+                }
+            }
+        }
+
+        synchronized void stop() {
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (collector instanceof NotificationEmitter) {
+                    try {
+                        ((NotificationEmitter) collector).removeNotificationListener(this);
+                    } catch (Exception e) {
+                        // not registered
+                    }
+                }
+            }
+            allocatedBytes += Math.max(0, heapUsed() - usedAfterLast);
+            started = false;
+        }
+
+        public synchronized void handleNotification(Notification notification, Object handback) {
+            if (!started
+                    || !GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                    .from((CompositeData) notification.getUserData());
+            collections++;
+            String name = info.getGcName();
+            if (!name.contains("Cycles") && !name.contains("Concurrent")) {
+                double millis = info.getGcInfo().getDuration();
+                pauses++;
+                pauseMillis += millis;
+                maxPauseMillis = Math.max(maxPauseMillis, millis);
+            }
+            long before = sum(info.getGcInfo().getMemoryUsageBeforeGc());
+            long after = sum(info.getGcInfo().getMemoryUsageAfterGc());
+            allocatedBytes += Math.max(0, before - usedAfterLast);
+            usedAfterLast = after;
+        }
+
+        private static long heapUsed() {
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    used += pool.getUsage().getUsed();
+                }
+            }
+            return used;
+        }
+
+        private static long sum(Map<String, MemoryUsage> usage) {
+            long used = 0;
+            for (Map.Entry<String, MemoryUsage> pool : usage.entrySet()) {
+                if (isHeap(pool.getKey())) {
+                    used += pool.getValue().getUsed();
+                }
+            }
+            return used;
+        }
+
+        private static boolean isHeap(String pool) {
+            for (MemoryPoolMXBean bean : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (bean.getName().equals(pool)) {
+                    return bean.getType() == MemoryType.HEAP;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Just enough of a JSON writer for the report.
+     */
+    private static final class Json {
+        private final StringBuilder out = new StringBuilder();
+        private int depth;
+        private boolean first = true;
+
+        Json open(String name, char bracket) {
+            member(name);
+            out.append(bracket);
+            depth++;
+            first = true;
+            return this;
+        }
+
+        Json close(char bracket) {
+            depth--;
+            if (!first) {
+                out.append('\n');
+                indent();
+            }
+            out.append(bracket);
+            first = false;
+            if (depth == 0) {
+                out.append('\n');
+            }
+            return this;
+        }
+
+        Json value(String name, String value) {
+            member(name);
+            quote(value);
+            return this;
+        }
+
+        Json value(String name, long value) {
+            member(name);
+            out.append(value);
+            return this;
+        }
+
+        Json value(String name, double value) {
+            member(name);
+            out.append(Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.format(Locale.ROOT,
+                    "%.3f", value));
+            return this;
+        }
+
+        private void member(String name) {
+            if (depth > 0) {
+                if (!first) {
+                    out.append(',');
+                }
+                out.append('\n');
+                indent();
+            }
+            first = false;
+            if (name != null) {
+                quote(name);
+                out.append(": ");
+            }
+        }
+
+        private void indent() {
+            for (int i = 0; i < depth; i++) {
+                out.append("  ");
+            }
+        }
+
+        private void quote(String value) {
+            out.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/**
+ * Asynchronous structured logging for the Hub clients' hot loops.
+ *
+ */
+package hub.sample;
+
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * class HubLog writes the clients' log lines from a background thread, so that
+ * retrieving and acknowledging results never waits for the console.  A line is an
+ * event name and up to three key=value fields (logfmt):
+ *
+ *   2026-10-19T05:27:03.123Z INFO  HL7ResultsServiceClient acknowledging requestId=R-17 results=5
+ *
+ * Logging a line fills a slot of a ring buffer that was allocated up front and
+ * returns; the writer thread does the formatting (including turning an HL7 byte[]
+ * into text) and the writing.  If the writer falls behind and the ring is full,
+ * lines are dropped rather than the caller blocked, and the writer reports how
+ * many it dropped.
+ *
+ * Message bodies (HL7 messages and the like) are logged with payload() and only on
+ * demand: a sampled fraction of them, none by default, truncated to a maximum
+ * length.  setPayloadSample() and setPayloadMaxLength() change both at run time,
+ * e.g. to look at the messages of one misbehaving batch.  Bodies not sampled cost
+ * one random number.
+ *
+ * Configured with system properties:
+ *
+ *   hub.log.level              DEBUG, INFO, WARN, ERROR or OFF (default INFO)
+ *   hub.log.bufferSize         lines waiting to be written, rounded up to a power of two (default 8192)
+ *   hub.log.payloadSample      fraction of the message bodies logged, 0 to 1 (default 0)
+ *   hub.log.payloadMaxLength   characters of a body logged, 0 for all (default 1024)
+ *
+ * The lines go to System.out as it is when they are written; flush() waits for
+ * the lines logged so far, and a shutdown hook writes what is left at exit.
+ *
+ */
+public final class HubLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("hub.log.level", "INFO").trim()
+            .toUpperCase());
+    private static final int BUFFER_SIZE = Integer.highestOneBit(Math.max(2,
+            Integer.getInteger("hub.log.bufferSize", 8192).intValue() - 1)) << 1;
+    private static final int MAX_FIELDS = 3;
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    private static final Entry[] RING = new Entry[BUFFER_SIZE];
+    private static final AtomicLong CLAIMED = new AtomicLong();
+    private static final LongAdder DROPPED = new LongAdder();
+    private static volatile long written;
+    private static volatile boolean writerWaiting;
+    private static final Thread WRITER;
+
+    private static volatile double payloadSample = Double.parseDouble(System.getProperty("hub.log.payloadSample", "0"));
+    private static volatile int payloadMaxLength = Integer.getInteger("hub.log.payloadMaxLength", 1024).intValue();
+
+    static {
+        for (int i = 0; i < RING.length; i++) {
+            RING[i] = new Entry();
+        }
+        WRITER = new Thread(HubLog::write, "hub-log");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(TimeUnit.SECONDS.toMillis(2)), "hub-log-flush"));
+    }
+
+    private final String name;
+
+    private HubLog(String name) {
+        this.name = name;
+    }
+
+    /**
+     * A log named after a class, e.g. "HL7ResultsServiceClient".  Keep it in a
+     * static final field.
+     */
+    public static HubLog forClass(Class<?> type) {
+        return new HubLog(type.getSimpleName());
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    public void debug(String event, String key, Object value) {
+        log(Level.DEBUG, event, null, key, value, null, null, null, null);
+    }
+
+    public void debug(String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.DEBUG, event, null, key1, value1, key2, value2, null, null);
+    }
+
+    public void info(String event, String key, Object value) {
+        log(Level.INFO, event, null, key, value, null, null, null, null);
+    }
+
+    public void info(String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.INFO, event, null, key1, value1, key2, value2, null, null);
+    }
+
+    public void info(String event, String key1, Object value1, String key2, Object value2, String key3,
+            Object value3) {
+        log(Level.INFO, event, null, key1, value1, key2, value2, key3, value3);
+    }
+
+    public void warn(String event, String key, Object value) {
+        log(Level.WARN, event, null, key, value, null, null, null, null);
+    }
+
+    public void warn(String event, String key1, Object value1, String key2, Object value2) {
+        log(Level.WARN, event, null, key1, value1, key2, value2, null, null);
+    }
+
+    /**
+     * Logs a message body, at INFO, if it is sampled (see hub.log.payloadSample).
+     * The body, a byte[] or a CharSequence, is only turned into text by the writer,
+     * so it must not be changed afterwards.
+     */
+    public void payload(String event, String key, Object value, Object body) {
+        if (sampled()) {
+            log(Level.INFO, event, body, key, value, null, null, null, null);
+        }
+    }
+
+    public void payload(String event, String key1, Object value1, String key2, Object value2, Object body) {
+        if (sampled()) {
+            log(Level.INFO, event, body, key1, value1, key2, value2, null, null);
+        }
+    }
+
+    private static boolean sampled() {
+        double sample = payloadSample;
+        return sample >= 1 || (sample > 0 && ThreadLocalRandom.current().nextDouble() < sample);
+    }
+
+    /**
+     * The fraction of the message bodies logged from now on, 0 for none and 1 for all.
+     */
+    public static void setPayloadSample(double fraction) {
+        payloadSample = fraction;
+    }
+
+    /**
+     * The characters of a body logged from now on, 0 for all.
+     */
+    public static void setPayloadMaxLength(int length) {
+        payloadMaxLength = length;
+    }
+
+    /**
+     * Lines dropped so far because the ring was full.
+     */
+    public static long getDropped() {
+        return DROPPED.sum();
+    }
+
+    /**
+     * Waits until the lines logged so far are written.
+     */
+    public static void flush() {
+        flush(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    private static void flush(long timeoutMillis) {
+        long target = CLAIMED.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (written < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private void log(Level level, String event, Object body, String key1, Object value1, String key2, Object value2,
+            String key3, Object value3) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = CLAIMED.get();
+            if (sequence - written >= BUFFER_SIZE) {
+                DROPPED.increment();
+                return;
+            }
+        } while (!CLAIMED.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = RING[(int) sequence & (BUFFER_SIZE - 1)];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.log = name;
+        entry.event = event;
+        entry.body = body;
+        entry.keys[0] = key1;
+        entry.values[0] = value1;
+        entry.keys[1] = key2;
+        entry.values[1] = value2;
+        entry.keys[2] = key3;
+        entry.values[2] = value3;
+        entry.published = sequence;
+        if (writerWaiting) {
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    private static void write() {
+        StringBuilder line = new StringBuilder(1024);
+        long reportedDropped = 0;
+        while (true) {
+            long sequence = written;
+            Entry entry = RING[(int) sequence & (BUFFER_SIZE - 1)];
+            if (entry.published != sequence) {
+                System.out.flush();
+                long dropped = DROPPED.sum();
+                if (dropped != reportedDropped) {
+                    System.out.println(TIMESTAMP.format(Instant.now()) + " WARN  HubLog dropped lines="
+                            + (dropped - reportedDropped));
+                    reportedDropped = dropped;
+                }
+                writerWaiting = true;
+                if (entry.published != sequence) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                writerWaiting = false;
+                continue;
+            }
+            try {
+                line.setLength(0);
+                format(entry, line);
+                PrintStream out = System.out;
+                out.append(line);
+            } catch (RuntimeException e) {
+                // a value whose toString() failed; the line is lost, the writer goes on
+            }
+            entry.clear();
+            written = sequence + 1;
+        }
+    }
+
+    private static void format(Entry entry, StringBuilder line) {
+        TIMESTAMP.formatTo(Instant.ofEpochMilli(entry.time), line);
+        line.append(' ').append(entry.level.name());
+        for (int i = entry.level.name().length(); i < 5; i++) {
+            line.append(' ');
+        }
+        line.append(' ').append(entry.log).append(' ').append(entry.event);
+        for (int i = 0; i < MAX_FIELDS; i++) {
+            if (entry.keys[i] != null) {
+                line.append(' ').append(entry.keys[i]).append('=');
+                value(entry.values[i], line);
+            }
+        }
+        line.append(System.lineSeparator());
+        if (entry.body != null) {
+            body(entry.body, line);
+        }
+    }
+
+    private static void value(Object value, StringBuilder line) {
+        String text = value instanceof byte[] ? new String((byte[]) value, Charset.defaultCharset())
+                : String.valueOf(value);
+        boolean quote = text.isEmpty();
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=';
+        }
+        if (!quote) {
+            line.append(text);
+            return;
+        }
+        // one entry, one line: line breaks and other control characters are escaped
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c == '\r') {
+                line.append("\\r");
+            } else if (c == '\t') {
+                line.append("\\t");
+            } else if (c < ' ') {
+                line.append(String.format("\\u%04x", Integer.valueOf(c)));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * The body on lines of its own, HL7 segments one per line.
+     */
+    private static void body(Object body, StringBuilder line) {
+        CharSequence text = body instanceof byte[] ? new String((byte[]) body, Charset.defaultCharset())
+                : body instanceof CharSequence ? (CharSequence) body : String.valueOf(body);
+        int maxLength = payloadMaxLength;
+        int length = maxLength > 0 ? Math.min(maxLength, text.length()) : text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            line.append(c == '\r' ? '\n' : c);
+        }
+        if (length < text.length()) {
+            line.append("... (").append(text.length() - length).append(" more characters)");
+        }
+        line.append(System.lineSeparator());
+    }
+
+    /**
+     * A slot of the ring.  published is the sequence number of the line it holds,
+     * written last by the logging thread and read first by the writer.
+     */
+    private static final class Entry {
+        volatile long published = -1;
+        long time;
+        Level level;
+        String log;
+        String event;
+        Object body;
+        final String[] keys = new String[MAX_FIELDS];
+        final Object[] values = new Object[MAX_FIELDS];
+
+        void clear() {
+            body = null;
+            for (int i = 0; i < MAX_FIELDS; i++) {
+                keys[i] = null;
+                values[i] = null;
+            }
+        }
+    }
+}
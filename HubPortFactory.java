@@ -0,0 +1,175 @@
+/**
+ * A shared factory for the JAX-WS Hub ports.
+ *
+ */
+package hub.sample;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.handler.MessageContext;
+
+import com.medplus.orders.OrderSubmissionPortType;
+import com.medplus.orders.OrderSubmissionService;
+import com.medplus.results.RetrieveResultsPortType;
+import com.medplus.results.RetrieveResultsService;
+
+/**
+ * class HubPortFactory creates the JAX-WS ports used by ResultsRetrievalServiceClient,
+ * OrderSubmissionServiceClient and OrderSubmissionAbnReqClient.
+ *
+ * Each Service is built once per endpoint from the WSDL returned by WsdlCache, and
+ * each port is created once per endpoint and Hub account and then reused.  The
+ * account's username and password are bound to the port's request context instead
+ * of a JVM-wide Authenticator, so one process can call the Hub for several accounts
+ * at the same time.  A port's request context is only written while the port is
+ * created, so a port handed out by this factory can be shared by several threads.
+ * The ports are wrapped with the standard interceptors, see PortProxies.forHub().
+ *
+ */
+public final class HubPortFactory {
+
+    private static final QName RETRIEVE_RESULTS_SERVICE = new QName("http://medplus.com/results",
+            "RetrieveResultsService");
+    private static final QName ORDER_SUBMISSION_SERVICE = new QName("http://medplus.com/orders",
+            "OrderSubmissionService");
+
+    private static final byte[] CREDENTIAL_SALT = salt();
+
+    private static final ConcurrentMap<String, RetrieveResultsService> RETRIEVE_RESULTS_SERVICES = new ConcurrentHashMap<String, RetrieveResultsService>();
+    private static final ConcurrentMap<String, OrderSubmissionService> ORDER_SUBMISSION_SERVICES = new ConcurrentHashMap<String, OrderSubmissionService>();
+    private static final ConcurrentMap<String, RetrieveResultsPortType> RETRIEVE_RESULTS_PORTS = new ConcurrentHashMap<String, RetrieveResultsPortType>();
+    private static final ConcurrentMap<String, OrderSubmissionPortType> ORDER_SUBMISSION_PORTS = new ConcurrentHashMap<String, OrderSubmissionPortType>();
+
+    private HubPortFactory() {
+    }
+
+    /**
+     * Returns the shared RetrieveResultsPortType for the given endpoint and Hub account.
+     */
+    public static RetrieveResultsPortType getRetrieveResultsPort(String endpoint, String username, String password)
+            throws IOException {
+        String key = portKey(endpoint, username, password);
+        RetrieveResultsPortType port = RETRIEVE_RESULTS_PORTS.get(key);
+        if (port == null) {
+            synchronized (RETRIEVE_RESULTS_PORTS) {
+                port = RETRIEVE_RESULTS_PORTS.get(key);
+                if (port == null) {
+                    RetrieveResultsPortType bound = getRetrieveResultsService(endpoint, username, password).getRetrieveResultsPortTypePort();
+                    bind(bound, endpoint, username, password);
+                    port = PortProxies.forHub(RetrieveResultsPortType.class, bound, endpoint, username);
+                    RETRIEVE_RESULTS_PORTS.put(key, port);
+                }
+            }
+        }
+        return port;
+    }
+
+    /**
+     * Returns the shared OrderSubmissionPortType for the given endpoint and Hub account.
+     */
+    public static OrderSubmissionPortType getOrderSubmissionPort(String endpoint, String username, String password)
+            throws IOException {
+        String key = portKey(endpoint, username, password);
+        OrderSubmissionPortType port = ORDER_SUBMISSION_PORTS.get(key);
+        if (port == null) {
+            synchronized (ORDER_SUBMISSION_PORTS) {
+                port = ORDER_SUBMISSION_PORTS.get(key);
+                if (port == null) {
+                    OrderSubmissionPortType bound = getOrderSubmissionService(endpoint, username, password).getOrderSubmissionPortTypePort();
+                    bind(bound, endpoint, username, password);
+                    port = PortProxies.forHub(OrderSubmissionPortType.class, bound, endpoint, username);
+                    ORDER_SUBMISSION_PORTS.put(key, port);
+                }
+            }
+        }
+        return port;
+    }
+
+    /**
+     * The credentials are only used if the WSDL has to be downloaded; the Service
+     * itself is shared by every account.
+     */
+    private static RetrieveResultsService getRetrieveResultsService(String endpoint, String username,
+            String password) throws IOException {
+        RetrieveResultsService service = RETRIEVE_RESULTS_SERVICES.get(endpoint);
+        if (service == null) {
+            service = new RetrieveResultsService(WsdlCache.getWsdlLocation(endpoint, username, password),
+                    RETRIEVE_RESULTS_SERVICE);
+            RETRIEVE_RESULTS_SERVICES.put(endpoint, service);
+        }
+        return service;
+    }
+
+    private static OrderSubmissionService getOrderSubmissionService(String endpoint, String username,
+            String password) throws IOException {
+        OrderSubmissionService service = ORDER_SUBMISSION_SERVICES.get(endpoint);
+        if (service == null) {
+            service = new OrderSubmissionService(WsdlCache.getWsdlLocation(endpoint, username, password),
+                    ORDER_SUBMISSION_SERVICE);
+            ORDER_SUBMISSION_SERVICES.put(endpoint, service);
+        }
+        return service;
+    }
+
+    /**
+     * A changed password gets a new port, but the key holds only a salted SHA-256
+     * of it, so the password is not kept in a long-lived map key; the salt is
+     * random per JVM.
+     */
+    private static String portKey(String endpoint, String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(CREDENTIAL_SALT);
+            digest.update(String.valueOf(password).getBytes(StandardCharsets.UTF_8));
+            return endpoint + '\u0000' + username + '\u0000'
+                    + Base64.getEncoder().withoutPadding().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] salt() {
+        byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * The cached WSDL may name a different address (e.g. production vs. cert), so the
+     * endpoint the caller asked for is always set explicitly.
+     */
+    private static void bind(Object port, String endpoint, String username, String password) {
+        Map<String, Object> requestContext = ((BindingProvider) port).getRequestContext();
+        requestContext.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, endpoint);
+        requestContext.put(BindingProvider.USERNAME_PROPERTY, username);
+        requestContext.put(BindingProvider.PASSWORD_PROPERTY, password);
+
+        // The JAX-WS runtime compresses the whole request when Content-Encoding: gzip
+        // is among the request headers and inflates gzip responses itself, so
+        // hub.gzip.minBytes does not apply to these ports and there are no figures.
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        if (HubCompression.isRequestCompressionEnabled()) {
+            headers.put("Content-Encoding", Collections.singletonList("gzip"));
+        }
+        if (HubCompression.isResponseCompressionAccepted()) {
+            headers.put("Accept-Encoding", Collections.singletonList("gzip"));
+        }
+        if (!headers.isEmpty()) {
+            requestContext.put(MessageContext.HTTP_REQUEST_HEADERS, headers);
+        }
+    }
+}
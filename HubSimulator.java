@@ -0,0 +1,1384 @@
+/**
+ * A local stand-in for the Hub, for load testing the clients offline.
+ *
+ */
+package hub.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * class HubSimulator answers the operations of all Hub services over local HTTP,
+ * so that every client can be run and benchmarked at scale without
+ * cert.hub.care360.com or certhubservices.quanum.com.  The services are at the
+ * paths the Hub uses:
+ *
+ *   /orders/service                 OrderService              (Axis, RPC/encoded)
+ *   /orders/submission/service      OrderSubmissionService    (JAX-WS, document/literal)
+ *   /resultsHub/observations/hl7    ResultsService            (Axis)
+ *   /observation/result/service     ObservationResultService  (Axis)
+ *   /results/retrieval/printable    PrintableResultsService   (Axis)
+ *   /results/retrieval/service      RetrieveResultsService    (JAX-WS)
+ *   /demographic/service            DemographicService        (Axis)
+ *   /radiology/result/service       RadiologyResultService    (Axis)
+ *
+ * The JAX-WS services also answer "?wsdl", with a WSDL that matches the classes
+ * of medplus-hub-13.1-jaxws-clients.jar.
+ *
+ * Each Hub account (the user name of the Basic authentication) has a batch of
+ * hub.simulator.resultsPerBatch results waiting on every results service.
+ * getResults returns up to maxMessages of them (printable results: one) and
+ * sets isMore while some are left, getMoreResults(requestId) goes on with the
+ * same batch, and once a batch is drained the next one is waiting.  The HL7
+ * messages and the PDF reports come from SyntheticResults.  Submitted orders,
+ * ADT and radiology results are acknowledged with their MSH-10 control id.
+ *
+ * The simulator listens on the loopback interface only.  Configured with system
+ * properties:
+ *
+ *   hub.simulator.port              (default 8089, 0 picks a free port)
+ *   hub.simulator.threads           calls worked on at once, more queue (default 200)
+ *   hub.simulator.latency           time to answer a call (default lognormal:40,0.5), one of
+ *                                     fixed:MILLIS
+ *                                     uniform:MIN,MAX
+ *                                     exponential:MEAN
+ *                                     lognormal:MEDIAN,SIGMA
+ *   hub.simulator.latency.[op]      the same for one operation, e.g. hub.simulator.latency.submitOrder
+ *   hub.simulator.faults            probability of each kind of fault per call (default none),
+ *                                   e.g. "server:0.01,throttle:0.005"
+ *                                     server    a SOAP fault
+ *                                     throttle  HTTP 503, as the Hub's load balancer answers
+ *                                     timeout   no answer for hub.simulator.hangMillis (default 60000)
+ *                                     reset     the connection is closed without an answer
+ *   hub.simulator.faults.[op]       the same for one operation
+ *   hub.simulator.rateLimit         calls per second answered, more are throttled (default 0, no limit)
+ *   hub.simulator.resultsPerBatch   (default 20)
+ *   hub.simulator.maxMessages       page size if the request has none (default 5)
+ *   hub.simulator.observations      OBX segments per HL7 result (default 12)
+ *   hub.simulator.documents         PDFs per observation result (default 1)
+ *   hub.simulator.pdfBytes          size of a PDF (default 20000)
+ *   hub.simulator.seed              (default 1)
+ *
+ * gzip request bodies are accepted, and responses are gzip-compressed when the
+ * client sends Accept-Encoding: gzip (see HubCompression).
+ *
+ * Usage: HubSimulator [port]
+ *
+ */
+public class HubSimulator {
+
+    private static final int THREADS = Integer.getInteger("hub.simulator.threads", 200).intValue();
+    private static final long HANG_MILLIS = Long.getLong("hub.simulator.hangMillis", 60000L).longValue();
+    private static final int RATE_LIMIT = Integer.getInteger("hub.simulator.rateLimit", 0).intValue();
+    private static final int RESULTS_PER_BATCH = Integer.getInteger("hub.simulator.resultsPerBatch", 20).intValue();
+    private static final int MAX_MESSAGES = Integer.getInteger("hub.simulator.maxMessages", 5).intValue();
+    private static final int OBSERVATIONS = Integer.getInteger("hub.simulator.observations", 12).intValue();
+    private static final int DOCUMENTS = Integer.getInteger("hub.simulator.documents", 1).intValue();
+    private static final int PDF_BYTES = Integer.getInteger("hub.simulator.pdfBytes", 20000).intValue();
+    private static final long SEED = Long.getLong("hub.simulator.seed", 1L).longValue();
+    private static final String DEFAULT_LATENCY = System.getProperty("hub.simulator.latency", "lognormal:40,0.5");
+    private static final String DEFAULT_FAULTS = System.getProperty("hub.simulator.faults", "");
+
+    private static final String SOAP_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String RESULTS_TYPES = "java:com.medplus.serviceHub.results.webservice";
+    private static final String PRINTABLE_TYPES = "java:com.medplus.serviceHub.results.webservice.printable";
+    private static final String OBSERVATION_TYPES = "java:com.medplus.serviceHub.results.webservice.observation";
+    private static final String ORDERS_TYPES = "java:com.medplus.serviceHub.orders.webservice";
+    private static final String ORDER_SUPPORT_TYPES = "java:com.medplus.serviceHub.orders.support";
+    private static final String FRAMEWORK_TYPES = "java:com.medplus.serviceHub.framework.webservices";
+    private static final String DEMOGRAPHIC_TYPES = "java:com.medplus.serviceHub.mpi.webservice";
+    private static final String RADIOLOGY_TYPES = "java:com.medplus.serviceHub.radiology.webservice";
+    private static final String XSD_TYPES = "http://www.w3.org/2001/XMLSchema";
+    private static final String RETRIEVE_RESULTS_NAMESPACE = "http://medplus.com/results";
+
+    private static final int PDF_POOL = 16;
+    private static final XMLInputFactory XML_INPUT_FACTORY = newInputFactory();
+
+    /**
+     * The simulated services and where they are.
+     */
+    public enum Service {
+        ORDER("OrderService", "/orders/service", HubAsyncClient.ORDERS_NAMESPACE, false),
+        ORDER_SUBMISSION("OrderSubmissionService", "/orders/submission/service", HubAsyncClient.ORDERS_NAMESPACE, true),
+        RESULTS("ResultsService", "/resultsHub/observations/hl7", HubAsyncClient.RESULTS_NAMESPACE, false),
+        OBSERVATION_RESULT("ObservationResultService", "/observation/result/service",
+                HubAsyncClient.OBSERVATION_NAMESPACE, false),
+        PRINTABLE_RESULTS("PrintableResultsService", "/results/retrieval/printable",
+                HubAsyncClient.RESULTS_NAMESPACE, false),
+        RETRIEVE_RESULTS("RetrieveResultsService", "/results/retrieval/service", RETRIEVE_RESULTS_NAMESPACE, true),
+        DEMOGRAPHIC("DemographicService", "/demographic/service", HubAsyncClient.DEMOGRAPHIC_NAMESPACE, false),
+        RADIOLOGY_RESULT("RadiologyResultService", "/radiology/result/service", HubAsyncClient.RADIOLOGY_NAMESPACE,
+                false);
+
+        private final String serviceName;
+        private final String path;
+        private final String namespace;
+        private final boolean jaxws;
+
+        Service(String serviceName, String path, String namespace, boolean jaxws) {
+            this.serviceName = serviceName;
+            this.path = path;
+            this.namespace = namespace;
+            this.jaxws = jaxws;
+        }
+
+        public String getServiceName() {
+            return serviceName;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * True for the document/literal services of the JAX-WS jar.
+         */
+        public boolean isJaxWs() {
+            return jaxws;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final SyntheticResults results = new SyntheticResults(SEED, OBSERVATIONS);
+    private final byte[][] pdfs = new byte[PDF_POOL][];
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+    private final ConcurrentMap<String, Batch> requests = new ConcurrentHashMap<String, Batch>();
+    private final ConcurrentMap<String, Latency> latencies = new ConcurrentHashMap<String, Latency>();
+    private final ConcurrentMap<String, Faults> faults = new ConcurrentHashMap<String, Faults>();
+    private final ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+    private final AtomicLong requestIds = new AtomicLong();
+    private final AtomicLong rateWindow = new AtomicLong();
+    private final AtomicInteger rateWindowCalls = new AtomicInteger();
+
+    public HubSimulator(int port) throws IOException {
+        server = createServer(port);
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "hub-simulator-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        for (int i = 0; i < PDF_POOL; i++) {
+            String controlId = results.nextControlId();
+            pdfs[i] = results.pdf("SIMULATED REPORT " + controlId, results.hl7Result(controlId, "SIMULATOR"), PDF_BYTES);
+        }
+    }
+
+    /**
+     * An HttpServer on the loopback interface, with TCP_NODELAY: without it the
+     * response body waits for the client's delayed ACK of the headers, which adds
+     * about 40 ms to every call.  The JDK reads sun.net.httpserver.nodelay once, when
+     * the JVM creates its first HttpServer, so it is set just for that, unless it
+     * is set already, and cleared again.
+     */
+    private static HttpServer createServer(int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        synchronized (HubSimulator.class) {
+            if (System.getProperty("sun.net.httpserver.nodelay") != null) {
+                return HttpServer.create(address, 512);
+            }
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+            try {
+                return HttpServer.create(address, 512);
+            } finally {
+                System.clearProperty("sun.net.httpserver.nodelay");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Integer.getInteger("hub.simulator.port", 8089)
+                .intValue();
+        HubSimulator simulator = new HubSimulator(port);
+        simulator.start();
+        for (Service service : Service.values()) {
+            System.out.printf("%-26s %s%n", service.serviceName, simulator.getEndpoint(service));
+        }
+        System.out.println("Hub simulator running, press Ctrl-C to stop");
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Registers the services and starts serving them; the handlers are only
+     * created here so that the constructor does not hand out this.
+     */
+    public void start() {
+        for (final Service service : Service.values()) {
+            server.createContext(service.path, exchange -> {
+                try {
+                    handle(service, exchange);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    exchange.close();
+                }
+            });
+        }
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * The URL to configure a client with, e.g. http://127.0.0.1:8089/orders/service.
+     */
+    public String getEndpoint(Service service) {
+        return getBaseUrl() + service.path;
+    }
+
+    /**
+     * http://, the loopback address the simulator listens on and its port.
+     */
+    public String getBaseUrl() {
+        InetAddress address = server.getAddress().getAddress();
+        String host = address instanceof Inet6Address ? "[" + address.getHostAddress() + "]" : address.getHostAddress();
+        return "http://" + host + ":" + getPort();
+    }
+
+    /**
+     * Calls and injected faults per operation, one line each.
+     */
+    public String report() {
+        List<String> operations = new ArrayList<String>(counters.keySet());
+        Collections.sort(operations);
+        StringBuilder report = new StringBuilder();
+        for (String operation : operations) {
+            Counters count = counters.get(operation);
+            report.append(String.format(Locale.ROOT, "%s: calls=%d, faults=%d, throttled=%d%n", operation,
+                    count.calls.get(), count.faults.get(), count.throttled.get()));
+        }
+        return report.toString();
+    }
+
+    private void handle(Service service, HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        if ("GET".equals(exchange.getRequestMethod())) {
+            String query = exchange.getRequestURI().getQuery();
+            if (service.jaxws && query != null && query.equalsIgnoreCase("wsdl")) {
+                send(exchange, 200, "text/xml; charset=utf-8", wsdl(service).getBytes(StandardCharsets.UTF_8));
+            } else {
+                send(exchange, 404, "text/plain", ("No WSDL for " + service.serviceName).getBytes(StandardCharsets.UTF_8));
+            }
+            return;
+        }
+
+        InputStream body = exchange.getRequestBody();
+        String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if (contentEncoding != null && contentEncoding.toLowerCase(Locale.ROOT).contains("gzip")) {
+            body = new GZIPInputStream(body, 8192);
+        }
+        Call call;
+        try {
+            call = Call.parse(service, readFully(body), username(exchange));
+        } catch (XMLStreamException e) {
+            send(exchange, 500, "text/xml; charset=utf-8", fault(service, "Client", "Malformed request: "
+                    + e.getMessage()));
+            return;
+        }
+
+        Counters count = counters(call.operation);
+        count.calls.incrementAndGet();
+        long latencyNanos = latency(call.operation).sampleNanos();
+        String fault = faults(call.operation).pick();
+        if (fault == null && isOverRateLimit()) {
+            fault = "throttle";
+            count.throttled.incrementAndGet();
+        } else if (fault != null) {
+            count.faults.incrementAndGet();
+        }
+
+        byte[] response;
+        int status = 500;
+        if ("throttle".equals(fault)) {
+            sleepUntil(start + latencyNanos);
+            send(exchange, 503, "text/plain", "Too many requests".getBytes(StandardCharsets.UTF_8));
+            return;
+        } else if ("reset".equals(fault)) {
+            sleepUntil(start + latencyNanos);
+            // closing the exchange before the response headers closes the connection
+            return;
+        } else if ("timeout".equals(fault)) {
+            sleepUntil(start + TimeUnit.MILLISECONDS.toNanos(HANG_MILLIS));
+            response = fault(service, "Server", "Simulated timeout of " + call.operation);
+        } else if ("server".equals(fault)) {
+            response = fault(service, "Server", "Simulated Hub error in " + call.operation);
+        } else {
+            try {
+                String xml = service.jaxws ? literal(call) : encoded(call);
+                response = xml.getBytes(StandardCharsets.UTF_8);
+                status = 200;
+            } catch (SimulatedFault e) {
+                count.faults.incrementAndGet();
+                response = fault(service, e.code, e.getMessage());
+            }
+        }
+        sleepUntil(start + latencyNanos);
+        send(exchange, status, "text/xml; charset=utf-8", response);
+    }
+
+    /**
+     * The response of an Axis service, RPC/encoded.
+     */
+    private String encoded(Call call) throws SimulatedFault {
+        SoapWriter xml = SoapWriter.encoded(call.operation, call.service.namespace);
+        switch (call.service) {
+        case RESULTS:
+            if (call.is("getResults", "getMoreResults")) {
+                Page page = page(call, maxMessages(call));
+                xml.start("result", RESULTS_TYPES, "ResultsResponse").startList("HL7Messages", XSD_TYPES, "string",
+                        page.controlIds.size());
+                for (String controlId : page.controlIds) {
+                    xml.startItem("HL7Messages", XSD_TYPES, "string").text(results.hl7Result(controlId, call.username))
+                            .endItem("HL7Messages");
+                }
+                xml.endList("HL7Messages").bool("isMore", page.more).string("requestId", page.requestId).end("result");
+            } else if (call.is("getHL7Results", "getMoreHL7Results")) {
+                Page page = page(call, maxMessages(call));
+                xml.start("result", RESULTS_TYPES, "HL7ResultsResponse").startList("HL7Messages", RESULTS_TYPES,
+                        "HL7Message", page.controlIds.size());
+                for (String controlId : page.controlIds) {
+                    xml.startItem("HL7Messages", RESULTS_TYPES, "HL7Message").string("controlId", controlId)
+                            .base64("message", hl7(controlId, call)).endItem("HL7Messages");
+                }
+                xml.endList("HL7Messages").bool("isMore", page.more).string("requestId", page.requestId).end("result");
+            } else if (call.is("getProviderAccounts")) {
+                providerAccounts(xml, call);
+            } else if (!call.is("acknowledgeResults", "acknowledgeHL7Results")) {
+                throw SimulatedFault.unknownOperation(call);
+            }
+            break;
+        case PRINTABLE_RESULTS:
+            if (call.is("getResults", "getMoreResults")) {
+                Page page = page(call, 1);
+                String controlId = page.controlIds.isEmpty() ? null : page.controlIds.get(0);
+                xml.start("result", PRINTABLE_TYPES, "PrintableResultsResponse");
+                if (controlId == null) {
+                    xml.string("fileMimeType", null).string("fileName", null).bool("isMore", false)
+                            .string("requestId", page.requestId).base64("resultData", null).string("resultInfo", null);
+                } else {
+                    xml.string("fileMimeType", "application/pdf").string("fileName", controlId + ".pdf")
+                            .bool("isMore", page.more).string("requestId", page.requestId)
+                            .base64("resultData", pdf(controlId)).start("resultInfo", PRINTABLE_TYPES, "ResultInfo")
+                            .dateTime("arrivalDate", new Date()).string("messageControlId", controlId)
+                            .string("providerAcctId", call.username).end("resultInfo");
+                }
+                xml.end("result");
+            } else if (call.is("getProviderAccounts")) {
+                providerAccounts(xml, call);
+            } else if (!call.is("acknowledgeResults")) {
+                throw SimulatedFault.unknownOperation(call);
+            }
+            break;
+        case OBSERVATION_RESULT:
+            if (call.is("getResults", "getMoreResults")) {
+                Page page = page(call, maxMessages(call));
+                xml.start("result", OBSERVATION_TYPES, "ObservationResultResponse").bool("isMore", page.more)
+                        .startList("observationResults", OBSERVATION_TYPES, "ObservationResult", page.controlIds.size());
+                for (String controlId : page.controlIds) {
+                    xml.startItem("observationResults", OBSERVATION_TYPES, "ObservationResult")
+                            .base64("HL7Message", hl7(controlId, call))
+                            .startList("documents", OBSERVATION_TYPES, "ObservationResultDocument", DOCUMENTS);
+                    for (int i = 0; i < DOCUMENTS; i++) {
+                        xml.startItem("documents", OBSERVATION_TYPES, "ObservationResultDocument")
+                                .base64("documentData", pdf(controlId + i)).string("documentId", controlId + "-" + i)
+                                .string("fileMimeType", "application/pdf").string("fileName", controlId + "-" + i + ".pdf")
+                                .endItem("documents");
+                    }
+                    xml.endList("documents").string("observationResultType", "LAB").string("resultId", controlId)
+                            .endItem("observationResults");
+                }
+                xml.endList("observationResults").string("requestId", page.requestId).end("result");
+            } else if (call.is("getProviderAccounts")) {
+                xml.startList("result", OBSERVATION_TYPES, "ProviderAccount", 1)
+                        .startItem("result", OBSERVATION_TYPES, "ProviderAccount")
+                        .string("providerAccountName", call.username).string("providerName", "SIMULATED PROVIDER")
+                        .endItem("result").endList("result");
+            } else if (!call.is("acknowledgeResults")) {
+                throw SimulatedFault.unknownOperation(call);
+            }
+            break;
+        case ORDER:
+            if (call.is("submitOrder", "validateOrder")) {
+                String controlId = controlId(call.base64("hl7Order"));
+                xml.start("result", ORDERS_TYPES, "OrderResponse");
+                hubServiceResponse(xml);
+                xml.string("messageControlId", controlId).string("orderTransactionUid", transactionUid())
+                        .list("validationErrors", XSD_TYPES, "string", null).end("result");
+            } else if (call.is("getOrderDocuments")) {
+                // Axis sends the items of the orderSupportRequests array as "item"
+                List<String> types = call.all("item").isEmpty() ? call.all("orderSupportRequests") : call.all("item");
+                xml.start("result", ORDERS_TYPES, "OrderSupportServiceResponse");
+                hubServiceResponse(xml);
+                xml.string("messageControlId", null).string("orderTransactionUid", transactionUid())
+                        .list("validationErrors", XSD_TYPES, "string", null)
+                        .startList("orderSupportDocuments", ORDER_SUPPORT_TYPES, "OrderSupportDocument", types.size());
+                for (String type : types) {
+                    xml.startItem("orderSupportDocuments", ORDER_SUPPORT_TYPES, "OrderSupportDocument")
+                            .base64("documentData", pdf(type)).string("documentType", type)
+                            .string("requestStatus", "SUCCESS").string("responseMessage", "Document created")
+                            .bool("success", true).endItem("orderSupportDocuments");
+                }
+                xml.endList("orderSupportDocuments").end("result");
+            } else {
+                throw SimulatedFault.unknownOperation(call);
+            }
+            break;
+        case DEMOGRAPHIC:
+            if (call.is("submitRealTimeADTMessage", "submitBatchADTMessage")) {
+                xml.start("result", DEMOGRAPHIC_TYPES, "DemographicResponse")
+                        .list("errors", XSD_TYPES, "string", null).string("hubTransactionUid", transactionUid())
+                        .string("messageControlUid", controlId(call.base64("ADTMessage"))).string("status", "SUCCESS")
+                        .end("result");
+            } else {
+                throw SimulatedFault.unknownOperation(call);
+            }
+            break;
+        case RADIOLOGY_RESULT:
+            if (call.is("submitRadiologyResult")) {
+                xml.start("result", RADIOLOGY_TYPES, "RadiologyResultResponse");
+                hubServiceResponse(xml);
+                xml.string("messageControlId", controlId(call.base64("hl7RadiologyResult")))
+                        .list("validationErrors", XSD_TYPES, "string", null).end("result");
+            } else {
+                throw SimulatedFault.unknownOperation(call);
+            }
+            break;
+        default:
+            throw SimulatedFault.unknownOperation(call);
+        }
+        return xml.finish();
+    }
+
+    /**
+     * The response of a JAX-WS service, document/literal wrapped.
+     */
+    private String literal(Call call) throws SimulatedFault {
+        SoapWriter xml = SoapWriter.literal(call.operation, call.service.namespace);
+        if (call.service == Service.RETRIEVE_RESULTS && call.is("getResults")) {
+            String type = call.value("resultServiceType");
+            if (type == null) {
+                type = "HL7";
+            }
+            boolean hl7 = !"Printable".equalsIgnoreCase(type);
+            boolean documents = !"HL7".equalsIgnoreCase(type);
+            Page page = page(call, "Printable".equalsIgnoreCase(type) ? 1 : maxMessages(call));
+            xml.qualified("Results").bool("isMore", page.more).string("requestId", page.requestId);
+            for (String controlId : page.controlIds) {
+                xml.start("results", null, null);
+                for (int i = 0; documents && i < DOCUMENTS; i++) {
+                    xml.start("documents", null, null).base64("documentData", pdf(controlId + i))
+                            .string("documentId", controlId + "-" + i).string("fileMimeType", "application/pdf")
+                            .string("fileName", controlId + "-" + i + ".pdf").start("resultInfo", null, null)
+                            .dateTime("arrivalDate", new Date()).string("messageControlId", controlId)
+                            .string("providerAcctId", call.username).end("resultInfo").end("documents");
+                }
+                if (hl7) {
+                    xml.start("HL7Message", null, null).string("controlId", controlId)
+                            .base64("message", hl7(controlId, call)).end("HL7Message");
+                }
+                xml.string("resultId", controlId).string("resultType", type).end("results");
+            }
+            xml.endQualified("Results");
+        } else if (call.service == Service.RETRIEVE_RESULTS && call.is("acknowledgeResults")) {
+            xml.qualified("AckResult").bool("isMore", false).string("requestId", call.value("requestId"))
+                    .endQualified("AckResult");
+        } else if (call.service == Service.RETRIEVE_RESULTS && call.is("getProviderAccounts")) {
+            xml.qualified("ProviderAccounts").bool("isMore", false).start("providerAccounts", null, null)
+                    .string("providerAccountName", call.username).string("providerName", "SIMULATED PROVIDER")
+                    .end("providerAccounts").endQualified("ProviderAccounts");
+        } else if (call.service == Service.ORDER_SUBMISSION && call.is("submitOrder", "getOrderDocuments")) {
+            String controlId = controlId(call.base64("hl7Order"));
+            xml.qualified("Result");
+            hubServiceResponse(xml);
+            if (controlId != null) {
+                xml.base64("hl7OrderAck", results.hl7Ack(results.nextControlId(), controlId).getBytes(
+                        StandardCharsets.ISO_8859_1));
+            }
+            xml.string("messageControlId", controlId).string("orderTransactionUid", transactionUid());
+            for (String type : call.all("orderSupportRequests")) {
+                xml.start("orderSupportDocuments", null, null).base64("documentData", pdf(type))
+                        .string("documentType", type).string("requestStatus", "SUCCESS")
+                        .string("responseMessage", "Document created").bool("success", true)
+                        .end("orderSupportDocuments");
+            }
+            xml.endQualified("Result");
+        } else {
+            throw SimulatedFault.unknownOperation(call);
+        }
+        return xml.finish();
+    }
+
+    private void providerAccounts(SoapWriter xml, Call call) {
+        xml.startList("result", RESULTS_TYPES, "ProviderAccount", 1).startItem("result", RESULTS_TYPES,
+                "ProviderAccount").string("accountId", call.username).string("accountName", call.username)
+                .string("description", "Simulated account").string("descriptiveName", call.username)
+                .string("internalId", Integer.toString(Math.abs(call.username.hashCode())))
+                .start("provider", RESULTS_TYPES, "Provider").string("description", "Simulated provider")
+                .string("name", "SIMULATED PROVIDER").end("provider").endItem("result").endList("result");
+    }
+
+    private static void hubServiceResponse(SoapWriter xml) {
+        xml.string("responseCode", "0").string("responseMsg", "Success").list("responseProperties", FRAMEWORK_TYPES,
+                "ResponseProperty", null).string("status", "SUCCESS");
+    }
+
+    /**
+     * Takes the next page of results from the caller's batch.  getMoreResults
+     * continues the batch of its requestId, any other call the caller's current one.
+     */
+    private Page page(Call call, int maxMessages) throws SimulatedFault {
+        Batch batch;
+        String requestId = call.value("requestId");
+        if (call.operation.startsWith("getMore")) {
+            batch = requestId == null ? null : requests.get(requestId);
+            if (batch == null) {
+                throw new SimulatedFault("Client", "Unknown requestId " + requestId);
+            }
+        } else {
+            String key = call.service + " " + call.username + " " + call.value("resultServiceType");
+            batch = batches.get(key);
+            if (batch == null) {
+                Batch created = new Batch();
+                batch = batches.putIfAbsent(key, created);
+                if (batch == null) {
+                    batch = created;
+                }
+            }
+        }
+
+        Page page = batch.take(maxMessages, "SIM" + requestIds.incrementAndGet());
+        if (page.more) {
+            requests.put(page.requestId, batch);
+        } else {
+            requests.remove(page.requestId);
+        }
+        for (int i = 0; i < page.count; i++) {
+            page.controlIds.add(results.nextControlId());
+        }
+        return page;
+    }
+
+    private byte[] hl7(String controlId, Call call) {
+        return results.hl7Result(controlId, call.username).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private byte[] pdf(String key) {
+        return pdfs[Math.abs(key.hashCode() % PDF_POOL)];
+    }
+
+    private String transactionUid() {
+        return "SIM-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    private static int maxMessages(Call call) {
+        String value = call.value("maxMessages");
+        try {
+            return value == null ? MAX_MESSAGES : Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return MAX_MESSAGES;
+        }
+    }
+
+    /**
+     * MSH-10 of a submitted HL7 message, or null.
+     */
+    private static String controlId(byte[] hl7) {
+        if (hl7 == null) {
+            return null;
+        }
+        String message = new String(hl7, StandardCharsets.ISO_8859_1);
+        int msh = message.indexOf("MSH|");
+        if (msh < 0) {
+            return null;
+        }
+        int end = message.indexOf('\r', msh);
+        String[] fields = message.substring(msh, end < 0 ? message.length() : end).split("\\|", 12);
+        return fields.length > 9 ? fields[9] : null;
+    }
+
+    private boolean isOverRateLimit() {
+        if (RATE_LIMIT <= 0) {
+            return false;
+        }
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        long window = rateWindow.get();
+        if (window != second && rateWindow.compareAndSet(window, second)) {
+            rateWindowCalls.set(0);
+        }
+        return rateWindowCalls.incrementAndGet() > RATE_LIMIT;
+    }
+
+    private Latency latency(String operation) {
+        Latency latency = latencies.get(operation);
+        if (latency == null) {
+            latency = Latency.parse(System.getProperty("hub.simulator.latency." + operation, DEFAULT_LATENCY));
+            latencies.putIfAbsent(operation, latency);
+        }
+        return latency;
+    }
+
+    private Faults faults(String operation) {
+        Faults operationFaults = faults.get(operation);
+        if (operationFaults == null) {
+            operationFaults = Faults.parse(System.getProperty("hub.simulator.faults." + operation, DEFAULT_FAULTS));
+            faults.putIfAbsent(operation, operationFaults);
+        }
+        return operationFaults;
+    }
+
+    private Counters counters(String operation) {
+        Counters count = counters.get(operation);
+        if (count == null) {
+            Counters created = new Counters();
+            count = counters.putIfAbsent(operation, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        return count;
+    }
+
+    private static String username(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization != null && authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            try {
+                String credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()),
+                        StandardCharsets.UTF_8);
+                int colon = credentials.indexOf(':');
+                return colon < 0 ? credentials : credentials.substring(0, colon);
+            } catch (IllegalArgumentException e) {
+                // not Base64, treated as anonymous
+            }
+        }
+        return "anonymous";
+    }
+
+    private static byte[] fault(Service service, String code, String message) {
+        StringBuilder xml = new StringBuilder(512);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><soapenv:Envelope xmlns:soapenv=\"")
+                .append(SOAP_NAMESPACE).append("\"><soapenv:Body><soapenv:Fault><faultcode>soapenv:").append(code)
+                .append("</faultcode><faultstring>").append(SoapWriter.escape(message)).append("</faultstring>");
+        if (service.jaxws) {
+            xml.append("<detail><ns:SOAPException xmlns:ns=\"").append(service.namespace).append("\"><message>")
+                    .append(SoapWriter.escape(message)).append("</message></ns:SOAPException></detail>");
+        }
+        xml.append("</soapenv:Fault></soapenv:Body></soapenv:Envelope>");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip") && body.length >= 1024) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed, 8192);
+            gzip.write(body);
+            gzip.close();
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        try {
+            while (remaining > 0) {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * The WSDL of a JAX-WS service, with this simulator as the address.
+     */
+    private String wsdl(Service service) {
+        if (service == Service.RETRIEVE_RESULTS) {
+            return Wsdl.retrieveResults(getEndpoint(service));
+        }
+        return Wsdl.orderSubmission(getEndpoint(service));
+    }
+
+    /**
+     * An operation call as far as the simulator needs it: its name, the caller
+     * and the text of the leaf elements of the request.
+     */
+    static final class Call {
+        final Service service;
+        final String username;
+        String operation;
+        private final Map<String, List<String>> values = new HashMap<String, List<String>>();
+
+        private Call(Service service, String username) {
+            this.service = service;
+            this.username = username;
+        }
+
+        static Call parse(Service service, byte[] body, String username) throws XMLStreamException {
+            Call call = new Call(service, username);
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(body));
+            try {
+                boolean inBody = false;
+                String leaf = null;
+                String leafId = null;
+                String parameterName = null;
+                Map<String, String> multiRefs = new HashMap<String, String>();
+                List<String[]> hrefs = new ArrayList<String[]>();
+                StringBuilder text = new StringBuilder();
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if (!inBody) {
+                            inBody = "Body".equals(reader.getLocalName())
+                                    && SOAP_NAMESPACE.equals(reader.getNamespaceURI());
+                        } else if (call.operation == null) {
+                            call.operation = reader.getLocalName();
+                        } else {
+                            leaf = reader.getLocalName();
+                            leafId = reader.getAttributeValue(null, "id");
+                            text.setLength(0);
+                            String href = reader.getAttributeValue(null, "href");
+                            if (href != null && href.startsWith("#")) {
+                                // Axis sends simple values as multiRefs too, e.g. maxMessages
+                                hrefs.add(new String[] { leaf, href.substring(1) });
+                                leaf = null;
+                            }
+                        }
+                    } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                        if (leaf != null) {
+                            text.append(reader.getText());
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        if (leaf != null && leaf.equals(reader.getLocalName())) {
+                            String value = text.toString().trim();
+                            if (leafId != null) {
+                                multiRefs.put(leafId, value);
+                            } else if ("parameterName".equals(leaf)) {
+                                parameterName = value;
+                            } else if ("parameterValue".equals(leaf) && parameterName != null) {
+                                // RetrieveResults request parameters count as fields of their own
+                                call.add(parameterName, value);
+                            } else {
+                                call.add(leaf, value);
+                            }
+                        }
+                        leaf = null;
+                    }
+                }
+                for (String[] href : hrefs) {
+                    String value = multiRefs.get(href[1]);
+                    if (value != null) {
+                        call.add(href[0], value);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            if (call.operation == null) {
+                throw new XMLStreamException("no operation in the SOAP Body");
+            }
+            return call;
+        }
+
+        private void add(String name, String value) {
+            List<String> list = values.get(name);
+            if (list == null) {
+                list = new ArrayList<String>(1);
+                values.put(name, list);
+            }
+            list.add(value);
+        }
+
+        boolean is(String... operations) {
+            for (String name : operations) {
+                if (name.equals(operation)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * The first value of an element, or null.
+         */
+        String value(String name) {
+            List<String> list = values.get(name);
+            return list == null || list.isEmpty() || list.get(0).length() == 0 ? null : list.get(0);
+        }
+
+        List<String> all(String name) {
+            List<String> list = values.get(name);
+            return list == null ? Collections.<String>emptyList() : list;
+        }
+
+        byte[] base64(String name) {
+            String value = value(name);
+            try {
+                return value == null ? null : Base64.getMimeDecoder().decode(value);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The results waiting for one account on one service.
+     */
+    private static final class Batch {
+        private int remaining = RESULTS_PER_BATCH;
+        private String requestId;
+
+        /**
+         * @param newRequestId the requestId of the page if it starts a batch
+         */
+        synchronized Page take(int maxMessages, String newRequestId) {
+            Page page = new Page();
+            if (remaining == 0) {
+                // drained by the previous call, a new batch has arrived
+                remaining = RESULTS_PER_BATCH;
+            }
+            if (requestId == null) {
+                requestId = newRequestId;
+            }
+            page.count = Math.min(maxMessages, remaining);
+            remaining -= page.count;
+            page.more = remaining > 0;
+            page.requestId = requestId;
+            if (!page.more) {
+                requestId = null;
+            }
+            return page;
+        }
+    }
+
+    private static final class Page {
+        int count;
+        boolean more;
+        String requestId;
+        final List<String> controlIds = new ArrayList<String>();
+    }
+
+    /**
+     * A latency distribution in milliseconds.
+     */
+    static final class Latency {
+        private final String kind;
+        private final double a;
+        private final double b;
+
+        private Latency(String kind, double a, double b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        static Latency parse(String spec) {
+            int colon = spec.indexOf(':');
+            String kind = (colon < 0 ? spec : spec.substring(0, colon)).trim().toLowerCase(Locale.ROOT);
+            String[] values = colon < 0 ? new String[0] : spec.substring(colon + 1).split(",");
+            double a = values.length > 0 ? Double.parseDouble(values[0].trim()) : 0;
+            double b = values.length > 1 ? Double.parseDouble(values[1].trim()) : 0;
+            if (!kind.equals("fixed") && !kind.equals("uniform") && !kind.equals("exponential")
+                    && !kind.equals("lognormal")) {
+                throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+            }
+            return new Latency(kind, a, b);
+        }
+
+        long sampleNanos() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double millis;
+            if (kind.equals("uniform")) {
+                millis = a + (b - a) * random.nextDouble();
+            } else if (kind.equals("exponential")) {
+                millis = -a * Math.log(1 - random.nextDouble());
+            } else if (kind.equals("lognormal")) {
+                millis = a * Math.exp(b * random.nextGaussian());
+            } else {
+                millis = a;
+            }
+            return (long) (Math.max(0, millis) * 1e6);
+        }
+    }
+
+    /**
+     * The probabilities of the fault kinds for one operation.
+     */
+    static final class Faults {
+        private final String[] kinds;
+        private final double[] probabilities;
+
+        private Faults(String[] kinds, double[] probabilities) {
+            this.kinds = kinds;
+            this.probabilities = probabilities;
+        }
+
+        static Faults parse(String spec) {
+            List<String> kinds = new ArrayList<String>();
+            List<Double> probabilities = new ArrayList<Double>();
+            for (String entry : spec.split(",")) {
+                if (entry.trim().length() == 0) {
+                    continue;
+                }
+                String[] pair = entry.split(":");
+                String kind = pair[0].trim().toLowerCase(Locale.ROOT);
+                if (!kind.equals("server") && !kind.equals("throttle") && !kind.equals("timeout")
+                        && !kind.equals("reset")) {
+                    throw new IllegalArgumentException("Unknown fault: " + entry);
+                }
+                kinds.add(kind);
+                probabilities.add(Double.valueOf(pair.length > 1 ? pair[1].trim() : "0"));
+            }
+            double[] p = new double[probabilities.size()];
+            for (int i = 0; i < p.length; i++) {
+                p[i] = probabilities.get(i).doubleValue();
+            }
+            return new Faults(kinds.toArray(new String[kinds.size()]), p);
+        }
+
+        /**
+         * The fault to inject into a call, or null.
+         */
+        String pick() {
+            if (kinds.length == 0) {
+                return null;
+            }
+            double draw = ThreadLocalRandom.current().nextDouble();
+            for (int i = 0; i < kinds.length; i++) {
+                draw -= probabilities[i];
+                if (draw < 0) {
+                    return kinds[i];
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Counters {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong faults = new AtomicLong();
+        final AtomicLong throttled = new AtomicLong();
+    }
+
+    /**
+     * A SOAP fault the simulated service answers with, e.g. for an unknown requestId.
+     */
+    private static final class SimulatedFault extends Exception {
+        private static final long serialVersionUID = 1L;
+        final String code;
+
+        SimulatedFault(String code, String message) {
+            super(message);
+            this.code = code;
+        }
+
+        static SimulatedFault unknownOperation(Call call) {
+            return new SimulatedFault("Client", "Unknown operation " + call.operation + " of "
+                    + call.service.serviceName);
+        }
+    }
+
+    /**
+     * Writes a SOAP response: RPC/encoded with xsi:type attributes and SOAP
+     * arrays for the Axis services, document/literal with repeated elements for
+     * the JAX-WS services.
+     */
+    static final class SoapWriter {
+        private static final ThreadLocal<SimpleDateFormat> DATE_TIME = ThreadLocal.withInitial(() -> {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        });
+
+        private final StringBuilder xml = new StringBuilder(4096);
+        private final boolean encoded;
+        private final String operation;
+
+        private SoapWriter(boolean encoded, String operation, String namespace) {
+            this.encoded = encoded;
+            this.operation = operation;
+            xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><soapenv:Envelope xmlns:soapenv=\"")
+                    .append(SOAP_NAMESPACE).append("\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" ")
+                    .append("xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+            if (encoded) {
+                xml.append(" xmlns:soapenc=\"http://schemas.xmlsoap.org/soap/encoding/\"");
+            }
+            xml.append("><soapenv:Body><ns1:").append(operation).append("Response");
+            if (encoded) {
+                xml.append(" soapenv:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"");
+            }
+            xml.append(" xmlns:ns1=\"").append(namespace).append("\">");
+        }
+
+        static SoapWriter encoded(String operation, String namespace) {
+            return new SoapWriter(true, operation, namespace);
+        }
+
+        static SoapWriter literal(String operation, String namespace) {
+            return new SoapWriter(false, operation, namespace);
+        }
+
+        /**
+         * The element of a wrapper in the operation's namespace, e.g. ns1:Results.
+         */
+        SoapWriter qualified(String name) {
+            xml.append("<ns1:").append(name).append('>');
+            return this;
+        }
+
+        SoapWriter endQualified(String name) {
+            xml.append("</ns1:").append(name).append('>');
+            return this;
+        }
+
+        /**
+         * Starts a struct; typeNamespace and type are only written when encoded.
+         */
+        SoapWriter start(String name, String typeNamespace, String type) {
+            xml.append('<').append(name);
+            typed(typeNamespace, type);
+            xml.append('>');
+            return this;
+        }
+
+        SoapWriter end(String name) {
+            xml.append("</").append(name).append('>');
+            return this;
+        }
+
+        /**
+         * Starts an array of count items; literal arrays are just repeated elements.
+         */
+        SoapWriter startList(String name, String typeNamespace, String type, int count) {
+            if (encoded) {
+                xml.append('<').append(name).append(" xsi:type=\"soapenc:Array\" soapenc:arrayType=\"ns2:")
+                        .append(type).append('[').append(count).append("]\" xmlns:ns2=\"").append(typeNamespace)
+                        .append("\">");
+            }
+            return this;
+        }
+
+        SoapWriter endList(String name) {
+            if (encoded) {
+                xml.append("</").append(name).append('>');
+            }
+            return this;
+        }
+
+        SoapWriter startItem(String name, String typeNamespace, String type) {
+            return start(encoded ? "item" : name, typeNamespace, type);
+        }
+
+        SoapWriter endItem(String name) {
+            return end(encoded ? "item" : name);
+        }
+
+        /**
+         * An array that is nil when values is null.
+         */
+        SoapWriter list(String name, String typeNamespace, String type, List<String> values) {
+            if (values == null) {
+                return nil(name);
+            }
+            startList(name, typeNamespace, type, values.size());
+            for (String value : values) {
+                startItem(name, typeNamespace, type).text(value).endItem(name);
+            }
+            return endList(name);
+        }
+
+        SoapWriter string(String name, String value) {
+            return value == null ? nil(name) : leaf(name, "string", escape(value));
+        }
+
+        SoapWriter bool(String name, boolean value) {
+            return leaf(name, "boolean", value ? "true" : "false");
+        }
+
+        SoapWriter base64(String name, byte[] value) {
+            return value == null ? nil(name) : leaf(name, "base64Binary", Base64.getEncoder().encodeToString(value));
+        }
+
+        SoapWriter dateTime(String name, Date value) {
+            return leaf(name, "dateTime", DATE_TIME.get().format(value));
+        }
+
+        SoapWriter text(String value) {
+            xml.append(escape(value));
+            return this;
+        }
+
+        private SoapWriter nil(String name) {
+            if (encoded) {
+                xml.append('<').append(name).append(" xsi:nil=\"true\"/>");
+            }
+            return this;
+        }
+
+        private SoapWriter leaf(String name, String xsdType, String text) {
+            xml.append('<').append(name);
+            if (encoded) {
+                xml.append(" xsi:type=\"xsd:").append(xsdType).append('"');
+            }
+            xml.append('>').append(text).append("</").append(name).append('>');
+            return this;
+        }
+
+        private void typed(String typeNamespace, String type) {
+            if (!encoded || type == null) {
+                return;
+            }
+            if (XSD_TYPES.equals(typeNamespace)) {
+                xml.append(" xsi:type=\"xsd:").append(type).append('"');
+            } else {
+                xml.append(" xsi:type=\"ns3:").append(type).append("\" xmlns:ns3=\"").append(typeNamespace)
+                        .append('"');
+            }
+        }
+
+        String finish() {
+            xml.append("</ns1:").append(operation).append("Response></soapenv:Body></soapenv:Envelope>");
+            return xml.toString();
+        }
+
+        static String escape(String text) {
+            StringBuilder escaped = null;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                String replacement = c == '<' ? "&lt;" : c == '>' ? "&gt;" : c == '&' ? "&amp;" : c == '"' ? "&quot;"
+                        : c == '\r' ? "&#xd;" : null;
+                if (replacement != null) {
+                    if (escaped == null) {
+                        escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+                    }
+                    escaped.append(replacement);
+                } else if (escaped != null) {
+                    escaped.append(c);
+                }
+            }
+            return escaped == null ? text : escaped.toString();
+        }
+    }
+
+    /**
+     * The WSDL documents of the JAX-WS services, document/literal wrapped as
+     * wsimport expects for the classes of medplus-hub-13.1-jaxws-clients.jar.
+     */
+    static final class Wsdl {
+
+        static String retrieveResults(String address) {
+            String[][] types = {
+                    { "retrieveResultsRequest", "providerAccounts tns:providerAccount *",
+                            "requestParameters tns:requestParameter *", "resultServiceType xsd:string" },
+                    { "providerAccount", "providerAccountName xsd:string", "providerName xsd:string" },
+                    { "requestParameter", "parameterName xsd:string", "parameterValue xsd:string" },
+                    { "retrieveResultsResponse", "errorMessages xsd:string *", "isMore xsd:boolean",
+                            "providerAccounts tns:providerAccount *", "requestId xsd:string", "results tns:result *" },
+                    { "result", "documents tns:resultDocument *", "HL7Message tns:hl7Message",
+                            "resultId xsd:string", "resultType xsd:string" },
+                    { "resultDocument", "documentData xsd:base64Binary", "documentId xsd:string",
+                            "fileMimeType xsd:string", "fileName xsd:string", "resultInfo tns:resultInfo" },
+                    { "resultInfo", "arrivalDate xsd:dateTime", "messageControlId xsd:string",
+                            "providerAcctId xsd:string" },
+                    { "hl7Message", "controlId xsd:string", "message xsd:base64Binary" },
+                    { "ackResultsRequest", "ackMessages tns:hl7Message *", "requestId xsd:string",
+                            "requestParameters tns:requestParameter *", "resultServiceType xsd:string" } };
+            String[][] operations = {
+                    { "getResults", "RetrieveResultsRequest tns:retrieveResultsRequest",
+                            "Results tns:retrieveResultsResponse" },
+                    { "acknowledgeResults", "RetrieveResultsAcknowledge tns:ackResultsRequest",
+                            "AckResult tns:retrieveResultsResponse" },
+                    { "getProviderAccounts", null, "ProviderAccounts tns:retrieveResultsResponse" } };
+            return definitions("RetrieveResultsService", "RetrieveResultsPortType", RETRIEVE_RESULTS_NAMESPACE, types,
+                    operations, address);
+        }
+
+        static String orderSubmission(String address) {
+            String[][] types = {
+                    { "orderRequest", "hl7Order xsd:base64Binary" },
+                    { "baseHubServiceResponse", "responseCode xsd:string", "responseMsg xsd:string",
+                            "responseProperties tns:responseProperty *", "status xsd:string" },
+                    { "responseProperty", "propertyName xsd:string", "propertyValue xsd:string" },
+                    { "orderResponse", "^tns:baseHubServiceResponse", "hl7OrderAck xsd:base64Binary",
+                            "messageControlId xsd:string", "orderTransactionUid xsd:string",
+                            "validationErrors xsd:string *" },
+                    { "orderSupportServiceRequest", "orderSupportRequests xsd:string *" },
+                    { "orderSupportServiceResponse", "^tns:orderResponse", "orderSupportDocuments tns:orderSupportDocument *" },
+                    { "orderSupportDocument", "documentData xsd:base64Binary", "documentType xsd:string",
+                            "requestStatus xsd:string", "responseMessage xsd:string", "success xsd:boolean 1" } };
+            String[][] operations = {
+                    { "submitOrder", "SubmitOrderRequest tns:orderRequest", "Result tns:orderResponse" },
+                    { "getOrderDocuments", "getOrderDocumentsRequest tns:orderSupportServiceRequest",
+                            "Result tns:orderSupportServiceResponse" } };
+            return definitions("OrderSubmissionService", "OrderSubmissionPortType", HubAsyncClient.ORDERS_NAMESPACE,
+                    types, operations, address);
+        }
+
+        /**
+         * types: {name, "field type" with " *" for a list or " 1" for a required field,
+         * or "^base" for the type it extends, ...}; operations: {name, "element type" of the
+         * request or null, "element type" of the response}.
+         */
+        private static String definitions(String serviceName, String portType, String namespace, String[][] types,
+                String[][] operations, String address) {
+            StringBuilder wsdl = new StringBuilder(8192);
+            wsdl.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<definitions name=\"").append(serviceName)
+                    .append("\" targetNamespace=\"").append(namespace).append("\" xmlns:tns=\"").append(namespace)
+                    .append("\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\"")
+                    .append(" xmlns:soap=\"http://schemas.xmlsoap.org/wsdl/soap/\"")
+                    .append(" xmlns=\"http://schemas.xmlsoap.org/wsdl/\">\n");
+
+            wsdl.append("  <types>\n    <xsd:schema targetNamespace=\"").append(namespace).append("\" version=\"1.0\">\n");
+            for (String[] operation : operations) {
+                wrapper(wsdl, operation[0], operation[1]);
+                wrapper(wsdl, operation[0] + "Response", operation[2]);
+            }
+            wsdl.append("      <xsd:element name=\"SOAPException\" type=\"tns:SOAPException\"/>\n");
+            wsdl.append("      <xsd:complexType name=\"SOAPException\"><xsd:sequence>")
+                    .append("<xsd:element name=\"message\" type=\"xsd:string\" minOccurs=\"0\"/>")
+                    .append("</xsd:sequence></xsd:complexType>\n");
+            for (String[] type : types) {
+                wsdl.append("      <xsd:complexType name=\"").append(type[0]).append("\">");
+                int first = 1;
+                if (type.length > 1 && type[1].startsWith("^")) {
+                    wsdl.append("<xsd:complexContent><xsd:extension base=\"").append(type[1].substring(1))
+                            .append("\">");
+                    first = 2;
+                }
+                wsdl.append("<xsd:sequence>");
+                for (int i = first; i < type.length; i++) {
+                    String[] field = type[i].split(" ");
+                    wsdl.append("<xsd:element name=\"").append(field[0]).append("\" type=\"").append(field[1])
+                            .append('"');
+                    if (field.length < 3) {
+                        wsdl.append(" minOccurs=\"0\"");
+                    } else if (field[2].equals("*")) {
+                        wsdl.append(" nillable=\"true\" minOccurs=\"0\" maxOccurs=\"unbounded\"");
+                    }
+                    wsdl.append("/>");
+                }
+                wsdl.append("</xsd:sequence>");
+                if (first == 2) {
+                    wsdl.append("</xsd:extension></xsd:complexContent>");
+                }
+                wsdl.append("</xsd:complexType>\n");
+            }
+            wsdl.append("    </xsd:schema>\n  </types>\n");
+
+            for (String[] operation : operations) {
+                message(wsdl, operation[0]);
+                message(wsdl, operation[0] + "Response");
+            }
+            message(wsdl, "SOAPException");
+
+            wsdl.append("  <portType name=\"").append(portType).append("\">\n");
+            for (String[] operation : operations) {
+                wsdl.append("    <operation name=\"").append(operation[0]).append("\"><input message=\"tns:")
+                        .append(operation[0]).append("\"/><output message=\"tns:").append(operation[0])
+                        .append("Response\"/><fault name=\"SOAPException\" message=\"tns:SOAPException\"/>")
+                        .append("</operation>\n");
+            }
+            wsdl.append("  </portType>\n");
+
+            wsdl.append("  <binding name=\"").append(portType).append("PortBinding\" type=\"tns:").append(portType)
+                    .append("\">\n    <soap:binding transport=\"http://schemas.xmlsoap.org/soap/http\"")
+                    .append(" style=\"document\"/>\n");
+            for (String[] operation : operations) {
+                wsdl.append("    <operation name=\"").append(operation[0]).append("\"><soap:operation soapAction=\"\"/>")
+                        .append("<input><soap:body use=\"literal\"/></input>")
+                        .append("<output><soap:body use=\"literal\"/></output>")
+                        .append("<fault name=\"SOAPException\"><soap:fault name=\"SOAPException\" use=\"literal\"/>")
+                        .append("</fault></operation>\n");
+            }
+            wsdl.append("  </binding>\n");
+
+            wsdl.append("  <service name=\"").append(serviceName).append("\">\n    <port name=\"").append(portType)
+                    .append("Port\" binding=\"tns:").append(portType).append("PortBinding\"><soap:address location=\"")
+                    .append(SoapWriter.escape(address)).append("\"/></port>\n  </service>\n</definitions>\n");
+            return wsdl.toString();
+        }
+
+        private static void wrapper(StringBuilder wsdl, String name, String child) {
+            wsdl.append("      <xsd:element name=\"").append(name).append("\" type=\"tns:").append(name)
+                    .append("\"/>\n      <xsd:complexType name=\"").append(name).append("\"><xsd:sequence>");
+            if (child != null) {
+                String[] field = child.split(" ");
+                wsdl.append("<xsd:element name=\"").append(field[0]).append("\" type=\"").append(field[1])
+                        .append("\" form=\"qualified\" minOccurs=\"0\"/>");
+            }
+            wsdl.append("</xsd:sequence></xsd:complexType>\n");
+        }
+
+        private static void message(StringBuilder wsdl, String name) {
+            wsdl.append("  <message name=\"").append(name).append("\"><part name=\"")
+                    .append(name.equals("SOAPException") ? "fault" : "parameters").append("\" element=\"tns:")
+                    .append(name).append("\"/></message>\n");
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * A SOAP fault returned by the Hub.
+ *
+ */
+package hub.sample;
+
+import java.rmi.RemoteException;
+
+/**
+ * class HubSoapFaultException carries the fault code and fault string of a SOAP
+ * fault returned to HubAsyncClient, in the same way an AxisFault does for the
+ * generated stubs.
+ *
+ */
+public class HubSoapFaultException extends RemoteException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String operation;
+    private final String faultCode;
+    private final String faultString;
+    private final int httpStatus;
+
+    public HubSoapFaultException(String operation, int httpStatus, String faultCode, String faultString) {
+        super(operation + " failed: " + (faultString != null ? faultString : "HTTP " + httpStatus));
+        this.operation = operation;
+        this.httpStatus = httpStatus;
+        this.faultCode = faultCode;
+        this.faultString = faultString;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+
+    public String getFaultCode() {
+        return faultCode;
+    }
+
+    public String getFaultString() {
+        return faultString;
+    }
+}
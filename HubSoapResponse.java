@@ -0,0 +1,59 @@
+/**
+ * The raw response to a HubAsyncClient call.
+ *
+ */
+package hub.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * class HubSoapResponse holds the SOAP envelope returned for one operation.  The
+ * body is kept as bytes so it can be handed to a streaming decoder without first
+ * building a DOM or SAAJ tree.
+ *
+ */
+public class HubSoapResponse {
+
+    private final String operation;
+    private final int httpStatus;
+    private final byte[] body;
+    private final long elapsedNanos;
+
+    public HubSoapResponse(String operation, int httpStatus, byte[] body, long elapsedNanos) {
+        this.operation = operation;
+        this.httpStatus = httpStatus;
+        this.body = body;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public InputStream getBodyStream() {
+        return new ByteArrayInputStream(body);
+    }
+
+    /**
+     * Time from sending the request to receiving the complete response.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return operation + " -> HTTP " + httpStatus + ", " + body.length + " bytes: "
+                + new String(body, 0, Math.min(body.length, 512), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Measures the startup time of the clients with and without their class-data-sharing archive.
+ *
+ */
+package hub.sample;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * class HubStartupBenchmark starts new JVMs that run HubTrainingRun once, i.e.
+ * start and make the first calls of every client against a HubSimulator that
+ * answers at once, and compares:
+ *
+ * 1. "no CDS"      - -Xshare:off, every class loaded from its jar
+ * 2. "JDK CDS"     - the JDK's default archive, the JDK's own classes shared
+ * 3. "app archive" - the archive hub.sh train built, the clients' classes too
+ *                    (-XX:SharedArchiveFile for a .jsa, -XX:AOTCache for a .aot)
+ *
+ * The runs of the modes take turns, so that a change in the machine's load hits
+ * them all alike.  The figures are the median and the best of the wall time of the
+ * JVM, from starting it to its exit, and of the time inside it from main() to the
+ * last answer, which leaves out the JVM's own start.
+ *
+ * The classes of axis.jar, xercesImpl.jar, jaxrpc.jar and commons-discovery are
+ * compiled for Java 1.1 to 1.3, older than CDS archives (Java 6 class files and
+ * later), so the JVM loads and verifies them from their jars in every mode; the
+ * gain is in the JDK's classes, the clients' own and the generated stubs.
+ *
+ * Usage: HubStartupBenchmark [runs]
+ *
+ * The children use the class path of this JVM, which must be the one the archive
+ * was built with; hub.sh benchmark sees to it.  Configured with system properties:
+ *
+ *   hub.startup.archive   the archive (default cds/hub.aot if it exists, else cds/hub.jsa)
+ *   hub.startup.java      the java launcher of the children (default that of this JVM)
+ *
+ */
+public class HubStartupBenchmark {
+
+    private static final Pattern IN_JVM = Pattern.compile("rounds in (\\d+) ms");
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        String java = System.getProperty("hub.startup.java", new File(new File(System.getProperty("java.home"),
+                "bin"), "java").getPath());
+        File archive = archive();
+
+        List<Mode> modes = new ArrayList<Mode>();
+        modes.add(new Mode("no CDS", "-Xshare:off"));
+        modes.add(new Mode("JDK CDS", "-Xshare:auto"));
+        if (archive != null) {
+            modes.add(new Mode("app archive", archive.getName().endsWith(".aot") ? "-XX:AOTCache=" + archive
+                    : "-XX:SharedArchiveFile=" + archive));
+        } else {
+            System.out.println("No archive, run hub.sh train first; measuring without it.");
+        }
+
+        // a first run of each, not counted, for the file system cache
+        for (Mode mode : modes) {
+            mode.run(java, false);
+        }
+        for (int i = 0; i < runs; i++) {
+            for (Mode mode : modes) {
+                mode.run(java, true);
+            }
+        }
+
+        System.out.println("Java: " + java + (archive == null ? "" : ", archive: " + archive));
+        System.out.printf("%-12s %14s %14s %14s %14s%n", "", "wall median", "wall best", "in-JVM median",
+                "in-JVM best");
+        for (Mode mode : modes) {
+            System.out.printf("%-12s %11d ms %11d ms %11d ms %11d ms%n", mode.name, median(mode.wall),
+                    Collections.min(mode.wall), median(mode.inJvm), Collections.min(mode.inJvm));
+        }
+        if (archive != null) {
+            long withJdk = median(modes.get(1).wall);
+            long withArchive = median(modes.get(2).wall);
+            System.out.printf("app archive vs JDK CDS: %+d ms (%+.1f%%) of wall time%n", withArchive - withJdk,
+                    100.0 * (withArchive - withJdk) / withJdk);
+        }
+    }
+
+    private static File archive() {
+        String configured = System.getProperty("hub.startup.archive");
+        if (configured != null) {
+            return new File(configured);
+        }
+        for (String name : Arrays.asList("cds/hub.aot", "cds/hub.jsa")) {
+            File file = new File(name);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<Long>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2).longValue();
+    }
+
+    /**
+     * The JVM options of a mode and its figures.
+     */
+    private static final class Mode {
+        final String name;
+        final String option;
+        final List<Long> wall = new ArrayList<Long>();
+        final List<Long> inJvm = new ArrayList<Long>();
+
+        Mode(String name, String option) {
+            this.name = name;
+            this.option = option;
+        }
+
+        void run(String java, boolean count) throws IOException, InterruptedException {
+            ProcessBuilder builder = new ProcessBuilder(java, option, "-Xlog:cds=off", "-Xlog:cds+dynamic=off",
+                    "-Dhub.simulator.latency=fixed:0", "-cp", System.getProperty("java.class.path"),
+                    HubTrainingRun.class.getName(), "1");
+            builder.redirectErrorStream(true);
+            long start = System.nanoTime();
+            Process process = builder.start();
+            long millis = -1;
+            StringBuilder output = new StringBuilder();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                    StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    output.append(line).append('\n');
+                    Matcher matcher = IN_JVM.matcher(line);
+                    if (matcher.find()) {
+                        millis = Long.parseLong(matcher.group(1));
+                    }
+                }
+            }
+            int exit = process.waitFor();
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            if (exit != 0 || millis < 0) {
+                throw new IOException(name + " run failed with exit code " + exit + ":\n" + output);
+            }
+            if (count) {
+                wall.add(Long.valueOf(elapsed));
+                inJvm.add(Long.valueOf(millis));
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Runs every client path once or more, to record what the clients load at startup.
+ *
+ */
+package hub.sample;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.medplus.hub.demographics.webservice.DemographicServicePort;
+import com.medplus.hub.observation.webservice.ObservationResultServicePort;
+import com.medplus.hub.orders.webservice.OrderServicePort;
+import com.medplus.hub.radiology.webservice.RadiologyResultServicePort;
+import com.medplus.hub.results.webservice.ResultsServicePort;
+import com.medplus.results.RetrieveResultsPortType;
+
+/**
+ * class HubTrainingRun is the training run of the clients' class-data-sharing
+ * archive (see hub.sh train): it starts HubSimulator in this JVM and goes through
+ * the paths the clients take, so that the classes they load, Axis, xerces, wsdl4j
+ * and the generated stubs among them, are the ones the archive holds:
+ *
+ *   hl7           HL7ResultsServiceClient.getResults(), retrieve, parse and acknowledge
+ *   observation   ObservationResultsServiceClient.getResults()
+ *   orders        OrderServicePort.submitOrder with OrderServiceClient's order
+ *   adt           ADT_TEMPLATE rendered and sent through an AdtRouter
+ *   radiology     a report encoded and sent through a RadiologySubmissionEngine
+ *   retrieve      ResultsRetrievalServiceClient.getResults() (JAX-WS)
+ *   metrics       a scrape of PrometheusEndpoint
+ *
+ * A path that cannot run, e.g. the JAX-WS one with the JAX-WS runtime jars left
+ * off the class path, is reported and the others go on, and the run then exits
+ * with status 1, so that hub.sh train builds no archive that misses the path's
+ * classes.  The same run, with one round, is what
+ * HubStartupBenchmark times.  The clients' console output is discarded.
+ *
+ * Usage: HubTrainingRun [rounds]
+ *
+ */
+public class HubTrainingRun {
+
+    private static final String ACCOUNT = "training";
+    private static final String PASSWORD = "training";
+
+    private final HubSimulator simulator;
+    private final Map<String, String> outcomes = new LinkedHashMap<String, String>();
+
+    private HubTrainingRun(HubSimulator simulator) {
+        this.simulator = simulator;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        long start = System.nanoTime();
+        HubSimulator simulator = new HubSimulator(0);
+        simulator.start();
+        PrintStream out = System.out;
+        HubTrainingRun run = new HubTrainingRun(simulator);
+        boolean failed = false;
+        try {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            for (int round = 0; round < rounds; round++) {
+                run.round(round);
+            }
+            HubLog.flush();
+        } finally {
+            System.setOut(out);
+            simulator.stop();
+        }
+        for (Map.Entry<String, String> outcome : run.outcomes.entrySet()) {
+            System.out.printf("%-12s %s%n", outcome.getKey(), outcome.getValue());
+            failed |= !"ok".equals(outcome.getValue());
+        }
+        System.out.printf("%d rounds in %.0f ms%n", rounds, (System.nanoTime() - start) / 1e6);
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private void round(int round) {
+        run("hl7", () -> {
+            ResultsServicePort port = HL7ResultsServiceClient.getResultsServicePort(
+                    endpoint(HubSimulator.Service.RESULTS), ACCOUNT, PASSWORD);
+            HL7ResultsServiceClient.getResults(port, null, "5", null, null, () -> false);
+        });
+        run("observation", () -> {
+            ObservationResultServicePort port = ObservationResultsServiceClient.getObservationResultsServicePort(
+                    endpoint(HubSimulator.Service.OBSERVATION_RESULT), ACCOUNT, PASSWORD);
+            ObservationResultsServiceClient.getResults(port, null, "5", null, null);
+        });
+        run("orders", () -> {
+            OrderServicePort port = OrderServiceClient.getOrderServicePort(endpoint(HubSimulator.Service.ORDER),
+                    ACCOUNT, PASSWORD);
+            port.submitOrder(OrderServiceClient.getWebServiceOrder());
+        });
+        run("adt", () -> {
+            DemographicServicePort port = PatientDemographicServiceClient.getDemographicServicePort(
+                    endpoint(HubSimulator.Service.DEMOGRAPHIC), ACCOUNT, PASSWORD);
+            AdtRouter router = new AdtRouter(port, new AdtBatchAggregator(port), null);
+            try {
+                List<CompletableFuture<AdtBatchAggregator.AdtSubmission>> outcomes =
+                        new ArrayList<CompletableFuture<AdtBatchAggregator.AdtSubmission>>();
+                for (int i = 0; i < 4; i++) {
+                    outcomes.add(router.submit(PatientDemographicServiceClient.ADT_TEMPLATE.render("HUBWS", ACCOUNT,
+                            "THO", "20091231093000", "T" + round + "-" + i), i == 0));
+                }
+                for (CompletableFuture<AdtBatchAggregator.AdtSubmission> outcome : outcomes) {
+                    outcome.get();
+                }
+            } finally {
+                router.close();
+            }
+        });
+        run("radiology", () -> {
+            RadiologyResultServicePort port = RadiologyResultServiceClient_Submit.getRadiologyResultServicePort(
+                    endpoint(HubSimulator.Service.RADIOLOGY_RESULT), ACCOUNT, PASSWORD);
+            RadiologySubmissionEngine engine = new RadiologySubmissionEngine(port);
+            try {
+                String header = RadiologyResultServiceClient_Submit.buildRadiologyResultMessage("HUBWS", ACCOUNT,
+                        "THO");
+                engine.submit(new RadiologyReportEncoder().encode(header,
+                        new StringReader(RadiologyResultServiceClient_Submit.REPORT))).get();
+            } finally {
+                engine.close();
+            }
+        });
+        run("retrieve", () -> {
+            RetrieveResultsPortType port = HubPortFactory.getRetrieveResultsPort(
+                    endpoint(HubSimulator.Service.RETRIEVE_RESULTS), ACCOUNT, PASSWORD);
+            new ResultsRetrievalServiceClient().getResults(port, "5", null, null, "Observation");
+        });
+        run("metrics", () -> {
+            PrometheusEndpoint metrics = PrometheusEndpoint.start(new InetSocketAddress("localhost", 0));
+            try {
+                HttpURLConnection connection = (HttpURLConnection) URI.create("http://localhost:" + metrics.getPort()
+                        + "/metrics").toURL().openConnection();
+                try (InputStream in = connection.getInputStream()) {
+                    in.readAllBytes();
+                }
+            } finally {
+                metrics.stop();
+            }
+        });
+    }
+
+    private String endpoint(HubSimulator.Service service) {
+        return simulator.getEndpoint(service);
+    }
+
+    private void run(String path, Step step) {
+        if (outcomes.containsKey(path) && !"ok".equals(outcomes.get(path))) {
+            return;
+        }
+        try {
+            step.run();
+            outcomes.put(path, "ok");
+        } catch (Throwable e) {
+            // a LinkageError too, e.g. no JAX-WS runtime
+            outcomes.put(path, "failed: " + e);
+        }
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+}
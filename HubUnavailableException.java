@@ -0,0 +1,35 @@
+/**
+ * A Hub call that was refused or abandoned on the client side.
+ *
+ */
+package hub.sample;
+
+import java.rmi.RemoteException;
+
+/**
+ * class HubUnavailableException is thrown by the port interceptors when a call is
+ * not sent (e.g. the circuit breaker is open) or is given up (e.g. its deadline
+ * passed).  It is a RemoteException so callers of the Axis ports handle it like
+ * an AxisFault.  JAX-WS ports, whose operations do not declare RemoteException,
+ * get it as the cause of a WebServiceException.
+ *
+ */
+public class HubUnavailableException extends RemoteException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String operation;
+
+    public HubUnavailableException(String operation, String message) {
+        this(operation, message, null);
+    }
+
+    public HubUnavailableException(String operation, String message, Throwable cause) {
+        super(operation + ": " + message, cause);
+        this.operation = operation;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+}
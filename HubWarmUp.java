@@ -0,0 +1,289 @@
+/**
+ * Warms the clients up before they report ready.
+ *
+ */
+package hub.sample;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.axis.Message;
+import org.apache.axis.MessageContext;
+import org.apache.axis.client.AxisClient;
+import org.apache.axis.message.RPCElement;
+import org.apache.axis.message.SOAPEnvelope;
+
+/**
+ * class HubWarmUp takes the first-call costs of a job before its first poll
+ * instead of in it: HubDaemon creates the job's port, and then a HubWarmUp
+ *
+ * 1. opens connections to the job's endpoint and leaves them idle in the
+ *    HttpConnectionPool, TLS handshake done, for the first calls to reuse
+ * 2. runs the job's own paths on synthetic messages, e.g. parsing results and
+ *    building their ACKs, or rendering ADT messages, together with an Axis
+ *    request render and response parse of an HL7 result, round after round until
+ *    a round makes the JIT compile nothing more (the total compilation time of the
+ *    CompilationMXBean stands still for two rounds) or maxSeconds have passed
+ *
+ * Nothing is sent to the Hub but the TLS handshakes.  Connections left idle longer
+ * than hub.http.idleTimeoutMillis are closed by the pool, but their TLS sessions
+ * stay cached and the next handshake to the endpoint is an abbreviated one.
+ *
+ * HubWarmUp also holds the readiness of the JVM: HubDaemon sets it once all its
+ * jobs are set up and warmed up, and clears it when it stops; PrometheusEndpoint
+ * serves it at /ready and as hub_ready, with the figures of each job's warm-up.
+ * The clients that run once and exit are never ready.
+ *
+ * Configured with system properties:
+ *
+ *   hub.warmup                   true to warm the jobs of HubDaemon up (default false)
+ *   hub.warmup.maxSeconds        longest warm-up of a job (default 60)
+ *   hub.warmup.roundIterations   runs of each path per round (default 200)
+ *   hub.warmup.connections       connections opened to each endpoint (default 2)
+ *
+ */
+public final class HubWarmUp {
+
+    private static final HubLog LOG = HubLog.forClass(HubWarmUp.class);
+
+    // the synthetic results the paths cycle through
+    private static final int MESSAGES = 16;
+
+    private static final Map<String, Job> JOBS = new ConcurrentHashMap<String, Job>();
+    private static volatile boolean ready;
+
+    private final long maxNanos;
+    private final int roundIterations;
+    private final int connections;
+    private final List<String> messages = new ArrayList<String>(MESSAGES);
+    private final List<byte[]> messageBytes = new ArrayList<byte[]>(MESSAGES);
+    private AxisClient engine;
+
+    /**
+     * @return a HubWarmUp of the hub.warmup.* properties, or null if hub.warmup is not true
+     */
+    public static HubWarmUp configured() {
+        if (!Boolean.getBoolean("hub.warmup")) {
+            return null;
+        }
+        return new HubWarmUp(TimeUnit.SECONDS.toMillis(Long.getLong("hub.warmup.maxSeconds", 60L).longValue()),
+                Integer.getInteger("hub.warmup.roundIterations", 200).intValue(),
+                Integer.getInteger("hub.warmup.connections", 2).intValue());
+    }
+
+    /**
+     * @param maxMillis longest warm-up of a job
+     * @param roundIterations runs of each path per round
+     * @param connections connections opened to each endpoint
+     */
+    public HubWarmUp(long maxMillis, int roundIterations, int connections) {
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxMillis));
+        this.roundIterations = Math.max(1, roundIterations);
+        this.connections = Math.max(0, connections);
+        SyntheticResults results = new SyntheticResults(1, 12);
+        for (int i = 0; i < MESSAGES; i++) {
+            String message = results.hl7Result(results.nextControlId(), "WARMUP");
+            messages.add(message);
+            messageBytes.add(message.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /**
+     * A synthetic HL7 result, one of a few the iterations cycle through.
+     */
+    public String hl7(int iteration) {
+        return messages.get(iteration % MESSAGES);
+    }
+
+    /**
+     * hl7(iteration) as bytes.
+     */
+    public byte[] hl7Bytes(int iteration) {
+        return messageBytes.get(iteration % MESSAGES);
+    }
+
+    /**
+     * Warms a job up: opens the connections to its endpoint and runs its paths and
+     * the Axis render and parse until they are compiled.  A failure is logged and
+     * ends the warm-up of the job, which then starts cold.
+     *
+     * @param job the job's name
+     * @param endpoint the job's service endpoint
+     * @param stopRequested checked between rounds, the warm-up ends when it is true
+     * @param paths the job's own paths
+     */
+    public void warmUp(String job, String endpoint, BooleanSupplier stopRequested, Path... paths) {
+        long start = System.nanoTime();
+        int opened = connect(job, endpoint);
+        int rounds = 0;
+        boolean compiled = false;
+        try {
+            CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+            boolean monitored = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+            long compilation = monitored ? compiler.getTotalCompilationTime() : 0;
+            int quiet = 0;
+            while (!stopRequested.getAsBoolean() && System.nanoTime() - start < maxNanos) {
+                for (int i = 0; i < roundIterations; i++) {
+                    int iteration = rounds * roundIterations + i;
+                    soap(iteration);
+                    for (Path path : paths) {
+                        path.run(iteration);
+                    }
+                }
+                rounds++;
+                if (!monitored) {
+                    // no way to tell, the rounds stand in for the compilations
+                    compiled = rounds >= 10;
+                } else {
+                    long now = compiler.getTotalCompilationTime();
+                    quiet = now == compilation ? quiet + 1 : 0;
+                    compilation = now;
+                    compiled = quiet >= 2;
+                }
+                if (compiled) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("warm-up failed", "job", job, "error", e);
+        }
+        long nanos = System.nanoTime() - start;
+        JOBS.put(job, new Job(job, nanos, rounds, opened, compiled));
+        LOG.info("warmed up", "job", job, "millis", Long.valueOf(TimeUnit.NANOSECONDS.toMillis(nanos)), "rounds",
+                Integer.valueOf(rounds));
+    }
+
+    /**
+     * Leases the connections at once, so each is a new one, and returns them to the
+     * pool open.
+     */
+    private int connect(String job, String endpoint) {
+        HttpConnectionPool pool = HttpConnectionPool.shared();
+        List<HttpConnectionPool.Connection> leased = new ArrayList<HttpConnectionPool.Connection>(connections);
+        try {
+            URL url = URI.create(endpoint).toURL();
+            for (int i = 0; i < connections; i++) {
+                leased.add(pool.lease(url, 0));
+            }
+        } catch (Exception e) {
+            LOG.warn("connection failed", "job", job, "error", e);
+        } finally {
+            for (HttpConnectionPool.Connection connection : leased) {
+                pool.release(connection, true);
+            }
+        }
+        return leased.size();
+    }
+
+    /**
+     * An acknowledgeHL7Results request rendered by Axis and parsed back as a response.
+     */
+    private void soap(int iteration) throws Exception {
+        if (engine == null) {
+            engine = new AxisClient(PooledHttpSender.getEngineConfiguration());
+        }
+        SOAPEnvelope envelope = new SOAPEnvelope();
+        envelope.addBodyElement(new RPCElement(HubAsyncClient.RESULTS_NAMESPACE, "acknowledgeHL7Results",
+                new Object[] { "WARMUP" + iteration, hl7Bytes(iteration) }));
+        MessageContext requestContext = new MessageContext(engine);
+        Message request = new Message(envelope);
+        request.setMessageContext(requestContext);
+        requestContext.setRequestMessage(request);
+        byte[] body = request.getSOAPPartAsBytes();
+
+        MessageContext responseContext = new MessageContext(engine);
+        Message response = new Message(new ByteArrayInputStream(body), false);
+        response.setMessageContext(responseContext);
+        responseContext.setResponseMessage(response);
+        ((RPCElement) response.getSOAPEnvelope().getFirstBody()).getParams();
+    }
+
+    /**
+     * True once HubDaemon has set its jobs up and warmed them up, until it stops.
+     */
+    public static boolean isReady() {
+        return ready;
+    }
+
+    public static void setReady(boolean isReady) {
+        if (ready != isReady) {
+            ready = isReady;
+            LOG.info(isReady ? "ready" : "not ready", "jobs", Integer.valueOf(JOBS.size()));
+        }
+    }
+
+    /**
+     * The warm-ups so far, one per job.
+     */
+    public static Collection<Job> jobs() {
+        return Collections.unmodifiableCollection(JOBS.values());
+    }
+
+    /**
+     * One run of a path of a job, on the iteration's synthetic message.
+     */
+    public interface Path {
+        void run(int iteration) throws Exception;
+    }
+
+    /**
+     * The figures of the warm-up of a job.
+     */
+    public static final class Job {
+        private final String name;
+        private final long nanos;
+        private final int rounds;
+        private final int connections;
+        private final boolean compiled;
+
+        Job(String name, long nanos, int rounds, int connections, boolean compiled) {
+            this.name = name;
+            this.nanos = nanos;
+            this.rounds = rounds;
+            this.connections = connections;
+            this.compiled = compiled;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public int getRounds() {
+            return rounds;
+        }
+
+        public int getConnections() {
+            return connections;
+        }
+
+        /**
+         * False if the warm-up ended before the JIT was done, at maxSeconds, on a
+         * failure or at stop.
+         */
+        public boolean isCompiled() {
+            return compiled;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, " + rounds + " rounds, " + connections
+                    + " connections" + (compiled ? "" : ", not compiled");
+        }
+    }
+}
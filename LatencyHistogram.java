@@ -0,0 +1,204 @@
+/**
+ * A lock-free latency histogram with bounded relative error.
+ *
+ */
+package hub.sample;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * class LatencyHistogram counts durations in nanoseconds in log-linear buckets, as
+ * HdrHistogram does: every power of two is split into 128 equal buckets, so a
+ * recorded value is known to within 1/128 (0.8%) whatever its size, from 1 ns to
+ * about an hour (longer durations are counted as an hour).  That is 4608 counters,
+ * 36 KB per histogram.
+ *
+ * record() increments one counter of an AtomicLongArray and takes no lock, so any
+ * number of threads can record at once.  snapshot() copies the counters while the
+ * recorders go on; a value recorded during the copy may or may not be in it, but
+ * the snapshot itself is consistent (its count is the sum of its buckets).
+ *
+ */
+public class LatencyHistogram {
+
+    // 2^7 = 128 buckets per power of two
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HIGHEST_BIT = 41;
+    private static final long HIGHEST_VALUE = (1L << (HIGHEST_BIT + 1)) - 1;
+    private static final int BUCKETS = (HIGHEST_BIT - SUB_BUCKET_BITS + 2) << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * Counts one duration.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0L, Math.min(HIGHEST_VALUE, nanos));
+        counts.incrementAndGet(index(value));
+        totalNanos.add(value);
+        maxNanos.accumulate(value);
+    }
+
+    /**
+     * A copy of the counts so far.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, totalNanos.sum(), maxNanos.get());
+    }
+
+    /**
+     * Fills counts[i] with the number of values up to and including bounds[i] (in
+     * ascending order), to within the histogram's precision, e.g. for the buckets of
+     * a Prometheus histogram, and returns the number of all values.  It reads the live counters and allocates nothing,
+     * so a value recorded meanwhile may be in some of the counts and not in others.
+     */
+    public long cumulativeCounts(long[] bounds, long[] counts) {
+        long seen = 0;
+        int bound = 0;
+        int last = bounds.length == 0 ? -1 : index(Math.max(0L, Math.min(HIGHEST_VALUE, bounds[0])));
+        for (int i = 0; i < BUCKETS; i++) {
+            while (bound < bounds.length && i > last) {
+                counts[bound++] = seen;
+                last = bound < bounds.length ? index(Math.max(0L, Math.min(HIGHEST_VALUE, bounds[bound]))) : -1;
+            }
+            seen += this.counts.get(i);
+        }
+        while (bound < bounds.length) {
+            counts[bound++] = seen;
+        }
+        return seen;
+    }
+
+    /**
+     * The sum of the values recorded so far.
+     */
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    static int index(long value) {
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        if (highestBit < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * The middle of the values counted in a bucket.
+     */
+    static long value(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+        return lowest + (1L << shift) / 2;
+    }
+
+    /**
+     * The counts of a LatencyHistogram at one moment.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) totalNanos / count;
+        }
+
+        /**
+         * The duration below or at which the given fraction of the values lie, e.g.
+         * getValueAtPercentile(0.99) for the 99th percentile; 0 if nothing was counted.
+         */
+        public long getValueAtPercentile(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(value(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        /**
+         * The number of values up to and including the given duration, e.g. for the
+         * buckets of a Prometheus histogram.  Exact to within the histogram's precision.
+         */
+        public long getCountAtOrBelow(long nanos) {
+            if (nanos < 0) {
+                return 0;
+            }
+            int last = index(Math.min(HIGHEST_VALUE, nanos));
+            long seen = 0;
+            for (int i = 0; i <= last; i++) {
+                seen += counts[i];
+            }
+            return seen;
+        }
+
+        /**
+         * The values counted in this snapshot and not in an earlier one of the same
+         * histogram, e.g. the last minute's.  The maximum is that of the later snapshot.
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] difference = new long[counts.length];
+            long differenceCount = 0;
+            for (int i = 0; i < counts.length; i++) {
+                difference[i] = Math.max(0L, counts[i] - earlier.counts[i]);
+                differenceCount += difference[i];
+            }
+            return new Snapshot(difference, differenceCount, totalNanos - earlier.totalNanos, maxNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "count=%d, mean=%.1f ms, p50=%.1f ms, p99=%.1f ms, p999=%.1f ms, max=%.1f ms",
+                    count, getMeanNanos() / 1e6, millis(0.5), millis(0.99), millis(0.999), maxNanos / 1e6);
+        }
+
+        private double millis(double fraction) {
+            return getValueAtPercentile(fraction) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/**
+ * Latency, size and fault figures of every Hub operation.
+ *
+ */
+package hub.sample;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.axis.AxisFault;
+
+/**
+ * class MetricsInterceptor records, per port interface and operation (e.g.
+ * "ResultsServicePort.getResults"):
+ *
+ *   - the latency of each call to the Hub in a LatencyHistogram
+ *   - calls and failed calls, and the calls in flight
+ *   - request and response body bytes, as sent and received
+ *   - failed calls by fault code, see faultCode()
+ *
+ * Nothing takes a lock on the call path: the counters are LongAdders and the
+ * histogram is lock-free.  snapshot() and report() read everything while calls
+ * go on.
+ *
+ * PortProxies.forHub() puts it innermost, on the thread that calls the port, so
+ * the latency is that of one request to the Hub (a hedged duplicate is a call of
+ * its own) and excludes waiting for a rate-limit permit or a concurrency slot
+ * (see RateLimitInterceptor and ConcurrencyLimitInterceptor for those).  The byte
+ * counts come from PooledHttpSender, which reports them for the call running on
+ * its thread; the JAX-WS ports do their own HTTP and have no byte counts.
+ *
+ * The faults are counted by a code of their kind, e.g. "soap_client" or
+ * "http_503", not by fault string: a validation message of the Hub can quote the
+ * message it rejects, patient data included, and would make a new label value
+ * of every message.  FlightRecorderInterceptor records the fault strings.
+ *
+ */
+public class MetricsInterceptor implements PortInterceptor {
+
+    private static final int MAX_FAULT_STRING_LENGTH = 200;
+
+    private static final ConcurrentMap<String, MetricsInterceptor> PORTS = new ConcurrentHashMap<String, MetricsInterceptor>();
+    private static final ConcurrentMap<String, OperationMetrics> OPERATIONS = new ConcurrentHashMap<String, OperationMetrics>();
+    private static final ThreadLocal<OperationMetrics> CURRENT = new ThreadLocal<OperationMetrics>();
+
+    private final String port;
+
+    public MetricsInterceptor(String port) {
+        this.port = port;
+    }
+
+    /**
+     * The shared instance for a port interface; its operations are named after
+     * the interface's simple name.
+     */
+    public static MetricsInterceptor forPort(Class<?> portInterface) {
+        String name = portInterface.getSimpleName();
+        MetricsInterceptor interceptor = PORTS.get(name);
+        if (interceptor == null) {
+            MetricsInterceptor created = new MetricsInterceptor(name);
+            interceptor = PORTS.putIfAbsent(name, created);
+            if (interceptor == null) {
+                interceptor = created;
+            }
+        }
+        return interceptor;
+    }
+
+    public Object intercept(PortInvocation invocation) throws Throwable {
+        OperationMetrics metrics = getOperation(port + "." + invocation.getOperation());
+        OperationMetrics outer = CURRENT.get();
+        CURRENT.set(metrics);
+        metrics.inFlight.increment();
+        long start = System.nanoTime();
+        try {
+            Object result = invocation.proceed();
+            long nanos = System.nanoTime() - start;
+            metrics.latency.record(nanos);
+            metrics.calls.increment();
+            invocation.recordRoundTrip(nanos);
+            return result;
+        } catch (Throwable t) {
+            metrics.latency.record(System.nanoTime() - start);
+            metrics.calls.increment();
+            metrics.errors.increment();
+            metrics.fault(faultCode(t));
+            throw t;
+        } finally {
+            metrics.inFlight.decrement();
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+        }
+    }
+
+    /**
+     * Adds the body sizes of an HTTP exchange to the call running on this thread,
+     * if any.  Called by the transport.
+     */
+    public static void recordBytes(long requestBytes, long responseBytes) {
+        OperationMetrics metrics = CURRENT.get();
+        if (metrics != null) {
+            metrics.requestBytes.add(requestBytes);
+            metrics.responseBytes.add(responseBytes);
+        }
+    }
+
+    static OperationMetrics getOperation(String name) {
+        OperationMetrics metrics = OPERATIONS.get(name);
+        if (metrics == null) {
+            OperationMetrics created = new OperationMetrics(name);
+            metrics = OPERATIONS.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * The kind of failure of a call, one of:
+     *
+     *   throttled      a throttling fault (RateLimitInterceptor.isThrottled())
+     *   http_[status]  an HTTP status outside 2xx without a SOAP fault, e.g. http_404
+     *   unavailable    refused or given up on the client side (HubUnavailableException)
+     *   timeout        a socket timeout
+     *   io             another I/O error
+     *   soap_client    a SOAP fault with a Client fault code, e.g. a validation error
+     *   soap_server    a SOAP fault with a Server fault code
+     *   soap_other     a SOAP fault with another fault code
+     *   other          anything else
+     */
+    static String faultCode(Throwable t) {
+        if (RateLimitInterceptor.isThrottled(t)) {
+            return "throttled";
+        }
+        int status = ResilienceInterceptor.httpStatus(t);
+        if (status >= 0) {
+            return status > 0 ? "http_" + status : "http";
+        }
+        String soapCode = null;
+        for (Throwable cause = t; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof HubUnavailableException) {
+                return "unavailable";
+            } else if (cause instanceof SocketTimeoutException) {
+                return "timeout";
+            } else if (cause instanceof IOException && !(cause instanceof RemoteException)) {
+                return "io";
+            } else if (soapCode == null && cause instanceof AxisFault
+                    && ((AxisFault) cause).getFaultCode() != null) {
+                soapCode = ((AxisFault) cause).getFaultCode().getLocalPart();
+            } else if (soapCode == null && cause instanceof HubSoapFaultException) {
+                soapCode = ((HubSoapFaultException) cause).getFaultCode();
+            }
+        }
+        if (soapCode == null) {
+            return "other";
+        }
+        // e.g. "soapenv:Server.userException"
+        soapCode = soapCode.substring(soapCode.indexOf(':') + 1);
+        if (soapCode.startsWith("Client")) {
+            return "soap_client";
+        } else if (soapCode.startsWith("Server")) {
+            return "soap_server";
+        }
+        return "soap_other";
+    }
+
+    /**
+     * The SOAP fault string of a failed call, or the exception's message.
+     */
+    static String faultString(Throwable t) {
+        String text = null;
+        for (Throwable cause = t; cause != null && text == null; cause = cause.getCause() == cause ? null
+                : cause.getCause()) {
+            if (cause instanceof AxisFault) {
+                text = ((AxisFault) cause).getFaultString();
+            } else if (cause instanceof HubUnavailableException) {
+                text = cause.getMessage();
+            } else if (cause.getCause() == null) {
+                text = cause.getMessage();
+            }
+        }
+        if (text == null || text.length() == 0) {
+            text = t.getClass().getSimpleName();
+        }
+        text = text.trim();
+        return text.length() > MAX_FAULT_STRING_LENGTH ? text.substring(0, MAX_FAULT_STRING_LENGTH) : text;
+    }
+
+    /**
+     * The live figures of all operations called so far, in no particular order;
+     * for PrometheusEndpoint, which reads them without taking a snapshot.
+     */
+    static Collection<OperationMetrics> operations() {
+        return OPERATIONS.values();
+    }
+
+    /**
+     * The figures of all operations called so far, sorted by name.
+     */
+    public static List<Snapshot> snapshot() {
+        List<String> names = new ArrayList<String>(OPERATIONS.keySet());
+        Collections.sort(names);
+        List<Snapshot> snapshots = new ArrayList<Snapshot>(names.size());
+        for (String name : names) {
+            snapshots.add(OPERATIONS.get(name).snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * One line per operation, e.g.
+     *   ObservationResultServicePort.getResults: calls=120, errors=1, count=120, mean=48.2 ms, ... bytes=51840/2211840, faults={soap_server=1}
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        for (Snapshot snapshot : snapshot()) {
+            report.append(snapshot).append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsInterceptor[" + port + "]";
+    }
+
+    /**
+     * The live figures of one operation.
+     */
+    static final class OperationMetrics {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+        private final ConcurrentMap<String, LongAdder> faults = new ConcurrentHashMap<String, LongAdder>();
+
+        OperationMetrics(String name) {
+            this.name = name;
+        }
+
+        void fault(String faultCode) {
+            LongAdder count = faults.get(faultCode);
+            if (count == null) {
+                LongAdder created = new LongAdder();
+                count = faults.putIfAbsent(faultCode, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            count.increment();
+        }
+
+        String getName() {
+            return name;
+        }
+
+        LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        long getCalls() {
+            return calls.sum();
+        }
+
+        long getErrors() {
+            return errors.sum();
+        }
+
+        long getInFlight() {
+            return inFlight.sum();
+        }
+
+        long getRequestBytes() {
+            return requestBytes.sum();
+        }
+
+        long getResponseBytes() {
+            return responseBytes.sum();
+        }
+
+        Map<String, LongAdder> getFaults() {
+            return faults;
+        }
+
+        Snapshot snapshot() {
+            Map<String, Long> faultCounts = new TreeMap<String, Long>();
+            for (Map.Entry<String, LongAdder> fault : faults.entrySet()) {
+                faultCounts.put(fault.getKey(), Long.valueOf(fault.getValue().sum()));
+            }
+            return new Snapshot(name, calls.sum(), errors.sum(), requestBytes.sum(), responseBytes.sum(),
+                    latency.snapshot(), faultCounts);
+        }
+    }
+
+    /**
+     * The figures of one operation at one moment.
+     */
+    public static final class Snapshot {
+        private final String operation;
+        private final long calls;
+        private final long errors;
+        private final long requestBytes;
+        private final long responseBytes;
+        private final LatencyHistogram.Snapshot latency;
+        private final Map<String, Long> faults;
+
+        Snapshot(String operation, long calls, long errors, long requestBytes, long responseBytes,
+                LatencyHistogram.Snapshot latency, Map<String, Long> faults) {
+            this.operation = operation;
+            this.calls = calls;
+            this.errors = errors;
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+            this.latency = latency;
+            this.faults = Collections.unmodifiableMap(new LinkedHashMap<String, Long>(faults));
+        }
+
+        /**
+         * e.g. "ResultsServicePort.getResults"
+         */
+        public String getOperation() {
+            return operation;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getRequestBytes() {
+            return requestBytes;
+        }
+
+        public long getResponseBytes() {
+            return responseBytes;
+        }
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        /**
+         * Failed calls by fault code.
+         */
+        public Map<String, Long> getFaults() {
+            return faults;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: calls=%d, errors=%d, %s, bytes=%d/%d, faults=%s", operation, calls,
+                    errors, latency, requestBytes, responseBytes, faults);
+        }
+    }
+
+}
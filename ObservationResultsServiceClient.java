@@ -10,6 +10,7 @@ package hub.sample;
 
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.function.BooleanSupplier;
 
 import javax.xml.rpc.ServiceException;
 import javax.xml.rpc.Stub;
@@ -33,6 +34,8 @@ import com.medplus.hub.observation.webservice.ObservationResultServicePortStub;
  */
 
 public class ObservationResultsServiceClient {
+    private static final HubLog LOG = HubLog.forClass(ObservationResultsServiceClient.class);
+
     /**
      * Replace "test" and "customer1" with the username and password MedPlus has
      * assigned to you.
@@ -113,7 +116,7 @@ public class ObservationResultsServiceClient {
      * response to retrieving the lab results. The return valid is used in the
      * acknowledgeResults() call.
      */
-    private static AcknowledgedResult buildAcknowledgement(ObservationResult result) {
+    static AcknowledgedResult buildAcknowledgement(ObservationResult result) {
     	
     	AcknowledgedResult ack = new AcknowledgedResult();
     	ack.setResultId(result.getResultId());
@@ -137,14 +140,23 @@ public class ObservationResultsServiceClient {
      * the web service "port/stub".
      */
     private static ObservationResultServicePort getObservationResultsServicePort() throws IOException, ServiceException {
-        ObservationResultService service = new ObservationResultServiceLocator();
+        return getObservationResultsServicePort(ENDPOINT, USERNAME, PASSWORD);
+    }
+
+    /**
+     * The same for another endpoint or Hub account, e.g. HubSimulator in HubLoadTest.
+     */
+    static ObservationResultServicePort getObservationResultsServicePort(String endpoint, String username,
+            String password) throws IOException, ServiceException {
+        ObservationResultService service = new ObservationResultServiceLocator(PooledHttpSender.getEngineConfiguration());
         ObservationResultServicePortStub port = null;
 
         port = (ObservationResultServicePortStub) service.getObservationResultServicePort();
-        port._setProperty(Stub.USERNAME_PROPERTY, USERNAME);
-        port._setProperty(Stub.PASSWORD_PROPERTY, PASSWORD);
-        port._setProperty(Stub.ENDPOINT_ADDRESS_PROPERTY, ENDPOINT);
-        return port;
+        port._setProperty(Stub.USERNAME_PROPERTY, username);
+        port._setProperty(Stub.PASSWORD_PROPERTY, password);
+        port._setProperty(Stub.ENDPOINT_ADDRESS_PROPERTY, endpoint);
+        // rate limit, deadlines, hedged reads and a circuit breaker, see PortProxies.forHub()
+        return PortProxies.forHub(ObservationResultServicePort.class, port, endpoint, username);
     }
 
     /**
@@ -183,27 +195,40 @@ public class ObservationResultsServiceClient {
     }
 
     private static AcknowledgedResult[] generateAckMessages(ObservationResultResponse resultsResponse) {
+		HubEvents.AckBuild event = new HubEvents.AckBuild();
+		event.begin();
+
 		// Get the results from the response object.
 		ObservationResult[] results = resultsResponse.getObservationResults();
 
-		System.out.println("Acknowledging " + results.length + " results.");
+		LOG.info("acknowledging", "requestId", resultsResponse.getRequestId(), "results",
+				Integer.valueOf(results.length));
 
 		AcknowledgedResult[] ackMessages = new AcknowledgedResult[results.length];
 
 		for (int i = 0; i < results.length; i++) {
 			// Process each message and build an Acknowledgement object to
 			// acknowledge the result.
-			String currentHL7 = new String(results[i].getHL7Message());
-			System.out.println("Message: " + i);
-			System.out.println("---------");
-			System.out.println("The HL7 Message: " + currentHL7);
-			String pdfCount = results[i].getDocuments() != null ? "" + results[i].getDocuments().length : "0";
-			System.out.println("There are " + pdfCount + " attached PDFs.\n\n");
+			int pdfCount = results[i].getDocuments() != null ? results[i].getDocuments().length : 0;
+			LOG.debug("result", "resultId", results[i].getResultId(), "pdfs", Integer.valueOf(pdfCount));
+			// the HL7 message itself only if hub.log.payloadSample asks for it
+			LOG.payload("message", "resultId", results[i].getResultId(), results[i].getHL7Message());
 			// Process Result.
 			// Send an Ack/Nack message back for each result received.
 			ackMessages[i] = buildAcknowledgement(results[i]);
 		}
 
+		if (event.shouldCommit()) {
+			event.client = "ObservationResultsServiceClient";
+			event.resultServiceType = "Observation";
+			event.requestId = resultsResponse.getRequestId();
+			event.results = results.length;
+			event.acks = ackMessages.length;
+			for (ObservationResult result : results) {
+				event.hl7Bytes += result.getHL7Message() == null ? 0 : result.getHL7Message().length;
+			}
+			event.commit();
+		}
 		return ackMessages;
 	}
     
@@ -220,8 +245,18 @@ public class ObservationResultsServiceClient {
      * 6. If more results are available, call getMoreResults().  Repeat from step 2.
      * 
      */
-    private static void getResults(ObservationResultServicePort proxy, ProviderAccount[] providerAccountsArray,
+    static void getResults(ObservationResultServicePort proxy, ProviderAccount[] providerAccountsArray,
 			String maxMessages, String startDate, String endDate) throws RemoteException {
+		getResults(proxy, providerAccountsArray, maxMessages, startDate, endDate, () -> false);
+	}
+
+    /**
+     * The same, stopping after the acknowledgement of a pass once stopRequested is
+     * true, e.g. when HubDaemon shuts down; the results left are retrieved next time.
+     */
+    static void getResults(ObservationResultServicePort proxy, ProviderAccount[] providerAccountsArray,
+			String maxMessages, String startDate, String endDate, BooleanSupplier stopRequested)
+			throws RemoteException {
 
 		boolean initialRequest = true;
 		boolean processing = true;
@@ -269,7 +304,7 @@ public class ObservationResultsServiceClient {
 				ack.setAcknowledgedResults(generateAckMessages(response));
 				proxy.acknowledgeResults(ack);
 
-				processing = response.getIsMore().booleanValue();
+				processing = response.getIsMore().booleanValue() && !stopRequested.getAsBoolean();
 			}
 		}
 	}     
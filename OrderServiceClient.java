@@ -232,7 +232,7 @@ public class OrderServiceClient {
      * getWebServiceOrder: construct the WebService request object using member data
      * 
      */
-    private static Order getWebServiceOrder() {
+    static Order getWebServiceOrder() {
         Order retval = new Order();
         // orderMessage is used to set the only parameter in the order request object.
         String orderMessage = buildOrderMessage(SENDING_APPLICATION, SENDING_FACILITY, RECEIVING_FACILITY);
@@ -279,20 +279,28 @@ public class OrderServiceClient {
      * 
      */
     private static OrderServicePort getOrderServicePort() throws IOException {
-        OrderService service = new OrderServiceLocator();
+        return getOrderServicePort(ENDPOINT, USERNAME, PASSWORD);
+    }
+
+    /**
+     * The same for another endpoint or Hub account, e.g. HubSimulator in HubLoadTest.
+     */
+    static OrderServicePort getOrderServicePort(String endpoint, String username, String password) throws IOException {
+        OrderService service = new OrderServiceLocator(PooledHttpSender.getEngineConfiguration());
         OrderServicePortStub port = null;
 
         try {
 
             port = (OrderServicePortStub) service.getOrderServicePort();
-            port._setProperty(Stub.USERNAME_PROPERTY, USERNAME);
-            port._setProperty(Stub.PASSWORD_PROPERTY, PASSWORD);
-            port._setProperty(Stub.ENDPOINT_ADDRESS_PROPERTY, ENDPOINT);
+            port._setProperty(Stub.USERNAME_PROPERTY, username);
+            port._setProperty(Stub.PASSWORD_PROPERTY, password);
+            port._setProperty(Stub.ENDPOINT_ADDRESS_PROPERTY, endpoint);
             
         } catch (ServiceException e) {
             e.printStackTrace();
         }
 
-        return port;
+        // rate limit, deadlines, hedged reads and a circuit breaker, see PortProxies.forHub()
+        return port == null ? null : PortProxies.forHub(OrderServicePort.class, port, endpoint, username);
     }
 }
\ No newline at end of file
@@ -11,19 +11,14 @@ package hub.sample;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.Authenticator;
-import java.net.PasswordAuthentication;
-import java.net.URL;
 import java.text.MessageFormat;
 import java.util.List;
 import java.util.Properties;
 
-import javax.xml.namespace.QName;
 import javax.xml.ws.soap.SOAPFaultException;
 
 import com.medplus.orders.ObjectFactory;
 import com.medplus.orders.OrderSubmissionPortType;
-import com.medplus.orders.OrderSubmissionService;
 import com.medplus.orders.OrderSupportServiceRequest;
 import com.medplus.orders.OrderSupportServiceResponse;
 
@@ -110,7 +105,7 @@ public class OrderSubmissionAbnReqClient {
      * 
      * The sendOrder() method will:
      * 
-     * 1. Set up HTTP Authentication
+     * 1. Get a port with the HTTP credentials bound to it
      * 2. Create an Order request object which contains a valid HL7 Order message 
      * 3. Submit a Lab Order calling submitOrder(). 
      * 4. Output response values to console.
@@ -119,30 +114,19 @@ public class OrderSubmissionAbnReqClient {
     private void sendOrder() {
 
         // -------------------------------------------------
-        // STEP 1: SET UP AUTHENTICATION
-        // -------------------------------------------------
-
-        Authenticator.setDefault(new Authenticator() {
-            @Override
-            protected PasswordAuthentication getPasswordAuthentication() {
-                return new PasswordAuthentication(username, password.toCharArray());
-            }
-        });
-
-        // -------------------------------------------------
-        // STEP 2: Create web service client and port
+        // STEP 1: Create web service client and port
         // -------------------------------------------------
 
         System.out.println("Creating service client for " + endpoint);
         try {
 
-            OrderSubmissionService service = new OrderSubmissionService(new URL(endpoint + "?wsdl"), new QName(
-                    "http://medplus.com/orders", "OrderSubmissionService"));
-            System.out.println("Retrieving the port from the following service: " + service);
-            OrderSubmissionPortType port = service.getOrderSubmissionPortTypePort();
+            // The WSDL is read from the local cache and the port is shared,
+            // see HubPortFactory.  The credentials are bound to the port rather
+            // than set JVM-wide with Authenticator.setDefault().
+            OrderSubmissionPortType port = HubPortFactory.getOrderSubmissionPort(endpoint, username, password);
 
             // --------------------------------------------------------------
-            // STEP 3: call WebService function that submits order to the
+            // STEP 2: call WebService function that submits order to the
             // Hub
             // --------------------------------------------------------------
             System.out.println("Invoking the submitOrder operation on the port.");
@@ -150,7 +134,7 @@ public class OrderSubmissionAbnReqClient {
             OrderSupportServiceResponse response = port.getOrderDocuments(submitOrderRequest);
 
             // ------------------------------------------------
-            // STEP 4: Examine response coming back for the Hub
+            // STEP 3: Examine response coming back for the Hub
             // ------------------------------------------------
             System.out.println("Status: " + response.getStatus() + "\nTransaction ID: "
                     + response.getOrderTransactionUid() + "\nMessage Control ID: " + response.getMessageControlId()
@@ -28,7 +28,14 @@ public class ParsedHL7Message {
     private String messageControlId;
 
     ParsedHL7Message(String message) {
+        HubEvents.Hl7Parse event = new HubEvents.Hl7Parse();
+        event.begin();
         parse(message);
+        if (event.shouldCommit()) {
+            event.messageControlId = messageControlId;
+            event.length = message.length();
+            event.commit();
+        }
     }
 
     private void parse(String message) {
@@ -9,7 +9,14 @@
 package hub.sample;
 
 import java.io.IOException;
+import java.io.File;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import javax.xml.rpc.ServiceException;
 import javax.xml.rpc.Stub;
@@ -24,6 +31,13 @@ import com.medplus.hub.demographics.webservice.DemographicServicePortStub;
 /**
  * class PatientDemographicServiceClient sends patient demographic information to Hub Information Services.
  * 
+ * The ADT message is ADT_MESSAGE with its placeholders filled in (see HL7Template),
+ * or a site-specific variant of it, configured with system properties:
+ * 
+ *   hub.adt.template                 a file with the message, one segment per line
+ *   hub.adt.template.placeholders    placeholders of the file besides those of ADT_MESSAGE, comma separated
+ *   hub.adt.template.[placeholder]   the value of each of them
+ * 
  */
 
 public class PatientDemographicServiceClient {
@@ -65,81 +79,189 @@ public class PatientDemographicServiceClient {
         "PV1|1|O\r" +
         "GT1|1|88|Smith^John^M^JR^DR^MD||3710 Emery Lake Ln^Street line2^Cincinnati^OH^45010|^^^^1^513^8888888^1234|^^^^1^238^4444444^5678|19960708112233|M|I|8|287889999||||ABC Inc.^Limited^M |4567 Kelly Drive^address line 2^Oxford^OH^45068|55566677777|4556|FT|Guarantor Organization\r" +
         "IN1|1|INSID123^Insurance Plan ABC|INSCOID123|insuranceco|1800 Insurance Rd.^^Detroit^MI^45777||^^^^1^555^6667777^1234|3433|name|||||^19960707|||||||||||||||||||||||||||||||||T\r";
+    
+    public static final HL7Template ADT_TEMPLATE = HL7Template.compile(ADT_MESSAGE, SENDING_APPLICATION_PLACEHOLDER,
+            HUB_ACCOUNT_PLACEHOLDER, RECEIVING_FACILITY_PLACEHOLDER, DATE_TIME_PLACEHOLDER, MSG_CONTROL_ID_PLACEHOLDER);
 
     public static void main(String[] args) {
+        // the demographics the Hub has already, see hub.adt.digest.file
+        AdtDigestIndex index = AdtDigestIndex.openConfigured();
         try {
             // Create a web service proxy
             DemographicServicePort proxy = getDemographicServicePort();
             
             // create the DemographicRequest and populate it with the ADT_MESSAGE
             DemographicRequest request = new DemographicRequest();
-            request.setADTMessage(createADTMessage().getBytes());
-            
-            // submit the Realtime message
-            DemographicResponse response = proxy.submitRealTimeADTMessage(request);
-            
-            // print the status
-            System.out.println("Status: " + response.getStatus());
+            request.setADTMessage(createADTMessage());
             
-            // print errors if applicable
-            String[] errors = response.getErrors();
-            
-            if(errors != null && errors.length > 0) {
-                System.out.println("Errors:");
-                for(int i=0; i<errors.length; i++) {
-                    System.out.println(errors[i]);
-                }
+            // submit the message; the router sends it in real time, or with the
+            // Batch messages once there is a backlog (see AdtRouter), unless the
+            // Hub has these demographics already
+            AdtRouter router = new AdtRouter(proxy, new AdtBatchAggregator(proxy), index);
+            AdtBatchAggregator.AdtSubmission submission;
+            try {
+                submission = router.submit(request.getADTMessage(), false).get();
+            } finally {
+                router.close();
             }
             
-            // submit the Batch message
-            response = null;
-            response = proxy.submitBatchADTMessage(request);
-            
             // print the status
-            System.out.println("Status: " + response.getStatus());
-            
-            // print errors if applicable
-            errors = null;
-            errors = response.getErrors();
+            System.out.println("Status: " + (submission == null ? "not sent, demographics unchanged"
+                    : submission.getStatus()));
             
-            if(errors != null && errors.length > 0) {
+            // print errors if applicable, this message's own and those of its batch
+            if(submission != null && !submission.isAccepted()) {
                 System.out.println("Errors:");
-                for(int i=0; i<errors.length; i++) {
-                    System.out.println(errors[i]);
+                for(String error : submission.getErrors()) {
+                    System.out.println(error);
+                }
+                for(String error : submission.getBatchErrors()) {
+                    System.out.println(error);
                 }
             }
         } catch (RemoteException e) {
             e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
             e.printStackTrace();
         } catch (ServiceException e) {
             e.printStackTrace();
+        } finally {
+            if (index != null) {
+                try {
+                    index.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
+    /**
+     * Submits an ADT message in real time, unless the index shows the Hub accepted
+     * the same demographics for the patient before.  The index learns the
+     * demographics of every message the Hub accepts.
+     *
+     * @param index the digest index, null to send every message
+     * @return the Hub's response, null if the message was not sent
+     */
+    static DemographicResponse submitRealTimeIfChanged(DemographicServicePort proxy, AdtDigestIndex index,
+            DemographicRequest request) throws RemoteException {
+        AdtDigestIndex.Lookup lookup = index == null ? null : index.lookup(request.getADTMessage());
+        if (lookup != null && index.isUnchanged(lookup)) {
+            ClientMetrics.unchanged("DemographicServicePort.submitRealTimeADTMessage");
+            return null;
+        }
+        DemographicResponse response;
+        try {
+            response = proxy.submitRealTimeADTMessage(request);
+        } catch (RemoteException | RuntimeException e) {
+            // the Hub may or may not have it
+            if (lookup != null) {
+                index.forget(lookup);
+            }
+            throw e;
+        }
+        if (lookup != null) {
+            if (isAccepted(response)) {
+                index.record(lookup);
+            } else {
+                index.forget(lookup);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * The same for the batch path: queues the message with the aggregator unless
+     * the Hub has its demographics already.
+     *
+     * @return the outcome of the message, which is null if it was not sent
+     */
+    static CompletableFuture<AdtBatchAggregator.AdtSubmission> submitBatchIfChanged(AdtBatchAggregator batches,
+            AdtDigestIndex index, byte[] adtMessage) {
+        AdtDigestIndex.Lookup lookup = index == null ? null : index.lookup(adtMessage);
+        if (lookup != null && index.isUnchanged(lookup)) {
+            ClientMetrics.unchanged("DemographicServicePort.submitBatchADTMessage");
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<AdtBatchAggregator.AdtSubmission> submission = batches.submit(adtMessage);
+        if (lookup != null) {
+            submission.whenComplete((outcome, failure) -> {
+                if (outcome != null && outcome.isAccepted()) {
+                    index.record(lookup);
+                } else {
+                    index.forget(lookup);
+                }
+            });
+        }
+        return submission;
+    }
+
+    private static boolean isAccepted(DemographicResponse response) {
+        return response != null && (response.getErrors() == null || response.getErrors().length == 0)
+                && isSuccess(response.getStatus());
+    }
+
+    /**
+     * False for a response without a status too: nothing says the Hub took it.
+     */
+    private static boolean isSuccess(String status) {
+        return status != null && "SUCCESS".equalsIgnoreCase(status.trim());
+    }
+
     /**
      * The DemographicServicePort() method gets and initializes a reference to
      * the web service "port/stub".
      * 
      */
     private static DemographicServicePort getDemographicServicePort() throws IOException, ServiceException {
-        DemographicService service = new DemographicServiceLocator();
+        return getDemographicServicePort(ENDPOINT, USERNAME, PASSWORD);
+    }
+
+    /**
+     * The same for another endpoint or Hub account, e.g. HubSimulator.
+     */
+    static DemographicServicePort getDemographicServicePort(String endpoint, String username, String password)
+            throws IOException, ServiceException {
+        DemographicService service = new DemographicServiceLocator(PooledHttpSender.getEngineConfiguration());
         DemographicServicePortStub port = null;
 
         port = (DemographicServicePortStub) service.getDemographicServicePort();
-        port._setProperty(Stub.USERNAME_PROPERTY, USERNAME);
-        port._setProperty(Stub.PASSWORD_PROPERTY, PASSWORD);
-        port._setProperty(Stub.ENDPOINT_ADDRESS_PROPERTY, ENDPOINT);
-        return port;
+        port._setProperty(Stub.USERNAME_PROPERTY, username);
+        port._setProperty(Stub.PASSWORD_PROPERTY, password);
+        port._setProperty(Stub.ENDPOINT_ADDRESS_PROPERTY, endpoint);
+        // rate limit, deadlines, hedged reads and a circuit breaker, see PortProxies.forHub()
+        return PortProxies.forHub(DemographicServicePort.class, port, endpoint, username);
     }
     
-    private static String createADTMessage() {
+    private static byte[] createADTMessage() throws IOException {
+    	
+    	Map<String, String> values = new LinkedHashMap<String, String>();
+    	values.put(SENDING_APPLICATION_PLACEHOLDER, SENDING_APPLICATION);
+    	values.put(HUB_ACCOUNT_PLACEHOLDER, HUB_ACCOUNT);
+    	values.put(RECEIVING_FACILITY_PLACEHOLDER, RECEIVING_FACILITY);
+    	values.put(DATE_TIME_PLACEHOLDER, DATE_TIME);
+    	values.put(MSG_CONTROL_ID_PLACEHOLDER, MSG_CONTROL_ID);
+    	
+    	String file = System.getProperty("hub.adt.template");
+    	if (file == null) {
+    		return ADT_TEMPLATE.render(values);
+    	}
     	
-    	String msg = ADT_MESSAGE.replace(SENDING_APPLICATION_PLACEHOLDER, SENDING_APPLICATION);
-    	msg = msg.replace(HUB_ACCOUNT_PLACEHOLDER, HUB_ACCOUNT);
-    	msg = msg.replace(RECEIVING_FACILITY_PLACEHOLDER, RECEIVING_FACILITY);
-    	msg = msg.replace(DATE_TIME_PLACEHOLDER, DATE_TIME);
-    	msg = msg.replace(MSG_CONTROL_ID_PLACEHOLDER, MSG_CONTROL_ID);
-    	return msg;
+    	// a site-specific variant, which may have placeholders of its own
+    	List<String> placeholders = new ArrayList<String>(values.keySet());
+    	for (String placeholder : System.getProperty("hub.adt.template.placeholders", "").split(",")) {
+    		placeholder = placeholder.trim();
+    		if (placeholder.length() > 0 && !placeholders.contains(placeholder)) {
+    			placeholders.add(placeholder);
+    			values.put(placeholder, System.getProperty("hub.adt.template." + placeholder, ""));
+    		}
+    	}
+    	HL7Template template = HL7Template.load(new File(file), placeholders.toArray(new String[placeholders.size()]));
+    	return template.render(values);
     }
 }
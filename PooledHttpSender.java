@@ -0,0 +1,435 @@
+/**
+ * An Axis 1 transport handler that sends SOAP requests over pooled keep-alive connections.
+ *
+ */
+package hub.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.axis.AxisEngine;
+import org.apache.axis.AxisFault;
+import org.apache.axis.ConfigurationException;
+import org.apache.axis.EngineConfiguration;
+import org.apache.axis.Message;
+import org.apache.axis.MessageContext;
+import org.apache.axis.SimpleTargetedChain;
+import org.apache.axis.components.net.TransportClientProperties;
+import org.apache.axis.components.net.TransportClientPropertiesFactory;
+import org.apache.axis.configuration.EngineConfigurationFactoryFinder;
+import org.apache.axis.configuration.SimpleProvider;
+import org.apache.axis.handlers.BasicHandler;
+import org.apache.axis.transport.http.HTTPConstants;
+import org.apache.axis.transport.http.HTTPSender;
+
+/**
+ * class PooledHttpSender replaces the default Axis HTTPSender, which opens a new
+ * connection (and TLS handshake) for every call.  Connections are leased from
+ * HttpConnectionPool and returned after the response has been read completely,
+ * or closed and returned if the exchange failed in any way.
+ *
+ * A request that fails on a reused connection before a byte of the response is
+ * read (the server closed the connection while it was idle) is sent again on a
+ * new one only if it was not written yet, or if it is a get* operation: a submit*
+ * or acknowledge* that reached the Hub is never sent twice.  A get* sent again
+ * takes a permit of its own from RateLimitInterceptor.
+ * Bodies are gzip-compressed as configured in HubCompression.  The bytes sent and
+ * received are added to the call's MetricsInterceptor figures, and each exchange
+ * is recorded as a HubEvents.HttpExchange.
+ *
+ * HttpConnectionPool only connects directly.  A call that Axis would send through
+ * a proxy, because http.proxyHost (https.proxyHost for https URLs) is set and the
+ * host is not in http.nonProxyHosts (https.nonProxyHosts), is handed to the Axis
+ * HTTPSender, which reads the same properties (and *.proxyPort, *.proxyUser,
+ * *.proxyPassword).  Such calls are neither pooled nor compressed, and their bytes
+ * and exchanges are not recorded.
+ *
+ * The *ServicePortStub clients use it through their locator:
+ *
+ *   ResultsService service = new ResultsServiceLocator(PooledHttpSender.getEngineConfiguration());
+ *
+ */
+public class PooledHttpSender extends BasicHandler {
+
+    private static final long serialVersionUID = 1L;
+
+    private static EngineConfiguration engineConfiguration;
+
+    private final transient HttpConnectionPool pool;
+    private final transient HTTPSender proxySender = new HTTPSender();
+
+    public PooledHttpSender() {
+        this(HttpConnectionPool.shared());
+    }
+
+    public PooledHttpSender(HttpConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * The Axis client configuration with this sender deployed as the "http"
+     * transport (Axis uses the "http" transport for https URLs as well).  All
+     * other settings come from the default client configuration.
+     */
+    public static synchronized EngineConfiguration getEngineConfiguration() {
+        if (engineConfiguration == null) {
+            EngineConfiguration defaults = EngineConfigurationFactoryFinder.newFactory().getClientEngineConfig();
+            SimpleProvider provider = new SimpleProvider(defaults) {
+                // The default configuration parses client-config.wsdd from a stream it
+                // keeps in a field, every time an engine is configured, so locators
+                // created on several threads at once would read the stream together.
+                @Override
+                public synchronized void configureEngine(AxisEngine engine) throws ConfigurationException {
+                    super.configureEngine(engine);
+                }
+            };
+            provider.deployTransport("http", new SimpleTargetedChain(new PooledHttpSender()));
+            engineConfiguration = provider;
+        }
+        return engineConfiguration;
+    }
+
+    public void invoke(MessageContext msgContext) throws AxisFault {
+        try {
+            URL url = URI.create(msgContext.getStrProp(MessageContext.TRANS_URL)).toURL();
+            if (isProxied(url)) {
+                proxySender.invoke(msgContext);
+                return;
+            }
+            String operation = operationName(msgContext);
+            byte[] uncompressed = serializeRequest(msgContext);
+            byte[] body = HubCompression.compressRequest(operation, uncompressed);
+            byte[] header = buildRequestHeader(url, msgContext, body.length, body != uncompressed);
+            int timeout = msgContext.getTimeout() > 0 ? msgContext.getTimeout() : 0;
+
+            HubEvents.HttpExchange event = new HubEvents.HttpExchange();
+            event.begin();
+            HttpConnectionPool.Connection connection = pool.lease(url, timeout);
+            Response response = null;
+            try {
+                response = exchange(connection, header, body);
+            } catch (StaleConnectionException e) {
+                if (!connection.isReused() || (e.written && !isIdempotent(operation))) {
+                    throw e;
+                }
+                // The server closed the idle connection and not a byte of the response
+                // was read.  The request is sent once more on a new connection if it
+                // never left, or if sending it twice does no harm.
+                pool.release(connection, false);
+                connection = null;
+                if (e.written) {
+                    // the Hub may have had the first one, so this one takes a permit of its own
+                    RateLimitInterceptor.resend(operation);
+                }
+                connection = pool.lease(url, timeout);
+                response = exchange(connection, header, body);
+            } finally {
+                // whatever failed, the connection and its permit go back to the pool
+                if (connection != null) {
+                    pool.release(connection, response != null && response.keepAlive);
+                }
+            }
+            MetricsInterceptor.recordBytes(body.length, response.body.length);
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.url = url.toString();
+                event.status = response.status;
+                event.requestBytes = body.length;
+                event.responseBytes = response.body.length;
+                event.reusedConnection = connection.isReused();
+                event.commit();
+            }
+
+            handleResponse(msgContext, operation, response);
+        } catch (AxisFault e) {
+            throw e;
+        } catch (Exception e) {
+            throw AxisFault.makeFault(e);
+        }
+    }
+
+    /**
+     * True if Axis would send a request to the URL through a proxy: the protocol's
+     * proxyHost is set and the host does not match its nonProxyHosts, a list of
+     * host names separated by '|' in which '*' stands for any characters.
+     */
+    static boolean isProxied(URL url) {
+        TransportClientProperties properties = TransportClientPropertiesFactory.create(url.getProtocol());
+        if (properties == null || properties.getProxyHost() == null
+                || properties.getProxyHost().trim().length() == 0) {
+            return false;
+        }
+        String nonProxyHosts = properties.getNonProxyHosts();
+        if (nonProxyHosts == null) {
+            return true;
+        }
+        String host = url.getHost().toLowerCase(Locale.ROOT);
+        for (String pattern : nonProxyHosts.split("[|\"]")) {
+            pattern = pattern.trim().toLowerCase(Locale.ROOT);
+            if (pattern.length() > 0 && host.matches("\\Q" + pattern.replace("*", "\\E.*\\Q") + "\\E")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The operations that only read, the get* ones, which may be sent again when the
+     * Hub may already have received them; a submit* or acknowledge* never is.
+     */
+    static boolean isIdempotent(String operation) {
+        return operation != null && operation.startsWith("get");
+    }
+
+    private static String operationName(MessageContext msgContext) {
+        if (msgContext.getOperation() != null) {
+            return msgContext.getOperation().getName();
+        }
+        return msgContext.getSOAPActionURI();
+    }
+
+    private static byte[] serializeRequest(MessageContext msgContext) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+        msgContext.getRequestMessage().writeTo(body);
+        return body.toByteArray();
+    }
+
+    private static Response exchange(HttpConnectionPool.Connection connection, byte[] header, byte[] body)
+            throws IOException {
+        try {
+            OutputStream out = connection.getOutputStream();
+            out.write(header);
+            out.write(body);
+            out.flush();
+        } catch (IOException e) {
+            throw new StaleConnectionException(e, false);
+        }
+        return readResponse(connection.getInputStream());
+    }
+
+    private static byte[] buildRequestHeader(URL url, MessageContext msgContext, int contentLength,
+            boolean gzip) throws AxisFault {
+        Message requestMessage = msgContext.getRequestMessage();
+        String path = url.getFile().length() == 0 ? "/" : url.getFile();
+        int port = url.getPort();
+
+        StringBuilder header = new StringBuilder(512);
+        header.append("POST ").append(path).append(" HTTP/1.1\r\n");
+        header.append("Host: ").append(url.getHost()).append(port == -1 ? "" : ":" + port).append("\r\n");
+        header.append(HTTPConstants.HEADER_CONTENT_TYPE).append(": ")
+                .append(requestMessage.getContentType(msgContext.getSOAPConstants())).append("\r\n");
+        header.append(HTTPConstants.HEADER_SOAP_ACTION).append(": \"")
+                .append(msgContext.useSOAPAction() && msgContext.getSOAPActionURI() != null
+                        ? msgContext.getSOAPActionURI() : "")
+                .append("\"\r\n");
+
+        String username = msgContext.getUsername();
+        if (username == null && url.getUserInfo() != null) {
+            username = url.getUserInfo();
+        }
+        if (username != null) {
+            String credentials = msgContext.getPassword() == null ? username : username + ":" + msgContext.getPassword();
+            header.append(HTTPConstants.HEADER_AUTHORIZATION).append(": Basic ")
+                    .append(Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)))
+                    .append("\r\n");
+        }
+
+        if (gzip) {
+            header.append("Content-Encoding: gzip\r\n");
+        }
+        if (HubCompression.isResponseCompressionAccepted()) {
+            header.append("Accept-Encoding: gzip\r\n");
+        }
+        header.append("Content-Length: ").append(contentLength).append("\r\n");
+        header.append("Connection: keep-alive\r\n\r\n");
+        return header.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static Response readResponse(InputStream in) throws IOException {
+        Response response = new Response();
+
+        String statusLine;
+        try {
+            statusLine = readLine(in);
+        } catch (SocketException e) {
+            throw new StaleConnectionException(e, true);
+        }
+        if (statusLine == null) {
+            throw new StaleConnectionException(new EOFException("Connection closed before the response status line"),
+                    true);
+        }
+        // e.g. "HTTP/1.1 200 OK"
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2) {
+            throw new IOException("Malformed HTTP status line: " + statusLine);
+        }
+        response.status = parseInt(status[1], 10, "HTTP status line: " + statusLine);
+        response.reason = status.length > 2 ? status[2] : "";
+        boolean http10 = status[0].endsWith("/1.0");
+
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                response.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        line.substring(colon + 1).trim());
+            }
+        }
+
+        String connectionHeader = response.headers.get("connection");
+        response.keepAlive = http10 ? "keep-alive".equalsIgnoreCase(connectionHeader)
+                : !"close".equalsIgnoreCase(connectionHeader);
+
+        String transferEncoding = response.headers.get("transfer-encoding");
+        String contentLength = response.headers.get("content-length");
+        if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+            response.body = readChunked(in);
+        } else if (contentLength != null) {
+            response.body = readFully(in, parseInt(contentLength, 10, "Content-Length: " + contentLength));
+        } else if (response.status == 204 || response.status == 304) {
+            response.body = new byte[0];
+        } else {
+            // body delimited by the end of the connection
+            response.body = readToEnd(in);
+            response.keepAlive = false;
+        }
+        return response;
+    }
+
+    private static void handleResponse(MessageContext msgContext, String operation, Response response)
+            throws IOException {
+        String contentType = response.headers.get("content-type");
+        InputStream body = HubCompression.decodeResponse(operation, new ByteArrayInputStream(response.body),
+                response.headers.get("content-encoding"));
+
+        // A SOAP fault comes back with status 500 and an XML body; anything else
+        // outside 2xx is a transport error.
+        boolean soapFault = response.status == 500 && contentType != null
+                && contentType.toLowerCase(Locale.ROOT).contains("xml");
+        if ((response.status < 200 || response.status > 299) && !soapFault) {
+            AxisFault fault = new AxisFault("HTTP", "(" + response.status + ")" + response.reason, null, null);
+            fault.setFaultDetailString("return code: " + response.status + "\n"
+                    + new String(readToEnd(body), StandardCharsets.UTF_8));
+            throw fault;
+        }
+
+        if (response.body.length == 0) {
+            return;
+        }
+        Message responseMessage = new Message(body, false, contentType, response.headers.get("content-location"));
+        responseMessage.setMessageType(Message.RESPONSE);
+        msgContext.setResponseMessage(responseMessage);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(data, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException("Connection closed after " + offset + " of " + length + " bytes");
+            }
+            offset += read;
+        }
+        return data;
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) {
+                throw new EOFException("Connection closed inside a chunked body");
+            }
+            int semicolon = sizeLine.indexOf(';');
+            int size = parseInt((semicolon == -1 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16,
+                    "chunk size: " + sizeLine);
+            if (size == 0) {
+                // skip the trailer
+                String trailer;
+                while ((trailer = readLine(in)) != null && trailer.length() > 0) {
+                    // ignored
+                }
+                return body.toByteArray();
+            }
+            body.write(readFully(in, size));
+            readLine(in);
+        }
+    }
+
+    private static int parseInt(String value, int radix, String what) throws IOException {
+        try {
+            int parsed = Integer.parseInt(value, radix);
+            if (parsed < 0) {
+                throw new NumberFormatException(value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed " + what, e);
+        }
+    }
+
+    private static byte[] readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * The request failed before any part of the response was read.
+     */
+    private static final class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        // true if the request was written, so the server may have got and handled it
+        final boolean written;
+
+        StaleConnectionException(IOException cause, boolean written) {
+            super(cause.getMessage(), cause);
+            this.written = written;
+        }
+    }
+
+    /**
+     * A fully read HTTP response.
+     */
+    private static final class Response {
+        int status;
+        String reason;
+        final Map<String, String> headers = new TreeMap<String, String>();
+        byte[] body;
+        boolean keepAlive;
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * A step in the call chain of a port wrapped by PortProxies.
+ *
+ */
+package hub.sample;
+
+/**
+ * interface PortInterceptor is called for every operation of a wrapped port.  It
+ * either calls invocation.proceed() to pass the call on to the next interceptor
+ * (and finally the port), or throws to refuse it.
+ *
+ * proceed() may be called more than once, and from other threads, e.g. to send a
+ * hedged duplicate of a read.
+ *
+ */
+public interface PortInterceptor {
+
+    Object intercept(PortInvocation invocation) throws Throwable;
+}
@@ -0,0 +1,115 @@
+/**
+ * One call of an operation on a port wrapped by PortProxies.
+ *
+ */
+package hub.sample;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.ws.WebServiceException;
+
+/**
+ * class PortInvocation is handed to each PortInterceptor.  Its port, operation and
+ * arguments never change, so proceed() can be called several times and from
+ * several threads.  The one thing the interceptors of a call share is its round
+ * trip: the innermost measure of a request that was answered, recorded by
+ * MetricsInterceptor, for the interceptors outside it.
+ *
+ */
+public final class PortInvocation {
+
+    private final Object port;
+    private final Method method;
+    private final Object[] arguments;
+    private final PortInterceptor[] interceptors;
+    private final int index;
+    // shared by the invocations of one call, -1 until a request was answered
+    private final AtomicLong roundTripNanos;
+
+    PortInvocation(Object port, Method method, Object[] arguments, PortInterceptor[] interceptors, int index) {
+        this(port, method, arguments, interceptors, index, new AtomicLong(-1));
+    }
+
+    private PortInvocation(Object port, Method method, Object[] arguments, PortInterceptor[] interceptors,
+            int index, AtomicLong roundTripNanos) {
+        this.port = port;
+        this.method = method;
+        this.arguments = arguments;
+        this.interceptors = interceptors;
+        this.index = index;
+        this.roundTripNanos = roundTripNanos;
+    }
+
+    /**
+     * The operation name, e.g. "getResults".
+     */
+    public String getOperation() {
+        return method.getName();
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public Object[] getArguments() {
+        return arguments;
+    }
+
+    /**
+     * Calls the next interceptor, or the port after the last one.  The port's own
+     * exceptions are thrown as they are.
+     */
+    public Object proceed() throws Throwable {
+        if (index < interceptors.length) {
+            return interceptors[index].intercept(
+                    new PortInvocation(port, method, arguments, interceptors, index + 1, roundTripNanos));
+        }
+        try {
+            return method.invoke(port, arguments);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Records the round trip of a request of this call that was answered; only the
+     * first is kept, e.g. that of a hedge that answered before the original.
+     */
+    public void recordRoundTrip(long nanos) {
+        roundTripNanos.compareAndSet(-1, nanos);
+    }
+
+    /**
+     * The round trip of the first request of this call that was answered, without
+     * the time spent in the interceptors outside the one that recorded it, e.g.
+     * waiting for a rate-limit permit or a hedge delay; -1 if none was recorded.
+     */
+    public long getRoundTripNanos() {
+        return roundTripNanos.get();
+    }
+
+    /**
+     * A HubUnavailableException for this call, or a WebServiceException wrapping it
+     * if the operation does not declare RemoteException (JAX-WS ports).
+     */
+    public Exception unavailable(String message, Throwable cause) {
+        HubUnavailableException exception = new HubUnavailableException(getOperation(), message, cause);
+        for (Class<?> declared : method.getExceptionTypes()) {
+            if (declared.isInstance(exception)) {
+                return exception;
+            }
+        }
+        return JaxWs.wrap(exception);
+    }
+
+    /**
+     * Kept apart so that the JAX-WS API is only loaded for JAX-WS ports.
+     */
+    private static final class JaxWs {
+        static Exception wrap(HubUnavailableException exception) {
+            return new WebServiceException(exception.getMessage(), exception);
+        }
+    }
+}
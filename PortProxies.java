@@ -0,0 +1,102 @@
+/**
+ * Wraps Hub ports with a chain of PortInterceptors.
+ *
+ */
+package hub.sample;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * class PortProxies returns a dynamic proxy for an Axis or JAX-WS port that runs
+ * every operation of the port interface through the given interceptors, the first
+ * one outermost:
+ *
+ *   ResultsServicePort proxy = PortProxies.wrap(ResultsServicePort.class, port,
+ *           ResilienceInterceptor.forEndpoint(ENDPOINT));
+ *
+ * The proxy also implements the other interfaces of the port (javax.xml.rpc.Stub,
+ * BindingProvider), whose methods go straight to the port, so existing callers do
+ * not change.
+ *
+ * The clients use forHub(), which puts together the standard chain.
+ *
+ * A port may be shared by several threads once its properties are set, which
+ * they are before it is wrapped: an Axis stub makes a Call of its own for each
+ * operation and only reads its properties, and a JAX-WS port of HubPortFactory
+ * is never written after it is created.  AdtBatchAggregator, AdtRouter,
+ * RadiologySubmissionEngine, the ACK lane of PrintableResultsEngine and the
+ * hedges of ResilienceInterceptor all call one port from several threads.
+ *
+ */
+public final class PortProxies {
+
+    private PortProxies() {
+    }
+
+    /**
+     * Wraps a port with the interceptors every Hub client uses, outermost first:
+     * ClientMetrics (results and submissions), ConcurrencyLimitInterceptor
+     * (adaptive in-flight limit per operation), ResilienceInterceptor (deadlines,
+     * hedged reads, circuit breaker), RateLimitInterceptor (per endpoint and
+     * account, a permit for every request sent, hedges included; off unless
+     * configured), MetricsInterceptor (latency, bytes and faults of each request to
+     * the Hub) and FlightRecorderInterceptor (a Flight Recorder event per request).
+     * Starts the PrometheusEndpoint if hub.metrics.port is set.
+     */
+    public static <T> T forHub(Class<T> portInterface, T port, String endpoint, String username) {
+        PrometheusEndpoint.startIfConfigured();
+        return wrap(portInterface, port, ClientMetrics.forPort(portInterface),
+                ConcurrencyLimitInterceptor.forEndpoint(endpoint), ResilienceInterceptor.forEndpoint(endpoint),
+                RateLimitInterceptor.forAccount(endpoint, username), MetricsInterceptor.forPort(portInterface),
+                FlightRecorderInterceptor.forPort(portInterface));
+    }
+
+    public static <T> T wrap(Class<T> portInterface, T port, PortInterceptor... interceptors) {
+        Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+        interfaces.add(portInterface);
+        for (Class<?> type = port.getClass(); type != null; type = type.getSuperclass()) {
+            for (Class<?> implemented : type.getInterfaces()) {
+                interfaces.add(implemented);
+            }
+        }
+        return portInterface.cast(Proxy.newProxyInstance(portInterface.getClassLoader(),
+                interfaces.toArray(new Class<?>[interfaces.size()]),
+                new Handler(portInterface, port, interceptors.clone())));
+    }
+
+    private static final class Handler implements InvocationHandler {
+        private final Class<?> portInterface;
+        private final Object port;
+        private final PortInterceptor[] interceptors;
+
+        Handler(Class<?> portInterface, Object port, PortInterceptor[] interceptors) {
+            this.portInterface = portInterface;
+            this.port = port;
+            this.interceptors = interceptors;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) {
+                    return Boolean.valueOf(proxy == args[0]);
+                } else if ("hashCode".equals(method.getName())) {
+                    return Integer.valueOf(System.identityHashCode(proxy));
+                }
+                return "PortProxy[" + port + "]";
+            }
+            if (!method.getDeclaringClass().isAssignableFrom(portInterface)) {
+                try {
+                    return method.invoke(port, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+            return new PortInvocation(port, method, args == null ? new Object[0] : args, interceptors, 0).proceed();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Measures port creation latency with and without the local WSDL cache.
+ *
+ */
+package hub.sample;
+
+import java.net.Authenticator;
+import java.net.PasswordAuthentication;
+import java.net.URI;
+
+import javax.xml.namespace.QName;
+
+import com.medplus.results.RetrieveResultsPortType;
+import com.medplus.results.RetrieveResultsService;
+
+/**
+ * class PortStartupBenchmark compares the time needed to get a usable
+ * RetrieveResultsPortType:
+ *
+ * 1. "remote WSDL"  - the original approach, new RetrieveResultsService(endpoint + "?wsdl")
+ * 2. "cached, cold" - the first HubPortFactory call (WSDL read from the cache directory)
+ * 3. "cached, warm" - later HubPortFactory calls (Service and port reused)
+ *
+ * Usage: PortStartupBenchmark [endpoint] [iterations] [username] [password]
+ *
+ * Run it once with an empty cache directory to populate it, then again for
+ * the figures.  The remote figure includes the TLS handshake and the WSDL download.
+ *
+ */
+public class PortStartupBenchmark {
+
+    private static final String DEFAULT_ENDPOINT = "https://certhubservices.quanum.com/results/retrieval/service";
+
+    public static void main(String[] args) throws Exception {
+        String endpoint = args.length > 0 ? args[0] : DEFAULT_ENDPOINT;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String username = args.length > 2 ? args[2] : null;
+        String password = args.length > 3 ? args[3] : null;
+
+        // cached, cold: the first call in this process
+        long start = System.nanoTime();
+        HubPortFactory.getRetrieveResultsPort(endpoint, username, password);
+        long cachedCold = System.nanoTime() - start;
+
+        // cached, warm
+        long cachedWarm = 0;
+        for (int i = 0; i < iterations; i++) {
+            start = System.nanoTime();
+            HubPortFactory.getRetrieveResultsPort(endpoint, username, password);
+            cachedWarm += System.nanoTime() - start;
+        }
+
+        // remote WSDL, every time.  The original clients authenticated this fetch
+        // with a JVM-wide Authenticator, so the benchmark does the same.
+        if (username != null) {
+            final PasswordAuthentication credentials = new PasswordAuthentication(username,
+                    password == null ? new char[0] : password.toCharArray());
+            Authenticator.setDefault(new Authenticator() {
+                @Override
+                protected PasswordAuthentication getPasswordAuthentication() {
+                    return credentials;
+                }
+            });
+        }
+        long remote = 0;
+        for (int i = 0; i < iterations; i++) {
+            start = System.nanoTime();
+            RetrieveResultsService service = new RetrieveResultsService(URI.create(endpoint + "?wsdl").toURL(), new QName(
+                    "http://medplus.com/results", "RetrieveResultsService"));
+            RetrieveResultsPortType port = service.getRetrieveResultsPortTypePort();
+            remote += System.nanoTime() - start;
+            if (port == null) {
+                System.out.println("No port returned for " + endpoint);
+            }
+        }
+
+        System.out.println("Endpoint: " + endpoint);
+        System.out.printf("remote WSDL  (avg of %d): %10.3f ms%n", iterations, remote / 1e6 / iterations);
+        System.out.printf("cached, cold (first)   : %10.3f ms%n", cachedCold / 1e6);
+        System.out.printf("cached, warm (avg of %d): %10.3f ms%n", iterations, cachedWarm / 1e6 / iterations);
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * A printable results (PDF) retrieval engine that pages through results and
+ * acknowledges each PDF on a separate lane.
+ *
+ */
+package hub.sample;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.medplus.hub.results.webservice.PrintableResultsResponse;
+import com.medplus.hub.results.webservice.PrintableResultsServicePort;
+import com.medplus.hub.results.webservice.ResultInfo;
+import com.medplus.hub.results.webservice.ResultsRequest;
+
+/**
+ * class PrintableResultsEngine drains printable results from Hub Information Services.
+ *
+ * The original example acknowledged each PDF before asking for the next one, so
+ * draining N PDFs took 2N sequential round trips.  This engine:
+ *
+ * 1. Requests one result per call: a PrintableResultsResponse carries a single
+ *    resultInfo, resultData and fileName, so a larger maxMessages could only lose
+ *    the PDFs the response has no room for.
+ * 2. Writes each PDF to disk and forces it to the storage device.
+ * 3. Hands the ResultInfo of each stored PDF to a single ACK lane, so the next
+ *    getMoreResults() call does not wait behind acknowledgeResults().  The lane
+ *    calls the same port as the fetches, see PortProxies on sharing a port.
+ *
+ * A PDF is never acknowledged before it is durably stored.  ACKs are sent in
+ * the order the PDFs were retrieved.  ACKs still pending when retrieve() gives up
+ * waiting for them are reported by file name and message control id and counted
+ * in getAcksPending(); those results stay on the Hub and are delivered again.
+ *
+ */
+public class PrintableResultsEngine {
+
+    private final PrintableResultsServicePort proxy;
+    private final File outputDirectory;
+
+    private final AtomicInteger pdfsStored = new AtomicInteger();
+    private final AtomicInteger pdfsAcknowledged = new AtomicInteger();
+    private final AtomicInteger ackFailures = new AtomicInteger();
+    private final AtomicInteger acksPending = new AtomicInteger();
+    private final AtomicLong ackSequence = new AtomicLong();
+    // queue order to file name and message control id of the PDFs queued and not
+    // yet acknowledged; the control id may be missing or repeat, so it is no key
+    private final Map<Long, String> unacknowledged = new ConcurrentSkipListMap<Long, String>();
+
+    /**
+     * @param proxy port used for getResults()/getMoreResults() and, on the ACK lane,
+     *        acknowledgeResults()
+     * @param outputDirectory directory the PDFs are written to
+     */
+    public PrintableResultsEngine(PrintableResultsServicePort proxy, File outputDirectory) {
+        this.proxy = proxy;
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * The retrieve method will:
+     *
+     * 1. Call getResults() for one result.
+     * 2. Store the returned PDF and queue its acknowledgement on the ACK lane.
+     * 3. Call getMoreResults() while the Hub reports more results.
+     * 4. Wait up to 5 minutes for the queued acknowledgements, and report the ones
+     *    still pending after that.
+     *
+     * @return the number of PDFs retrieved and stored
+     */
+    public int retrieve(String[] providerAccountsArray, String startDate, String endDate) throws RemoteException {
+        ExecutorService ackLane = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "printable-ack-lane");
+            t.setDaemon(true);
+            return t;
+        });
+        int storedBefore = pdfsStored.get();
+
+        try {
+            System.out.println("Making a first pass...");
+            PrintableResultsResponse response = firstPage(providerAccountsArray, startDate, endDate);
+
+            while (response != null) {
+                String requestID = response.getRequestId();
+                System.out.println("Request ID: " + requestID);
+
+                if (response.getResultInfo() == null) {
+                    // empty page, no PDF returned
+                    System.out.println("PDF not found.");
+                    break;
+                }
+
+                System.out.println("PDF found: " + response.getFileName());
+                if (store(response)) {
+                    queueAcknowledgement(ackLane, requestID, response.getResultInfo(), response.getFileName());
+                }
+
+                if (response.getIsMore() == null || !response.getIsMore().booleanValue()) {
+                    break;
+                }
+                System.out.println("Making another pass...");
+                response = proxy.getMoreResults(requestID);
+                if (response == null) {
+                    System.out.println("Failed to properly call getMoreResults WebService method.");
+                }
+            }
+        } finally {
+            // let every queued ACK finish before returning
+            ackLane.shutdown();
+            try {
+                if (!ackLane.awaitTermination(5, TimeUnit.MINUTES)) {
+                    System.out.println("Timed out waiting for printable result acknowledgements.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // the ACKs not sent by now are not sent at all
+            ackLane.shutdownNow();
+            for (String pending : unacknowledged.values()) {
+                acksPending.incrementAndGet();
+                System.out.println("PDF not acknowledged: " + pending);
+            }
+            unacknowledged.clear();
+        }
+
+        int stored = pdfsStored.get() - storedBefore;
+        System.out.println("Total PDFs found: " + stored);
+        return stored;
+    }
+
+    public int getPdfsStored() {
+        return pdfsStored.get();
+    }
+
+    public int getPdfsAcknowledged() {
+        return pdfsAcknowledged.get();
+    }
+
+    public int getAckFailures() {
+        return ackFailures.get();
+    }
+
+    /**
+     * ACKs retrieve() stopped waiting for, their results still unacknowledged.
+     */
+    public int getAcksPending() {
+        return acksPending.get();
+    }
+
+    private PrintableResultsResponse firstPage(String[] providerAccountsArray, String startDate, String endDate)
+            throws RemoteException {
+        PrintableResultsResponse response = proxy.getResults(buildResultsRequest(providerAccountsArray, 1,
+                startDate, endDate));
+        if (response == null) {
+            System.out.println("Failed to properly call getResults WebService method.");
+        }
+        return response;
+    }
+
+    /**
+     *
+     * The buildResultsRequest function will take the parameters for a
+     * results request and generate the object to pass to the web method
+     *
+     */
+    static ResultsRequest buildResultsRequest(String[] providerAccountsArray, int maxMessages, String startDate,
+            String endDate) {
+        ResultsRequest request = new ResultsRequest();
+
+        if (providerAccountsArray != null) {
+            request.setProviderAccountIds(providerAccountsArray);
+        }
+        request.setMaxMessages(Integer.valueOf(maxMessages));
+        request.setEndDate(endDate);
+        request.setStartDate(startDate);
+
+        return request;
+    }
+
+    private void queueAcknowledgement(ExecutorService ackLane, final String requestID, final ResultInfo resultInfo,
+            String fileName) {
+        final String controlId = String.valueOf(resultInfo.getMessageControlId());
+        final Long sequence = Long.valueOf(ackSequence.incrementAndGet());
+        unacknowledged.put(sequence, fileName + " (message control id " + controlId + ")");
+        ackLane.execute(() -> {
+            try {
+                System.out.println("Acknowledging PDF file " + controlId + "...");
+                proxy.acknowledgeResults(requestID, resultInfo, null);
+                pdfsAcknowledged.incrementAndGet();
+            } catch (RemoteException e) {
+                // The result stays on the Hub and will be delivered again.
+                ackFailures.incrementAndGet();
+                e.printStackTrace();
+            } finally {
+                unacknowledged.remove(sequence);
+            }
+        });
+    }
+
+    /**
+     * Writes the PDF and forces it to disk.  Returns false (and leaves the result
+     * unacknowledged) if the PDF could not be stored.
+     */
+    private boolean store(PrintableResultsResponse printableResponse) {
+        HubEvents.DocumentWrite event = new HubEvents.DocumentWrite();
+        event.begin();
+        File file = new File(outputDirectory, printableResponse.getFileName());
+        boolean stored = false;
+        try (FileOutputStream out = new FileOutputStream(file, false)) {
+            FileChannel channel = out.getChannel();
+            ByteBuffer data = ByteBuffer.wrap(printableResponse.getResultData());
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+            pdfsStored.incrementAndGet();
+            ClientMetrics.documentsWritten(1, printableResponse.getResultData().length);
+            stored = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (event.shouldCommit()) {
+            event.directory = outputDirectory.getAbsolutePath();
+            event.documents = stored ? 1 : 0;
+            event.bytes = stored ? printableResponse.getResultData().length : 0;
+            event.failed = !stored;
+            event.commit();
+        }
+        return stored;
+    }
+}
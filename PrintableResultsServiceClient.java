@@ -8,17 +8,15 @@
  */
 package hub.sample;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.*;
 import java.rmi.RemoteException;
 
 import javax.xml.rpc.ServiceException;
 import javax.xml.rpc.Stub;
 import javax.xml.rpc.soap.SOAPFaultException;
 
-import com.medplus.hub.results.webservice.PrintableResultsResponse;
 import com.medplus.hub.results.webservice.ProviderAccount;
-import com.medplus.hub.results.webservice.ResultsRequest;
 import com.medplus.hub.results.webservice.PrintableResultsService;
 import com.medplus.hub.results.webservice.PrintableResultsServiceLocator;
 import com.medplus.hub.results.webservice.PrintableResultsServicePort;
@@ -105,7 +103,7 @@ public class PrintableResultsServiceClient {
      * 
      */
     private static PrintableResultsServicePort getResultsServicePort() throws IOException, ServiceException {
-        PrintableResultsService service = new PrintableResultsServiceLocator();
+        PrintableResultsService service = new PrintableResultsServiceLocator(PooledHttpSender.getEngineConfiguration());
         PrintableResultsServicePortStub port = null;
 
         port = (PrintableResultsServicePortStub) service.getPrintableResultsServicePort();
@@ -113,108 +111,30 @@ public class PrintableResultsServiceClient {
         port._setProperty(Stub.PASSWORD_PROPERTY, PASSWORD);
         port._setProperty(Stub.ENDPOINT_ADDRESS_PROPERTY, ENDPOINT);
 
-        return port;
+        // rate limit, deadlines, hedged reads and a circuit breaker, see PortProxies.forHub()
+        return PortProxies.forHub(PrintableResultsServicePort.class, port, ENDPOINT, USERNAME);
     }
 
 
-    /**
-     * 
-     * The buildResultsRequest function will take the parameters for a
-     * results request and gernerate the object to pass to the web method
-     * 
-     */
-    private static ResultsRequest buildResultsRequest(String[] providerAccountsArray, String startDate, String endDate) {
-        ResultsRequest request = new ResultsRequest();
-
-        // ------------------------------------------------------------------
-        // STEP 1: SET PROVIDER ACCOUNTS
-        // ------------------------------------------------------------------
-        if (providerAccountsArray != null) {
-            request.setProviderAccountIds(providerAccountsArray);            
-        }
-
-        // ------------------------------------------------------------------
-        // STEP 2: SET MAXIMUM NUMBER OF MESSAGES TO RETRIEVE AT ONCE
-        // ------------------------------------------------------------------
-        request.setMaxMessages(new Integer(1));
-
-        // ------------------------------------------------------------------
-        // STEP 3: SET DATE RANGE TO GET RESULTS
-        // ------------------------------------------------------------------
-        request.setEndDate(endDate);
-        request.setStartDate(startDate);
-
-        return request;
-    }
-
     /**
      * The getResults method will:
      * 
-     * 1. On the first pass, create a ResultsRequest object through the function buildResultsRequest,
-     *    and call getResults() to get the PrintableResultsResponse object containing the first batch 
-     *    of results. 
-     * 2. Store the request ID in case there are more results to retrieve.
-     * 3. Process the returned result (if available) and acknowledge it with the acknowledgeResults method. 
-     * 4. Output the file name of the result.
-     * 5. If more results are available, call getMoreResults().  Repeat from step 2.
-     * 6. After processing the last result, output the number of results processed.
+     * 1. Create a PrintableResultsEngine on the port.
+     * 2. Store each returned PDF and acknowledge it on the engine's ACK lane, so the
+     *    next getMoreResults() call does not wait for acknowledgeResults().
+     * 3. Repeat while more results are available.
+     * 4. After processing the last result, output the number of results processed
+     *    and of those not acknowledged.
      * 
      */
-    private static void getResults(PrintableResultsServicePort proxy, String[] providerAccountsArray, String startDate, String endDate) throws RemoteException {
-        boolean initialRequest = true;
-        boolean processing = true;
-        String requestID = "";
-        ResultsRequest printableResultsRequest = null;
-        PrintableResultsResponse printableResponse = null;
-        int numPDFs = 0;            
-        
-        while (processing) {
-            if (initialRequest) {
-                initialRequest = false;
-                System.out.println("Making a first pass...");
-
-                // STEP 1: GENERATE RESULTS REQUEST OBJECT
-                printableResultsRequest = buildResultsRequest(providerAccountsArray, startDate, endDate);
+    private static void getResults(PrintableResultsServicePort proxy, String[] providerAccountsArray, String startDate, String endDate)
+            throws RemoteException {
+        PrintableResultsEngine engine = new PrintableResultsEngine(proxy, new File("."));
+        engine.retrieve(providerAccountsArray, startDate, endDate);
 
-                // STEP 2: SUBMIT RESULTS REQUEST TO THE HUB
-                printableResponse = proxy.getResults(printableResultsRequest);
-
-                if (printableResponse == null) {
-                    System.out.println("Failed to properly call getResults WebService method.");
-                }
-                
-            } else {
-                System.out.println("Making another pass...");
-                printableResponse = proxy.getMoreResults(requestID);
-
-                if (printableResponse == null) {
-                    System.out.println("Failed to properly call getMoreResults WebService method.");
-                }
-            }
-
-            requestID = printableResponse.getRequestId();
-            System.out.println("Request ID: " + requestID);
-
-            if (printableResponse.getResultInfo() == null) {
-                // empty array, no PDF messages returned
-                System.out.println("PDF not found.");
-                processing = false;
-            } else {
-                numPDFs++;
-                System.out.println("PDF found: " + printableResponse.getFileName());
-
-                writeResultDataToFile(printableResponse);
-                
-                // Acknowledge result
-                System.out.println("Acknowledging PDF file...");
-                proxy.acknowledgeResults(requestID, printableResponse.getResultInfo(), null);
-
-                processing = printableResponse.getIsMore().booleanValue();
-            }
+        if (engine.getAckFailures() + engine.getAcksPending() > 0) {
+            System.out.println("PDFs not acknowledged: " + (engine.getAckFailures() + engine.getAcksPending()));
         }
-
-        System.out.println("Total PDFs found: " + numPDFs);
-        
     }
     
     /**
@@ -261,24 +181,4 @@ public class PrintableResultsServiceClient {
             return null;
         }
     }
-
-    // Example of how to write the PDF out to a file
-    private static void writeResultDataToFile(PrintableResultsResponse printableResponse) {
-        try {
-            // Open a file with the file name provided in the response object.  
-            OutputStream out = new FileOutputStream(printableResponse.getFileName());
-
-            try {
-                // Write the contents of the byte[] out to the file
-                out.write(printableResponse.getResultData());
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();                    
-            } finally {
-                out.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-    }
 }
@@ -0,0 +1,430 @@
+/**
+ * The metrics of the Hub clients over HTTP, for Prometheus.
+ *
+ */
+package hub.sample;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * class PrometheusEndpoint serves the figures of MetricsInterceptor and
+ * ClientMetrics at /metrics in the Prometheus text format (version 0.0.4), and
+ * the readiness of HubWarmUp at /ready (200 "ready" or 503 "not ready"):
+ *
+ *   hub_results_retrieved_total{service_type}          results retrieved
+ *   hub_results_acknowledged_total{service_type}       results acknowledged
+ *   hub_result_pages_total{service_type}               pages of results retrieved
+ *   hub_is_more_streak{service_type}                   pages in a row with isMore, now
+ *   hub_is_more_streak_max{service_type}               the longest such streak
+ *   hub_requests_in_flight{operation}                  requests to the Hub waiting for an answer
+ *   hub_requests_total{operation}                      requests to the Hub
+ *   hub_request_errors_total{operation}                failed requests
+ *   hub_request_faults_total{operation,fault}          failed requests by fault code, e.g. soap_client or http_503
+ *   hub_request_bytes_total{operation}                 request body bytes sent
+ *   hub_response_bytes_total{operation}                response body bytes received
+ *   hub_request_duration_seconds{operation}            histogram of the request latency
+ *   hub_messages_submitted_total{operation}            orders, radiology results and ADT submitted
+ *   hub_messages_rejected_total{operation}             those answered with validation errors
+ *   hub_validation_errors_total{operation}             the validation errors
+ *   hub_messages_unchanged_total{operation}            ADT messages not sent, the Hub had them (AdtDigestIndex)
+ *   hub_adt_routed_total{path,reason}                  ADT messages routed real time or batch (AdtRouter)
+ *   hub_adt_submit_duration_seconds{path}              histogram of the time to the answer, per path
+ *   hub_ready                                          1 once HubDaemon is set up and warmed up, else 0
+ *   hub_warmup_duration_seconds{job}                   time a job's warm-up took (HubWarmUp)
+ *   hub_warmup_rounds{job}                             its rounds
+ *   hub_warmup_compiled{job}                           1 if it ended with the JIT done, 0 if cut short
+ *   hub_documents_written_total                        result documents written to disk
+ *   hub_document_bytes_written_total                   their bytes
+ *
+ * e.g. the backlog drain rate is rate(hub_results_retrieved_total[5m]), the ACK lag
+ * hub_results_retrieved_total - hub_results_acknowledged_total, and the order
+ * submission latency comes from the hub_request_duration_seconds buckets of
+ * operation="OrderServicePort.submitOrder".
+ *
+ * A scrape reads the live counters without taking a snapshot, and renders into a
+ * StringBuilder and a byte array that are kept from one scrape to the next, with
+ * numbers appended digit by digit; so a scrape allocates next to nothing and never
+ * stops a call.  Scrapes are answered one at a time by a single daemon thread.
+ *
+ * Configured with system properties:
+ *
+ *   hub.metrics.port    the port to listen on; no endpoint is started without it
+ *   hub.metrics.host    the address to listen on (default the loopback address; 0.0.0.0 for all)
+ *
+ * PortProxies.forHub() calls startIfConfigured(), so every client that talks to the
+ * Hub serves its metrics if hub.metrics.port is set when it makes its first port.
+ *
+ */
+public final class PrometheusEndpoint {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // the bucket bounds of hub_request_duration_seconds
+    private static final String[] BUCKET_LABELS = { "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1",
+            "2.5", "5", "10", "30" };
+    private static final long[] BUCKET_NANOS = { 5000000L, 10000000L, 25000000L, 50000000L, 100000000L, 250000000L,
+            500000000L, 1000000000L, 2500000000L, 5000000000L, 10000000000L, 30000000000L };
+
+    private static volatile boolean configured;
+    private static PrometheusEndpoint started;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final StringBuilder text = new StringBuilder(16384);
+    private final long[] bucketCounts = new long[BUCKET_NANOS.length];
+    private byte[] body = new byte[16384];
+
+    private PrometheusEndpoint(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 16);
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hub-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/metrics", this::scrape);
+        server.createContext("/ready", this::ready);
+    }
+
+    /**
+     * Starts the endpoint on hub.metrics.port the first time it is called, unless the
+     * property is not set.  A port that cannot be bound is reported and otherwise
+     * ignored, the clients work on without metrics.
+     */
+    public static void startIfConfigured() {
+        if (configured) {
+            return;
+        }
+        synchronized (PrometheusEndpoint.class) {
+            if (configured) {
+                return;
+            }
+            configured = true;
+            String port = System.getProperty("hub.metrics.port");
+            if (port == null || port.trim().length() == 0) {
+                return;
+            }
+            String host = System.getProperty("hub.metrics.host");
+            try {
+                started = start(host == null || host.trim().length() == 0
+                        ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port.trim()))
+                        : new InetSocketAddress(host.trim(), Integer.parseInt(port.trim())));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Metrics endpoint not started on port " + port + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * The endpoint started by startIfConfigured(), null if none.
+     */
+    public static synchronized PrometheusEndpoint getStarted() {
+        return started;
+    }
+
+    /**
+     * Starts an endpoint on the given address, e.g. new InetSocketAddress(9464).
+     */
+    public static PrometheusEndpoint start(InetSocketAddress address) throws IOException {
+        PrometheusEndpoint endpoint = new PrometheusEndpoint(address);
+        endpoint.server.start();
+        return endpoint;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void scrape(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            synchronized (this) {
+                int length = render();
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body, 0, length);
+                out.flush();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void ready(HttpExchange exchange) throws IOException {
+        try {
+            boolean ready = HubWarmUp.isReady();
+            byte[] answer = (ready ? "ready\n" : "not ready\n").getBytes(StandardCharsets.US_ASCII);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(ready ? 200 : 503, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(ready ? 200 : 503, answer.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(answer);
+            out.flush();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Renders all metrics into body and returns the number of bytes.
+     */
+    synchronized int render() {
+        text.setLength(0);
+        renderClientMetrics();
+        renderOperations();
+
+        renderAdtRoutes();
+        renderWarmUp();
+
+        help("hub_documents_written_total", "Result documents written to disk", "counter");
+        text.append("hub_documents_written_total ").append(ClientMetrics.getDocumentsWritten()).append('\n');
+        help("hub_document_bytes_written_total", "Bytes of the result documents written to disk", "counter");
+        text.append("hub_document_bytes_written_total ").append(ClientMetrics.getDocumentBytesWritten()).append('\n');
+        return encode();
+    }
+
+    private void renderClientMetrics() {
+        help("hub_results_retrieved_total", "Results retrieved from the Hub", "counter");
+        for (ClientMetrics.ServiceType type : ClientMetrics.serviceTypes()) {
+            serviceType("hub_results_retrieved_total", type).append(type.getRetrieved()).append('\n');
+        }
+        help("hub_results_acknowledged_total", "Results acknowledged to the Hub", "counter");
+        for (ClientMetrics.ServiceType type : ClientMetrics.serviceTypes()) {
+            serviceType("hub_results_acknowledged_total", type).append(type.getAcknowledged()).append('\n');
+        }
+        help("hub_result_pages_total", "Pages of results retrieved from the Hub", "counter");
+        for (ClientMetrics.ServiceType type : ClientMetrics.serviceTypes()) {
+            serviceType("hub_result_pages_total", type).append(type.getPages()).append('\n');
+        }
+        help("hub_is_more_streak", "Pages in a row retrieved with isMore set", "gauge");
+        for (ClientMetrics.ServiceType type : ClientMetrics.serviceTypes()) {
+            serviceType("hub_is_more_streak", type).append(type.getStreak()).append('\n');
+        }
+        help("hub_is_more_streak_max", "Longest run of pages retrieved with isMore set", "gauge");
+        for (ClientMetrics.ServiceType type : ClientMetrics.serviceTypes()) {
+            serviceType("hub_is_more_streak_max", type).append(type.getMaxStreak()).append('\n');
+        }
+
+        help("hub_messages_submitted_total", "Orders, radiology results and ADT messages submitted", "counter");
+        for (ClientMetrics.Submissions submissions : ClientMetrics.submissions()) {
+            operation("hub_messages_submitted_total", submissions.getOperation()).append(submissions.getSubmitted())
+                    .append('\n');
+        }
+        help("hub_messages_rejected_total", "Submitted messages the Hub answered with validation errors", "counter");
+        for (ClientMetrics.Submissions submissions : ClientMetrics.submissions()) {
+            operation("hub_messages_rejected_total", submissions.getOperation()).append(submissions.getRejected())
+                    .append('\n');
+        }
+        help("hub_validation_errors_total", "Validation errors returned for submitted messages", "counter");
+        for (ClientMetrics.Submissions submissions : ClientMetrics.submissions()) {
+            operation("hub_validation_errors_total", submissions.getOperation())
+                    .append(submissions.getValidationErrors()).append('\n');
+        }
+        help("hub_messages_unchanged_total", "Messages not sent because the Hub had their content already", "counter");
+        for (ClientMetrics.Submissions submissions : ClientMetrics.submissions()) {
+            operation("hub_messages_unchanged_total", submissions.getOperation()).append(submissions.getUnchanged())
+                    .append('\n');
+        }
+    }
+
+    private void renderOperations() {
+        help("hub_requests_in_flight", "Requests to the Hub waiting for an answer", "gauge");
+        for (MetricsInterceptor.OperationMetrics metrics : MetricsInterceptor.operations()) {
+            operation("hub_requests_in_flight", metrics.getName()).append(metrics.getInFlight()).append('\n');
+        }
+        help("hub_requests_total", "Requests to the Hub", "counter");
+        for (MetricsInterceptor.OperationMetrics metrics : MetricsInterceptor.operations()) {
+            operation("hub_requests_total", metrics.getName()).append(metrics.getCalls()).append('\n');
+        }
+        help("hub_request_errors_total", "Failed requests to the Hub", "counter");
+        for (MetricsInterceptor.OperationMetrics metrics : MetricsInterceptor.operations()) {
+            operation("hub_request_errors_total", metrics.getName()).append(metrics.getErrors()).append('\n');
+        }
+        help("hub_request_faults_total", "Failed requests to the Hub by fault code", "counter");
+        for (MetricsInterceptor.OperationMetrics metrics : MetricsInterceptor.operations()) {
+            for (Map.Entry<String, LongAdder> fault : metrics.getFaults().entrySet()) {
+                text.append("hub_request_faults_total{operation=\"");
+                escape(metrics.getName());
+                text.append("\",fault=\"");
+                escape(fault.getKey());
+                text.append("\"} ").append(fault.getValue().sum()).append('\n');
+            }
+        }
+        help("hub_request_bytes_total", "Request body bytes sent to the Hub", "counter");
+        for (MetricsInterceptor.OperationMetrics metrics : MetricsInterceptor.operations()) {
+            operation("hub_request_bytes_total", metrics.getName()).append(metrics.getRequestBytes()).append('\n');
+        }
+        help("hub_response_bytes_total", "Response body bytes received from the Hub", "counter");
+        for (MetricsInterceptor.OperationMetrics metrics : MetricsInterceptor.operations()) {
+            operation("hub_response_bytes_total", metrics.getName()).append(metrics.getResponseBytes()).append('\n');
+        }
+
+        help("hub_request_duration_seconds", "Latency of the requests to the Hub", "histogram");
+        for (MetricsInterceptor.OperationMetrics metrics : MetricsInterceptor.operations()) {
+            histogram("hub_request_duration_seconds", "operation", metrics.getName(), metrics.getLatency());
+        }
+    }
+
+    private void renderAdtRoutes() {
+        help("hub_adt_routed_total", "ADT messages routed to the real-time or the batch path", "counter");
+        for (AdtRouter.Route route : AdtRouter.routes()) {
+            text.append("hub_adt_routed_total{path=\"").append(route.getPath()).append("\",reason=\"")
+                    .append(route.getReason()).append("\"} ").append(route.getCount()).append('\n');
+        }
+        help("hub_adt_submit_duration_seconds", "Time from routing an ADT message to the Hub's answer", "histogram");
+        histogram("hub_adt_submit_duration_seconds", "path", AdtRouter.REAL_TIME,
+                AdtRouter.latency(AdtRouter.REAL_TIME));
+        histogram("hub_adt_submit_duration_seconds", "path", AdtRouter.BATCH, AdtRouter.latency(AdtRouter.BATCH));
+    }
+
+    private void renderWarmUp() {
+        help("hub_ready", "1 once the daemon's jobs are set up and warmed up, 0 before and while stopping", "gauge");
+        text.append("hub_ready ").append(HubWarmUp.isReady() ? 1 : 0).append('\n');
+        help("hub_warmup_duration_seconds", "Time the warm-up of a job took", "gauge");
+        for (HubWarmUp.Job job : HubWarmUp.jobs()) {
+            job("hub_warmup_duration_seconds", job);
+            seconds(job.getNanos());
+            text.append('\n');
+        }
+        help("hub_warmup_rounds", "Rounds of the warm-up of a job", "gauge");
+        for (HubWarmUp.Job job : HubWarmUp.jobs()) {
+            job("hub_warmup_rounds", job).append(job.getRounds()).append('\n');
+        }
+        help("hub_warmup_compiled", "1 if the warm-up of a job ran until the JIT was done", "gauge");
+        for (HubWarmUp.Job job : HubWarmUp.jobs()) {
+            job("hub_warmup_compiled", job).append(job.isCompiled() ? 1 : 0).append('\n');
+        }
+    }
+
+    private void histogram(String name, String label, String value, LatencyHistogram latency) {
+        long count = latency.cumulativeCounts(BUCKET_NANOS, bucketCounts);
+        for (int i = 0; i < BUCKET_NANOS.length; i++) {
+            text.append(name).append("_bucket{").append(label).append("=\"");
+            escape(value);
+            text.append("\",le=\"").append(BUCKET_LABELS[i]).append("\"} ").append(bucketCounts[i]).append('\n');
+        }
+        text.append(name).append("_bucket{").append(label).append("=\"");
+        escape(value);
+        text.append("\",le=\"+Inf\"} ").append(count).append('\n');
+        text.append(name).append("_sum{").append(label).append("=\"");
+        escape(value);
+        text.append("\"} ");
+        seconds(latency.getTotalNanos());
+        text.append('\n');
+        text.append(name).append("_count{").append(label).append("=\"");
+        escape(value);
+        text.append("\"} ").append(count).append('\n');
+    }
+
+    private void help(String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private StringBuilder serviceType(String name, ClientMetrics.ServiceType type) {
+        text.append(name).append("{service_type=\"");
+        escape(type.getName());
+        return text.append("\"} ");
+    }
+
+    private StringBuilder operation(String name, String operation) {
+        text.append(name).append("{operation=\"");
+        escape(operation);
+        return text.append("\"} ");
+    }
+
+    private StringBuilder job(String name, HubWarmUp.Job job) {
+        text.append(name).append("{job=\"");
+        escape(job.getName());
+        return text.append("\"} ");
+    }
+
+    private void escape(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                text.append('\\').append(c);
+            } else if (c == '\n') {
+                text.append("\\n");
+            } else {
+                text.append(c);
+            }
+        }
+    }
+
+    /**
+     * Appends nanoseconds as seconds with 9 decimals, without going through a double.
+     */
+    private void seconds(long nanos) {
+        text.append(nanos / 1000000000L).append('.');
+        long fraction = nanos % 1000000000L;
+        for (long digit = 100000000L; digit > 0; digit /= 10) {
+            text.append((char) ('0' + fraction / digit % 10));
+        }
+    }
+
+    /**
+     * Encodes text as UTF-8 into body, growing it if need be.
+     */
+    private int encode() {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (body.length - length < 4) {
+                byte[] larger = new byte[body.length * 2];
+                System.arraycopy(body, 0, larger, 0, length);
+                body = larger;
+            }
+            int c = text.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, text.charAt(++i));
+            } else if (Character.isSurrogate((char) c)) {
+                c = '?';
+            }
+            if (c < 0x80) {
+                body[length++] = (byte) c;
+            } else if (c < 0x800) {
+                body[length++] = (byte) (0xc0 | c >> 6);
+                body[length++] = (byte) (0x80 | c & 0x3f);
+            } else if (c < 0x10000) {
+                body[length++] = (byte) (0xe0 | c >> 12);
+                body[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+                body[length++] = (byte) (0x80 | c & 0x3f);
+            } else {
+                body[length++] = (byte) (0xf0 | c >> 18);
+                body[length++] = (byte) (0x80 | c >> 12 & 0x3f);
+                body[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+                body[length++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return "PrometheusEndpoint[" + server.getAddress() + "]";
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Measures the throughput of encoding radiology reports into OBX segments.
+ *
+ */
+package hub.sample;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * class RadiologyReportBenchmark encodes one report file as a radiology result
+ * message, over and over, and reports MB of report per second:
+ *
+ * 1. "String"      - the original approach, the report read into a String, an
+ *                    "OBX|n|FT|RAD||" + line + "||||||F|||||999999\r" String per line,
+ *                    the message concatenated and then getBytes()
+ * 2. "Reader"      - RadiologyReportEncoder reading the file through a Reader
+ * 3. "FileChannel" - RadiologyReportEncoder reading the file through a FileChannel
+ *
+ * Usage: RadiologyReportBenchmark [report file] [iterations]
+ *
+ * Without a report file it writes a synthetic one of 4 MB to the temporary
+ * directory.  The String figure neither wraps long lines nor escapes delimiters, so
+ * it is an upper bound for the original approach.
+ *
+ */
+public class RadiologyReportBenchmark {
+
+    private static final String SYNTHETIC_LINE = "Poor inspiration with compression of pulmonary markings. "
+            + "No definite acute process is identified in the chest, the heart or the mediastinum; "
+            + "compared to 12/11/2003 and 12/31/2003 the findings are unchanged.";
+
+    public static void main(String[] args) throws Exception {
+        File report;
+        if (args.length > 0) {
+            report = new File(args[0]);
+        } else {
+            report = File.createTempFile("radiology-report", ".txt");
+            report.deleteOnExit();
+            writeSyntheticReport(report, 4 * 1024 * 1024);
+        }
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String header = RadiologyResultServiceClient_Submit.buildRadiologyResultMessage("HUBWS", "2135800", "THO");
+        RadiologyReportEncoder encoder = new RadiologyReportEncoder();
+
+        // the first rounds warm the JIT up
+        long size = 0;
+        for (int i = 0; i < 10; i++) {
+            size += concatenate(header, report).length + reader(encoder, header, report).length
+                    + channel(encoder, header, report).length;
+        }
+
+        long strings = 0;
+        long readers = 0;
+        long channels = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            size += concatenate(header, report).length;
+            strings += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            size += reader(encoder, header, report).length;
+            readers += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            size += channel(encoder, header, report).length;
+            channels += System.nanoTime() - start;
+        }
+
+        double megabytes = report.length() / (1024.0 * 1024.0) * iterations;
+        System.out.printf("Report: %s, %.2f MB, %d iterations (%d bytes encoded)%n", report, report.length()
+                / (1024.0 * 1024.0), iterations, size);
+        System.out.printf("String      : %10.1f MB/s%n", megabytes / (strings / 1e9));
+        System.out.printf("Reader      : %10.1f MB/s%n", megabytes / (readers / 1e9));
+        System.out.printf("FileChannel : %10.1f MB/s%n", megabytes / (channels / 1e9));
+    }
+
+    private static byte[] concatenate(String header, File report) throws IOException {
+        String text = new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8);
+        String message = header;
+        StringBuilder segments = new StringBuilder();
+        int setId = 0;
+        for (String line : text.split("\r?\n")) {
+            segments.append("OBX|" + ++setId + "|FT|RAD||" + (line.isEmpty() ? " " : line) + "||||||F|||||999999\r");
+        }
+        message += segments.toString();
+        return message.getBytes();
+    }
+
+    private static byte[] reader(RadiologyReportEncoder encoder, String header, File report) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(report),
+                StandardCharsets.UTF_8))) {
+            return encoder.encode(header, reader);
+        }
+    }
+
+    private static byte[] channel(RadiologyReportEncoder encoder, String header, File report) throws IOException {
+        try (FileChannel channel = FileChannel.open(report.toPath(), StandardOpenOption.READ)) {
+            return encoder.encode(header, channel, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void writeSyntheticReport(File report, long size) throws IOException {
+        try (Writer out = Files.newBufferedWriter(report.toPath(), StandardCharsets.UTF_8)) {
+            long written = 0;
+            int line = 0;
+            while (written < size) {
+                // short and long lines, some blank, some with delimiters to escape
+                String text = (line % 7 == 0) ? "" : (line % 5 == 0) ? "Impression: A|B ^ C & D" : SYNTHETIC_LINE
+                        .substring(0, 40 + (line * 37) % (SYNTHETIC_LINE.length() - 40));
+                out.write(text);
+                out.write('\n');
+                written += text.length() + 1;
+                line++;
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ * Encodes radiology report text as the OBX segments of a radiology result.
+ *
+ */
+package hub.sample;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * class RadiologyReportEncoder turns the text of a radiology report, read from a
+ * Reader or a FileChannel, into the formatted-text observations of an ORU^R01
+ * message, one segment per line of the report:
+ *
+ *   OBX|1|FT|RAD||The findings: Frontal view of the chest compared to earlier studies of||||||F|||||999999
+ *
+ * The report is read in blocks and written straight into the bytes of the message,
+ * the hl7RadiologyResult of a RadiologyResult, after the message header (MSH, PID
+ * and OBR) the caller gives; neither the report nor the message is ever a String,
+ * so a report of several MB costs about its own size once, plus the final array.
+ *
+ * Lines longer than the line width are wrapped at the last space that fits, or cut
+ * if there is none; an empty line is an observation of one space, as the Hub shows
+ * blank lines.  The HL7 delimiters in the text are escaped (| as \F\, ^ as \S\,
+ * & as \T\, ~ as \R\ and \ as \E\), tabs become spaces and the other control
+ * characters are dropped.  The message is ISO-8859-1; characters outside it are
+ * written as '?'.
+ *
+ * An encoder is immutable and may be used by any number of threads at once.
+ *
+ * Configured with system properties:
+ *
+ *   hub.radiology.lineWidth   characters of report text per OBX segment, before escaping (default 80)
+ *
+ */
+public final class RadiologyReportEncoder {
+
+    private static final int LINE_WIDTH = Integer.getInteger("hub.radiology.lineWidth", 80).intValue();
+    private static final int BLOCK = 64 * 1024;
+
+    // the escape sequence of each ISO-8859-1 character, null where it is written as it is
+    private static final byte[][] ESCAPES = new byte[256][];
+
+    static {
+        ESCAPES['|'] = "\\F\\".getBytes(StandardCharsets.ISO_8859_1);
+        ESCAPES['^'] = "\\S\\".getBytes(StandardCharsets.ISO_8859_1);
+        ESCAPES['&'] = "\\T\\".getBytes(StandardCharsets.ISO_8859_1);
+        ESCAPES['~'] = "\\R\\".getBytes(StandardCharsets.ISO_8859_1);
+        ESCAPES['\\'] = "\\E\\".getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private final int lineWidth;
+    private final byte[] valueType;
+    private final byte[] trailer;
+
+    /**
+     * An encoder for observations RAD by producer 999999, like the sample message,
+     * with the hub.radiology.lineWidth.
+     */
+    public RadiologyReportEncoder() {
+        this(LINE_WIDTH, "RAD", "999999");
+    }
+
+    /**
+     * @param lineWidth the characters of report text per segment
+     * @param observationId OBX-3, the observation identifier
+     * @param producerId OBX-15, the producer's id
+     */
+    public RadiologyReportEncoder(int lineWidth, String observationId, String producerId) {
+        if (lineWidth < 1) {
+            throw new IllegalArgumentException("Line width " + lineWidth);
+        }
+        this.lineWidth = lineWidth;
+        this.valueType = ("|FT|" + observationId + "||").getBytes(StandardCharsets.ISO_8859_1);
+        this.trailer = ("||||||F|||||" + producerId + "\r").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The message: the header and the report read from a Reader to its end.  The
+     * Reader is not closed.
+     *
+     * @param header the segments before the observations, each ending with "\r"
+     */
+    public byte[] encode(String header, Reader report) throws IOException {
+        Message message = new Message(header, BLOCK);
+        char[] block = new char[BLOCK];
+        int read;
+        while ((read = report.read(block)) >= 0) {
+            message.text(block, 0, read);
+        }
+        return message.end();
+    }
+
+    /**
+     * The message: the header and the report read from a file from its current
+     * position to its end.  The channel is not closed.
+     *
+     * @param header the segments before the observations, each ending with "\r"
+     * @param charset the encoding of the report file
+     */
+    public byte[] encode(String header, FileChannel report, Charset charset) throws IOException {
+        long remaining = Math.max(0, report.size() - report.position());
+        // the report with a little room for the OBX fields and the escapes
+        Message message = new Message(header, (int) Math.min(Integer.MAX_VALUE - 1024, remaining + remaining / 4));
+        CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocateDirect(BLOCK);
+        CharBuffer chars = CharBuffer.allocate(BLOCK);
+        while (true) {
+            boolean end = report.read(bytes) < 0;
+            bytes.flip();
+            while (decoder.decode(bytes, chars, end).isOverflow()) {
+                text(message, chars);
+            }
+            if (end) {
+                while (decoder.flush(chars).isOverflow()) {
+                    text(message, chars);
+                }
+                text(message, chars);
+                return message.end();
+            }
+            text(message, chars);
+            bytes.compact();
+        }
+    }
+
+    private static void text(Message message, CharBuffer chars) {
+        chars.flip();
+        message.text(chars.array(), chars.position(), chars.limit());
+        chars.clear();
+    }
+
+    /**
+     * The message being written: its bytes so far and the report line not yet
+     * written.
+     */
+    private final class Message {
+        private byte[] bytes;
+        private int length;
+        private final char[] line = new char[lineWidth];
+        private int lineLength;
+        private int setId;
+        private boolean afterCarriageReturn;
+        private boolean lineStarted;
+        // whether part of the line was written already, wrapped
+        private boolean wrapped;
+
+        Message(String header, int reportSize) {
+            bytes = new byte[header.length() + Math.max(reportSize, 1024)];
+            for (int i = 0; i < header.length(); i++) {
+                char c = header.charAt(i);
+                bytes[length++] = c <= 0xFF ? (byte) c : (byte) '?';
+            }
+        }
+
+        void text(char[] chars, int from, int to) {
+            for (int i = from; i < to; i++) {
+                char c = chars[i];
+                if (c > ' ' && c != 0x7F && lineLength < line.length) {
+                    // the common case, a printable character that fits on the line
+                    line[lineLength++] = c;
+                    lineStarted = true;
+                    afterCarriageReturn = false;
+                } else {
+                    text(c);
+                }
+            }
+        }
+
+        private void text(char c) {
+            if (c == '\n' && afterCarriageReturn) {
+                afterCarriageReturn = false;
+                return;
+            }
+            afterCarriageReturn = c == '\r';
+            if (c == '\r' || c == '\n') {
+                endLine();
+                return;
+            }
+            if (c == '\t') {
+                c = ' ';
+            } else if (c < ' ' || c == 0x7F) {
+                return;
+            }
+            lineStarted = true;
+            if (lineLength == line.length) {
+                if (c == ' ') {
+                    // a full line ending where a word does, the space is the wrap
+                    segment(lineLength);
+                    lineLength = 0;
+                    wrapped = true;
+                    return;
+                }
+                wrap();
+            }
+            line[lineLength++] = c;
+        }
+
+        private void endLine() {
+            if (!wrapped || lineLength > 0) {
+                segment(lineLength);
+            }
+            lineLength = 0;
+            lineStarted = false;
+            wrapped = false;
+        }
+
+        /**
+         * Writes the full line up to its last space, or all of it if it has none,
+         * and keeps the rest for the next segment.
+         */
+        private void wrap() {
+            int space = lineLength - 1;
+            while (space > 0 && line[space] != ' ') {
+                space--;
+            }
+            wrapped = true;
+            if (space <= 0) {
+                segment(lineLength);
+                lineLength = 0;
+                return;
+            }
+            segment(space);
+            int rest = lineLength - space - 1;
+            System.arraycopy(line, space + 1, line, 0, rest);
+            lineLength = rest;
+        }
+
+        private void segment(int characters) {
+            ensure(4 + 11 + valueType.length + Math.max(1, characters) * 3 + trailer.length);
+            bytes[length++] = 'O';
+            bytes[length++] = 'B';
+            bytes[length++] = 'X';
+            bytes[length++] = '|';
+            number(++setId);
+            System.arraycopy(valueType, 0, bytes, length, valueType.length);
+            length += valueType.length;
+            if (characters == 0) {
+                bytes[length++] = ' ';
+            }
+            for (int i = 0; i < characters; i++) {
+                char c = line[i];
+                byte[] escape = c <= 0xFF ? ESCAPES[c] : null;
+                if (escape != null) {
+                    bytes[length++] = escape[0];
+                    bytes[length++] = escape[1];
+                    bytes[length++] = escape[2];
+                } else {
+                    bytes[length++] = c <= 0xFF ? (byte) c : (byte) '?';
+                }
+            }
+            System.arraycopy(trailer, 0, bytes, length, trailer.length);
+            length += trailer.length;
+        }
+
+        private void number(int value) {
+            int digits = 1;
+            for (int rest = value / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            for (int i = length + digits - 1; i >= length; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+        }
+
+        private void ensure(int more) {
+            if (length + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + more, bytes.length + (bytes.length >> 1)));
+            }
+        }
+
+        byte[] end() {
+            if (lineStarted) {
+                endLine();
+            }
+            return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+        }
+    }
+}
@@ -7,8 +7,18 @@
  */
 package hub.sample;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.rpc.ServiceException;
 import javax.xml.rpc.Stub;
@@ -25,6 +35,13 @@ import com.medplus.hub.radiology.webservice.RadiologyResultServicePortStub;
  * class RadiologyResultServiceClient_Submit submits a radiology result (HL7 message) to the MedPlus Hub
  * platform.  
  * 
+ * The report of the result is REPORT, or the text file named by the system property
+ * hub.radiology.report (in the encoding of hub.radiology.reportEncoding, UTF-8 by
+ * default); RadiologyReportEncoder turns it into OBX segments.
+ * 
+ * Given report files as arguments it submits a result for each of them, in order,
+ * with a RadiologySubmissionEngine.
+ * 
  */
 public class RadiologyResultServiceClient_Submit {
 
@@ -52,7 +69,8 @@ public class RadiologyResultServiceClient_Submit {
 
     /*
      * The HL7 radiology result message template - The following "template" is used in
-     * constructing the radiology result.
+     * constructing the header of the radiology result, the OBX segments of the report
+     * follow it.
      * 
      * 0 = sending application (field 3) 
      * 1 = sending facility (field 4) represents the account with Quest Diagnostics 
@@ -63,30 +81,79 @@ public class RadiologyResultServiceClient_Submit {
      */    
     private static final String RADIOLOGY_RESULT_MESSAGE = "MSH|^~\\&|{0}|{1}||{2}|{3,date,yyyyMMddHHmm}||ORU^R01|{4,number,#}|P|2.3\r"
 	+ "PID|||123456789^^^F|123456789|TEST^WIFE||19560101|F|||||(206)783-4||*ENGLISH^E|S||9918210003|123456789\r"
-	+ "OBR||{4,number,#}|{4,number,#}|30070^MR CHEST W/O CONTRAST^RAD||20100514095201|20100514095201|20100514095201||||||||OTH030^DOCTOR^A^^^^^UPIN||||||20100514095201|||F|||||||999999&Transcriptionist&The&A|999999&Transcriptionist&The&A||999999&<None>\r"
-        + "OBX|1|FT|RAD|| ||||||F|||||999999\r"
-        + "OBX|2|FT|RAD||The findings: Frontal view of the chest compared to earlier studies of||||||F|||||999999\r"
-        + "OBX|3|FT|RAD||12/11/2003 and 12/31/2003.||||||F|||||999999\r"
-        + "OBX|4|FT|RAD|| ||||||F|||||999999\r"
-        + "OBX|5|FT|RAD||Again, the study was obtained and a poor degree of inspiration. There||||||F|||||999999\r"
-        + "OBX|6|FT|RAD||is a mild prominence of the interstitial markings particularly at the||||||F|||||999999\r"
-        + "OBX|7|FT|RAD||bases and these could easily represent atelectasis. The cardiac||||||F|||||999999\r"
-        + "OBX|8|FT|RAD||silhouette is borderline normal. Hilar and mediastinal silhouettes are||||||F|||||999999\r"
-        + "OBX|9|FT|RAD||normal for this degree of inspiration. There is no effusion or||||||F|||||999999\r"
-        + "OBX|10|FT|RAD||pneumothorax.||||||F|||||999999\r"
-        + "OBX|11|FT|RAD|| ||||||F|||||999999\r"
-        + "OBX|12|FT|RAD||Impression:||||||F|||||999999\r"
-        + "OBX|13|FT|RAD|| ||||||F|||||999999\r"
-        + "OBX|14|FT|RAD||Poor inspiration with compression of pulmonary markings. No definite||||||F|||||999999\r"
-        + "OBX|15|FT|RAD||acute process is identified||||||F|||||999999\r";    
+	+ "OBR||{4,number,#}|{4,number,#}|30070^MR CHEST W/O CONTRAST^RAD||20100514095201|20100514095201|20100514095201||||||||OTH030^DOCTOR^A^^^^^UPIN||||||20100514095201|||F|||||||999999&Transcriptionist&The&A|999999&Transcriptionist&The&A||999999&<None>\r";
+
+    // The radiology report, one OBX segment per line
+    static final String REPORT = "\n"
+        + "The findings: Frontal view of the chest compared to earlier studies of\n"
+        + "12/11/2003 and 12/31/2003.\n"
+        + "\n"
+        + "Again, the study was obtained and a poor degree of inspiration. There\n"
+        + "is a mild prominence of the interstitial markings particularly at the\n"
+        + "bases and these could easily represent atelectasis. The cardiac\n"
+        + "silhouette is borderline normal. Hilar and mediastinal silhouettes are\n"
+        + "normal for this degree of inspiration. There is no effusion or\n"
+        + "pneumothorax.\n"
+        + "\n"
+        + "Impression:\n"
+        + "\n"
+        + "Poor inspiration with compression of pulmonary markings. No definite\n"
+        + "acute process is identified\n";
+
+    private static final RadiologyReportEncoder ENCODER = new RadiologyReportEncoder();
+
+    // message control ids, unique in this run
+    private static final AtomicLong CONTROL_IDS = new AtomicLong(System.currentTimeMillis());
 
 
 
     public static void main(String[] args) {        
+        if (args.length > 0) {
+            // Submit a radiology result per report file
+            submitRadiologyResults(args);
+            return;
+        }
         // Submit the radiology result
         submitRadiologyResult(); 
     }
 
+    /**
+     * submitRadiologyResults: submits a radiology result for each report file with a
+     * RadiologySubmissionEngine; the results are the same patient's, so the engine
+     * sends them in the order given.
+     * 
+     */
+    private static void submitRadiologyResults(String[] reportFiles) {
+        RadiologySubmissionEngine engine = null;
+        try {
+            engine = new RadiologySubmissionEngine(getRadiologyResultServicePort());
+            List<CompletableFuture<RadiologySubmissionEngine.RadiologySubmission>> outcomes =
+                    new ArrayList<CompletableFuture<RadiologySubmissionEngine.RadiologySubmission>>();
+            for (String reportFile : reportFiles) {
+                outcomes.add(engine.submit(getWebServiceRadiologyResult(reportFile).getHl7RadiologyResult()));
+            }
+            for (int i = 0; i < reportFiles.length; i++) {
+                try {
+                    RadiologySubmissionEngine.RadiologySubmission submission = outcomes.get(i).get();
+                    System.out.println(reportFiles[i] + ": Status: " + submission.getStatus() +
+                                       ", Message Control ID: " + submission.getMessageControlId() +
+                                       ", Response Message: " + submission.getResponseMsg());
+                    for (String valError : submission.getValidationErrors()) {
+                        System.out.println("\tValidation Error: " + valError + ".");
+                    }
+                } catch (ExecutionException e) {
+                    System.out.println(reportFiles[i] + ": " + e.getCause());
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (engine != null) {
+                engine.close();
+            }
+        }
+    }
+
     /**
      * 
      * The submitRadiologyResult() method will:
@@ -149,19 +216,32 @@ public class RadiologyResultServiceClient_Submit {
      * getWebServiceRadiologyResult: construct the WebService request object using member data
      * 
      */
-    private static RadiologyResult getWebServiceRadiologyResult() {
+    private static RadiologyResult getWebServiceRadiologyResult() throws IOException {
+        return getWebServiceRadiologyResult(System.getProperty("hub.radiology.report"));
+    }
+
+    private static RadiologyResult getWebServiceRadiologyResult(String reportFile) throws IOException {
         RadiologyResult retval = new RadiologyResult();
-        // radiologyResultMessage is used to set the only parameter in the radiology result request object.
-        String radiologyResultMessage = buildRadiologyResultMessage(SENDING_APPLICATION, SENDING_FACILITY, RECEIVING_FACILITY);
-        retval.setHl7RadiologyResult(radiologyResultMessage.getBytes());
+        // the header (MSH, PID and OBR) of the message, the report's OBX segments follow
+        String header = buildRadiologyResultMessage(SENDING_APPLICATION, SENDING_FACILITY, RECEIVING_FACILITY);
+        
+        // the report is encoded straight into the only parameter in the radiology result request object
+        if (reportFile == null) {
+            retval.setHl7RadiologyResult(ENCODER.encode(header, new StringReader(REPORT)));
+        } else {
+            Charset charset = Charset.forName(System.getProperty("hub.radiology.reportEncoding", "UTF-8"));
+            try (FileChannel report = FileChannel.open(new File(reportFile).toPath(), StandardOpenOption.READ)) {
+                retval.setHl7RadiologyResult(ENCODER.encode(header, report, charset));
+            }
+        }
         return retval;
     }
 
     /**
-     * buildRadiologyResultMessage: constructs a valid HL7 Radiology Result message string
+     * buildRadiologyResultMessage: constructs the header of a valid HL7 Radiology Result message
      * 
      */
-    private static String buildRadiologyResultMessage(String sendingApplication, String sendingFacility, String receivingFacility) {
+    static String buildRadiologyResultMessage(String sendingApplication, String sendingFacility, String receivingFacility) {
         // return value
         String retValue = null;
         // Build an Radiology Result Message for the hl7
@@ -176,7 +256,7 @@ public class RadiologyResultServiceClient_Submit {
         msgParams[1] = sendingFacility;
         msgParams[2] = receivingFacility;
         msgParams[3] = new java.util.Date();
-        msgParams[4] = new Long(System.currentTimeMillis()); // new message control id 
+        msgParams[4] = Long.valueOf(CONTROL_IDS.incrementAndGet()); // new message control id 
         
         retValue = MessageFormat.format(RADIOLOGY_RESULT_MESSAGE, msgParams);
         return retValue;
@@ -188,21 +268,30 @@ public class RadiologyResultServiceClient_Submit {
      * 
      */
     private static RadiologyResultServicePort getRadiologyResultServicePort() throws IOException {
-        RadiologyResultService service = new RadiologyResultServiceLocator();
+        return getRadiologyResultServicePort(ENDPOINT, USERNAME, PASSWORD);
+    }
+
+    /**
+     * The same for another endpoint or Hub account, e.g. in HubDaemon.
+     */
+    static RadiologyResultServicePort getRadiologyResultServicePort(String endpoint, String username,
+            String password) throws IOException {
+        RadiologyResultService service = new RadiologyResultServiceLocator(PooledHttpSender.getEngineConfiguration());
         RadiologyResultServicePortStub port = null;
 
         try {
 
             port = (RadiologyResultServicePortStub) service.getRadiologyResultServicePort();
-            port._setProperty(Stub.USERNAME_PROPERTY, USERNAME);
-            port._setProperty(Stub.PASSWORD_PROPERTY, PASSWORD);
-            port._setProperty(Stub.ENDPOINT_ADDRESS_PROPERTY, ENDPOINT);
+            port._setProperty(Stub.USERNAME_PROPERTY, username);
+            port._setProperty(Stub.PASSWORD_PROPERTY, password);
+            port._setProperty(Stub.ENDPOINT_ADDRESS_PROPERTY, endpoint);
             
         } catch (ServiceException e) {
             e.printStackTrace();
         }
 
-        return port;
+        // rate limit, deadlines, hedged reads and a circuit breaker, see PortProxies.forHub()
+        return port == null ? null : PortProxies.forHub(RadiologyResultServicePort.class, port, endpoint, username);
     }
 }
 
@@ -0,0 +1,434 @@
+/**
+ * Submits radiology results concurrently, in order per patient.
+ *
+ */
+package hub.sample;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.medplus.hub.radiology.webservice.RadiologyResult;
+import com.medplus.hub.radiology.webservice.RadiologyResultResponse;
+import com.medplus.hub.radiology.webservice.RadiologyResultServicePort;
+
+/**
+ * class RadiologySubmissionEngine submits radiology results (ORU^R01 messages) with
+ * submitRadiologyResult, many at once, while the results of one patient reach the
+ * Hub in the order they were submitted: a preliminary report before the final
+ * report of the same accession, an addendum after both.
+ *
+ * The results are partitioned by a key, by default the sending facility (MSH-4)
+ * and the patient id (PID-3, or PID-2 if it is empty), or else the accession (OBR-3)
+ * if the message has no patient id.  Each key has a lane, the results of the key
+ * in submission order: a result is sent once the one before it in its lane is
+ * answered, whether it was accepted or not, and lanes have no effect on one
+ * another, so a slow patient holds up nobody else.  If the call of a result fails,
+ * e.g. on a timeout, the results queued behind it in its lane fail with the same
+ * exception without being sent, so a final report never reaches the Hub ahead of
+ * the preliminary one, and sending the lane again keeps its order.  A lane exists
+ * only while its key has results under way.  submit(key, message) takes the key
+ * from the caller, e.g. to order by accession only.
+ *
+ * The calls run on virtual threads where the JDK has them (Java 21 and later) and
+ * on a pool of concurrency threads otherwise; either way at most concurrency
+ * results are sent at once.  Each result's future completes with its
+ * RadiologySubmission, the status and the validation errors the Hub answered
+ * with, or with the exception if the call failed.
+ *
+ * Use a port from PortProxies.forHub(), so the calls are rate limited and measured
+ * like every other call.  close() waits for the results under way.
+ *
+ * Configured with system properties:
+ *
+ *   hub.radiology.concurrency      results sent at once (default 16)
+ *   hub.radiology.virtualThreads   false to use a thread pool even where virtual threads exist (default true)
+ *
+ */
+public class RadiologySubmissionEngine implements AutoCloseable {
+
+    private static final int DEFAULT_CONCURRENCY = Integer.getInteger("hub.radiology.concurrency", 16).intValue();
+    private static final boolean VIRTUAL_THREADS = Boolean.parseBoolean(System.getProperty(
+            "hub.radiology.virtualThreads", "true"));
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final RadiologyResultServicePort port;
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Semaphore permits;
+
+    // the last result of each lane; a result waits for the one before it and
+    // fails if that one failed
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> lanes =
+            new ConcurrentHashMap<String, CompletableFuture<Void>>();
+
+    // guarded by this
+    private int pending;
+    private boolean closed;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * An engine with the hub.radiology.* properties.
+     */
+    public RadiologySubmissionEngine(RadiologyResultServicePort port) {
+        this(port, DEFAULT_CONCURRENCY, VIRTUAL_THREADS);
+    }
+
+    /**
+     * @param port the port the results are submitted with
+     * @param concurrency results sent at once
+     * @param virtualThreads true to use virtual threads if the JDK has them
+     */
+    public RadiologySubmissionEngine(RadiologyResultServicePort port, int concurrency, boolean virtualThreads) {
+        this.port = port;
+        this.permits = new Semaphore(Math.max(1, concurrency));
+        ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+        this.virtual = virtualExecutor != null;
+        if (virtual) {
+            this.executor = virtualExecutor;
+        } else {
+            int instance = INSTANCES.incrementAndGet();
+            AtomicInteger threads = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency), runnable -> {
+                Thread thread = new Thread(runnable, "radiology-" + instance + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), or null before Java 21.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // e.g. UnsupportedOperationException with preview features off
+            return null;
+        }
+    }
+
+    /**
+     * Submits a radiology result in the lane of its patient.
+     *
+     * @return the outcome of the result, once the Hub has answered it
+     * @throws IllegalStateException if the engine is closed
+     */
+    public CompletableFuture<RadiologySubmission> submit(byte[] hl7RadiologyResult) {
+        return submit(key(hl7RadiologyResult), hl7RadiologyResult);
+    }
+
+    /**
+     * Submits a radiology result in the lane of a key of the caller's; results with
+     * equal keys are sent in the order they were submitted.
+     *
+     * @throws IllegalStateException if the engine is closed
+     */
+    public CompletableFuture<RadiologySubmission> submit(String key, byte[] hl7RadiologyResult) {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("RadiologySubmissionEngine is closed");
+            }
+            pending++;
+        }
+        CompletableFuture<RadiologySubmission> outcome = new CompletableFuture<RadiologySubmission>();
+        CompletableFuture<Void> done = new CompletableFuture<Void>();
+        CompletableFuture<Void> previous = lanes.put(key, done);
+        Runnable send = () -> send(key, hl7RadiologyResult, outcome, done);
+        if (previous == null) {
+            executor.execute(send);
+        } else {
+            previous.whenComplete((nothing, failure) -> {
+                if (failure == null) {
+                    executor.execute(send);
+                } else {
+                    failed.increment();
+                    finish(key, done, failure);
+                    outcome.completeExceptionally(failure);
+                }
+            });
+        }
+        return outcome;
+    }
+
+    private void send(String key, byte[] message, CompletableFuture<RadiologySubmission> outcome,
+            CompletableFuture<Void> done) {
+        RadiologySubmission submission = null;
+        Exception failure = null;
+        permits.acquireUninterruptibly();
+        try {
+            RadiologyResult result = new RadiologyResult();
+            result.setHl7RadiologyResult(message);
+            RadiologyResultResponse response = port.submitRadiologyResult(result);
+            String[] errors = response.getValidationErrors();
+            submission = new RadiologySubmission(key, controlId(message), response.getMessageControlId(),
+                    response.getStatus(), response.getResponseMsg(),
+                    errors == null ? Collections.<String>emptyList() : new ArrayList<String>(Arrays.asList(errors)));
+            submitted.increment();
+            if (!submission.isAccepted()) {
+                rejected.increment();
+            }
+        } catch (Exception e) {
+            failed.increment();
+            failure = e;
+        } finally {
+            permits.release();
+            finish(key, done, failure);
+        }
+        if (failure == null) {
+            outcome.complete(submission);
+        } else {
+            outcome.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Lets the next result of the lane go, or fail if this one failed.
+     */
+    private void finish(String key, CompletableFuture<Void> done, Throwable failure) {
+        // the lane ends with its last result, unless another has joined it
+        lanes.remove(key, done);
+        if (failure == null) {
+            done.complete(null);
+        } else {
+            done.completeExceptionally(failure);
+        }
+        synchronized (this) {
+            if (--pending == 0) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * The lane of a result: MSH-4 and the patient id, or the accession.
+     */
+    static String key(byte[] hl7RadiologyResult) {
+        String message = new String(hl7RadiologyResult, StandardCharsets.ISO_8859_1);
+        String[] msh = AdtBatchAggregator.msh(hl7RadiologyResult);
+        String facility = msh.length > 4 && msh[4] != null ? msh[4] : "";
+        String patient = firstComponent(field(message, "PID", 3));
+        if (patient.isEmpty()) {
+            patient = firstComponent(field(message, "PID", 2));
+        }
+        if (!patient.isEmpty()) {
+            return facility + "|PID|" + patient;
+        }
+        String accession = firstComponent(field(message, "OBR", 3));
+        if (!accession.isEmpty()) {
+            return facility + "|OBR|" + accession;
+        }
+        // nothing to order by; a lane of its own
+        return facility + "|MSH|" + controlId(hl7RadiologyResult);
+    }
+
+    private static String controlId(byte[] message) {
+        String[] msh = AdtBatchAggregator.msh(message);
+        return msh.length > 10 && msh[10] != null ? msh[10] : "";
+    }
+
+    /**
+     * Field n of the first segment of a type, "" if there is none.
+     */
+    private static String field(String message, String segment, int n) {
+        int start = message.startsWith(segment + "|") ? 0 : message.indexOf("\r" + segment + "|");
+        if (start < 0) {
+            return "";
+        }
+        if (start > 0) {
+            start++;
+        }
+        int end = message.indexOf('\r', start);
+        if (end < 0) {
+            end = message.length();
+        }
+        int from = start;
+        for (int i = 0; i < n; i++) {
+            from = message.indexOf('|', from);
+            if (from < 0 || from >= end) {
+                return "";
+            }
+            from++;
+        }
+        int to = message.indexOf('|', from);
+        return message.substring(from, to < 0 || to > end ? end : to);
+    }
+
+    private static String firstComponent(String field) {
+        int caret = field.indexOf('^');
+        return (caret < 0 ? field : field.substring(0, caret)).trim();
+    }
+
+    /**
+     * Waits up to the given time for the results under way.  submit() fails from
+     * now on.
+     *
+     * @return true if every result was answered
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            closed = true;
+            while (pending > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        executor.shutdown();
+        return executor.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits up to a minute for the results under way.
+     */
+    public void close() {
+        try {
+            close(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * True if the results are sent on virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Results submitted and not yet answered.
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Keys with results under way.
+     */
+    public int getLanes() {
+        return lanes.size();
+    }
+
+    /**
+     * Results the Hub answered, accepted or not.
+     */
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    /**
+     * Results the Hub answered with a status other than SUCCESS or with validation errors.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Results whose call failed, or that of a result before them in their lane.
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "RadiologySubmissionEngine[" + (virtual ? "virtual threads" : "thread pool") + ", pending="
+                + getPending() + ", lanes=" + getLanes() + ", submitted=" + getSubmitted() + ", rejected="
+                + getRejected() + ", failed=" + getFailed() + "]";
+    }
+
+    /**
+     * The outcome of one submitted radiology result.
+     */
+    public static final class RadiologySubmission {
+        private final String key;
+        private final String sentControlId;
+        private final String messageControlId;
+        private final String status;
+        private final String responseMsg;
+        private final List<String> validationErrors;
+
+        RadiologySubmission(String key, String sentControlId, String messageControlId, String status,
+                String responseMsg, List<String> validationErrors) {
+            this.key = key;
+            this.sentControlId = sentControlId;
+            this.messageControlId = messageControlId;
+            this.status = status;
+            this.responseMsg = responseMsg;
+            this.validationErrors = Collections.unmodifiableList(validationErrors);
+        }
+
+        /**
+         * The lane the result was sent in.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * MSH-10 of the result sent.
+         */
+        public String getSentControlId() {
+            return sentControlId;
+        }
+
+        /**
+         * The message control id the Hub answered with.
+         */
+        public String getMessageControlId() {
+            return messageControlId;
+        }
+
+        /**
+         * The status the Hub answered with, e.g. "SUCCESS".
+         */
+        public String getStatus() {
+            return status;
+        }
+
+        public String getResponseMsg() {
+            return responseMsg;
+        }
+
+        public List<String> getValidationErrors() {
+            return validationErrors;
+        }
+
+        /**
+         * True if the Hub answered SUCCESS and found no validation errors; false for
+         * an answer without a status too: nothing says the Hub took it.
+         */
+        public boolean isAccepted() {
+            return status != null && "SUCCESS".equalsIgnoreCase(status.trim()) && validationErrors.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "RadiologySubmission[" + sentControlId + ", " + status + ", " + validationErrors.size()
+                    + " validation errors]";
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Client-side rate limiting of the Hub ports.
+ *
+ */
+package hub.sample;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * class RateLimitInterceptor takes a permit from the endpoint's TokenBucket and
+ * from the Hub account's TokenBucket before each request, so that all ports and
+ * threads of the process together stay within the rate the Hub accepts.  When
+ * the Hub answers with a throttling fault both buckets slow down; successful
+ * calls speed them up again (see TokenBucket).
+ *
+ * PortProxies.forHub() puts it inside ResilienceInterceptor, so a hedged
+ * duplicate takes a permit of its own, and PooledHttpSender takes one more
+ * through resend() before it sends a request again that may have reached the
+ * Hub.  A call abandoned at its deadline while it waits for its permit gives the
+ * permit back, as does a call refused by the other bucket.
+ *
+ * The limits are off unless configured: the rates the Hub accepts depend on the
+ * account.  Configured with system properties:
+ *
+ *   hub.ratelimit.endpointRate      requests per second per endpoint (default 0, no limit)
+ *   hub.ratelimit.accountRate       requests per second per Hub account (default 0, no limit)
+ *   hub.ratelimit.burst             calls allowed at once after an idle period (default 5)
+ *   hub.ratelimit.maxWaitMillis     a request that would wait longer is refused (default 60000)
+ *   hub.ratelimit.throttlePattern   regular expression for throttling faults
+ *
+ * A fault counts as throttling if its message, or that of a cause, matches the
+ * pattern, e.g. "Too many requests" or an HTTP 429 / 503 from PooledHttpSender.
+ *
+ */
+public class RateLimitInterceptor implements PortInterceptor {
+
+    private static final double ENDPOINT_RATE = Double.parseDouble(System.getProperty("hub.ratelimit.endpointRate",
+            "0"));
+    private static final double ACCOUNT_RATE = Double.parseDouble(System.getProperty("hub.ratelimit.accountRate",
+            "0"));
+    private static final int BURST = Integer.getInteger("hub.ratelimit.burst", 5).intValue();
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong(
+            "hub.ratelimit.maxWaitMillis", 60000L).longValue());
+    private static final Pattern THROTTLE_PATTERN = Pattern.compile(System.getProperty(
+            "hub.ratelimit.throttlePattern",
+            "(?i).*(throttl|too many requests|rate limit|limit exceeded|\\(429\\)|\\(503\\)).*"), Pattern.DOTALL);
+
+    private static final String REFUSED = "rate limit of ";
+
+    private static final ConcurrentMap<String, TokenBucket> BUCKETS = new ConcurrentHashMap<String, TokenBucket>();
+    private static final ConcurrentMap<String, RateLimitInterceptor> INTERCEPTORS = new ConcurrentHashMap<String, RateLimitInterceptor>();
+
+    // the interceptor of the call under way on this thread, for resend()
+    private static final ThreadLocal<RateLimitInterceptor> CURRENT = new ThreadLocal<RateLimitInterceptor>();
+
+    private final TokenBucket endpointBucket;
+    private final TokenBucket accountBucket;
+
+    /**
+     * @param endpointBucket the endpoint's bucket, null for no limit
+     * @param accountBucket the account's bucket, null for no limit
+     */
+    public RateLimitInterceptor(TokenBucket endpointBucket, TokenBucket accountBucket) {
+        this.endpointBucket = endpointBucket;
+        this.accountBucket = accountBucket;
+    }
+
+    /**
+     * The shared interceptor for a Hub account on an endpoint.  Every account on
+     * the endpoint shares the endpoint's bucket.
+     */
+    public static RateLimitInterceptor forAccount(String endpoint, String username) {
+        String key = endpoint + '\u0000' + username;
+        RateLimitInterceptor interceptor = INTERCEPTORS.get(key);
+        if (interceptor == null) {
+            RateLimitInterceptor created = new RateLimitInterceptor(bucket(endpoint, ENDPOINT_RATE),
+                    bucket(endpoint + " account " + username, ACCOUNT_RATE));
+            interceptor = INTERCEPTORS.putIfAbsent(key, created);
+            if (interceptor == null) {
+                interceptor = created;
+            }
+        }
+        return interceptor;
+    }
+
+    private static TokenBucket bucket(String name, double rate) {
+        if (rate <= 0) {
+            return null;
+        }
+        TokenBucket bucket = BUCKETS.get(name);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(name, rate, Math.min(rate, 0.2), BURST);
+            bucket = BUCKETS.putIfAbsent(name, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    public Object intercept(PortInvocation invocation) throws Throwable {
+        if (endpointBucket == null && accountBucket == null) {
+            return invocation.proceed();
+        }
+        String refused;
+        try {
+            refused = acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw invocation.unavailable("interrupted waiting for a permit", e);
+        }
+        if (refused != null) {
+            throw invocation.unavailable(refused, null);
+        }
+
+        RateLimitInterceptor outer = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            Object result = invocation.proceed();
+            if (accountBucket != null) {
+                accountBucket.onSuccess();
+            }
+            if (endpointBucket != null) {
+                endpointBucket.onSuccess();
+            }
+            return result;
+        } catch (Throwable t) {
+            if (isThrottled(t)) {
+                if (accountBucket != null) {
+                    accountBucket.onThrottled();
+                }
+                if (endpointBucket != null) {
+                    endpointBucket.onThrottled();
+                }
+            }
+            throw t;
+        } finally {
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+        }
+    }
+
+    /**
+     * Takes a permit from both buckets and waits for it.  A permit not used, because
+     * the other bucket refused or the wait was interrupted, is given back.
+     *
+     * @return null, or why no permit was given
+     */
+    private String acquire() throws InterruptedException {
+        TokenBucket.Reservation account = null;
+        if (accountBucket != null) {
+            account = accountBucket.reserve(MAX_WAIT_NANOS);
+            if (account == null) {
+                return REFUSED + accountBucket.getName() + " exceeded";
+            }
+        }
+        TokenBucket.Reservation endpoint = null;
+        if (endpointBucket != null) {
+            endpoint = endpointBucket.reserve(MAX_WAIT_NANOS);
+            if (endpoint == null) {
+                if (account != null) {
+                    accountBucket.cancel(account);
+                }
+                return REFUSED + endpointBucket.getName() + " exceeded";
+            }
+        }
+
+        long wait = Math.max(account == null ? 0 : account.getWaitNanos(),
+                endpoint == null ? 0 : endpoint.getWaitNanos());
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                if (account != null) {
+                    accountBucket.cancel(account);
+                }
+                if (endpoint != null) {
+                    endpointBucket.cancel(endpoint);
+                }
+                throw e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes a permit for a request PooledHttpSender sends again on this thread,
+     * from the buckets of the call under way; nothing if there is none.
+     *
+     * @throws IOException a HubUnavailableException if the permit is refused, an
+     *         InterruptedIOException if the wait is interrupted
+     */
+    static void resend(String operation) throws IOException {
+        RateLimitInterceptor current = CURRENT.get();
+        if (current == null) {
+            return;
+        }
+        String refused;
+        try {
+            refused = current.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a permit");
+        }
+        if (refused != null) {
+            throw new HubUnavailableException(operation, refused);
+        }
+    }
+
+    /**
+     * True if a call was refused for the rate limit, i.e. never sent.
+     */
+    static boolean isRefused(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof HubUnavailableException && cause.getMessage() != null
+                    && cause.getMessage().contains(REFUSED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isThrottled(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause.getMessage() != null && THROTTLE_PATTERN.matcher(cause.getMessage()).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The endpoint's bucket, null if the endpoint has no limit.
+     */
+    public TokenBucket getEndpointBucket() {
+        return endpointBucket;
+    }
+
+    /**
+     * The account's bucket, null if the account has no limit.
+     */
+    public TokenBucket getAccountBucket() {
+        return accountBucket;
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimitInterceptor[" + endpointBucket + ", " + accountBucket + "]";
+    }
+}
@@ -0,0 +1,550 @@
+/**
+ * Deadlines, hedged reads and a circuit breaker for the Hub ports.
+ *
+ */
+package hub.sample;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.ws.soap.SOAPFaultException;
+
+import org.apache.axis.AxisFault;
+
+/**
+ * class ResilienceInterceptor keeps a slow or failing Hub endpoint from stalling
+ * the clients:
+ *
+ * 1. Deadline - every operation runs on a worker thread and the caller of a read
+ *    (a get* operation) waits at most the operation's deadline.  The call is then
+ *    interrupted and a HubUnavailableException is thrown.  A submit* or
+ *    acknowledge* has no deadline unless one is set for the operation: a call
+ *    given up may still reach the Hub, and the caller sending it again would
+ *    duplicate the order, ACK or result.
+ * 2. Hedging - for the reads that change nothing on the Hub (getProviderAccounts
+ *    and getOrderDocuments by default) a duplicate is sent once the first call
+ *    has taken longer than the operation's recent 95th percentile, and the first
+ *    answer wins.  At most 5% of calls are hedged, so extra load stays small.
+ *    getResults is no such read: it opens a request the client acknowledges, and
+ *    the results of the answer that lost would be held and delivered again.
+ * 3. Circuit breaker - after 5 consecutive failures, or half of the last 20
+ *    calls failing, calls fail at once for 30 seconds.  A single trial call is
+ *    then let through and closes the breaker again if it succeeds; only the trial
+ *    does, the outcomes of calls let through before the breaker opened are
+ *    ignored.  Only the failures of the endpoint count: I/O errors, deadlines,
+ *    HTTP 5xx and 429, Axis or JAX-WS, and throttling faults.  A SOAP fault such
+ *    as "Invalid request id" is an answer and counts as a success; a call never
+ *    sent, e.g. one the rate limit refused, counts as neither.
+ *
+ * There is one instance per endpoint, see forEndpoint(); the defaults come from
+ * system properties:
+ *
+ *   hub.resilience.deadlineMillis               deadline of the reads (default 20000)
+ *   hub.resilience.deadlineMillis.<operation>   deadline of one operation, read or not
+ *   hub.resilience.hedge                        hedged operations (default getProviderAccounts,getOrderDocuments)
+ *   hub.resilience.breakerOpenMillis            how long the breaker stays open (default 30000)
+ *
+ * A call given up at its deadline may go on in the background until the socket
+ * read times out; it no longer holds up the caller.
+ *
+ */
+public class ResilienceInterceptor implements PortInterceptor {
+
+    private static final long DEFAULT_DEADLINE_MILLIS = Long.getLong("hub.resilience.deadlineMillis", 20000L)
+            .longValue();
+    private static final String DEFAULT_HEDGED = System.getProperty("hub.resilience.hedge",
+            "getProviderAccounts,getOrderDocuments");
+    private static final long BREAKER_OPEN_MILLIS = Long.getLong("hub.resilience.breakerOpenMillis", 30000L)
+            .longValue();
+
+    private static final String BREAKER_OPEN = "circuit breaker open for ";
+    private static final Pattern HTTP_STATUS = Pattern.compile("\\((\\d{3})\\)");
+    // "The server sent HTTP status code 503: Service Unavailable" or "HTTP Status-Code 404: Not Found"
+    private static final Pattern JAXWS_HTTP_STATUS = Pattern.compile("HTTP status[- ]code (\\d{3})",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final double HEDGE_BUDGET = 0.05;
+    private static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    private static final ExecutorService CALLS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "hub-call-" + THREADS.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final ConcurrentMap<String, ResilienceInterceptor> ENDPOINTS = new ConcurrentHashMap<String, ResilienceInterceptor>();
+
+    private final String endpoint;
+    private final ExecutorService executor;
+    private final Set<String> hedged;
+    private final CircuitBreaker breaker;
+    private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<String, LatencyWindow>();
+
+    // hedge budget in thousandths of a hedge: every call adds HEDGE_BUDGET, every hedge costs one
+    private final AtomicLong hedgeCredit = new AtomicLong(1000);
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong deadlinesExceeded = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public ResilienceInterceptor(String endpoint, ExecutorService executor, Set<String> hedgedOperations,
+            int breakerFailures, long breakerOpenMillis) {
+        this.endpoint = endpoint;
+        this.executor = executor;
+        this.hedged = hedgedOperations;
+        this.breaker = new CircuitBreaker(breakerFailures, breakerOpenMillis);
+    }
+
+    /**
+     * The shared instance for an endpoint; all ports of the endpoint share its
+     * circuit breaker and latency figures.
+     */
+    public static ResilienceInterceptor forEndpoint(String endpoint) {
+        ResilienceInterceptor interceptor = ENDPOINTS.get(endpoint);
+        if (interceptor == null) {
+            ResilienceInterceptor created = new ResilienceInterceptor(endpoint, CALLS,
+                    new HashSet<String>(Arrays.asList(DEFAULT_HEDGED.split("\\s*,\\s*"))), 5, BREAKER_OPEN_MILLIS);
+            interceptor = ENDPOINTS.putIfAbsent(endpoint, created);
+            if (interceptor == null) {
+                interceptor = created;
+            }
+        }
+        return interceptor;
+    }
+
+    public Object intercept(PortInvocation invocation) throws Throwable {
+        String operation = invocation.getOperation();
+        calls.incrementAndGet();
+        hedgeCredit.updateAndGet(credit -> Math.min(credit + (long) (HEDGE_BUDGET * 1000), 10000));
+
+        CircuitBreaker.Permit permit = breaker.allow();
+        if (permit == null) {
+            rejected.incrementAndGet();
+            throw invocation.unavailable(BREAKER_OPEN + endpoint, null);
+        }
+
+        LatencyWindow latency = latency(operation);
+        long deadlineMillis = deadlineMillis(operation);
+        long deadline = deadlineMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(deadlineMillis) : Long.MAX_VALUE;
+        long start = System.nanoTime();
+
+        CompletableFuture<Object> outcome = new CompletableFuture<Object>();
+        AtomicInteger pending = new AtomicInteger(1);
+        Future<?> primary = submit(invocation, outcome, pending, latency, false);
+        Future<?> hedge = null;
+        try {
+            try {
+                long hedgeDelay = hedged.contains(operation) ? latency.getHedgeDelayNanos() : -1;
+                if (hedgeDelay > 0 && hedgeDelay < deadline) {
+                    try {
+                        return succeeded(permit, outcome.get(hedgeDelay, TimeUnit.NANOSECONDS));
+                    } catch (TimeoutException e) {
+                        if (takeHedgeCredit() && pending.getAndIncrement() > 0) {
+                            hedges.incrementAndGet();
+                            hedge = submit(invocation, outcome, pending, latency, true);
+                        }
+                    }
+                }
+                if (deadline == Long.MAX_VALUE) {
+                    return succeeded(permit, outcome.get());
+                }
+                long remaining = deadline - (System.nanoTime() - start);
+                return succeeded(permit, outcome.get(Math.max(0, remaining), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                deadlinesExceeded.incrementAndGet();
+                breaker.failure(permit);
+                throw invocation.unavailable("no answer from " + endpoint + " within "
+                        + TimeUnit.NANOSECONDS.toMillis(deadline) + " ms", null);
+            } catch (ExecutionException e) {
+                if (isEndpointFailure(e.getCause())) {
+                    breaker.failure(permit);
+                } else if (isUnavailable(e.getCause())) {
+                    // never sent, e.g. refused by the rate limit: the Hub said nothing
+                    breaker.release(permit);
+                } else {
+                    // the Hub answered, with a fault
+                    breaker.success(permit);
+                }
+                throw e.getCause();
+            } catch (InterruptedException e) {
+                // released so that a half-open breaker does not wait for this trial forever
+                breaker.release(permit);
+                Thread.currentThread().interrupt();
+                throw invocation.unavailable("interrupted", e);
+            }
+        } finally {
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    private Object succeeded(CircuitBreaker.Permit permit, Object result) {
+        breaker.success(permit);
+        return result;
+    }
+
+    private Future<?> submit(final PortInvocation invocation, final CompletableFuture<Object> outcome,
+            final AtomicInteger pending, final LatencyWindow latency, final boolean isHedge) {
+        return executor.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                Object result = invocation.proceed();
+                latency.record(System.nanoTime() - start);
+                if (outcome.complete(result) && isHedge) {
+                    hedgeWins.incrementAndGet();
+                }
+            } catch (Throwable t) {
+                // the call fails once every attempt has failed
+                if (pending.decrementAndGet() == 0) {
+                    outcome.completeExceptionally(t);
+                }
+            }
+        });
+    }
+
+    private boolean takeHedgeCredit() {
+        long credit;
+        do {
+            credit = hedgeCredit.get();
+            if (credit < 1000) {
+                return false;
+            }
+        } while (!hedgeCredit.compareAndSet(credit, credit - 1000));
+        return true;
+    }
+
+    private LatencyWindow latency(String operation) {
+        LatencyWindow window = latencies.get(operation);
+        if (window == null) {
+            LatencyWindow created = new LatencyWindow();
+            window = latencies.putIfAbsent(operation, created);
+            if (window == null) {
+                window = created;
+            }
+        }
+        return window;
+    }
+
+    /**
+     * The operation's deadline, 0 for none.
+     */
+    private static long deadlineMillis(String operation) {
+        return Long.getLong("hub.resilience.deadlineMillis." + operation,
+                PooledHttpSender.isIdempotent(operation) ? DEFAULT_DEADLINE_MILLIS : 0L).longValue();
+    }
+
+    /**
+     * True if a call was refused because the circuit breaker was open, i.e. never
+     * sent.
+     */
+    static boolean isBreakerOpen(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof HubUnavailableException && cause.getMessage() != null
+                    && cause.getMessage().contains(BREAKER_OPEN)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if a call failed because of the endpoint rather than the request: an
+     * I/O error, an HTTP status of 5xx or 429, or a throttling fault.  A SOAP
+     * fault, e.g. a validation error, is the Hub's answer and is not, nor is a
+     * request the rate limit refused, which never left.
+     */
+    static boolean isEndpointFailure(Throwable t) {
+        if (isUnavailable(t)) {
+            return false;
+        }
+        if (RateLimitInterceptor.isThrottled(t)) {
+            return true;
+        }
+        for (Throwable cause = t; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof IOException && !(cause instanceof RemoteException)) {
+                // an AxisFault is a RemoteException, hence an IOException, too
+                return true;
+            }
+        }
+        int status = httpStatus(t);
+        return status == 0 || status >= 500 || status == 429;
+    }
+
+    /**
+     * True if the clients gave the call up, or never sent it, with a
+     * HubUnavailableException.
+     */
+    private static boolean isUnavailable(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof HubUnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The HTTP status of a call that failed with one outside 2xx, without a SOAP
+     * fault; 0 if the status is not known, -1 if the call failed otherwise.
+     */
+    static int httpStatus(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof AxisFault && ((AxisFault) cause).getFaultCode() != null
+                    && "HTTP".equals(((AxisFault) cause).getFaultCode().getLocalPart())) {
+                // "(503)Service Unavailable" from PooledHttpSender or the Axis HTTPSender
+                Matcher status = HTTP_STATUS.matcher(String.valueOf(((AxisFault) cause).getFaultString()));
+                return status.lookingAt() ? Integer.parseInt(status.group(1)) : 0;
+            }
+            if (cause instanceof HubSoapFaultException && ((HubSoapFaultException) cause).getFaultCode() == null) {
+                return ((HubSoapFaultException) cause).getHttpStatus();
+            }
+            if (isWebServiceException(cause)) {
+                int status = JaxWs.httpStatus(cause);
+                if (status >= 0) {
+                    return status;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * By name, so that the JAX-WS API is only loaded for JAX-WS ports.
+     */
+    private static boolean isWebServiceException(Throwable t) {
+        for (Class<?> type = t.getClass(); type != null; type = type.getSuperclass()) {
+            if ("javax.xml.ws.WebServiceException".equals(type.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class JaxWs {
+        /**
+         * The status of the ClientTransportException JAX-WS throws for an HTTP
+         * status outside 2xx without a SOAP fault, -1 for any other exception.
+         */
+        static int httpStatus(Throwable t) {
+            if (t instanceof SOAPFaultException || t.getMessage() == null) {
+                return -1;
+            }
+            Matcher status = JAXWS_HTTP_STATUS.matcher(t.getMessage());
+            return status.find() ? Integer.parseInt(status.group(1)) : -1;
+        }
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * Hedged duplicates that answered before the original call.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Reads given up at their deadline.
+     */
+    public long getDeadlinesExceeded() {
+        return deadlinesExceeded.get();
+    }
+
+    /**
+     * Calls refused because the circuit breaker was open.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public String getBreakerState() {
+        return breaker.getState();
+    }
+
+    @Override
+    public String toString() {
+        return "ResilienceInterceptor[" + endpoint + ", calls=" + getCalls() + ", hedges=" + getHedges()
+                + ", hedgeWins=" + getHedgeWins() + ", deadlinesExceeded=" + getDeadlinesExceeded() + ", rejected="
+                + getRejected() + ", breaker=" + getBreakerState() + "]";
+    }
+
+    /**
+     * The latencies of the last 128 successful calls of one operation.  The hedge
+     * delay is their 95th percentile, recomputed every 16 calls.
+     */
+    static final class LatencyWindow {
+        private static final int SIZE = 128;
+        private static final int MIN_SAMPLES = 20;
+
+        private final long[] samples = new long[SIZE];
+        private int count;
+        private volatile long hedgeDelayNanos = -1;
+
+        synchronized void record(long nanos) {
+            samples[count % SIZE] = nanos;
+            count++;
+            if (count >= MIN_SAMPLES && count % 16 == 0) {
+                long[] sorted = Arrays.copyOf(samples, Math.min(count, SIZE));
+                Arrays.sort(sorted);
+                hedgeDelayNanos = Math.max(MIN_HEDGE_DELAY_NANOS, sorted[(int) (sorted.length * 0.95)]);
+            }
+        }
+
+        /**
+         * -1 until enough calls have been seen.
+         */
+        long getHedgeDelayNanos() {
+            return hedgeDelayNanos;
+        }
+    }
+
+    /**
+     * Closed, open or half-open (one trial call allowed).  allow() hands each call
+     * a permit and the outcome is reported with it: only the outcomes of calls let
+     * through since the breaker last closed count, and only the trial's closes it.
+     */
+    static final class CircuitBreaker {
+        private static final int WINDOW = 20;
+
+        private final int consecutiveFailureLimit;
+        private final long openNanos;
+        private final boolean[] outcomes = new boolean[WINDOW];
+        private int calls;
+        private int failuresInWindow;
+        private int consecutiveFailures;
+        private long openedAt;
+        private String state = "CLOSED";
+        // the permit of the calls let through while closed, replaced each time the breaker closes
+        private Permit closed = new Permit();
+        private Permit trial;
+
+        CircuitBreaker(int consecutiveFailureLimit, long openMillis) {
+            this.consecutiveFailureLimit = consecutiveFailureLimit;
+            this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        }
+
+        /**
+         * The call's permit, or null if the breaker is open, or half-open with the
+         * trial call still running.
+         */
+        synchronized Permit allow() {
+            if ("CLOSED".equals(state)) {
+                return closed;
+            }
+            if ("OPEN".equals(state) && System.nanoTime() - openedAt >= openNanos) {
+                state = "HALF_OPEN";
+                trial = new Permit();
+                return trial;
+            }
+            return null;
+        }
+
+        synchronized void success(Permit permit) {
+            if (permit == trial && "HALF_OPEN".equals(state)) {
+                reset();
+                return;
+            }
+            if (permit != closed || !"CLOSED".equals(state)) {
+                return;
+            }
+            consecutiveFailures = 0;
+            recordOutcome(false);
+        }
+
+        synchronized void failure(Permit permit) {
+            if (permit == trial && "HALF_OPEN".equals(state)) {
+                open();
+                return;
+            }
+            if (permit != closed || !"CLOSED".equals(state)) {
+                return;
+            }
+            consecutiveFailures++;
+            recordOutcome(true);
+            if (consecutiveFailures >= consecutiveFailureLimit
+                    || (calls >= WINDOW && failuresInWindow * 2 >= WINDOW)) {
+                open();
+            }
+        }
+
+        /**
+         * A call that ended without an answer or failure of the endpoint.  A trial
+         * makes way for the next call to be the trial, the cool-down being over.
+         */
+        synchronized void release(Permit permit) {
+            if (permit == trial && "HALF_OPEN".equals(state)) {
+                state = "OPEN";
+                trial = null;
+            }
+        }
+
+        synchronized String getState() {
+            return state;
+        }
+
+        private void recordOutcome(boolean failed) {
+            int slot = calls % WINDOW;
+            if (calls >= WINDOW && outcomes[slot]) {
+                failuresInWindow--;
+            }
+            outcomes[slot] = failed;
+            if (failed) {
+                failuresInWindow++;
+            }
+            calls++;
+        }
+
+        private void open() {
+            state = "OPEN";
+            openedAt = System.nanoTime();
+            trial = null;
+        }
+
+        private void reset() {
+            state = "CLOSED";
+            closed = new Permit();
+            trial = null;
+            Arrays.fill(outcomes, false);
+            calls = 0;
+            failuresInWindow = 0;
+            consecutiveFailures = 0;
+        }
+
+        /**
+         * Compared by identity only.
+         */
+        static final class Permit {
+        }
+    }
+}
@@ -14,9 +14,6 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.net.Authenticator;
-import java.net.PasswordAuthentication;
-import java.net.URL;
 import java.rmi.RemoteException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
@@ -24,8 +21,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
-import javax.xml.namespace.QName;
-
 import com.medplus.results.AckResultsRequest;
 import com.medplus.results.AcknowledgeResults;
 import com.medplus.results.Hl7Message;
@@ -35,7 +30,6 @@ import com.medplus.results.ResultDocument;
 import com.medplus.results.RetrieveResultsPortType;
 import com.medplus.results.RetrieveResultsRequest;
 import com.medplus.results.RetrieveResultsResponse;
-import com.medplus.results.RetrieveResultsService;
 import com.medplus.results.SOAPException_Exception;
 
 /**
@@ -54,6 +48,8 @@ public class ResultsRetrievalServiceClient {
     private static final String REQUEST_PARAMETER_NAME_MESSAGE_CONTROL_ID = "messageControlId";
     private static final String REQUEST_PARAMETER_NAME_PROVIDER_ACCT_ID = "providerAcctId";
 
+    private static final HubLog LOG = HubLog.forClass(ResultsRetrievalServiceClient.class);
+
     /**
      * The HL7/Observation ACK message template - The following "template" is
      * used in constructing an ACK request message. After calling getResults()
@@ -133,17 +129,6 @@ public class ResultsRetrievalServiceClient {
     public void execute() {
         RetrieveResultsPortType proxy;
 
-        // -------------------------------------------------
-        // SET UP AUTHENTICATION
-        // -------------------------------------------------
-
-        Authenticator.setDefault(new Authenticator() {
-            @Override
-            protected PasswordAuthentication getPasswordAuthentication() {
-                return new PasswordAuthentication(username, password.toCharArray());
-            }
-        });
-
         try {
             // Get the stub.
             proxy = getRetrieveResultsServicePort();
@@ -168,28 +153,29 @@ public class ResultsRetrievalServiceClient {
      */
     private AcknowledgeResults buildAcknowledgement(RetrieveResultsResponse response, String resultServiceType) {
 
+        HubEvents.AckBuild event = new HubEvents.AckBuild();
+        event.begin();
         AcknowledgeResults acknowledgeResults = new AcknowledgeResults();
         AckResultsRequest acknowledgment = new AckResultsRequest();
         acknowledgment.setRequestId(response.getRequestId());
         acknowledgment.setResultServiceType(resultServiceType);
         acknowledgeResults.setRetrieveResultsAcknowledge(acknowledgment);
 
-        System.out.println("Acknowledging " + response.getResults().size() + " results.");
+        LOG.info("acknowledging", "requestId", response.getRequestId(), "resultServiceType", resultServiceType,
+                "results", Integer.valueOf(response.getResults().size()));
 
         int i = 0;
         for (Result result : response.getResults()) {
-            
-            System.out.println("Message: " + i++);
-            System.out.println("---------");
-                
+            Integer index = Integer.valueOf(i++);
+
             if (resultServiceType.equals(RESULT_SERVICE_TYPE_HL7)
                     || resultServiceType.equals(RESULT_SERVICE_TYPE_OBSERVATION)) {
 
                 String currentHL7 = new String(result.getHL7Message().getMessage());
                 int pdfCount = result.getDocuments() != null ? result.getDocuments().size() : 0;
 
-                System.out.println("The HL7 Message:\n" + currentHL7);
-                System.out.println("There are " + pdfCount + " attached PDFs.\n\n");
+                // the HL7 message itself only if hub.log.payloadSample asks for it
+                LOG.payload("message", "index", index, "pdfs", Integer.valueOf(pdfCount), currentHL7);
 
                 Hl7Message ackMessage = buildHl7ObsAckMessage(currentHL7);
                 
@@ -205,7 +191,7 @@ public class ResultsRetrievalServiceClient {
                     String messageControlId = resultDoc.getResultInfo().getMessageControlId();
                     String providerAccountId = resultDoc.getResultInfo().getProviderAcctId();
                     
-                    System.out.println("Printable result: Message Control ID = " + messageControlId);
+                    LOG.debug("printableResult", "index", index, "messageControlId", messageControlId);
                     
                     RequestParameter param = new RequestParameter();
                     param.setParameterName(REQUEST_PARAMETER_NAME_MESSAGE_CONTROL_ID);
@@ -219,18 +205,32 @@ public class ResultsRetrievalServiceClient {
                 }
             }
         }
+        if (event.shouldCommit()) {
+            event.client = "ResultsRetrievalServiceClient";
+            event.resultServiceType = resultServiceType;
+            event.requestId = response.getRequestId();
+            event.results = response.getResults().size();
+            event.acks = acknowledgment.getAckMessages().isEmpty() ? acknowledgment.getRequestParameters().size() / 2
+                    : acknowledgment.getAckMessages().size();
+            for (Result result : response.getResults()) {
+                if (result.getHL7Message() != null && result.getHL7Message().getMessage() != null) {
+                    event.hl7Bytes += result.getHL7Message().getMessage().length;
+                }
+            }
+            event.commit();
+        }
         return acknowledgeResults;
     }
 
     /**
-     * Gets and initializes a reference to the web service "port/stub".
+     * Gets a reference to the web service "port/stub".  The WSDL is read from the
+     * local cache and the port is shared, see HubPortFactory.  The username and
+     * password are bound to the port, so other Hub accounts can be served by the
+     * same process at the same time.
      */
     private RetrieveResultsPortType getRetrieveResultsServicePort() throws IOException {
-        RetrieveResultsService service = new RetrieveResultsService(new URL(endpoint + "?wsdl"), new QName(
-                "http://medplus.com/results", "RetrieveResultsService"));
-        System.out.println("Retrieving the port from the following service: " + service);
-        System.out.println(service.getRetrieveResultsPortTypePort());
-        return service.getRetrieveResultsPortTypePort();
+        System.out.println("Retrieving the port for the following endpoint: " + endpoint);
+        return HubPortFactory.getRetrieveResultsPort(endpoint, username, password);
     }
 
     /**
@@ -290,7 +290,7 @@ public class ResultsRetrievalServiceClient {
      * 5. Output the number of results acknowledged on this pass. 
      * 6. If more results are available, call getMoreResults(). Repeat from step 2.
      */
-    private void getResults(RetrieveResultsPortType proxy, String maxMessages, String messageControlId,
+    void getResults(RetrieveResultsPortType proxy, String maxMessages, String messageControlId,
             String providerAcctId, String resultServiceType) throws RemoteException {
         String requestID = "";
 
@@ -402,6 +402,11 @@ public class ResultsRetrievalServiceClient {
     // Example of how to write the PDF out to a file
     private void writeResultDataToFile(List<Result> results)
     {
+        HubEvents.DocumentWrite event = new HubEvents.DocumentWrite();
+        event.begin();
+        int documents = 0;
+        long bytes = 0;
+        boolean failed = false;
         try
         {
             for (Result result : results) {
@@ -417,14 +422,25 @@ public class ResultsRetrievalServiceClient {
                         fs.write(document.getDocumentData());
                         fs.flush();
                         fs.close();
+                        documents++;
+                        bytes += document.getDocumentData().length;
                     }
                 }
             }
         }
         catch (Exception ex)
         {
+            failed = true;
             ex.printStackTrace();
         }
+        ClientMetrics.documentsWritten(documents, bytes);
+        if (event.shouldCommit()) {
+            event.directory = new File("").getAbsolutePath();
+            event.documents = documents;
+            event.bytes = bytes;
+            event.failed = failed;
+            event.commit();
+        }
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+/**
+ * Destination of the results decoded by StreamingResultsDecoder.
+ *
+ */
+package hub.sample;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * interface ResultsSink receives the HL7 messages and documents of a results
+ * response while it is being parsed.  Binary content is written to the streams
+ * returned by openHL7Message() and openDocument() as it is base64-decoded, so it
+ * never has to be held in memory as a whole.
+ *
+ * The document metadata (id, file name, MIME type) follows the document data in
+ * the response, so it is passed to documentComplete() after the data has been
+ * written.
+ *
+ */
+public interface ResultsSink {
+
+    /**
+     * Returns the stream that receives the bytes of the next HL7 message.
+     */
+    OutputStream openHL7Message() throws IOException;
+
+    /**
+     * Returns the stream that receives the bytes of the next document (PDF).
+     */
+    OutputStream openDocument() throws IOException;
+
+    /**
+     * Called when a document has been decoded.  The stream has already been closed.
+     */
+    void documentComplete(OutputStream document, String documentId, String fileName, String fileMimeType)
+            throws IOException;
+
+    /**
+     * Called as soon as an HL7Message or ObservationResult, including all of its
+     * documents, has been decoded.  The message stream has already been closed.
+     */
+    void resultComplete(StreamedResult result) throws IOException;
+
+    /**
+     * Called instead of documentComplete() or resultComplete() for a stream of a
+     * response that failed to decode part-way, e.g. on a malformed envelope or a
+     * closed connection.  The stream may or may not be closed already.  A sink
+     * that writes files closes the stream and deletes the partial file; this
+     * default only closes it.
+     */
+    default void discard(OutputStream stream) throws IOException {
+        stream.close();
+    }
+}
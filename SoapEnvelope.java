@@ -0,0 +1,187 @@
+/**
+ * Builds the SOAP 1.1 RPC/encoded request envelopes used by the Hub services.
+ *
+ */
+package hub.sample;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * class SoapEnvelope writes an RPC/encoded request in the same form the Axis stubs
+ * send, except that structures are written inline instead of as multiRef elements.
+ *
+ *   SoapEnvelope envelope = new SoapEnvelope("getMoreHL7Results", HubAsyncClient.RESULTS_NAMESPACE);
+ *   envelope.string("requestId", requestId);
+ *   byte[] request = envelope.toBytes();
+ *
+ * Every struct opened with beginStruct() or beginArray() must be closed with
+ * endStruct() or endArray() before toBytes() is called.
+ *
+ */
+public class SoapEnvelope {
+
+    static final String SOAP_ENVELOPE_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+    static final String SOAP_ENCODING_NAMESPACE = "http://schemas.xmlsoap.org/soap/encoding/";
+
+    private final StringBuilder xml = new StringBuilder(1024);
+    private final String operation;
+    private int typeNamespaces;
+
+    /**
+     * @param operation the operation name, e.g. "submitOrder"
+     * @param namespace the operation namespace, e.g. "http://medplus.com/orders"
+     */
+    public SoapEnvelope(String operation, String namespace) {
+        this.operation = operation;
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<soapenv:Envelope xmlns:soapenv=\"").append(SOAP_ENVELOPE_NAMESPACE)
+                .append("\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\"")
+                .append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"")
+                .append(" xmlns:soapenc=\"").append(SOAP_ENCODING_NAMESPACE).append("\">")
+                .append("<soapenv:Body><ns1:").append(operation)
+                .append(" soapenv:encodingStyle=\"").append(SOAP_ENCODING_NAMESPACE)
+                .append("\" xmlns:ns1=\"").append(namespace).append("\">");
+    }
+
+    public SoapEnvelope string(String name, String value) {
+        return scalar(name, "xsd:string", value == null ? null : escape(value));
+    }
+
+    public SoapEnvelope integer(String name, Integer value) {
+        return scalar(name, "xsd:int", value == null ? null : value.toString());
+    }
+
+    public SoapEnvelope bool(String name, Boolean value) {
+        return scalar(name, "xsd:boolean", value == null ? null : value.toString());
+    }
+
+    public SoapEnvelope base64(String name, byte[] value) {
+        return scalar(name, "xsd:base64Binary", value == null ? null : Base64.getEncoder().encodeToString(value));
+    }
+
+    public SoapEnvelope dateTime(String name, Calendar value) {
+        if (value == null) {
+            return scalar(name, "xsd:dateTime", null);
+        }
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        utc.setTimeInMillis(value.getTimeInMillis());
+        String formatted = String.format("%1$tY-%1$tm-%1$tdT%1$tH:%1$tM:%1$tS.%1$tLZ", utc);
+        return scalar(name, "xsd:dateTime", formatted);
+    }
+
+    /**
+     * Writes an xsd:string array; a null array is written as nil.
+     *
+     * The stubs register String[] as ArrayOfString of java:language_builtins.lang,
+     * but that mapping only names the WSDL type: the Axis ArraySerializer puts the
+     * same soapenc:Array with soapenc:arrayType="xsd:string[n]" and xsd:string items
+     * on the wire (providerAccountIds of getHL7Results, documentIds of the
+     * observation acknowledgeResults, orderSupportRequests of getOrderDocuments),
+     * and this is that encoding, element for element.
+     */
+    public SoapEnvelope stringArray(String name, String[] values) {
+        if (values == null) {
+            return scalar(name, "soapenc:Array", null);
+        }
+        xml.append('<').append(name).append(" soapenc:arrayType=\"xsd:string[").append(values.length)
+                .append("]\" xsi:type=\"soapenc:Array\">");
+        for (String value : values) {
+            string(name, value);
+        }
+        xml.append("</").append(name).append('>');
+        return this;
+    }
+
+    /**
+     * Opens a struct of the given type, e.g. beginStruct("order", "Order", "java:com.medplus.serviceHub.orders.webservice").
+     */
+    public SoapEnvelope beginStruct(String name, String type, String typeNamespace) {
+        String prefix = "t" + (++typeNamespaces);
+        xml.append('<').append(name).append(" xsi:type=\"").append(prefix).append(':').append(type)
+                .append("\" xmlns:").append(prefix).append("=\"").append(typeNamespace).append("\">");
+        return this;
+    }
+
+    public SoapEnvelope endStruct(String name) {
+        xml.append("</").append(name).append('>');
+        return this;
+    }
+
+    /**
+     * Opens an array of structs; each element is then written with beginStruct(name, ...).
+     */
+    public SoapEnvelope beginArray(String name, String itemType, String typeNamespace, int length) {
+        String prefix = "t" + (++typeNamespaces);
+        xml.append('<').append(name).append(" soapenc:arrayType=\"").append(prefix).append(':').append(itemType)
+                .append('[').append(length).append("]\" xsi:type=\"soapenc:Array\" xmlns:").append(prefix)
+                .append("=\"").append(typeNamespace).append("\">");
+        return this;
+    }
+
+    public SoapEnvelope endArray(String name) {
+        return endStruct(name);
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * Closes the envelope and returns it as UTF-8.
+     */
+    public byte[] toBytes() {
+        return new StringBuilder(xml.length() + 64).append(xml).append("</ns1:").append(operation)
+                .append("></soapenv:Body></soapenv:Envelope>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private SoapEnvelope scalar(String name, String type, String text) {
+        xml.append('<').append(name).append(" xsi:type=\"").append(type).append('"');
+        if (text == null) {
+            xml.append(" xsi:nil=\"true\"/>");
+        } else {
+            xml.append('>').append(text).append("</").append(name).append('>');
+        }
+        return this;
+    }
+
+    static String escape(String value) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+            case '<':
+                replacement = "&lt;";
+                break;
+            case '>':
+                replacement = "&gt;";
+                break;
+            case '&':
+                replacement = "&amp;";
+                break;
+            case '"':
+                replacement = "&quot;";
+                break;
+            case '\r':
+                replacement = "&#13;";
+                break;
+            default:
+                replacement = null;
+            }
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped == null ? value : escaped.toString();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * One HL7Message or ObservationResult decoded by StreamingResultsDecoder.
+ *
+ */
+package hub.sample;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * class StreamedResult describes a decoded result.  The HL7 message itself was
+ * written to the stream the ResultsSink returned from openHL7Message().
+ *
+ */
+public class StreamedResult {
+
+    private final OutputStream message;
+    private final long messageLength;
+    private final String controlId;
+    private final String resultId;
+    private final String observationResultType;
+    private final List<String> documentIds;
+
+    public StreamedResult(OutputStream message, long messageLength, String controlId, String resultId,
+            String observationResultType, List<String> documentIds) {
+        this.message = message;
+        this.messageLength = messageLength;
+        this.controlId = controlId;
+        this.resultId = resultId;
+        this.observationResultType = observationResultType;
+        this.documentIds = Collections.unmodifiableList(new ArrayList<String>(documentIds));
+    }
+
+    /**
+     * The stream the HL7 message was written to, or null if the result had no message.
+     */
+    public OutputStream getMessage() {
+        return message;
+    }
+
+    public long getMessageLength() {
+        return messageLength;
+    }
+
+    /**
+     * The control ID of an HL7Message (HL7 results only).
+     */
+    public String getControlId() {
+        return controlId;
+    }
+
+    /**
+     * The result ID of an ObservationResult (observation results only).
+     */
+    public String getResultId() {
+        return resultId;
+    }
+
+    public String getObservationResultType() {
+        return observationResultType;
+    }
+
+    /**
+     * The IDs of the documents attached to an ObservationResult.
+     */
+    public List<String> getDocumentIds() {
+        return documentIds;
+    }
+}
@@ -0,0 +1,567 @@
+/**
+ * A streaming decoder for the HL7 and observation results responses.
+ *
+ */
+package hub.sample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * class StreamingResultsDecoder reads a getHL7Results / getMoreHL7Results or an
+ * observation getResults / getMoreResults response with StAX instead of letting
+ * Axis build a SAAJ tree of the whole envelope.  The base64 HL7 messages and
+ * documents are decoded in chunks, as the parser delivers the text, straight into
+ * the streams of a ResultsSink, and each HL7Message or ObservationResult is handed
+ * to the sink as soon as it is complete.  Peak memory therefore depends on the
+ * parser buffer and not on the size of the page.
+ *
+ * Structures may be written inline or as multiRef elements referenced with href,
+ * the form the Axis server uses:
+ *
+ *   <ns1:getHL7ResultsResponse><result href="#id0"/></ns1:getHL7ResultsResponse>
+ *   <multiRef id="id0" xsi:type="ns2:HL7ResultsResponse">
+ *     <HL7Messages soapenc:arrayType="ns2:HL7Message[2]"><HL7Messages href="#id1"/>...</HL7Messages>
+ *     <isMore href="#id3"/><requestId>...</requestId>
+ *   </multiRef>
+ *   <multiRef id="id1" xsi:type="ns2:HL7Message"><controlId>...</controlId><message>...</message></multiRef>
+ *
+ * An ObservationResult whose documents are referenced is emitted once the last
+ * of those documents has been read.
+ *
+ * Usage:
+ *
+ *   StreamingResultsDecoder.Page page = new StreamingResultsDecoder().decode(response.getBodyStream(), sink);
+ *   if (page.isMore()) { ... getMoreHL7Results(page.getRequestId()) ... }
+ *
+ */
+public class StreamingResultsDecoder {
+
+    private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+    private static final String XSD_NAMESPACE = "http://www.w3.org/2001/XMLSchema";
+
+    // no DTDs and no external entities; HubAsyncClient reads its faults with it too
+    static final XMLInputFactory XML_INPUT_FACTORY = newInputFactory();
+
+    private static final int HL7_MESSAGE = 1;
+    private static final int OBSERVATION_RESULT = 2;
+    private static final int DOCUMENT = 3;
+
+    /**
+     * Decodes one response.  The stream is read to the end of the envelope but
+     * not closed.  If the response cannot be decoded, the streams of the sink not
+     * yet passed to documentComplete() or resultComplete() are handed to
+     * ResultsSink.discard(), so no partial message or document is left behind.
+     */
+    public Page decode(InputStream in, ResultsSink sink) throws IOException {
+        Parse parse = null;
+        boolean decoded = false;
+        try {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                parse = new Parse(reader, sink);
+                Page page = parse.run();
+                decoded = true;
+                return page;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed results response: " + e.getMessage(), e);
+        } finally {
+            if (!decoded && parse != null) {
+                parse.discard();
+            }
+        }
+    }
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // keep long base64 text in parser-sized pieces instead of one String
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * requestId and isMore of the decoded page.
+     */
+    public static final class Page {
+        private final String requestId;
+        private final boolean more;
+        private final int results;
+        private final int documents;
+
+        Page(String requestId, boolean more, int results, int documents) {
+            this.requestId = requestId;
+            this.more = more;
+            this.results = results;
+            this.documents = documents;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public boolean isMore() {
+            return more;
+        }
+
+        /**
+         * Number of HL7Message / ObservationResult elements passed to the sink.
+         */
+        public int getResults() {
+            return results;
+        }
+
+        public int getDocuments() {
+            return documents;
+        }
+
+        @Override
+        public String toString() {
+            return "Page[requestId=" + requestId + ", isMore=" + more + ", results=" + results + ", documents="
+                    + documents + "]";
+        }
+    }
+
+    /**
+     * The state of one decode() call.
+     */
+    private static final class Parse {
+        private final XMLStreamReader reader;
+        private final ResultsSink sink;
+        // streams of the sink not yet handed back with documentComplete() or resultComplete()
+        private final List<OutputStream> unfinished = new ArrayList<OutputStream>();
+
+        // open HL7Message / ObservationResult / document structures, innermost last
+        private final List<Record> records = new ArrayList<Record>();
+        // element depth at which each open array's items appear, and the item kind
+        private final Map<Integer, Integer> arrayItemKinds = new HashMap<Integer, Integer>();
+        private int depth;
+
+        // field being read: either as text or as base64 into a sink stream
+        private StringBuilder text;
+        private Base64Sink binary;
+        private String field;
+        private int fieldDepth = -1;
+        private String scalarId;
+
+        // scalar multiRefs (e.g. isMore) and who is waiting for them
+        private final Map<String, String> scalars = new HashMap<String, String>();
+        private final Map<String, Record> scalarOwners = new HashMap<String, Record>();
+        private final Map<String, String> scalarFields = new HashMap<String, String>();
+
+        // documents referenced from an ObservationResult before they were read, and vice versa
+        private final Map<String, Record> documentOwners = new HashMap<String, Record>();
+        private final Map<String, String> completedDocuments = new HashMap<String, String>();
+        private final List<Record> waiting = new ArrayList<Record>();
+
+        private String requestId;
+        private String isMore;
+        private int results;
+        private int documents;
+
+        Parse(XMLStreamReader reader, ResultsSink sink) {
+            this.reader = reader;
+            this.sink = sink;
+        }
+
+        Page run() throws XMLStreamException, IOException {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    startElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    characters();
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    endElement();
+                    arrayItemKinds.remove(Integer.valueOf(depth + 1));
+                    depth--;
+                    break;
+                default:
+                    break;
+                }
+            }
+            for (Record record : waiting) {
+                // documents that were referenced but never sent
+                emit(record);
+            }
+            return new Page(requestId, "true".equals(isMore) || "1".equals(isMore), results, documents);
+        }
+
+        private void startElement() throws IOException {
+            String name = reader.getLocalName();
+            String qualifiedType = reader.getAttributeValue(XSI_NAMESPACE, "type");
+            String type = localPart(qualifiedType);
+            String id = reader.getAttributeValue(null, "id");
+            String href = reader.getAttributeValue(null, "href");
+            Record record = records.isEmpty() ? null : records.get(records.size() - 1);
+
+            if (href != null && href.startsWith("#")) {
+                reference(record, name, href.substring(1));
+                return;
+            }
+
+            int kind = kindOf(type);
+            if (kind == 0) {
+                Integer itemKind = arrayItemKinds.get(Integer.valueOf(depth));
+                if (itemKind != null) {
+                    kind = itemKind.intValue();
+                }
+            }
+            if (kind != 0) {
+                records.add(new Record(kind, id));
+                return;
+            }
+
+            String arrayType = reader.getAttributeValue(SoapEnvelope.SOAP_ENCODING_NAMESPACE, "arrayType");
+            if (arrayType != null) {
+                int itemKind = kindOf(localPart(arrayType.substring(0, Math.max(0, arrayType.indexOf('[')))));
+                if (itemKind != 0) {
+                    arrayItemKinds.put(Integer.valueOf(depth + 1), Integer.valueOf(itemKind));
+                }
+                return;
+            }
+
+            if (fieldDepth != -1) {
+                return;
+            }
+            if (record != null && depth == record.depth + 1) {
+                field = name;
+                fieldDepth = depth;
+                if (isBinaryField(record, name, type)) {
+                    OutputStream out = record.kind == DOCUMENT ? sink.openDocument() : sink.openHL7Message();
+                    unfinished.add(out);
+                    binary = new Base64Sink(out);
+                    record.data = out;
+                } else {
+                    text = new StringBuilder();
+                }
+            } else if (record == null && ("requestId".equals(name) || "isMore".equals(name))) {
+                field = name;
+                fieldDepth = depth;
+                text = new StringBuilder();
+            } else if (record == null && id != null && isSimpleType(qualifiedType)) {
+                // a scalar multiRef, e.g. <multiRef id="id3" xsi:type="xsd:boolean">false</multiRef>
+                fieldDepth = depth;
+                scalarId = id;
+                text = new StringBuilder();
+            }
+        }
+
+        private void characters() throws IOException {
+            if (binary != null) {
+                binary.write(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            } else if (text != null) {
+                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+
+        private void endElement() throws IOException {
+            if (depth == fieldDepth) {
+                endField();
+                return;
+            }
+            if (!records.isEmpty()) {
+                Record record = records.get(records.size() - 1);
+                if (record.depth == depth) {
+                    records.remove(records.size() - 1);
+                    complete(record);
+                }
+            }
+        }
+
+        private void endField() throws IOException {
+            Record record = records.isEmpty() ? null : records.get(records.size() - 1);
+            if (binary != null) {
+                long length = binary.finish();
+                if (record != null) {
+                    record.dataLength = length;
+                }
+            } else if (scalarId != null) {
+                scalar(scalarId, text.toString().trim());
+            } else if (record != null) {
+                record.fields.put(field, text.toString().trim());
+            } else if ("requestId".equals(field)) {
+                requestId = text.toString().trim();
+            } else {
+                isMore = text.toString().trim();
+            }
+            binary = null;
+            text = null;
+            field = null;
+            scalarId = null;
+            fieldDepth = -1;
+        }
+
+        /**
+         * An element with href: a referenced document, or a scalar field stored as a multiRef.
+         */
+        private void reference(Record record, String name, String id) {
+            Integer itemKind = arrayItemKinds.get(Integer.valueOf(depth));
+            if (record != null && record.kind == OBSERVATION_RESULT && itemKind != null
+                    && itemKind.intValue() == DOCUMENT) {
+                String documentId = completedDocuments.remove(id);
+                if (documentId != null) {
+                    record.documentIds.add(documentId);
+                } else {
+                    record.pendingDocuments++;
+                    documentOwners.put(id, record);
+                }
+            } else if (itemKind != null) {
+                // HL7Message / ObservationResult references; the multiRef is emitted when it is read
+            } else if (scalars.containsKey(id)) {
+                assign(record, name, scalars.remove(id));
+            } else {
+                scalarOwners.put(id, record);
+                scalarFields.put(id, name);
+            }
+        }
+
+        private void scalar(String id, String value) {
+            String name = scalarFields.remove(id);
+            if (name != null) {
+                assign(scalarOwners.remove(id), name, value);
+            } else {
+                scalars.put(id, value);
+            }
+        }
+
+        private void assign(Record record, String name, String value) {
+            if (record != null) {
+                record.fields.put(name, value);
+            } else if ("requestId".equals(name)) {
+                requestId = value;
+            } else if ("isMore".equals(name)) {
+                isMore = value;
+            }
+        }
+
+        private void complete(Record record) throws IOException {
+            if (record.kind == DOCUMENT) {
+                String documentId = record.fields.get("documentId");
+                unfinished.remove(record.data);
+                sink.documentComplete(record.data, documentId, record.fields.get("fileName"),
+                        record.fields.get("fileMimeType"));
+                documents++;
+
+                Record owner = record.id == null ? null : documentOwners.remove(record.id);
+                if (owner != null) {
+                    owner.documentIds.add(documentId);
+                    owner.pendingDocuments--;
+                    if (owner.pendingDocuments == 0 && waiting.remove(owner)) {
+                        emit(owner);
+                    }
+                } else if (!records.isEmpty() && records.get(records.size() - 1).kind == OBSERVATION_RESULT) {
+                    records.get(records.size() - 1).documentIds.add(documentId);
+                } else if (record.id != null) {
+                    completedDocuments.put(record.id, documentId);
+                }
+            } else if (record.pendingDocuments > 0) {
+                waiting.add(record);
+            } else {
+                emit(record);
+            }
+        }
+
+        private void emit(Record record) throws IOException {
+            String resultType = record.fields.get("observationResultType");
+            unfinished.remove(record.data);
+            sink.resultComplete(new StreamedResult(record.data, record.dataLength, record.fields.get("controlId"),
+                    record.fields.get("resultId"), resultType, record.documentIds));
+            results++;
+        }
+
+        /**
+         * Hands the streams of the messages and documents decode() did not finish to
+         * the sink to close and throw away.
+         */
+        void discard() {
+            for (OutputStream out : unfinished) {
+                try {
+                    sink.discard(out);
+                } catch (IOException | RuntimeException e) {
+                    // the decode failure is the one reported
+                }
+            }
+            unfinished.clear();
+        }
+
+        /**
+         * True for xsd:boolean, xsd:string, soapenc:int and the like.
+         */
+        private boolean isSimpleType(String qualifiedType) {
+            if (qualifiedType == null) {
+                return false;
+            }
+            int colon = qualifiedType.indexOf(':');
+            String namespace = reader.getNamespaceURI(colon == -1 ? "" : qualifiedType.substring(0, colon));
+            return XSD_NAMESPACE.equals(namespace) || SoapEnvelope.SOAP_ENCODING_NAMESPACE.equals(namespace);
+        }
+
+        private static boolean isBinaryField(Record record, String name, String type) {
+            if ("base64Binary".equals(type) || "base64".equals(type)) {
+                return true;
+            }
+            switch (record.kind) {
+            case HL7_MESSAGE:
+                return "message".equals(name);
+            case OBSERVATION_RESULT:
+                return "HL7Message".equals(name);
+            default:
+                return "documentData".equals(name);
+            }
+        }
+
+        private static int kindOf(String type) {
+            if ("HL7Message".equals(type)) {
+                return HL7_MESSAGE;
+            } else if ("ObservationResult".equals(type)) {
+                return OBSERVATION_RESULT;
+            } else if ("ObservationResultDocument".equals(type)) {
+                return DOCUMENT;
+            }
+            return 0;
+        }
+
+        private static String localPart(String qname) {
+            if (qname == null) {
+                return null;
+            }
+            int colon = qname.indexOf(':');
+            return colon == -1 ? qname : qname.substring(colon + 1);
+        }
+
+        /**
+         * An open HL7Message, ObservationResult or ObservationResultDocument.
+         */
+        private final class Record {
+            final int kind;
+            final String id;
+            final int depth = Parse.this.depth;
+            final Map<String, String> fields = new HashMap<String, String>();
+            final List<String> documentIds = new ArrayList<String>();
+            OutputStream data;
+            long dataLength;
+            int pendingDocuments;
+
+            Record(int kind, String id) {
+                this.kind = kind;
+                this.id = id;
+            }
+        }
+    }
+
+    /**
+     * Decodes base64 text handed over in arbitrary pieces and writes the bytes to
+     * a stream.  Whitespace and line breaks between the characters are skipped.
+     */
+    static final class Base64Sink {
+        private static final int[] VALUES = new int[128];
+
+        static {
+            Arrays.fill(VALUES, -1);
+            String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+            for (int i = 0; i < alphabet.length(); i++) {
+                VALUES[alphabet.charAt(i)] = i;
+            }
+        }
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int buffered;
+        private int quantum;
+        private int quantumChars;
+        private int padding;
+        private long length;
+
+        Base64Sink(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(char[] chars, int offset, int count) throws IOException {
+            for (int i = offset, end = offset + count; i < end; i++) {
+                char c = chars[i];
+                if (c == '=') {
+                    padding++;
+                    continue;
+                }
+                int value = c < 128 ? VALUES[c] : -1;
+                if (value == -1) {
+                    if (Character.isWhitespace(c)) {
+                        continue;
+                    }
+                    throw new IOException("Illegal base64 character 0x" + Integer.toHexString(c));
+                }
+                if (padding > 0) {
+                    throw new IOException("base64 data after padding");
+                }
+                quantum = (quantum << 6) | value;
+                if (++quantumChars == 4) {
+                    if (buffered > buffer.length - 3) {
+                        flush();
+                    }
+                    buffer[buffered++] = (byte) (quantum >> 16);
+                    buffer[buffered++] = (byte) (quantum >> 8);
+                    buffer[buffered++] = (byte) quantum;
+                    quantum = 0;
+                    quantumChars = 0;
+                }
+            }
+        }
+
+        /**
+         * Writes the last partial quantum, closes the stream and returns the number of bytes decoded.
+         */
+        long finish() throws IOException {
+            switch (quantumChars) {
+            case 0:
+                break;
+            case 2:
+                flushIfFull(1);
+                buffer[buffered++] = (byte) (quantum >> 4);
+                break;
+            case 3:
+                flushIfFull(2);
+                buffer[buffered++] = (byte) (quantum >> 10);
+                buffer[buffered++] = (byte) (quantum >> 2);
+                break;
+            default:
+                throw new IOException("Truncated base64 data");
+            }
+            flush();
+            out.close();
+            return length;
+        }
+
+        private void flushIfFull(int needed) throws IOException {
+            if (buffered > buffer.length - needed) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            out.write(buffer, 0, buffered);
+            length += buffered;
+            buffered = 0;
+        }
+    }
+}
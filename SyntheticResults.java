@@ -0,0 +1,178 @@
+/**
+ * Synthetic HL7 results and PDF reports for the Hub simulator.
+ *
+ */
+package hub.sample;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * class SyntheticResults makes up lab results that look like the ones the Hub
+ * returns: HL7 2.3 ORU^R01 messages with a unique message control id, and
+ * small but valid single-page PDF reports of a requested size.
+ *
+ * The messages are built from a fixed seed, so two runs with the same settings
+ * send the same amount of data.  Control ids are unique within the process.
+ *
+ */
+public class SyntheticResults {
+
+    private static final String[] LAST_NAMES = { "SMITH", "JOHNSON", "WILLIAMS", "BROWN", "JONES", "GARCIA",
+            "MILLER", "DAVIS", "RODRIGUEZ", "MARTINEZ" };
+    private static final String[] FIRST_NAMES = { "JAMES", "MARY", "ROBERT", "PATRICIA", "JOHN", "JENNIFER",
+            "MICHAEL", "LINDA", "DAVID", "ELIZABETH" };
+
+    // code, name, units, low, high
+    private static final String[][] TESTS = { { "6690-2", "WBC", "10*3/uL", "3.8", "10.8" },
+            { "789-8", "RBC", "10*6/uL", "3.80", "5.10" }, { "718-7", "HEMOGLOBIN", "g/dL", "11.7", "15.5" },
+            { "4544-3", "HEMATOCRIT", "%", "35.0", "45.0" }, { "787-2", "MCV", "fL", "80", "100" },
+            { "777-3", "PLATELET COUNT", "10*3/uL", "140", "400" }, { "2345-7", "GLUCOSE", "mg/dL", "65", "99" },
+            { "3094-0", "UREA NITROGEN", "mg/dL", "7", "25" }, { "2160-0", "CREATININE", "mg/dL", "0.50", "1.10" },
+            { "2951-2", "SODIUM", "mmol/L", "135", "146" }, { "2823-3", "POTASSIUM", "mmol/L", "3.5", "5.3" },
+            { "2075-0", "CHLORIDE", "mmol/L", "98", "110" }, { "2093-3", "CHOLESTEROL, TOTAL", "mg/dL", "125", "200" },
+            { "2571-8", "TRIGLYCERIDES", "mg/dL", "0", "150" }, { "1742-6", "ALT", "U/L", "6", "29" },
+            { "1920-8", "AST", "U/L", "10", "35" } };
+
+    private final AtomicLong controlIds;
+    private final long seed;
+    private final int observations;
+
+    /**
+     * @param seed the seed of the patient and value choices
+     * @param observations OBX segments per message; about 60 bytes each
+     */
+    public SyntheticResults(long seed, int observations) {
+        this.seed = seed;
+        this.observations = Math.max(1, observations);
+        this.controlIds = new AtomicLong(seed * 1000000L % 90000000L + 10000000L);
+    }
+
+    /**
+     * A new unique message control id.
+     */
+    public String nextControlId() {
+        return Long.toString(controlIds.incrementAndGet());
+    }
+
+    /**
+     * An ORU^R01 result for the given account.
+     *
+     * @param controlId the message control id (MSH-10)
+     * @param account the receiving facility (MSH-6), i.e. the provider account
+     */
+    public String hl7Result(String controlId, String account) {
+        Random random = new Random(seed ^ controlId.hashCode());
+        String now = new SimpleDateFormat("yyyyMMddHHmm", Locale.ROOT).format(new Date());
+        String mrn = Integer.toString(100000 + random.nextInt(900000));
+        String placer = "P" + controlId;
+        String filler = "F" + controlId;
+
+        StringBuilder message = new StringBuilder(160 + observations * 64);
+        message.append("MSH|^~\\&|LAB|QUESTDIAG|HUBCLIENT|").append(account).append('|').append(now)
+                .append("||ORU^R01|").append(controlId).append("|P|2.3\r");
+        message.append("PID|1|").append(mrn).append('|').append(mrn).append("||")
+                .append(LAST_NAMES[random.nextInt(LAST_NAMES.length)]).append('^')
+                .append(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]).append("||19")
+                .append(40 + random.nextInt(60)).append("0").append(1 + random.nextInt(9)).append("1")
+                .append(5 + random.nextInt(4)).append('|').append(random.nextBoolean() ? 'F' : 'M').append('\r');
+        message.append("ORC|RE|").append(placer).append('|').append(filler).append('\r');
+        message.append("OBR|1|").append(placer).append('|').append(filler)
+                .append("|7600^LAB PANEL|||").append(now).append("|||||||||1234567890^PROVIDER^TEST||||||")
+                .append(now).append("|||F\r");
+        for (int i = 0; i < observations; i++) {
+            String[] test = TESTS[i % TESTS.length];
+            double low = Double.parseDouble(test[3]);
+            double high = Double.parseDouble(test[4]);
+            double value = low + (high - low) * (random.nextDouble() * 1.3 - 0.15);
+            String flag = value < low ? "L" : value > high ? "H" : "N";
+            message.append("OBX|").append(i + 1).append("|NM|").append(test[0]).append('^').append(test[1])
+                    .append("^LN||").append(String.format(Locale.ROOT, "%.1f", value)).append('|').append(test[2])
+                    .append('|').append(test[3]).append('-').append(test[4]).append('|').append(flag)
+                    .append("|||F\r");
+        }
+        return message.toString();
+    }
+
+    /**
+     * The HL7 ACK the Hub returns for an order or other submitted message.
+     */
+    public String hl7Ack(String controlId, String acknowledgedControlId) {
+        String now = new SimpleDateFormat("yyyyMMddHHmm", Locale.ROOT).format(new Date());
+        return "MSH|^~\\&|HUB|QUESTDIAG|HUBCLIENT||" + now + "||ACK|" + controlId + "|P|2.3\r" + "MSA|AA|"
+                + acknowledgedControlId + "\r";
+    }
+
+    /**
+     * A one-page PDF report listing the result, padded with text lines to about
+     * the given size.
+     */
+    public byte[] pdf(String title, String hl7, int size) {
+        List<String> lines = new ArrayList<String>();
+        lines.add(title);
+        lines.add("");
+        for (String segment : hl7.split("\r")) {
+            if (segment.startsWith("OBX|")) {
+                String[] fields = segment.split("\\|", -1);
+                String[] name = fields[3].split("\\^");
+                lines.add(String.format(Locale.ROOT, "%-24s %10s %-10s %-14s %s", name.length > 1 ? name[1] : name[0],
+                        fields[5], fields[6], fields[7], fields[8]));
+            }
+        }
+
+        StringBuilder content = new StringBuilder(Math.max(256, size));
+        content.append("BT /F1 9 Tf 11 TL 36 756 Td\n");
+        for (String line : lines) {
+            content.append('(').append(escape(line)).append(") Tj T*\n");
+        }
+        // filler below the visible page, so the document reaches the wanted size
+        int filler = 0;
+        while (content.length() + 400 < size) {
+            content.append("(").append(String.format(Locale.ROOT, "%06d ", filler++))
+                    .append("................................................................").append(") Tj T*\n");
+        }
+        content.append("ET\n");
+        byte[] stream = content.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream(stream.length + 600);
+        List<Integer> offsets = new ArrayList<Integer>();
+        write(pdf, "%PDF-1.4\n");
+        offsets.add(pdf.size());
+        write(pdf, "1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+        offsets.add(pdf.size());
+        write(pdf, "2 0 obj\n<< /Type /Pages /Kids [3 0 R] /Count 1 >>\nendobj\n");
+        offsets.add(pdf.size());
+        write(pdf, "3 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 792] "
+                + "/Resources << /Font << /F1 4 0 R >> >> /Contents 5 0 R >>\nendobj\n");
+        offsets.add(pdf.size());
+        write(pdf, "4 0 obj\n<< /Type /Font /Subtype /Type1 /BaseFont /Courier >>\nendobj\n");
+        offsets.add(pdf.size());
+        write(pdf, "5 0 obj\n<< /Length " + stream.length + " >>\nstream\n");
+        pdf.write(stream, 0, stream.length);
+        write(pdf, "endstream\nendobj\n");
+        int xref = pdf.size();
+        StringBuilder trailer = new StringBuilder("xref\n0 6\n0000000000 65535 f \n");
+        for (Integer offset : offsets) {
+            trailer.append(String.format(Locale.ROOT, "%010d 00000 n \n", offset));
+        }
+        trailer.append("trailer\n<< /Size 6 /Root 1 0 R >>\nstartxref\n").append(xref).append("\n%%EOF\n");
+        write(pdf, trailer.toString());
+        return pdf.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("(", "\\(").replace(")", "\\)");
+    }
+}
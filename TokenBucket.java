@@ -0,0 +1,193 @@
+/**
+ * A lock-free token bucket whose rate adapts to throttling by the Hub.
+ *
+ */
+package hub.sample;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * class TokenBucket hands out permits at a configurable rate with a burst
+ * allowance.  The bucket is kept as a single "theoretical arrival time" in an
+ * AtomicLong: reserving a permit moves it forward by one interval with a single
+ * compare-and-set, so the acquire path takes no lock.  A caller whose permit lies
+ * in the future sleeps until then.
+ *
+ * The rate adapts additively-increase / multiplicatively-decrease:
+ * onThrottled() cuts it to 70% (at most once per second) and remembers where the
+ * Hub pushed back; onSuccess() raises it by a small step every 10 calls, more
+ * slowly once it is close to the rate that was last throttled.  The bucket then
+ * settles just below the highest rate the Hub sustains instead of swinging between
+ * overload and idle.
+ *
+ */
+public class TokenBucket {
+
+    private static final double DECREASE = 0.7;
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int INCREASE_EVERY = 10;
+
+    private final String name;
+    private final double maxRate;
+    private final double minRate;
+    private final int burst;
+
+    // the time at which the next permit becomes free if no burst is used
+    private final AtomicLong arrivalTime = new AtomicLong(System.nanoTime());
+    private volatile long intervalNanos;
+
+    private double rate;
+    private double throttledRate;
+    private long lastDecrease;
+
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param name e.g. the endpoint or account, used in toString()
+     * @param maxRate permits per second the bucket starts at and never exceeds
+     * @param minRate permits per second the bucket never goes below
+     * @param burst permits that may be taken at once after an idle period
+     */
+    public TokenBucket(String name, double maxRate, double minRate, int burst) {
+        this.name = name;
+        this.maxRate = maxRate;
+        this.minRate = minRate;
+        this.burst = Math.max(1, burst);
+        this.rate = maxRate;
+        this.throttledRate = maxRate;
+        this.intervalNanos = interval(maxRate);
+        this.lastDecrease = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+    }
+
+    /**
+     * Reserves a permit, or returns null without reserving anything if the caller
+     * would have to wait longer than maxWaitNanos for it.
+     */
+    public Reservation reserve(long maxWaitNanos) {
+        long interval = intervalNanos;
+        long tolerance = interval * (burst - 1);
+        while (true) {
+            long now = System.nanoTime();
+            long current = arrivalTime.get();
+            long start = Math.max(current, now - tolerance);
+            long wait = start - now;
+            if (wait > maxWaitNanos) {
+                return null;
+            }
+            if (arrivalTime.compareAndSet(current, start + interval)) {
+                acquired.incrementAndGet();
+                if (wait > 0) {
+                    waitNanos.addAndGet(wait);
+                }
+                return new Reservation(Math.max(0, wait), interval);
+            }
+        }
+    }
+
+    /**
+     * Gives back a permit reserved but not used.
+     */
+    public void cancel(Reservation reservation) {
+        // the interval it took, whatever the rate is now
+        arrivalTime.addAndGet(-reservation.intervalNanos);
+        acquired.decrementAndGet();
+    }
+
+    /**
+     * The Hub answered normally.
+     */
+    public void onSuccess() {
+        if (successes.incrementAndGet() % INCREASE_EVERY == 0) {
+            increase();
+        }
+    }
+
+    /**
+     * The Hub refused a call because of its request rate.
+     */
+    public synchronized void onThrottled() {
+        throttles.incrementAndGet();
+        long now = System.nanoTime();
+        if (now - lastDecrease < DECREASE_INTERVAL_NANOS) {
+            // the calls already in flight at the last decrease are throttled too
+            return;
+        }
+        lastDecrease = now;
+        throttledRate = rate;
+        setRate(Math.max(minRate, rate * DECREASE));
+    }
+
+    private synchronized void increase() {
+        if (rate >= maxRate) {
+            return;
+        }
+        // quickly back to just below the rate that was throttled, then probe carefully
+        double step = rate < throttledRate * 0.9 ? Math.max(0.5, rate * 0.05) : Math.max(0.01, rate * 0.002);
+        setRate(Math.min(maxRate, rate + step));
+    }
+
+    private void setRate(double rate) {
+        this.rate = rate;
+        this.intervalNanos = interval(rate);
+    }
+
+    private static long interval(double rate) {
+        return (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Current permits per second.
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    /**
+     * Total time callers have waited for permits.
+     */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TokenBucket[%s, rate=%.2f/s, acquired=%d, throttles=%d, waited=%d ms]", name,
+                getRate(), getAcquired(), getThrottles(), TimeUnit.NANOSECONDS.toMillis(getWaitNanos()));
+    }
+
+    /**
+     * A permit reserved by reserve().
+     */
+    public static final class Reservation {
+        private final long waitNanos;
+        private final long intervalNanos;
+
+        Reservation(long waitNanos, long intervalNanos) {
+            this.waitNanos = waitNanos;
+            this.intervalNanos = intervalNanos;
+        }
+
+        /**
+         * How long the caller has to wait for the permit, 0 if it is free now.
+         */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+    }
+}
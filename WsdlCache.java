@@ -0,0 +1,193 @@
+/**
+ * A local cache of the Hub WSDL documents.
+ *
+ */
+package hub.sample;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * class WsdlCache resolves the WSDL of a Hub endpoint to a local URL, so that
+ * creating a JAX-WS Service does not fetch endpoint + "?wsdl" over HTTPS.
+ *
+ * The WSDL is looked up in this order:
+ *
+ * 1. A WSDL bundled on the classpath as wsdl/[file name].
+ * 2. A copy in the cache directory (system property hub.wsdl.cache, default "wsdl-cache").
+ * 3. The endpoint itself.  The downloaded copy is written to the cache directory
+ *    so the next process start finds it locally, together with the schemas and
+ *    WSDLs it imports or includes (e.g. endpoint?xsd=1), their locations in the
+ *    cached copy pointing to the cached files.
+ *
+ * Delete the cached files to pick up a changed WSDL.
+ *
+ */
+public final class WsdlCache {
+
+    public static final String CACHE_DIRECTORY_PROPERTY = "hub.wsdl.cache";
+
+    private static final ConcurrentMap<String, URL> RESOLVED = new ConcurrentHashMap<String, URL>();
+
+    // the location of an xsd:import, xsd:include or wsdl:import
+    private static final Pattern IMPORT = Pattern.compile(
+            "(<(?:[\\w-]+:)?(?:import|include)\\b[^>]*?\\b(schemaLocation|location)\\s*=\\s*[\"'])([^\"']+)([\"'])");
+
+    private WsdlCache() {
+    }
+
+    /**
+     * Returns a local URL for the WSDL of the given endpoint, downloading it once if needed.
+     *
+     * @param endpoint the service endpoint, without "?wsdl"
+     * @param username Hub username sent with the download, may be null
+     * @param password Hub password sent with the download, may be null
+     */
+    public static URL getWsdlLocation(String endpoint, String username, String password) throws IOException {
+        URL location = RESOLVED.get(endpoint);
+        if (location == null) {
+            synchronized (WsdlCache.class) {
+                location = RESOLVED.get(endpoint);
+                if (location == null) {
+                    location = resolve(endpoint, username, password);
+                    RESOLVED.put(endpoint, location);
+                }
+            }
+        }
+        return location;
+    }
+
+    /**
+     * The cache file name for an endpoint, e.g. "cert.hub.care360.com_orders_submission_service.wsdl".
+     */
+    static String fileName(String endpoint) {
+        URI uri;
+        try {
+            uri = new URI(endpoint);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid endpoint: " + endpoint, e);
+        }
+        if (uri.getHost() == null) {
+            throw new IllegalArgumentException("Invalid endpoint: " + endpoint);
+        }
+        return (uri.getHost() + uri.getPath()).replaceAll("[^A-Za-z0-9.-]", "_") + ".wsdl";
+    }
+
+    /**
+     * The cache file name of an imported document, e.g. "host_service_xsd_1.xsd" for
+     * host/service?xsd=1.
+     */
+    private static String importFileName(URI source) {
+        String name = source.getHost() + source.getPath() + (source.getQuery() == null ? "" : "_" + source.getQuery());
+        name = name.replaceAll("[^A-Za-z0-9.-]", "_");
+        return name.endsWith(".xsd") || name.endsWith(".wsdl") ? name : name + ".xsd";
+    }
+
+    private static URL resolve(String endpoint, String username, String password) throws IOException {
+        String fileName = fileName(endpoint);
+
+        URL bundled = WsdlCache.class.getClassLoader().getResource("wsdl/" + fileName);
+        if (bundled != null) {
+            return bundled;
+        }
+
+        File cacheDirectory = new File(System.getProperty(CACHE_DIRECTORY_PROPERTY, "wsdl-cache"));
+        File cached = new File(cacheDirectory, fileName);
+        if (cached.isFile() && cached.length() > 0) {
+            return cached.toURI().toURL();
+        }
+
+        System.out.println("WSDL for " + endpoint + " not cached, downloading to " + cached.getAbsolutePath());
+        if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            throw new IOException("Cannot create WSDL cache directory " + cacheDirectory.getAbsolutePath());
+        }
+        URI source = URI.create(endpoint + "?wsdl");
+        Map<URI, String> fileNames = new HashMap<URI, String>();
+        fileNames.put(source, fileName);
+        cache(source, source.getHost(), username, password, cacheDirectory, fileNames);
+        return cached.toURI().toURL();
+    }
+
+    /**
+     * Downloads a document and, first, the schemas and WSDLs it imports or includes,
+     * with their locations rewritten to the cached copies, so that a cached WSDL is
+     * complete and reading it needs no network.  A document is stored only after
+     * everything it refers to is, so a WSDL found in the cache is always whole.
+     */
+    private static void cache(URI source, String host, String username, String password, File cacheDirectory,
+            Map<URI, String> fileNames) throws IOException {
+        String document = new String(download(source, host, username, password), StandardCharsets.UTF_8);
+        StringBuffer rewritten = new StringBuffer(document.length());
+        Matcher matcher = IMPORT.matcher(document);
+        while (matcher.find()) {
+            URI imported;
+            try {
+                imported = source.resolve(new URI(matcher.group(3)));
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid import " + matcher.group(3) + " in " + source, e);
+            }
+            String importName = fileNames.get(imported);
+            if (importName == null) {
+                importName = importFileName(imported);
+                fileNames.put(imported, importName);
+                cache(imported, host, username, password, cacheDirectory, fileNames);
+            }
+            matcher.appendReplacement(rewritten, Matcher.quoteReplacement(matcher.group(1) + importName
+                    + matcher.group(4)));
+        }
+        matcher.appendTail(rewritten);
+        store(rewritten.toString().getBytes(StandardCharsets.UTF_8), cacheDirectory,
+                new File(cacheDirectory, fileNames.get(source)));
+    }
+
+    /**
+     * The credentials are sent on this connection only, no JVM-wide Authenticator is
+     * installed, and only over HTTPS to the endpoint's own host, never to a host an
+     * import points to.
+     */
+    private static byte[] download(URI source, String host, String username, String password) throws IOException {
+        URLConnection connection = source.toURL().openConnection();
+        if (username != null && "https".equalsIgnoreCase(source.getScheme())
+                && host.equalsIgnoreCase(source.getHost())) {
+            String credentials = username + ":" + (password == null ? "" : password);
+            connection.setRequestProperty("Authorization",
+                    "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+        }
+        try (InputStream in = connection.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Writes to a temporary file first and renames it, so a concurrent process never
+     * reads a partially written document.
+     */
+    private static void store(byte[] document, File cacheDirectory, File target) throws IOException {
+        File temp = File.createTempFile("wsdl", ".tmp", cacheDirectory);
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                out.write(document);
+            }
+            if (!temp.renameTo(target) && !target.isFile()) {
+                throw new IOException("Cannot move downloaded document to " + target.getAbsolutePath());
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+}
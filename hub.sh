@@ -0,0 +1,152 @@
+#!/bin/sh
+#
+# hub.sh runs the Hub clients (package hub.sample) with their class-data-sharing
+# archive, built by a training run, so that a JVM maps the classes the clients load
+# at startup from the archive instead of loading, parsing and verifying them anew:
+#
+#   hub.sh train                 run HubTrainingRun and build the archive from it
+#   hub.sh benchmark [runs]      time startup with and without the archive (HubStartupBenchmark)
+#   hub.sh CLASS [ARGS...]       run hub.sample.CLASS, e.g. hub.sh HubDaemon
+#
+# On a JDK with an AOT cache (JDK 24 and later) the archive is an AOT cache,
+# cds/hub.aot, else a dynamic CDS archive, cds/hub.jsa (JDK 13 and later).  Only
+# train asks the JDK which; a run uses whichever file exists, without starting a JVM
+# to ask again, and without one it runs as before.  The archive is only valid
+# for the JDK and the class path it was built with: after a JDK update or new jars,
+# train again (the JVM warns and runs without it otherwise).  When the classes are
+# newer than cds/hub-clients.jar the jar is rebuilt and the archive dropped.
+#
+# The clients need JDK 11 or later; the JAX-WS runtime the JDK dropped in 11
+# ships as jars next to axis.jar (see README.md).
+#
+# The classes of axis.jar, xercesImpl.jar, jaxrpc.jar and commons-discovery are
+# older than Java 6 class files, which CDS cannot archive; they are loaded from
+# their jars as before (the training run logs "Skipping ... Old class has been
+# linked" for them with -Xlog:cds).
+#
+# Environment:
+#
+#   JAVA_HOME     the JDK (default: the java on the PATH)
+#   HUB_CLASSES   the compiled clients (default: ./classes), e.g.
+#                 javac -encoding UTF-8 -sourcepath "" -d classes -cp "*" *.java
+#   HUB_CDS_DIR   where the jar of the clients and the archive go (default: ./cds)
+#   HUB_AOT       0 to build a CDS archive even on a JDK with an AOT cache
+#   JAVA_OPTS     more JVM options, e.g. -Dhub.daemon.jobs=hl7
+#
+
+set -e
+
+HUB_HOME=$(cd "$(dirname "$0")" && pwd)
+if [ -n "$JAVA_HOME" ]; then
+    JAVA="$JAVA_HOME/bin/java"
+    JAR="$JAVA_HOME/bin/jar"
+else
+    JAVA=java
+    JAR=jar
+fi
+CLASSES=${HUB_CLASSES:-$HUB_HOME/classes}
+CDS_DIR=${HUB_CDS_DIR:-$HUB_HOME/cds}
+CLIENTS_JAR=$CDS_DIR/hub-clients.jar
+JSA=$CDS_DIR/hub.jsa
+AOT=$CDS_DIR/hub.aot
+
+# the same class path, in the same order, for the training run and every run after it
+CP=$CLIENTS_JAR
+for jar in "$HUB_HOME"/*.jar; do
+    CP=$CP:$jar
+done
+
+usage() {
+    echo "Usage: hub.sh train | benchmark [runs] | CLASS [ARGS...]" >&2
+    exit 2
+}
+
+aot_supported() {
+    [ "${HUB_AOT:-1}" != 0 ] && "$JAVA" -XX:+PrintFlagsFinal -version 2>/dev/null | grep -q ' AOTCache '
+}
+
+# CDS archives classes from jars only, so the clients go into one
+clients_jar() {
+    if [ ! -d "$CLASSES" ]; then
+        echo "hub.sh: no classes in $CLASSES, compile the clients there or set HUB_CLASSES" >&2
+        exit 1
+    fi
+    mkdir -p "$CDS_DIR"
+    if [ ! -f "$CLIENTS_JAR" ] || [ -n "$(find "$CLASSES" -type f -newer "$CLIENTS_JAR" | head -n 1)" ]; then
+        "$JAR" cf "$CLIENTS_JAR" -C "$CLASSES" .
+        if [ -f "$JSA" ] || [ -f "$AOT" ]; then
+            echo "hub.sh: the classes changed, run hub.sh train again" >&2
+            rm -f "$JSA" "$AOT"
+        fi
+    fi
+}
+
+# a path of the training run failed: an archive of it would miss the path's classes
+training_failed() {
+    echo "hub.sh: the training run failed, no archive built" >&2
+    exit 1
+}
+
+train() {
+    clients_jar
+    rm -f "$JSA" "$AOT" "$CDS_DIR/hub.aotconf"
+    if aot_supported; then
+        if ! "$JAVA" $JAVA_OPTS -XX:AOTMode=record -XX:AOTConfiguration="$CDS_DIR/hub.aotconf" \
+            -cp "$CP" hub.sample.HubTrainingRun "$@"; then
+            rm -f "$CDS_DIR/hub.aotconf"
+            training_failed
+        fi
+        "$JAVA" $JAVA_OPTS -XX:AOTMode=create -XX:AOTConfiguration="$CDS_DIR/hub.aotconf" \
+            -XX:AOTCache="$AOT" -cp "$CP"
+        rm -f "$CDS_DIR/hub.aotconf"
+        echo "AOT cache: $AOT"
+    else
+        if ! "$JAVA" $JAVA_OPTS -Xlog:cds=error -Xlog:cds+dynamic=error -XX:ArchiveClassesAtExit="$JSA" \
+            -cp "$CP" hub.sample.HubTrainingRun "$@"; then
+            # the JVM writes the archive at exit, failed run or not
+            rm -f "$JSA"
+            training_failed
+        fi
+        echo "CDS archive: $JSA"
+    fi
+}
+
+[ $# -gt 0 ] || usage
+case "$1" in
+    train)
+        shift
+        train "$@"
+        ;;
+    benchmark)
+        shift
+        clients_jar
+        ARCHIVE=
+        if [ -f "$AOT" ]; then
+            ARCHIVE=$AOT
+        elif [ -f "$JSA" ]; then
+            ARCHIVE=$JSA
+        fi
+        exec "$JAVA" $JAVA_OPTS ${ARCHIVE:+-Dhub.startup.archive="$ARCHIVE"} -Dhub.startup.java="$JAVA" \
+            -cp "$CP" hub.sample.HubStartupBenchmark "$@"
+        ;;
+    -*)
+        usage
+        ;;
+    *)
+        clients_jar
+        CLASS=$1
+        shift
+        case "$CLASS" in
+            *.*) ;;
+            *) CLASS=hub.sample.$CLASS ;;
+        esac
+        if [ -f "$AOT" ]; then
+            set -- -XX:AOTCache="$AOT" "$CLASS" "$@"
+        elif [ -f "$JSA" ]; then
+            set -- -XX:SharedArchiveFile="$JSA" "$CLASS" "$@"
+        else
+            set -- "$CLASS" "$@"
+        fi
+        exec "$JAVA" $JAVA_OPTS -cp "$CP" "$@"
+        ;;
+esac